@@ -27,14 +27,22 @@ import org.openmrs.api.ConceptService;
 import org.openmrs.api.LocationService;
 import org.openmrs.api.UserService;
 import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
 import org.openmrs.customdatatype.datatype.FreeTextDatatype;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.DaemonTokenAware;
 import org.openmrs.module.Module;
 import org.openmrs.module.ModuleActivator;
 import org.openmrs.module.ModuleFactory;
 import org.openmrs.module.emr.account.AccountService;
+import org.openmrs.module.emr.adt.AdtService;
 import org.openmrs.module.emr.adt.EmrVisitAssignmentHandler;
+import org.openmrs.module.emr.adt.MergePatientsJobRunner;
+import org.openmrs.module.emr.api.EmrService;
 import org.openmrs.module.emr.htmlformentry.UiMessageTagHandler;
+import org.openmrs.module.emr.patient.PatientSearchIndexBuilder;
 import org.openmrs.module.emr.printer.PrinterDatatype;
+import org.openmrs.module.emr.printer.PrinterService;
 import org.openmrs.module.emr.task.TaskDescriptor;
 import org.openmrs.module.emr.task.TaskFactory;
 import org.openmrs.module.emr.task.TaskService;
@@ -57,15 +65,26 @@ import static org.openmrs.module.emr.EmrConstants.LOCATION_ATTRIBUTE_TYPE_NAME_T
 /**
  * This class contains the logic that is run every time this module is either started or stopped.
  */
-public class EmrActivator implements ModuleActivator {
+public class EmrActivator implements ModuleActivator, DaemonTokenAware {
 
     protected Log log = LogFactory.getLog(getClass());
+
+    private DaemonToken daemonToken;
+
+    /**
+     * @see DaemonTokenAware#setDaemonToken(org.openmrs.module.DaemonToken)
+     */
+    @Override
+    public void setDaemonToken(DaemonToken daemonToken) {
+        this.daemonToken = daemonToken;
+    }
 	
 	/**
 	 * @see ModuleActivator#willRefreshContext()
 	 */
 	public void willRefreshContext() {
 		log.info("Refreshing EMR Module");
+        stopListeningForGlobalPropertyChanges();
 	}
 	
 	/**
@@ -98,8 +117,80 @@ public class EmrActivator implements ModuleActivator {
         ensurePrivilegeLevelRoles();
 
         ensureScheduledTasks();
+
+        // from now on emr metadata is only looked up again when the global properties that name it change
+        for (EmrProperties emrProperties : Context.getRegisteredComponents(EmrProperties.class)) {
+            emrProperties.listenForChanges(Context.getAdministrationService());
+        }
+
+        // pick up any print jobs that were queued but not yet printed when we were last stopped
+        Context.getService(PrinterService.class).dispatchQueuedPrintJobs();
+
+        buildActiveVisitsBoardInBackground();
+
+        buildDiagnosisSearchIndexInBackground();
+
+        startPatientSearchIndexBuilder();
+
+        // carry on with any merge patients jobs that were interrupted when we were last stopped
+        Context.getRegisteredComponent("mergePatientsJobRunner", MergePatientsJobRunner.class).setDaemonToken(daemonToken);
+        Context.getService(AdtService.class).resumeMergePatientsJobs();
 	}
 
+    // until the board is built, the active visits page simply queries the visits directly, so there's no need to hold
+    // up startup for it
+    private void buildActiveVisitsBoardInBackground() {
+        runInBackgroundAsDaemon("build active visits board", new Runnable() {
+            @Override
+            public void run() {
+                Context.getService(AdtService.class).rebuildActiveVisitsBoard();
+            }
+        });
+    }
+
+    // likewise, until the index is built, diagnosis searches simply query the concept names directly
+    private void buildDiagnosisSearchIndexInBackground() {
+        runInBackgroundAsDaemon("build diagnosis search index", new Runnable() {
+            @Override
+            public void run() {
+                Context.getService(EmrService.class).rebuildDiagnosisSearchIndex();
+            }
+        });
+    }
+
+    // nobody is logged in at startup, so background work has to run as the daemon user, which opens (and closes) a
+    // session of its own and can call any service
+    private void runInBackgroundAsDaemon(final String description, final Runnable runnable) {
+        Daemon.runInDaemonThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                }
+                catch (Exception e) {
+                    log.error("Unable to " + description, e);
+                }
+            }
+        }, daemonToken);
+    }
+
+    // builds the patient search index whenever it is turned on, and carries on with the build if we were stopped part
+    // way through it; until it is built, patient searches simply don't use it
+    private void startPatientSearchIndexBuilder() {
+        PatientSearchIndexBuilder patientSearchIndexBuilder = getPatientSearchIndexBuilder();
+        patientSearchIndexBuilder.setDaemonToken(daemonToken);
+        Context.getAdministrationService().addGlobalPropertyListener(patientSearchIndexBuilder);
+
+        EmrProperties emrProperties = Context.getRegisteredComponent("emrProperties", EmrProperties.class);
+        if (emrProperties.isPatientSearchIndexEnabled() && !emrProperties.isPatientSearchIndexBuilt()) {
+            patientSearchIndexBuilder.start();
+        }
+    }
+
+    private PatientSearchIndexBuilder getPatientSearchIndexBuilder() {
+        return Context.getRegisteredComponent("patientSearchIndexBuilder", PatientSearchIndexBuilder.class);
+    }
+
     private void ensureScheduledTasks() {
         SchedulerService schedulerService = Context.getSchedulerService();
         TaskDefinition task = schedulerService.getTaskByName(EmrConstants.TASK_CLOSE_STALE_VISITS_NAME);
@@ -282,7 +373,21 @@ public class EmrActivator implements ModuleActivator {
         } catch (Exception ex) {
             // pass
         }
+        stopListeningForGlobalPropertyChanges();
         log.info("EMR Module stopped");
 	}
+
+    private void stopListeningForGlobalPropertyChanges() {
+        try {
+            for (EmrProperties emrProperties : Context.getRegisteredComponents(EmrProperties.class)) {
+                emrProperties.stopListeningForChanges(Context.getAdministrationService());
+            }
+            PatientSearchIndexBuilder patientSearchIndexBuilder = getPatientSearchIndexBuilder();
+            patientSearchIndexBuilder.stop();
+            Context.getAdministrationService().removeGlobalPropertyListener(patientSearchIndexBuilder);
+        } catch (Exception ex) {
+            log.warn("Unable to stop listening for global property changes", ex);
+        }
+    }
 		
 }
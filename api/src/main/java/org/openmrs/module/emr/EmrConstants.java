@@ -45,6 +45,12 @@ public class EmrConstants {
 
     public static final String GP_DIAGNOSIS_CONCEPT_CLASS = "emr.conceptClass.diagnosis";
 
+    public static final String GP_PATIENT_SEARCH_INDEX_ENABLED = "emr.patientSearchIndex.enabled";
+
+    public static final String GP_PATIENT_SEARCH_INDEX_PROGRESS = "emr.patientSearchIndex.progress";
+
+    public static final String PATIENT_SEARCH_INDEX_COMPLETE = "complete";
+
     public static final String GP_XRAY_ORDERABLES_CONCEPT = "emr.xrayOrderablesConcept";
 
     public static final String GP_CT_SCAN_ORDERABLES_CONCEPT = "emr.ctScanOrderablesConcept";
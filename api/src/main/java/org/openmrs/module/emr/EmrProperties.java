@@ -28,6 +28,7 @@ import org.openmrs.Role;
 import org.openmrs.VisitType;
 import org.openmrs.module.emr.consult.DiagnosisMetadata;
 import org.openmrs.module.emr.utils.ModuleProperties;
+import org.openmrs.util.OpenmrsConstants;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
 
@@ -42,6 +43,10 @@ import static org.openmrs.module.emr.EmrConstants.UNKNOWN_PATIENT_PERSON_ATTRIBU
 @Component("emrProperties")
 public class EmrProperties extends ModuleProperties {
 
+    private DiagnosisMetadata diagnosisMetadata;
+
+    private long diagnosisMetadataGeneration = 0;
+
     public int getVisitExpireHours() {
         return 12;
     }
@@ -130,8 +135,51 @@ public class EmrProperties extends ModuleProperties {
         return getConceptByGlobalProperty(EmrConstants.PAYMENT_RECEIPT_NUMBER_CONCEPT);
     }
 
+    /**
+     * While we're listening for changes, the diagnosis metadata is only looked up by mapping once, and after that
+     * just reloaded (by id) into the current session, until a concept is changed (see DiagnosisMetadataAdvice)
+     */
     public DiagnosisMetadata getDiagnosisMetadata() {
-        return new DiagnosisMetadata(conceptService, getEmrConceptSource());
+        if (!isListeningForChanges()) {
+            return new DiagnosisMetadata(conceptService, getEmrConceptSource());
+        }
+
+        long generation;
+        DiagnosisMetadata cached;
+        synchronized (this) {
+            generation = diagnosisMetadataGeneration;
+            cached = diagnosisMetadata;
+        }
+
+        if (cached != null) {
+            DiagnosisMetadata reloaded = cached.reload(conceptService);
+            if (reloaded != null) {
+                return reloaded;
+            }
+        }
+
+        DiagnosisMetadata resolved = new DiagnosisMetadata(conceptService, getEmrConceptSource());
+        synchronized (this) {
+            // a concept changed while we were looking it up, so what we found may already be out of date
+            if (generation == diagnosisMetadataGeneration) {
+                diagnosisMetadata = resolved;
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * Discards the cached diagnosis metadata, so it is looked up by mapping again next time
+     */
+    public synchronized void invalidateDiagnosisMetadata() {
+        diagnosisMetadata = null;
+        diagnosisMetadataGeneration++;
+    }
+
+    @Override
+    public void refresh() {
+        super.refresh();
+        invalidateDiagnosisMetadata();
     }
 
     protected Concept getEmrConceptByMapping(String code) {
@@ -179,6 +227,35 @@ public class EmrProperties extends ModuleProperties {
         return types;
     }
 
+    /**
+     * @return true if patient searches should be narrowed down using the patient search index (see
+     * EmrService#updatePatientSearchIndex)
+     */
+    public boolean isPatientSearchIndexEnabled() {
+        return Boolean.parseBoolean(getGlobalProperty(EmrConstants.GP_PATIENT_SEARCH_INDEX_ENABLED, false));
+    }
+
+    /**
+     * @return how far the patient search index has been built: empty if it hasn't been started, the id of the last
+     * patient indexed so far, or EmrConstants#PATIENT_SEARCH_INDEX_COMPLETE
+     */
+    public String getPatientSearchIndexProgress() {
+        return getGlobalProperty(EmrConstants.GP_PATIENT_SEARCH_INDEX_PROGRESS, false);
+    }
+
+    public boolean isPatientSearchIndexBuilt() {
+        return EmrConstants.PATIENT_SEARCH_INDEX_COMPLETE.equals(getPatientSearchIndexProgress());
+    }
+
+    /**
+     * @return true if patient names are matched anywhere, rather than at the start of each name (see
+     * PatientSearchCriteria)
+     */
+    public boolean isPatientNameMatchAnywhere() {
+        return OpenmrsConstants.GLOBAL_PROPERTY_PATIENT_SEARCH_MATCH_ANYWHERE.equalsIgnoreCase(
+                getGlobalProperty(OpenmrsConstants.GLOBAL_PROPERTY_PATIENT_SEARCH_MATCH_MODE, false));
+    }
+
     public ConceptSource getEmrConceptSource() {
         return conceptService.getConceptSourceByName(EmrConstants.EMR_CONCEPT_SOURCE_NAME);
     }
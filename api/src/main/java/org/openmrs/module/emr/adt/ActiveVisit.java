@@ -0,0 +1,111 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.adt;
+
+import org.openmrs.util.OpenmrsUtil;
+
+import java.util.Date;
+
+/**
+ * Just enough about an open visit to tell whether it is active, and to show it on the active visits board, without
+ * loading the visit's encounters (see ActiveVisitsBoard)
+ */
+public class ActiveVisit {
+
+    private Integer visitId;
+
+    private Integer visitLocationId;
+
+    private Date startDatetime;
+
+    private Integer lastEncounterId;
+
+    private Date lastEncounterDatetime;
+
+    private Integer checkInEncounterId;
+
+    private Date checkInEncounterDatetime;
+
+    public ActiveVisit(Integer visitId, Integer visitLocationId, Date startDatetime) {
+        this.visitId = visitId;
+        this.visitLocationId = visitLocationId;
+        this.startDatetime = startDatetime;
+    }
+
+    /**
+     * Takes the specified (non-voided) encounter of this visit into account
+     *
+     * @param encounterId
+     * @param encounterDatetime
+     * @param checkIn whether this is a check-in encounter
+     */
+    public void addEncounter(Integer encounterId, Date encounterDatetime, boolean checkIn) {
+        if (isLater(encounterId, encounterDatetime, lastEncounterId, lastEncounterDatetime)) {
+            lastEncounterId = encounterId;
+            lastEncounterDatetime = encounterDatetime;
+        }
+        if (checkIn && isLater(encounterId, encounterDatetime, checkInEncounterId, checkInEncounterDatetime)) {
+            checkInEncounterId = encounterId;
+            checkInEncounterDatetime = encounterDatetime;
+        }
+    }
+
+    /**
+     * @param mustHaveSomethingAfter
+     * @return true if the visit started, or has an encounter, on or after the specified date (see AdtService#isActive)
+     */
+    public boolean isActive(Date mustHaveSomethingAfter) {
+        return OpenmrsUtil.compare(startDatetime, mustHaveSomethingAfter) >= 0
+                || (lastEncounterDatetime != null && OpenmrsUtil.compare(lastEncounterDatetime, mustHaveSomethingAfter) >= 0);
+    }
+
+    /**
+     * @param encounterId
+     * @return true if the specified encounter is the last or check-in encounter of this visit
+     */
+    public boolean refersTo(Integer encounterId) {
+        return encounterId.equals(lastEncounterId) || encounterId.equals(checkInEncounterId);
+    }
+
+    public Integer getVisitId() {
+        return visitId;
+    }
+
+    public Integer getVisitLocationId() {
+        return visitLocationId;
+    }
+
+    public Date getStartDatetime() {
+        return startDatetime;
+    }
+
+    public Integer getLastEncounterId() {
+        return lastEncounterId;
+    }
+
+    public Integer getCheckInEncounterId() {
+        return checkInEncounterId;
+    }
+
+    // ties go to the encounter that was created last
+    private boolean isLater(Integer encounterId, Date encounterDatetime, Integer currentId, Date currentDatetime) {
+        if (currentId == null) {
+            return true;
+        }
+        int compare = OpenmrsUtil.compare(encounterDatetime, currentDatetime);
+        return compare > 0 || (compare == 0 && encounterId > currentId);
+    }
+
+}
@@ -0,0 +1,201 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.adt;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-memory projection of the active visits at each visit location, so that the active visits page can be
+ * rendered without loading every open visit and its encounters
+ *
+ * The board is built in the background at startup (see AdtService#rebuildActiveVisitsBoard); until then, callers
+ * should fall back to querying the visits directly (see #isBuilt). After that, it is maintained incrementally: whenever
+ * a visit or encounter is saved (see ActiveVisitsBoardAdvice) the visit is recorded as changed, and the entries for
+ * the changed visits are refreshed the next time the board is read. Visits that have become inactive simply through
+ * the passing of time are dropped from the board as it is read.
+ *
+ * If the board isn't read for so long that more than maxChangedVisits visits change in the meantime, we stop keeping
+ * track of the individual changes, and the whole board is rebuilt the next time it is read instead.
+ */
+public class ActiveVisitsBoard {
+
+    private static final int DEFAULT_MAX_CHANGED_VISITS = 10000;
+
+    private final Map<Integer, ActiveVisit> visits = new ConcurrentHashMap<Integer, ActiveVisit>();
+
+    private final Set<Integer> changedVisitIds = new LinkedHashSet<Integer>();
+
+    private final int maxChangedVisits;
+
+    private boolean tooManyChanges = false;
+
+    private volatile boolean built = false;
+
+    public ActiveVisitsBoard() {
+        this(DEFAULT_MAX_CHANGED_VISITS);
+    }
+
+    public ActiveVisitsBoard(int maxChangedVisits) {
+        this.maxChangedVisits = maxChangedVisits;
+    }
+
+    /**
+     * @return true once the board has been built, and can be used in place of querying the visits directly
+     */
+    public boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * Replaces the contents of the board; any changes recorded in the meantime are kept, and will be applied the next
+     * time the board is read
+     *
+     * @param activeVisits
+     */
+    public synchronized void rebuild(Collection<ActiveVisit> activeVisits) {
+        visits.clear();
+        for (ActiveVisit activeVisit : activeVisits) {
+            visits.put(activeVisit.getVisitId(), activeVisit);
+        }
+        built = true;
+    }
+
+    /**
+     * Records that the visit with the specified id has changed (or that one of its encounters has); if called within
+     * a transaction, the change is only recorded once (and if) the transaction commits, so that we never refresh the
+     * board before the change can be seen
+     *
+     * @param visitId
+     */
+    public void recordChange(final Integer visitId) {
+
+        if (visitId == null) {
+            return;
+        }
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    append(visitId);
+                }
+            });
+        }
+        else {
+            append(visitId);
+        }
+    }
+
+    /**
+     * Records that the encounter with the specified id has changed; in addition to the encounter's own visit (which
+     * the caller should record), this covers any visit on the board that the encounter has been moved away from
+     *
+     * @param encounterId
+     */
+    public void recordEncounterChange(Integer encounterId) {
+
+        if (encounterId == null) {
+            return;
+        }
+
+        for (ActiveVisit activeVisit : visits.values()) {
+            if (activeVisit.refersTo(encounterId)) {
+                recordChange(activeVisit.getVisitId());
+            }
+        }
+    }
+
+    /**
+     * @return the ids of the visits that have changed since this was last called, or null if too many visits have
+     * changed to keep track of, in which case the caller should rebuild the board
+     */
+    public synchronized Set<Integer> takeChangedVisitIds() {
+        if (tooManyChanges) {
+            tooManyChanges = false;
+            return null;
+        }
+        Set<Integer> taken = new LinkedHashSet<Integer>(changedVisitIds);
+        changedVisitIds.clear();
+        return taken;
+    }
+
+    /**
+     * Refreshes the entries for the specified (changed) visits
+     *
+     * @param visitIds the visits that changed
+     * @param openVisits those of the changed visits that are still open (and non-voided)
+     */
+    public void update(Collection<Integer> visitIds, Collection<ActiveVisit> openVisits) {
+        for (Integer visitId : visitIds) {
+            visits.remove(visitId);
+        }
+        for (ActiveVisit openVisit : openVisits) {
+            visits.put(openVisit.getVisitId(), openVisit);
+        }
+    }
+
+    /**
+     * @param visitLocationIds
+     * @param mustHaveSomethingAfter
+     * @return the active visits at any of the specified locations
+     */
+    public List<ActiveVisit> getActiveVisits(Set<Integer> visitLocationIds, Date mustHaveSomethingAfter) {
+
+        List<ActiveVisit> activeVisits = new ArrayList<ActiveVisit>();
+
+        for (Iterator<ActiveVisit> i = visits.values().iterator(); i.hasNext(); ) {
+            ActiveVisit activeVisit = i.next();
+            if (!activeVisit.isActive(mustHaveSomethingAfter)) {
+                // it can only become active again by being changed, at which point it will be refreshed
+                i.remove();
+            }
+            else if (visitLocationIds.contains(activeVisit.getVisitLocationId())) {
+                activeVisits.add(activeVisit);
+            }
+        }
+
+        return activeVisits;
+    }
+
+    /**
+     * @return the number of visits on the board (for logging)
+     */
+    public int size() {
+        return visits.size();
+    }
+
+    private synchronized void append(Integer visitId) {
+        if (tooManyChanges) {
+            return;
+        }
+        changedVisitIds.add(visitId);
+        if (changedVisitIds.size() > maxChangedVisits) {
+            changedVisitIds.clear();
+            tooManyChanges = true;
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.adt;
+
+import org.openmrs.Encounter;
+import org.openmrs.Visit;
+import org.openmrs.api.context.Context;
+import org.springframework.aop.AfterReturningAdvice;
+
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * Keeps the active visits board up to date: whenever a visit or encounter is saved, voided, unvoided or purged through
+ * the VisitService or EncounterService, the affected visit is recorded as changed on the board
+ *
+ * @see ActiveVisitsBoard
+ */
+public class ActiveVisitsBoardAdvice implements AfterReturningAdvice {
+
+    private ActiveVisitsBoard activeVisitsBoard;
+
+    @Override
+    public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+
+        if (!isChange(method) || args == null || args.length == 0) {
+            return;
+        }
+
+        if (args[0] instanceof Visit) {
+            getActiveVisitsBoard().recordChange(((Visit) args[0]).getVisitId());
+        }
+        else if (args[0] instanceof Encounter) {
+            Encounter encounter = (Encounter) args[0];
+            ActiveVisitsBoard board = getActiveVisitsBoard();
+            if (encounter.getVisit() != null) {
+                board.recordChange(encounter.getVisit().getVisitId());
+            }
+            board.recordEncounterChange(encounter.getEncounterId());
+        }
+    }
+
+    private boolean isChange(Method method) {
+        String name = method.getName();
+        return name.startsWith("save") || name.startsWith("void") || name.startsWith("unvoid")
+                || name.startsWith("purge") || name.startsWith("end");
+    }
+
+    protected ActiveVisitsBoard getActiveVisitsBoard() {
+        if (activeVisitsBoard == null) {
+            List<ActiveVisitsBoard> boards = Context.getRegisteredComponents(ActiveVisitsBoard.class);
+            activeVisitsBoard = boards.get(0);
+        }
+        return activeVisitsBoard;
+    }
+
+}
@@ -23,6 +23,7 @@ import org.openmrs.Provider;
 import org.openmrs.Visit;
 import org.openmrs.api.OpenmrsService;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -52,10 +53,23 @@ public interface AdtService extends OpenmrsService {
      */
     Visit getActiveVisit(Patient patient, Location department);
 
+    /**
+     * Like #getActiveVisit, but read-only: if the patient has any non-stopped visits that are not active, they are
+     * queued to be stopped in the background, rather than being stopped within this call. Use this when rendering
+     * pages, so that a page view never turns into a write.
+     *
+     * @param patient
+     * @param department
+     * @return
+     */
+    Visit findActiveVisit(Patient patient, Location department);
+
     /**
      * Like #getActiveVisit, but if the patient has no active visit, one is created (and persisted).
      * (This has the same side-effects as #getActiveVisit.)
      * The visit's location will be a valid visit location per our business logic.
+     * Concurrent calls for the same patient are serialized (until the calling transaction completes), so they don't
+     * each create a new visit.
      *
      * @param patient
      * @param department
@@ -114,6 +128,12 @@ public interface AdtService extends OpenmrsService {
 	 * @return
 	 */
 	List<VisitSummary> getActiveVisitSummaries(Location location);
+
+    /**
+     * Builds the in-memory board of active visits used by #getActiveVisitSummaries from scratch; this is done in the
+     * background at startup, after which the board is maintained incrementally as visits and encounters are saved
+     */
+    void rebuildActiveVisitsBoard();
 	
 	/**
 	 * 
@@ -127,8 +147,22 @@ public interface AdtService extends OpenmrsService {
 
     /**
      * If any currently-open visits are now inactive per our business logic, close them
+     *
+     * The inactive visits are found by query and closed in chunks, so that we never load all the open visits (and
+     * their encounters) into memory at once; each visit is saved on its own, so one failure doesn't stop the rest
+     *
+     * @return the number of visits that were closed
+     */
+    int closeInactiveVisits();
+
+    /**
+     * Stops those of the specified visits that are still open but are now inactive per our business logic; used to
+     * close the stale visits queued by #findActiveVisit
+     *
+     * @param visitIds
+     * @return the number of visits that were closed
      */
-    void closeInactiveVisits();
+    int closeVisitsIfInactive(Collection<Integer> visitIds);
 
     /**
      * @param patient
@@ -168,6 +202,70 @@ public interface AdtService extends OpenmrsService {
      */
     void mergePatients(Patient preferred, Patient notPreferred);
 
+    /**
+     * Does the same as #mergePatients, but in the background: works out which visits will have to be merged, saves
+     * that plan as a job, and hands the job to a background worker once the current transaction commits. The job is
+     * carried out in a number of small transactions (see #runMergePatientsJobStep), so that merging patients with
+     * large histories neither holds up the request nor holds one very large transaction open.
+     *
+     * @param preferred
+     * @param notPreferred
+     * @return the queued job, which can be used to check on its progress (see #getMergePatientsJob)
+     * @throws IllegalArgumentException if this would merge a permanent record into an unknown one
+     */
+    MergePatientsJob queueMergePatients(Patient preferred, Patient notPreferred);
+
+    /**
+     * @param mergePatientsJobId
+     * @return the merge patients job with the specified id
+     */
+    MergePatientsJob getMergePatientsJob(Integer mergePatientsJobId);
+
+    /**
+     * Carries out the next step of a queued merge patients job, in its own transaction: moves a bounded number of
+     * encounters from one of the planned visits to be merged, or voids that visit once it has none left, or (once all
+     * the planned visits have been merged) merges the patients themselves. The job's progress is saved in the same
+     * transaction, so if a step fails or the server is stopped, the job carries on from the last step that completed.
+     *
+     * @param mergePatientsJobId
+     * @return true if the job has more steps to carry out
+     */
+    boolean runMergePatientsJobStep(Integer mergePatientsJobId);
+
+    /**
+     * Marks a merge patients job as FAILED
+     *
+     * @param mergePatientsJobId
+     * @param error
+     */
+    void failMergePatientsJob(Integer mergePatientsJobId, String error);
+
+    /**
+     * Hands all QUEUED merge patients jobs to the background worker; called on startup, so that jobs that were
+     * interrupted when the server was stopped are finished
+     */
+    void resumeMergePatientsJobs();
+
 
     Encounter createCheckinInRetrospective(Patient patient, Location location, Provider clerk, Obs paymentReason, Obs paymentAmount, Obs paymentReceipt, Date checkinDate);
+
+    /**
+     * Validates a CSV file of retrospective check-ins (see {@link RetrospectiveCheckinCsvReader} for the format) and,
+     * if every row is valid, creates them all, as with {@link #createCheckinsInRetrospective(List)}. If any row is
+     * invalid, nothing is created.
+     *
+     * @param csv
+     * @return the number of rows imported, or the errors found in each row
+     */
+    RetrospectiveCheckinImportResult importRetrospectiveCheckins(String csv);
+
+    /**
+     * Creates a new visit, check-in encounter and payment obs group for each of the check-ins, as
+     * {@link #createCheckinInRetrospective} does for one. The hibernate session is flushed and cleared periodically,
+     * so any objects the caller had loaded are detached afterwards.
+     *
+     * @param checkins
+     * @return the number of check-ins created
+     */
+    int createCheckinsInRetrospective(List<RetrospectiveCheckin> checkins);
 }
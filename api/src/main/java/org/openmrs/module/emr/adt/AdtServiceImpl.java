@@ -16,19 +16,22 @@ package org.openmrs.module.emr.adt;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.collections.ListUtils;
 import org.apache.commons.lang.time.DateUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
 import org.openmrs.Encounter;
+import org.openmrs.EncounterRole;
 import org.openmrs.EncounterType;
 import org.openmrs.Location;
 import org.openmrs.Obs;
@@ -40,8 +43,10 @@ import org.openmrs.PersonAttributeType;
 import org.openmrs.Provider;
 import org.openmrs.User;
 import org.openmrs.Visit;
+import org.openmrs.VisitType;
 import org.openmrs.api.APIException;
 import org.openmrs.api.AdministrationService;
+import org.openmrs.api.ConceptService;
 import org.openmrs.api.EncounterService;
 import org.openmrs.api.LocationService;
 import org.openmrs.api.OrderService;
@@ -52,18 +57,41 @@ import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
 import org.openmrs.module.emr.EmrConstants;
 import org.openmrs.module.emr.EmrProperties;
+import org.openmrs.module.emr.adt.db.AdtDAO;
+import org.openmrs.module.emr.adt.db.MergePatientsJobDAO;
 import org.openmrs.module.emr.paperrecord.PaperRecordRequest;
 import org.openmrs.module.emr.paperrecord.PaperRecordService;
 import org.openmrs.module.emr.patient.PatientDomainWrapper;
 import org.openmrs.serialization.SerializationException;
 import org.openmrs.util.OpenmrsUtil;
+import org.openmrs.util.PrivilegeConstants;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 
 public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
 
+    private static final int CLOSE_INACTIVE_VISITS_CHUNK_SIZE = 100;
+
+    private static final int MERGE_PATIENTS_ENCOUNTERS_PER_STEP = 100;
+
+    private static final int RETROSPECTIVE_CHECKINS_PER_FLUSH = 50;
+
     private final Log log = LogFactory.getLog(getClass());
 
+    private AdtDAO adtDAO;
+
+    private StaleVisitCloser staleVisitCloser = new StaleVisitCloser();
+
+    private ActiveVisitsBoard activeVisitsBoard = new ActiveVisitsBoard();
+
+    private MergePatientsJobDAO mergePatientsJobDAO;
+
+    private MergePatientsJobRunner mergePatientsJobRunner = new MergePatientsJobRunner();
+
+    private PatientLocks patientLocks = new PatientLocks();
+
     private EmrProperties emrProperties;
     
     private PaperRecordService paperRecordService;
@@ -82,6 +110,32 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
 
     private LocationService locationService;
 
+    private ConceptService conceptService;
+
+    public void setAdtDAO(AdtDAO adtDAO) {
+        this.adtDAO = adtDAO;
+    }
+
+    public void setStaleVisitCloser(StaleVisitCloser staleVisitCloser) {
+        this.staleVisitCloser = staleVisitCloser;
+    }
+
+    public void setActiveVisitsBoard(ActiveVisitsBoard activeVisitsBoard) {
+        this.activeVisitsBoard = activeVisitsBoard;
+    }
+
+    public void setMergePatientsJobDAO(MergePatientsJobDAO mergePatientsJobDAO) {
+        this.mergePatientsJobDAO = mergePatientsJobDAO;
+    }
+
+    public void setMergePatientsJobRunner(MergePatientsJobRunner mergePatientsJobRunner) {
+        this.mergePatientsJobRunner = mergePatientsJobRunner;
+    }
+
+    public void setPatientLocks(PatientLocks patientLocks) {
+        this.patientLocks = patientLocks;
+    }
+
 	public void setOrderService(OrderService orderService) {
 		this.orderService = orderService;
 	}
@@ -118,6 +172,10 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
         this.providerService = providerService;
     }
 
+    public void setConceptService(ConceptService conceptService) {
+        this.conceptService = conceptService;
+    }
+
     @Override
     public boolean isActive(Visit visit) {
         if (visit.getStopDatetime() != null) {
@@ -142,34 +200,60 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
         return false;
     }
 
+    // the stale visits are found by a query over the latest encounter datetime of each open visit, rather than by
+    // loading every open visit and its encounters; each visit is still closed and saved individually (as before), and
+    // the session is cleared after each chunk so that it doesn't grow with the number of visits closed
+
     @Override
-    public void closeInactiveVisits() {
-        List<Visit> openVisits = visitService.getVisits(null, null, null, null, null, null, null, null, null, false, false);
-        for (Visit visit : openVisits) {
-            if (!isActive(visit)) {
+    public int closeInactiveVisits() {
+
+        long start = System.currentTimeMillis();
+        Date mustHaveSomethingAfter = DateUtils.addHours(new Date(), -emrProperties.getVisitExpireHours());
+
+        int closed = 0;
+        int failed = 0;
+        int chunks = 0;
+        Integer lastVisitId = null;
+
+        Map<Integer, Date> inactiveVisits;
+        while (!(inactiveVisits = adtDAO.findInactiveOpenVisits(mustHaveSomethingAfter, lastVisitId,
+                CLOSE_INACTIVE_VISITS_CHUNK_SIZE)).isEmpty()) {
+
+            long chunkStart = System.currentTimeMillis();
+
+            for (Map.Entry<Integer, Date> entry : inactiveVisits.entrySet()) {
+                lastVisitId = entry.getKey();
                 try {
-                    closeAndSaveVisit(visit);
+                    Visit visit = visitService.getVisit(entry.getKey());
+                    visit.setStopDatetime(entry.getValue() != null ? entry.getValue() : visit.getStartDatetime());
+                    visitService.saveVisit(visit);
+                    closed++;
                 }
                 catch (Exception ex) {
-                    log.warn("Failed to close inactive visit " + visit, ex);
+                    log.warn("Failed to close inactive visit " + entry.getKey(), ex);
+                    failed++;
                 }
             }
+
+            Context.flushSession();
+            Context.clearSession();
+            chunks++;
+
+            if (log.isDebugEnabled()) {
+                log.debug("Closed chunk of " + inactiveVisits.size() + " inactive visits in "
+                        + (System.currentTimeMillis() - chunkStart) + " ms");
+            }
         }
 
+        log.info("Closed " + closed + " inactive visits (" + failed + " failed) in " + chunks + " chunks in "
+                + (System.currentTimeMillis() - start) + " ms");
+
+        return closed;
     }
 
     @Override
     public boolean visitsOverlap(Visit v1, Visit v2) {
-        Location where1 = v1.getLocation();
-        Location where2 = v2.getLocation();
-        if ((where1 == null && where2 == null) ||
-                isSameOrAncestor(where1, where2) ||
-                isSameOrAncestor(where2, where1)) {
-            // "same" location, so check if date ranges overlap (assuming startDatetime is never null)
-            return (OpenmrsUtil.compareWithNullAsLatest(v1.getStartDatetime(), v2.getStopDatetime()) <= 0)
-                    && (OpenmrsUtil.compareWithNullAsLatest(v2.getStartDatetime(), v1.getStopDatetime()) <= 0);
-        }
-        return false;
+        return new VisitOverlaps().overlap(v1, v2);
     }
 
     @Override
@@ -177,7 +261,9 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
     public Visit getActiveVisit(Patient patient, Location department) {
         Date now = new Date();
 
-        List<Visit> candidates = visitService.getVisitsByPatient(patient);
+        // only the open visits can be active, so there's no need to fetch the patient's whole visit history; we don't
+        // restrict by location in the query so that any stale open visits elsewhere still get closed below
+        List<Visit> candidates = adtDAO.findOpenVisits(patient);
         Visit ret = null;
         for (Visit candidate : candidates) {
             if (!isActive(candidate)) {
@@ -194,6 +280,41 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
         return ret;
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    public Visit findActiveVisit(Patient patient, Location department) {
+        Date now = new Date();
+
+        List<Visit> candidates = adtDAO.findOpenVisits(patient);
+        Visit ret = null;
+        for (Visit candidate : candidates) {
+            if (!isActive(candidate)) {
+                // don't write here; let the background closer stop it in its own transaction
+                staleVisitCloser.queue(candidate.getVisitId());
+                continue;
+            }
+            if (isSuitableVisit(candidate, department, now)) {
+                ret = candidate;
+            }
+        }
+
+        return ret;
+    }
+
+    @Override
+    @Transactional
+    public int closeVisitsIfInactive(Collection<Integer> visitIds) {
+        int closed = 0;
+        for (Integer visitId : visitIds) {
+            Visit visit = visitService.getVisit(visitId);
+            if (visit != null && visit.getStopDatetime() == null && !isActive(visit)) {
+                closeAndSaveVisit(visit);
+                closed++;
+            }
+        }
+        return closed;
+    }
+
     private void closeAndSaveVisit(Visit visit) {
         visit.setStopDatetime(guessVisitStopDatetime(visit));
         visitService.saveVisit(visit);
@@ -202,6 +323,9 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
     @Override
     @Transactional
     public Visit ensureActiveVisit(Patient patient, Location department) {
+        // looking for the active visit and creating one must not interleave with another check-in for this patient
+        patientLocks.lockUntilEndOfTransaction(patient.getPatientId());
+
         Visit activeVisit = getActiveVisit(patient, department);
         if (activeVisit == null) {
             Date now = new Date();
@@ -231,6 +355,10 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
     @Transactional
     public Encounter checkInPatient(Patient patient, Location where, Provider checkInClerk,
                                     List<Obs> obsForCheckInEncounter, List<Order> ordersForCheckInEncounter, boolean newVisit) {
+        // this has to come before we read anything at all: the first read fixes what a (repeatable read) transaction
+        // sees, so reading before we have the lock would hide a visit that another check-in creates in the meantime
+        patientLocks.lockUntilEndOfTransaction(patient.getPatientId());
+
         if (checkInClerk == null) {
             checkInClerk = getProvider(Context.getAuthenticatedUser());
         }
@@ -259,12 +387,7 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
         Visit encounterVisit = buildVisit(patient, location, checkinDate);
 
         List<Obs> paymentObservations = new ArrayList<Obs>();
-        Obs paymentGroup = new Obs();
-        paymentGroup.setConcept(emrProperties.getPaymentConstructConcept());
-        paymentGroup.addGroupMember(paymentReason);
-        paymentGroup.addGroupMember(paymentAmount);
-        paymentGroup.addGroupMember(paymentReceipt);
-        paymentObservations.add(paymentGroup);
+        paymentObservations.add(buildPaymentGroup(emrProperties.getPaymentConstructConcept(), paymentReason, paymentAmount, paymentReceipt));
         Encounter checkinEncounter = buildEncounter(emrProperties.getCheckInEncounterType(), patient, location, checkinDate, paymentObservations, null);
         checkinEncounter.addProvider(emrProperties.getCheckInClerkEncounterRole(), clerk);
         encounterVisit.addEncounter(checkinEncounter);
@@ -274,6 +397,80 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
         return checkinEncounter;
     }
 
+    @Override
+    @Transactional
+    public RetrospectiveCheckinImportResult importRetrospectiveCheckins(String csv) {
+        RetrospectiveCheckinImportResult result = new RetrospectiveCheckinImportResult();
+
+        RetrospectiveCheckinCsvReader reader = new RetrospectiveCheckinCsvReader(patientService, locationService,
+                providerService, conceptService, this, emrProperties.getPaymentReasonsConcept());
+        List<RetrospectiveCheckin> checkins = reader.read(csv, result);
+
+        if (!result.hasErrors()) {
+            result.setImportedCount(createCheckinsInRetrospective(checkins));
+        }
+        return result;
+    }
+
+    // each check-in is built the same way as in createCheckinInRetrospective, but the session is flushed and cleared
+    // every RETROSPECTIVE_CHECKINS_PER_FLUSH check-ins (so the inserts go to the database in batches, and the session
+    // doesn't grow with the size of the import), and the emr metadata is only looked up once per batch
+    @Override
+    @Transactional
+    public int createCheckinsInRetrospective(List<RetrospectiveCheckin> checkins) {
+        long start = System.currentTimeMillis();
+
+        CheckinMetadata metadata = null;
+        int created = 0;
+
+        for (RetrospectiveCheckin checkin : checkins) {
+            if (created % RETROSPECTIVE_CHECKINS_PER_FLUSH == 0) {
+                if (created > 0) {
+                    Context.flushSession();
+                    Context.clearSession();
+                }
+                metadata = new CheckinMetadata(emrProperties);
+            }
+
+            // once the session has been cleared, the check-in's references have to be loaded into it again
+            boolean reload = created >= RETROSPECTIVE_CHECKINS_PER_FLUSH;
+            Patient patient = reload ? patientService.getPatient(checkin.getPatient().getPatientId()) : checkin.getPatient();
+            Location location = reload ? locationService.getLocation(checkin.getLocation().getLocationId()) : checkin.getLocation();
+            Provider clerk = reload ? providerService.getProvider(checkin.getClerk().getProviderId()) : checkin.getClerk();
+            Concept paymentReason = reload ? conceptService.getConcept(checkin.getPaymentReason().getConceptId()) : checkin.getPaymentReason();
+
+            Visit visit = buildVisit(patient, location, checkin.getCheckinDate(), metadata.visitType);
+
+            Obs reasonObs = new Obs();
+            reasonObs.setConcept(metadata.paymentReasonsConcept);
+            reasonObs.setValueCoded(paymentReason);
+
+            Obs amountObs = new Obs();
+            amountObs.setConcept(metadata.paymentAmountConcept);
+            amountObs.setValueNumeric(checkin.getPaymentAmount());
+
+            Obs receiptObs = new Obs();
+            receiptObs.setConcept(metadata.paymentReceiptNumberConcept);
+            receiptObs.setValueText(checkin.getReceiptNumber());
+
+            List<Obs> paymentObservations = new ArrayList<Obs>();
+            paymentObservations.add(buildPaymentGroup(metadata.paymentConstructConcept, reasonObs, amountObs, receiptObs));
+            Encounter checkinEncounter = buildEncounter(metadata.checkInEncounterType, patient, location,
+                    checkin.getCheckinDate(), paymentObservations, null);
+            checkinEncounter.addProvider(metadata.checkInClerkEncounterRole, clerk);
+            visit.addEncounter(checkinEncounter);
+
+            encounterService.saveEncounter(checkinEncounter);
+            created++;
+        }
+
+        Context.flushSession();
+        Context.clearSession();
+
+        log.info("Created " + created + " retrospective check-ins in " + (System.currentTimeMillis() - start) + " ms");
+        return created;
+    }
+
 
 
     private Provider getProvider(User accountBelongingToUser) {
@@ -308,14 +505,27 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
     }
 
     private Visit buildVisit(Patient patient, Location location, Date when) {
+        return buildVisit(patient, location, when, emrProperties.getAtFacilityVisitType());
+    }
+
+    private Visit buildVisit(Patient patient, Location location, Date when, VisitType visitType) {
         Visit visit = new Visit();
         visit.setPatient(patient);
         visit.setLocation(getLocationThatSupportsVisits(location));
         visit.setStartDatetime(when);
-        visit.setVisitType(emrProperties.getAtFacilityVisitType());
+        visit.setVisitType(visitType);
         return visit;
     }
 
+    private Obs buildPaymentGroup(Concept paymentConstructConcept, Obs paymentReason, Obs paymentAmount, Obs paymentReceipt) {
+        Obs paymentGroup = new Obs();
+        paymentGroup.setConcept(paymentConstructConcept);
+        paymentGroup.addGroupMember(paymentReason);
+        paymentGroup.addGroupMember(paymentAmount);
+        paymentGroup.addGroupMember(paymentReceipt);
+        return paymentGroup;
+    }
+
     /**
      * Looks at location, and if necessary its ancestors in the location hierarchy, until it finds one tagged with
      * "Visit Location"
@@ -373,11 +583,18 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
 	 * @see org.openmrs.module.emr.adt.AdtService#getActiveVisitSummaries(org.openmrs.Location)
 	 */
 	@Override
+	@Transactional(readOnly = true)
 	public List<VisitSummary> getActiveVisitSummaries(Location location) {
 		if(location == null){
 			throw new IllegalArgumentException("Location is required");
 		}
 		Set<Location> locations = getChildLocationsRecursively(location, null);
+		
+		if (activeVisitsBoard.isBuilt()) {
+			return getActiveVisitSummariesFromBoard(locations);
+		}
+		
+		// the board is still being built at startup, so query the visits directly
 		List<Visit> candidates = visitService.getVisits(null, null, locations, null, null, null, null, null, null, false,
 		    false);
 		
@@ -391,21 +608,106 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
 		return active;
 	}
 
+    // renders in O(active visits): the visits and their check-in and last encounters are fetched by id, two queries
+    // in all, and no visit's encounter collection is ever loaded
+    private List<VisitSummary> getActiveVisitSummariesFromBoard(Set<Location> locations) {
+
+        refreshActiveVisitsBoard();
+
+        Set<Integer> locationIds = new HashSet<Integer>();
+        for (Location location : locations) {
+            locationIds.add(location.getLocationId());
+        }
+
+        Date mustHaveSomethingAfter = DateUtils.addHours(new Date(), -emrProperties.getVisitExpireHours());
+        List<ActiveVisit> activeVisits = activeVisitsBoard.getActiveVisits(locationIds, mustHaveSomethingAfter);
+
+        Map<Integer, ActiveVisit> activeVisitsById = new HashMap<Integer, ActiveVisit>();
+        Set<Integer> encounterIds = new HashSet<Integer>();
+        for (ActiveVisit activeVisit : activeVisits) {
+            activeVisitsById.put(activeVisit.getVisitId(), activeVisit);
+            if (activeVisit.getCheckInEncounterId() != null) {
+                encounterIds.add(activeVisit.getCheckInEncounterId());
+            }
+            if (activeVisit.getLastEncounterId() != null) {
+                encounterIds.add(activeVisit.getLastEncounterId());
+            }
+        }
+
+        Map<Integer, Encounter> encountersById = new HashMap<Integer, Encounter>();
+        for (Encounter encounter : adtDAO.getEncounters(encounterIds)) {
+            encountersById.put(encounter.getEncounterId(), encounter);
+        }
+
+        List<VisitSummary> active = new ArrayList<VisitSummary>();
+        for (Visit visit : adtDAO.getVisits(activeVisitsById.keySet())) {
+            ActiveVisit activeVisit = activeVisitsById.get(visit.getVisitId());
+            active.add(new VisitSummary(visit, encountersById.get(activeVisit.getCheckInEncounterId()),
+                    encountersById.get(activeVisit.getLastEncounterId())));
+        }
+
+        return active;
+    }
+
+    // applies any changes to visits (or their encounters) since the board was last read; synchronized on the board
+    // so that two readers can't apply an older and a newer view of the same visit in the wrong order
+    private void refreshActiveVisitsBoard() {
+        synchronized (activeVisitsBoard) {
+            Set<Integer> changedVisitIds = activeVisitsBoard.takeChangedVisitIds();
+            if (changedVisitIds == null) {
+                // the board hasn't been read for long enough that it's simpler to start again
+                rebuildActiveVisitsBoard();
+            }
+            else if (!changedVisitIds.isEmpty()) {
+                activeVisitsBoard.update(changedVisitIds,
+                        adtDAO.findOpenVisitActivity(changedVisitIds, emrProperties.getCheckInEncounterType()));
+            }
+        }
+    }
+
     @Override
-    public Encounter getLastEncounter(Patient patient) {
-        // speed this up by implementing it directly in a DAO
-        List<Encounter> byPatient = encounterService.getEncountersByPatient(patient);
-        if (byPatient.size() == 0) {
-            return null;
-        } else {
-            return byPatient.get(byPatient.size() - 1);
+    @Transactional(readOnly = true)
+    public void rebuildActiveVisitsBoard() {
+
+        long start = System.currentTimeMillis();
+        Date mustHaveSomethingAfter = DateUtils.addHours(new Date(), -emrProperties.getVisitExpireHours());
+
+        // the board is built at startup, before anybody has logged in, so we grant ourselves the privilege we need to
+        // look up the check-in encounter type
+        EncounterType checkInEncounterType;
+        Context.addProxyPrivilege(PrivilegeConstants.VIEW_ENCOUNTER_TYPES);
+        try {
+            checkInEncounterType = emrProperties.getCheckInEncounterType();
+        }
+        finally {
+            Context.removeProxyPrivilege(PrivilegeConstants.VIEW_ENCOUNTER_TYPES);
         }
+
+        // we only need to keep the visits that are active now; an inactive one can only become active again by being
+        // changed, at which point it is put back on the board
+        List<ActiveVisit> activeVisits = new ArrayList<ActiveVisit>();
+        for (ActiveVisit openVisit : adtDAO.findOpenVisitActivity(null, checkInEncounterType)) {
+            if (openVisit.isActive(mustHaveSomethingAfter)) {
+                activeVisits.add(openVisit);
+            }
+        }
+
+        activeVisitsBoard.rebuild(activeVisits);
+
+        log.info("Built active visits board with " + activeVisits.size() + " active visits in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    @Override
+    public Encounter getLastEncounter(Patient patient) {
+        return adtDAO.getLastEncounter(patient);
     }
 	
 	@Override
+    @Transactional(readOnly = true)
     public VisitSummary getActiveVisitSummary(Patient patient, Location location) {
 		VisitSummary visitSummary = null;
-		Visit activeVisit = getActiveVisit(patient, location);
+		Visit activeVisit = findActiveVisit(patient, location);
 		if(activeVisit!=null){
 			visitSummary = new VisitSummary(activeVisit, emrProperties);
 		}
@@ -414,14 +716,12 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
 
     @Override
     public int getCountOfEncounters(Patient patient) {
-        // speed this up by implementing it directly in a DAO
-        return encounterService.getEncountersByPatient(patient).size();
+        return adtDAO.getCountOfEncounters(patient);
     }
 
     @Override
     public int getCountOfVisits(Patient patient) {
-        // speed this up by implementing it directly in a DAO
-        return visitService.getVisitsByPatient(patient, true, false).size();
+        return adtDAO.getCountOfVisits(patient);
     }
 
     /**
@@ -460,37 +760,152 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
         List<Visit> preferredVisits = visitService.getVisitsByPatient(preferred, true, false);
         List<Visit> notPreferredVisits = visitService.getVisitsByPatient(notPreferred, true, false);
 
-        // if the non-preferred patient has any visits that overlap with visits of the preferred patient, we need to merge them together
-        for (Visit losing : notPreferredVisits) {
-            if (!losing.isVoided()) {
-                for (Visit winning : preferredVisits) {
-                    if (!winning.isVoided() && visitsOverlap(losing, winning)) {
-                        mergeVisits(winning, losing);
-                        break;
-                    }
-                }
+        // if the non-preferred patient has any visits that overlap with visits of the preferred patient, we need to merge
+        // them together (and merging in visits, and extending visit durations, may cause preferred-patient visits to
+        // overlap, so those are merged too)
+        new VisitOverlaps().mergeOverlapping(preferredVisits, notPreferredVisits, new VisitOverlaps.Merger() {
+            @Override
+            public void merge(Visit preferred, Visit notPreferred) {
+                mergeVisits(preferred, notPreferred);
             }
+        });
+
+        mergePatientRecords(preferred, notPreferred, preferredWasUnknown);
+    }
+
+    @Transactional
+    @Override
+    public MergePatientsJob queueMergePatients(Patient preferred, Patient notPreferred) {
+        boolean preferredWasUnknown = wrap(preferred).isUnknownPatient();
+        boolean notPreferredWasUnknown = wrap(notPreferred).isUnknownPatient();
+        if (preferredWasUnknown && !notPreferredWasUnknown) {
+            throw new IllegalArgumentException("Cannot merge a permanent record into an unknown one");
         }
 
-        // merging in visits from the non-preferred patient (and extending visit durations) may have caused preferred-patient visits to overlap
-        Collections.sort(preferredVisits, new Comparator<Visit>() {
+        final MergePatientsJob job = new MergePatientsJob();
+        job.setPreferred(preferred);
+        job.setNotPreferred(notPreferred);
+        job.setPreferredWasUnknown(preferredWasUnknown);
+
+        // we plan on copies of the visits, so that extending the visits that others will be merged into (which can
+        // cause them to overlap with further visits) doesn't change the real ones until the job is carried out
+        List<Visit> preferredVisits = copyForMergePlan(visitService.getVisitsByPatient(preferred, true, false));
+        List<Visit> notPreferredVisits = copyForMergePlan(visitService.getVisitsByPatient(notPreferred, true, false));
+
+        new VisitOverlaps().mergeOverlapping(preferredVisits, notPreferredVisits, new VisitOverlaps.Merger() {
             @Override
-            public int compare(Visit left, Visit right) {
-                return OpenmrsUtil.compareWithNullAsEarliest(left.getStartDatetime(), right.getStartDatetime());
+            public void merge(Visit preferred, Visit notPreferred) {
+                extendToCover(preferred, notPreferred);
+                job.addPlannedVisitMerge(preferred.getVisitId(), notPreferred.getVisitId());
             }
         });
-        for (int i = 0; i < preferredVisits.size(); ++i) {
-            Visit visit = preferredVisits.get(i);
-            if (!visit.isVoided()) {
-                for (int j = i + 1; j < preferredVisits.size(); ++j) {
-                    Visit candidate = preferredVisits.get(j);
-                    if (!candidate.isVoided() && visitsOverlap(visit, candidate)) {
-                        mergeVisits(visit, candidate);
+
+        job.setCreator(Context.getAuthenticatedUser());
+        job.setDateCreated(new Date());
+        job.updateStatus(MergePatientsJob.Status.QUEUED);
+
+        mergePatientsJobDAO.saveOrUpdate(job);
+
+        // don't start the job until the transaction that queued it has committed (if it never commits, the job never existed)
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    mergePatientsJobRunner.submit(job.getId());
+                }
+            });
+        }
+        else {
+            mergePatientsJobRunner.submit(job.getId());
+        }
+
+        log.info("Queued merge of patient " + notPreferred.getId() + " into patient " + preferred.getId() + ", merging "
+                + job.getVisitsToMerge() + " visits");
+
+        return job;
+    }
+
+    @Transactional(readOnly = true)
+    @Override
+    public MergePatientsJob getMergePatientsJob(Integer mergePatientsJobId) {
+        return mergePatientsJobDAO.getById(mergePatientsJobId);
+    }
+
+    @Transactional
+    @Override
+    public boolean runMergePatientsJobStep(Integer mergePatientsJobId) {
+
+        MergePatientsJob job = mergePatientsJobDAO.getById(mergePatientsJobId);
+
+        // someone else may have already finished this job (for instance, if it was resumed twice)
+        if (job == null || job.getStatus() != MergePatientsJob.Status.QUEUED) {
+            return false;
+        }
+
+        if (job.getStep() == MergePatientsJob.Step.MERGE_VISITS) {
+
+            MergePatientsJob.VisitMerge next = job.getNextVisitMerge();
+
+            if (next == null) {
+                job.setStep(MergePatientsJob.Step.MERGE_PATIENTS);
+            }
+            else {
+                Visit preferredVisit = visitService.getVisit(next.getPreferredVisitId());
+                Visit notPreferredVisit = visitService.getVisit(next.getNotPreferredVisitId());
+
+                if (preferredVisit == null || preferredVisit.isVoided() || notPreferredVisit == null || notPreferredVisit.isVoided()) {
+                    // already merged (or changed by someone else since the job was planned), so there's nothing to do
+                    job.setVisitsMerged(job.getVisitsMerged() + 1);
+                }
+                else {
+                    int moved = moveEncounters(preferredVisit, notPreferredVisit, MERGE_PATIENTS_ENCOUNTERS_PER_STEP);
+                    job.setEncountersMoved(job.getEncountersMoved() + moved);
+
+                    if (notPreferredVisit.getEncounters() == null || notPreferredVisit.getEncounters().isEmpty()) {
+                        extendToCover(preferredVisit, notPreferredVisit);
+                        visitService.voidVisit(notPreferredVisit, "EMR - Merge Patients: merged into visit " + preferredVisit.getVisitId());
+                        visitService.saveVisit(preferredVisit);
+                        job.setVisitsMerged(job.getVisitsMerged() + 1);
                     }
                 }
             }
         }
+        else {
+            mergePatientRecords(job.getPreferred(), job.getNotPreferred(), job.getPreferredWasUnknown());
+            job.updateStatus(MergePatientsJob.Status.COMPLETED);
+        }
+
+        mergePatientsJobDAO.saveOrUpdate(job);
+
+        return job.getStatus() == MergePatientsJob.Status.QUEUED;
+    }
+
+    @Transactional
+    @Override
+    public void failMergePatientsJob(Integer mergePatientsJobId, String error) {
+        MergePatientsJob job = mergePatientsJobDAO.getById(mergePatientsJobId);
+        if (job != null) {
+            job.setLastError(error);
+            job.updateStatus(MergePatientsJob.Status.FAILED);
+            mergePatientsJobDAO.saveOrUpdate(job);
+        }
+    }
+
+    @Transactional(readOnly = true)
+    @Override
+    public void resumeMergePatientsJobs() {
+        for (MergePatientsJob job : mergePatientsJobDAO.findMergePatientsJobs(MergePatientsJob.Status.QUEUED)) {
+            mergePatientsJobRunner.submit(job.getId());
+        }
+    }
+
+    @Override
+    public void onShutdown() {
+        mergePatientsJobRunner.shutdown();
+        staleVisitCloser.shutdown();
+    }
 
+    private void mergePatientRecords(Patient preferred, Patient notPreferred, boolean preferredWasUnknown) {
         fixPaperRecordRequestsForMerge(preferred, notPreferred);
 
         try {
@@ -604,13 +1019,7 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
     }
 
     private void mergeVisits(Visit preferred, Visit nonPreferred) {
-        // extend date range of winning
-        if (OpenmrsUtil.compareWithNullAsEarliest(nonPreferred.getStartDatetime(), preferred.getStartDatetime()) < 0) {
-            preferred.setStartDatetime(nonPreferred.getStartDatetime());
-        }
-        if (preferred.getStopDatetime() != null && OpenmrsUtil.compareWithNullAsLatest(preferred.getStopDatetime(), nonPreferred.getStopDatetime()) < 0) {
-            preferred.setStopDatetime(nonPreferred.getStopDatetime());
-        }
+        extendToCover(preferred, nonPreferred);
 
         // move encounters from losing into winning
         if (nonPreferred.getEncounters() != null) {
@@ -624,4 +1033,77 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
         visitService.saveVisit(preferred);
     }
 
+    /**
+     * Moves up to maxEncounters of nonPreferred's encounters into preferred
+     *
+     * @return the number of encounters that were moved
+     */
+    private int moveEncounters(Visit preferred, Visit nonPreferred, int maxEncounters) {
+        int moved = 0;
+        if (nonPreferred.getEncounters() != null) {
+            for (Iterator<Encounter> i = nonPreferred.getEncounters().iterator(); i.hasNext() && moved < maxEncounters; ) {
+                Encounter e = i.next();
+                i.remove();
+                e.setPatient(preferred.getPatient());
+                preferred.addEncounter(e);
+                encounterService.saveEncounter(e);
+                ++moved;
+            }
+        }
+        return moved;
+    }
+
+    // extend date range of winning
+    private void extendToCover(Visit preferred, Visit nonPreferred) {
+        if (OpenmrsUtil.compareWithNullAsEarliest(nonPreferred.getStartDatetime(), preferred.getStartDatetime()) < 0) {
+            preferred.setStartDatetime(nonPreferred.getStartDatetime());
+        }
+        if (preferred.getStopDatetime() != null && OpenmrsUtil.compareWithNullAsLatest(preferred.getStopDatetime(), nonPreferred.getStopDatetime()) < 0) {
+            preferred.setStopDatetime(nonPreferred.getStopDatetime());
+        }
+    }
+
+    private List<Visit> copyForMergePlan(List<Visit> visits) {
+        List<Visit> copies = new ArrayList<Visit>();
+        for (Visit visit : visits) {
+            Visit copy = new Visit(visit.getVisitId());
+            copy.setLocation(visit.getLocation());
+            copy.setStartDatetime(visit.getStartDatetime());
+            copy.setStopDatetime(visit.getStopDatetime());
+            copy.setVoided(visit.isVoided());
+            copies.add(copy);
+        }
+        return copies;
+    }
+
+    /**
+     * The emr metadata needed to build a check-in encounter, looked up once for a batch of check-ins
+     */
+    private static class CheckinMetadata {
+
+        private final VisitType visitType;
+
+        private final EncounterType checkInEncounterType;
+
+        private final EncounterRole checkInClerkEncounterRole;
+
+        private final Concept paymentConstructConcept;
+
+        private final Concept paymentReasonsConcept;
+
+        private final Concept paymentAmountConcept;
+
+        private final Concept paymentReceiptNumberConcept;
+
+        private CheckinMetadata(EmrProperties emrProperties) {
+            visitType = emrProperties.getAtFacilityVisitType();
+            checkInEncounterType = emrProperties.getCheckInEncounterType();
+            checkInClerkEncounterRole = emrProperties.getCheckInClerkEncounterRole();
+            paymentConstructConcept = emrProperties.getPaymentConstructConcept();
+            paymentReasonsConcept = emrProperties.getPaymentReasonsConcept();
+            paymentAmountConcept = emrProperties.getPaymentAmountConcept();
+            paymentReceiptNumberConcept = emrProperties.getPaymentReceiptNumberConcept();
+        }
+    }
+
 }
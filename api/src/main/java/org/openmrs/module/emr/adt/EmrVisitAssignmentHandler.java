@@ -77,11 +77,7 @@ public class EmrVisitAssignmentHandler extends BaseEncounterVisitHandler impleme
             when = new Date();
         }
 
-        List<Patient> patient = Collections.singletonList(encounter.getPatient());
-
-        // visits that have not ended by the encounter date.
-        List<Visit> candidates = visitService.getVisits(null, patient, null, null, null,
-                when, null, null, null, true, false);
+        List<Visit> candidates = getCandidateVisits(encounter.getPatient(), when);
 
         if (candidates != null) {
             for (Visit candidate : candidates) {
@@ -96,6 +92,34 @@ public class EmrVisitAssignmentHandler extends BaseEncounterVisitHandler impleme
         // throw new IllegalStateException("Cannot create an encounter outside of a visit");
     }
 
+    /**
+     * Within a transaction, we fetch all the patient's visits once and cache them (see VisitAssignmentCache), since
+     * isSuitableVisit ignores those that started after the encounter anyway; otherwise we only fetch the visits that
+     * started by the time of the encounter
+     */
+    private List<Visit> getCandidateVisits(Patient patient, Date when) {
+
+        VisitAssignmentCache cache = (patient == null || patient.getPatientId() == null) ? null :
+                VisitAssignmentCache.getForCurrentTransaction();
+
+        if (cache == null) {
+            return visitService.getVisits(null, Collections.singletonList(patient), null, null, null,
+                    when, null, null, null, true, false);
+        }
+
+        List<Visit> visits = cache.getVisits(patient.getPatientId());
+
+        if (visits == null) {
+            visits = visitService.getVisits(null, Collections.singletonList(patient), null, null, null,
+                    null, null, null, null, true, false);
+            if (visits != null) {
+                cache.putVisits(patient.getPatientId(), visits);
+            }
+        }
+
+        return visits;
+    }
+
     public void setVisitService(VisitService visitService) {
         this.visitService = visitService;
     }
@@ -0,0 +1,252 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.adt;
+
+import org.apache.commons.lang.StringUtils;
+import org.openmrs.BaseOpenmrsObject;
+import org.openmrs.Patient;
+import org.openmrs.User;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A merge of two patient records that is carried out in the background (see AdtService#queueMergePatients)
+ *
+ * When the job is queued we work out which visits will have to be merged together, and save that plan along with the
+ * job. The job is then carried out in a number of small transactions, each of which saves how far the job has got, so
+ * that the UI can report progress, and so that a job that was interrupted by a server restart can carry on from where
+ * it left off.
+ *
+ * MERGE_VISITS--moving the encounters of each planned pair of visits into the preferred visit, a few at a time, and
+ * voiding the other visit once it is empty
+ *
+ * MERGE_PATIENTS--fixing up paper record requests, and merging the patients themselves
+ *
+ * QUEUED--the job is waiting to be carried out, or is part way through
+ *
+ * COMPLETED--the patients have been merged
+ *
+ * FAILED--we gave up on the job (see lastError); whatever steps were completed before it failed remain in place
+ */
+public class MergePatientsJob extends BaseOpenmrsObject {
+
+    public enum Status { QUEUED, COMPLETED, FAILED }
+
+    public enum Step { MERGE_VISITS, MERGE_PATIENTS }
+
+    private Integer mergePatientsJobId;
+
+    private Patient preferred;
+
+    private Patient notPreferred;
+
+    private Boolean preferredWasUnknown = false;
+
+    private String plan = "";
+
+    private Step step = Step.MERGE_VISITS;
+
+    private Integer visitsMerged = 0;
+
+    private Integer encountersMoved = 0;
+
+    private Status status = Status.QUEUED;
+
+    private String lastError;
+
+    private User creator;
+
+    private Date dateCreated;
+
+    private Date dateStatusChanged;
+
+    public MergePatientsJob() {
+    }
+
+    public void updateStatus(Status status) {
+        this.status = status;
+        this.dateStatusChanged = new Date();
+    }
+
+    /**
+     * Adds a pair of visits to be merged to the end of the plan
+     *
+     * @param preferredVisitId
+     * @param notPreferredVisitId
+     */
+    public void addPlannedVisitMerge(Integer preferredVisitId, Integer notPreferredVisitId) {
+        plan = (plan.length() == 0 ? "" : plan + ",") + preferredVisitId + ":" + notPreferredVisitId;
+    }
+
+    /**
+     * @return the pairs of visits to be merged, in the order they should be merged
+     */
+    public List<VisitMerge> getPlannedVisitMerges() {
+        List<VisitMerge> merges = new ArrayList<VisitMerge>();
+        for (String merge : StringUtils.split(plan, ',')) {
+            String[] visitIds = merge.split(":");
+            merges.add(new VisitMerge(Integer.valueOf(visitIds[0]), Integer.valueOf(visitIds[1])));
+        }
+        return merges;
+    }
+
+    /**
+     * @return the next pair of visits to be merged, or null if all the planned visit merges have been done
+     */
+    public VisitMerge getNextVisitMerge() {
+        List<VisitMerge> merges = getPlannedVisitMerges();
+        return visitsMerged < merges.size() ? merges.get(visitsMerged) : null;
+    }
+
+    public int getVisitsToMerge() {
+        return StringUtils.isEmpty(plan) ? 0 : StringUtils.countMatches(plan, ",") + 1;
+    }
+
+    @Override
+    public Integer getId() {
+        return mergePatientsJobId;
+    }
+
+    @Override
+    public void setId(Integer id) {
+        this.mergePatientsJobId = id;
+    }
+
+    public Integer getMergePatientsJobId() {
+        return mergePatientsJobId;
+    }
+
+    public void setMergePatientsJobId(Integer mergePatientsJobId) {
+        this.mergePatientsJobId = mergePatientsJobId;
+    }
+
+    public Patient getPreferred() {
+        return preferred;
+    }
+
+    public void setPreferred(Patient preferred) {
+        this.preferred = preferred;
+    }
+
+    public Patient getNotPreferred() {
+        return notPreferred;
+    }
+
+    public void setNotPreferred(Patient notPreferred) {
+        this.notPreferred = notPreferred;
+    }
+
+    public Boolean getPreferredWasUnknown() {
+        return preferredWasUnknown;
+    }
+
+    public void setPreferredWasUnknown(Boolean preferredWasUnknown) {
+        this.preferredWasUnknown = preferredWasUnknown;
+    }
+
+    public String getPlan() {
+        return plan;
+    }
+
+    public void setPlan(String plan) {
+        this.plan = plan;
+    }
+
+    public Step getStep() {
+        return step;
+    }
+
+    public void setStep(Step step) {
+        this.step = step;
+    }
+
+    public Integer getVisitsMerged() {
+        return visitsMerged;
+    }
+
+    public void setVisitsMerged(Integer visitsMerged) {
+        this.visitsMerged = visitsMerged;
+    }
+
+    public Integer getEncountersMoved() {
+        return encountersMoved;
+    }
+
+    public void setEncountersMoved(Integer encountersMoved) {
+        this.encountersMoved = encountersMoved;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+
+    public User getCreator() {
+        return creator;
+    }
+
+    public void setCreator(User creator) {
+        this.creator = creator;
+    }
+
+    public Date getDateCreated() {
+        return dateCreated;
+    }
+
+    public void setDateCreated(Date dateCreated) {
+        this.dateCreated = dateCreated;
+    }
+
+    public Date getDateStatusChanged() {
+        return dateStatusChanged;
+    }
+
+    public void setDateStatusChanged(Date dateStatusChanged) {
+        this.dateStatusChanged = dateStatusChanged;
+    }
+
+    /**
+     * A pair of visits to be merged together
+     */
+    public static class VisitMerge {
+
+        private final Integer preferredVisitId;
+
+        private final Integer notPreferredVisitId;
+
+        public VisitMerge(Integer preferredVisitId, Integer notPreferredVisitId) {
+            this.preferredVisitId = preferredVisitId;
+            this.notPreferredVisitId = notPreferredVisitId;
+        }
+
+        public Integer getPreferredVisitId() {
+            return preferredVisitId;
+        }
+
+        public Integer getNotPreferredVisitId() {
+            return notPreferredVisitId;
+        }
+    }
+
+}
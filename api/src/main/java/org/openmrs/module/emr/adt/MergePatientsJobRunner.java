@@ -0,0 +1,186 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.adt;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Carries out queued merge patients jobs in the background, one job at a time, in the order they were submitted
+ *
+ * Each job is carried out as a series of steps (see AdtService#runMergePatientsJobStep), each in its own transaction,
+ * and the session is cleared between steps so that it doesn't grow with the size of the patients' histories. The
+ * steps run as the daemon user, since merging patients writes audit information (and so needs a user) and a job may
+ * be resumed after a restart, long after whoever queued it has logged out.
+ *
+ * If a step fails, the job is marked as FAILED. If we are shut down part way through a job, it stays QUEUED, and
+ * is carried on from where it left off when we are next started (see AdtService#resumeMergePatientsJobs).
+ */
+public class MergePatientsJobRunner {
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private ExecutorService worker;
+
+    private DaemonToken daemonToken;
+
+    private volatile boolean shutdown = false;
+
+    public void setDaemonToken(DaemonToken daemonToken) {
+        this.daemonToken = daemonToken;
+    }
+
+    /**
+     * Queues the specified (already saved) job to be carried out in the background
+     *
+     * @param mergePatientsJobId
+     */
+    public synchronized void submit(Integer mergePatientsJobId) {
+
+        if (shutdown) {
+            // the job stays QUEUED, and will be resumed the next time we are started
+            return;
+        }
+
+        getWorker().execute(run(mergePatientsJobId));
+    }
+
+    /**
+     * Stops the worker; the current job stops after the step it is running, and it (and any jobs waiting behind it)
+     * stays QUEUED
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        if (worker != null) {
+            worker.shutdownNow();
+            worker = null;
+        }
+    }
+
+    /**
+     * Carries out the next step of the specified job, and then clears the session; called on the worker thread
+     *
+     * @param mergePatientsJobId
+     * @return true if there are more steps to carry out
+     */
+    protected boolean runStep(Integer mergePatientsJobId) {
+        boolean moreSteps = Context.getService(AdtService.class).runMergePatientsJobStep(mergePatientsJobId);
+        Context.flushSession();
+        Context.clearSession();
+        return moreSteps;
+    }
+
+    /**
+     * Marks the specified job as failed; called on the worker thread, after a step has failed
+     *
+     * @param mergePatientsJobId
+     * @param error
+     */
+    protected void fail(Integer mergePatientsJobId, String error) {
+        // whatever the failed step left in the session was rolled back, so we don't want to flush it
+        Context.clearSession();
+        Context.getService(AdtService.class).failMergePatientsJob(mergePatientsJobId, error);
+    }
+
+    // runs on a daemon thread of its own, and waits for it to finish so that we carry out one job at a time; broken out
+    // into a separate method so that we can override it for testing
+    protected void runAsDaemon(final Runnable runnable) throws InterruptedException {
+        if (daemonToken == null) {
+            throw new IllegalStateException("Cannot run merge patients jobs before the module has been given a daemon token");
+        }
+
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        Daemon.runInDaemonThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                }
+                finally {
+                    finished.countDown();
+                }
+            }
+        }, daemonToken);
+
+        finished.await();
+    }
+
+    private Runnable run(final Integer mergePatientsJobId) {
+        return new Runnable() {
+            @Override
+            public void run() {
+
+                final long start = System.currentTimeMillis();
+
+                try {
+                    runAsDaemon(new Runnable() {
+                        @Override
+                        public void run() {
+                            int steps = 0;
+                            try {
+                                while (!shutdown && runStep(mergePatientsJobId)) {
+                                    ++steps;
+                                }
+                                log.info("Ran " + steps + " steps of merge patients job " + mergePatientsJobId + " in "
+                                        + (System.currentTimeMillis() - start) + " ms");
+                            }
+                            catch (Exception e) {
+                                log.error("Merge patients job " + mergePatientsJobId + " failed after " + steps + " steps", e);
+                                fail(mergePatientsJobId, StringUtils.abbreviate(getMessage(e), 1024));
+                            }
+                        }
+                    });
+                }
+                catch (Exception e) {
+                    // the job stays QUEUED, and will be resumed the next time we are started
+                    log.error("Unable to run merge patients job " + mergePatientsJobId, e);
+                }
+            }
+        };
+    }
+
+    private ExecutorService getWorker() {
+        if (worker == null) {
+            worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "emr-merge-patients");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return worker;
+    }
+
+    private String getMessage(Throwable throwable) {
+        String message = throwable.getMessage();
+        if (throwable.getCause() != null && throwable.getCause().getMessage() != null) {
+            message = message + ": " + throwable.getCause().getMessage();
+        }
+        return message;
+    }
+
+}
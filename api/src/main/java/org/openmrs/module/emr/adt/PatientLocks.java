@@ -0,0 +1,76 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.adt;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks on patients, so that two check-ins for the same patient (ie, from two registration desks, or a double
+ * click) don't both see that the patient has no active visit and each create one, while check-ins for different
+ * patients still (almost always) go ahead in parallel
+ *
+ * A lock is held until the current transaction completes, since the visit it protects isn't visible to anyone else
+ * until then. This only coordinates threads within this server.
+ */
+public class PatientLocks {
+
+    private static final int DEFAULT_STRIPES = 64;
+
+    private final ReentrantLock[] stripes;
+
+    public PatientLocks() {
+        this(DEFAULT_STRIPES);
+    }
+
+    public PatientLocks(int stripes) {
+        this.stripes = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Waits for, and takes, the lock for the specified patient, and releases it once the current transaction has
+     * completed. Does nothing if there is no transaction (or the patient hasn't been saved yet), as the lock would
+     * have nothing to protect. The lock is reentrant, so one transaction may lock the same patient more than once.
+     *
+     * @param patientId
+     */
+    public void lockUntilEndOfTransaction(Integer patientId) {
+        if (patientId == null || !TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+
+        final ReentrantLock lock = getLock(patientId);
+        lock.lock();
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                lock.unlock();
+            }
+        });
+    }
+
+    ReentrantLock getLock(Integer patientId) {
+        // spread the bits of sequential ids so that neighbouring patients don't share stripes in a pattern
+        int hash = patientId.hashCode();
+        hash ^= (hash >>> 16);
+        return stripes[(hash & 0x7fffffff) % stripes.length];
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.adt;
+
+import org.openmrs.Concept;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.Provider;
+
+import java.util.Date;
+
+/**
+ * One check-in to be entered retrospectively (ie, one row of a paper check-in sheet), as passed to
+ * {@link AdtService#createCheckinsInRetrospective(java.util.List)}
+ */
+public class RetrospectiveCheckin {
+
+    private Patient patient;
+
+    private Location location;
+
+    private Provider clerk;
+
+    private Date checkinDate;
+
+    private Concept paymentReason;
+
+    private Double paymentAmount;
+
+    private String receiptNumber;
+
+    public RetrospectiveCheckin() {
+    }
+
+    public RetrospectiveCheckin(Patient patient, Location location, Provider clerk, Date checkinDate,
+                                Concept paymentReason, Double paymentAmount, String receiptNumber) {
+        this.patient = patient;
+        this.location = location;
+        this.clerk = clerk;
+        this.checkinDate = checkinDate;
+        this.paymentReason = paymentReason;
+        this.paymentAmount = paymentAmount;
+        this.receiptNumber = receiptNumber;
+    }
+
+    public Patient getPatient() {
+        return patient;
+    }
+
+    public void setPatient(Patient patient) {
+        this.patient = patient;
+    }
+
+    public Location getLocation() {
+        return location;
+    }
+
+    public void setLocation(Location location) {
+        this.location = location;
+    }
+
+    public Provider getClerk() {
+        return clerk;
+    }
+
+    public void setClerk(Provider clerk) {
+        this.clerk = clerk;
+    }
+
+    public Date getCheckinDate() {
+        return checkinDate;
+    }
+
+    public void setCheckinDate(Date checkinDate) {
+        this.checkinDate = checkinDate;
+    }
+
+    public Concept getPaymentReason() {
+        return paymentReason;
+    }
+
+    public void setPaymentReason(Concept paymentReason) {
+        this.paymentReason = paymentReason;
+    }
+
+    public Double getPaymentAmount() {
+        return paymentAmount;
+    }
+
+    public void setPaymentAmount(Double paymentAmount) {
+        this.paymentAmount = paymentAmount;
+    }
+
+    public String getReceiptNumber() {
+        return receiptNumber;
+    }
+
+    public void setReceiptNumber(String receiptNumber) {
+        this.receiptNumber = receiptNumber;
+    }
+
+}
@@ -0,0 +1,301 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.adt;
+
+import org.apache.commons.lang.StringUtils;
+import org.openmrs.Concept;
+import org.openmrs.ConceptAnswer;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.Provider;
+import org.openmrs.api.ConceptService;
+import org.openmrs.api.LocationService;
+import org.openmrs.api.PatientService;
+import org.openmrs.api.ProviderService;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads and validates a CSV file of retrospective check-ins (ie, typed up from paper check-in sheets). The first line
+ * must be the header:
+ *
+ * patientIdentifier,location,provider,checkinDate,paymentReason,paymentAmount,receiptNumber
+ *
+ * where location is a location name or id, provider is a provider identifier, checkinDate is dd/MM/yyyy HH:mm (or
+ * just dd/MM/yyyy), and paymentReason is the id of one of the answers of the payment reason concept.
+ *
+ * Locations, providers and payment reasons are only looked up once per file, as the same few are repeated on
+ * every line.
+ */
+public class RetrospectiveCheckinCsvReader {
+
+    public static final List<String> COLUMNS = Arrays.asList("patientIdentifier", "location", "provider", "checkinDate",
+            "paymentReason", "paymentAmount", "receiptNumber");
+
+    private PatientService patientService;
+
+    private LocationService locationService;
+
+    private ProviderService providerService;
+
+    private ConceptService conceptService;
+
+    private AdtService adtService;
+
+    private Set<Integer> paymentReasonIds = new HashSet<Integer>();
+
+    private Map<String, Location> locations = new HashMap<String, Location>();
+
+    private Map<String, Provider> providers = new HashMap<String, Provider>();
+
+    private Map<String, Concept> paymentReasons = new HashMap<String, Concept>();
+
+    public RetrospectiveCheckinCsvReader(PatientService patientService, LocationService locationService,
+                                         ProviderService providerService, ConceptService conceptService,
+                                         AdtService adtService, Concept paymentReasonsConcept) {
+        this.patientService = patientService;
+        this.locationService = locationService;
+        this.providerService = providerService;
+        this.conceptService = conceptService;
+        this.adtService = adtService;
+        for (ConceptAnswer answer : paymentReasonsConcept.getAnswers()) {
+            paymentReasonIds.add(answer.getAnswerConcept().getConceptId());
+        }
+    }
+
+    /**
+     * @param csv
+     * @param result the row count and any errors are recorded here
+     * @return a check-in for each valid line (if result has errors, these are not complete)
+     */
+    public List<RetrospectiveCheckin> read(String csv, RetrospectiveCheckinImportResult result) {
+
+        List<RetrospectiveCheckin> checkins = new ArrayList<RetrospectiveCheckin>();
+
+        String[] lines = csv.split("\r\n|\r|\n");
+        boolean headerRead = false;
+        int rowCount = 0;
+
+        for (int i = 0; i < lines.length; i++) {
+            int lineNumber = i + 1;
+            if (StringUtils.isBlank(lines[i])) {
+                continue;
+            }
+
+            List<String> fields = split(lines[i]);
+
+            if (!headerRead) {
+                if (!isHeader(fields)) {
+                    result.addError(lineNumber, "The first line must be the header: " + StringUtils.join(COLUMNS, ","));
+                    return checkins;
+                }
+                headerRead = true;
+                continue;
+            }
+
+            rowCount++;
+            if (fields.size() != COLUMNS.size()) {
+                result.addError(lineNumber, "Expected " + COLUMNS.size() + " columns but found " + fields.size());
+                continue;
+            }
+
+            RetrospectiveCheckin checkin = read(fields, lineNumber, result);
+            if (checkin != null) {
+                checkins.add(checkin);
+            }
+        }
+
+        if (!headerRead) {
+            result.addError(1, "The file is empty");
+        }
+        result.setRowCount(rowCount);
+        return checkins;
+    }
+
+    private RetrospectiveCheckin read(List<String> fields, int lineNumber, RetrospectiveCheckinImportResult result) {
+
+        RetrospectiveCheckin checkin = new RetrospectiveCheckin();
+
+        String identifier = fields.get(0);
+        List<Patient> patients = StringUtils.isBlank(identifier) ? new ArrayList<Patient>() :
+                patientService.getPatients(null, identifier, null, true);
+        if (patients.size() == 1) {
+            checkin.setPatient(patients.get(0));
+        }
+        else if (patients.isEmpty()) {
+            result.addError(lineNumber, "No patient found with identifier " + identifier);
+        }
+        else {
+            result.addError(lineNumber, "More than one patient found with identifier " + identifier);
+        }
+
+        Location location = getLocation(fields.get(1));
+        if (location == null) {
+            result.addError(lineNumber, "Unknown location " + fields.get(1));
+        }
+        else {
+            try {
+                adtService.getLocationThatSupportsVisits(location);
+                checkin.setLocation(location);
+            }
+            catch (IllegalArgumentException ex) {
+                result.addError(lineNumber, "Location " + location.getName() + " does not support visits");
+            }
+        }
+
+        Provider clerk = getProvider(fields.get(2));
+        if (clerk == null) {
+            result.addError(lineNumber, "No provider found with identifier " + fields.get(2));
+        }
+        checkin.setClerk(clerk);
+
+        Date checkinDate = parseDate(fields.get(3));
+        if (checkinDate == null) {
+            result.addError(lineNumber, "Invalid check-in date " + fields.get(3) + " (expected dd/MM/yyyy HH:mm)");
+        }
+        else if (checkinDate.after(new Date())) {
+            result.addError(lineNumber, "Check-in date " + fields.get(3) + " is in the future");
+        }
+        checkin.setCheckinDate(checkinDate);
+
+        Concept paymentReason = getPaymentReason(fields.get(4));
+        if (paymentReason == null) {
+            result.addError(lineNumber, "Unknown payment reason " + fields.get(4));
+        }
+        checkin.setPaymentReason(paymentReason);
+
+        try {
+            Double paymentAmount = Double.valueOf(fields.get(5));
+            if (paymentAmount < 0) {
+                result.addError(lineNumber, "Payment amount cannot be negative");
+            }
+            checkin.setPaymentAmount(paymentAmount);
+        }
+        catch (NumberFormatException ex) {
+            result.addError(lineNumber, "Invalid payment amount " + fields.get(5));
+        }
+
+        if (StringUtils.isBlank(fields.get(6))) {
+            result.addError(lineNumber, "Receipt number is required");
+        }
+        checkin.setReceiptNumber(fields.get(6));
+
+        return result.getErrors().containsKey(lineNumber) ? null : checkin;
+    }
+
+    private Location getLocation(String nameOrId) {
+        if (!locations.containsKey(nameOrId)) {
+            Location location = locationService.getLocation(nameOrId);
+            if (location == null && StringUtils.isNumeric(nameOrId) && !nameOrId.isEmpty()) {
+                location = locationService.getLocation(Integer.valueOf(nameOrId));
+            }
+            locations.put(nameOrId, location);
+        }
+        return locations.get(nameOrId);
+    }
+
+    private Provider getProvider(String identifier) {
+        if (!providers.containsKey(identifier)) {
+            providers.put(identifier, StringUtils.isBlank(identifier) ? null : providerService.getProviderByIdentifier(identifier));
+        }
+        return providers.get(identifier);
+    }
+
+    private Concept getPaymentReason(String conceptId) {
+        if (!paymentReasons.containsKey(conceptId)) {
+            Concept concept = null;
+            if (StringUtils.isNumeric(conceptId) && !conceptId.isEmpty() && paymentReasonIds.contains(Integer.valueOf(conceptId))) {
+                concept = conceptService.getConcept(Integer.valueOf(conceptId));
+            }
+            paymentReasons.put(conceptId, concept);
+        }
+        return paymentReasons.get(conceptId);
+    }
+
+    private Date parseDate(String value) {
+        for (String pattern : new String[] { "dd/MM/yyyy HH:mm", "dd/MM/yyyy" }) {
+            SimpleDateFormat format = new SimpleDateFormat(pattern);
+            format.setLenient(false);
+            try {
+                return format.parse(value);
+            }
+            catch (ParseException ex) {
+                // try the next pattern
+            }
+        }
+        return null;
+    }
+
+    private boolean isHeader(List<String> fields) {
+        if (fields.size() != COLUMNS.size()) {
+            return false;
+        }
+        for (int i = 0; i < fields.size(); i++) {
+            if (!COLUMNS.get(i).equalsIgnoreCase(fields.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Splits a line on commas, allowing fields to be quoted (with "" for a quote within a quoted field), and trims
+     * each field
+     */
+    static List<String> split(String line) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                }
+                else if (c == '"') {
+                    quoted = false;
+                }
+                else {
+                    field.append(c);
+                }
+            }
+            else if (c == '"') {
+                quoted = true;
+            }
+            else if (c == ',') {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            }
+            else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString().trim());
+
+        return fields;
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.adt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The outcome of importing a file of retrospective check-ins: either every row was valid and has been imported, or
+ * nothing was imported and the errors are listed against the (1-based, counting the header) line they were found on
+ */
+public class RetrospectiveCheckinImportResult {
+
+    private int rowCount;
+
+    private int importedCount;
+
+    private Map<Integer, List<String>> errors = new TreeMap<Integer, List<String>>();
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public void setRowCount(int rowCount) {
+        this.rowCount = rowCount;
+    }
+
+    public int getImportedCount() {
+        return importedCount;
+    }
+
+    public void setImportedCount(int importedCount) {
+        this.importedCount = importedCount;
+    }
+
+    public boolean hasErrors() {
+        return !errors.isEmpty();
+    }
+
+    /**
+     * @return the errors found, by line number
+     */
+    public Map<Integer, List<String>> getErrors() {
+        return errors;
+    }
+
+    public void addError(int lineNumber, String error) {
+        List<String> errorsOnLine = errors.get(lineNumber);
+        if (errorsOnLine == null) {
+            errorsOnLine = new ArrayList<String>();
+            errors.put(lineNumber, errorsOnLine);
+        }
+        errorsOnLine.add(error);
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.adt;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.util.PrivilegeConstants;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closes stale (ie, no longer active, but not yet stopped) visits in the background
+ *
+ * The read-only active visit lookup (see AdtService#findActiveVisit) finds stale visits while rendering pages, but
+ * shouldn't write to the database itself, so it queues them here instead. Queued visits are collected for delay
+ * milliseconds and then closed together in a single transaction on a worker thread. Each visit is checked again
+ * before it is closed, so queueing a visit more than once, or queueing one that has since become active (or been
+ * closed by the scheduled task), is harmless.
+ */
+public class StaleVisitCloser {
+
+    private static final long DEFAULT_DELAY = 1000;  // 1s
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final Set<Integer> queuedVisitIds = new LinkedHashSet<Integer>();
+
+    private ScheduledExecutorService worker;
+
+    private boolean flushScheduled = false;
+
+    private boolean shutdown = false;
+
+    private long delay = DEFAULT_DELAY;
+
+    public void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    /**
+     * Queues the specified visit to be closed (if it is still stale) in the background
+     *
+     * @param visitId
+     */
+    public synchronized void queue(Integer visitId) {
+
+        if (shutdown) {
+            // the visit will be closed by the next lookup, or by the scheduled task
+            return;
+        }
+
+        queuedVisitIds.add(visitId);
+
+        if (!flushScheduled) {
+            getWorker().schedule(flush(), delay, TimeUnit.MILLISECONDS);
+            flushScheduled = true;
+        }
+    }
+
+    /**
+     * Stops the worker; any visits that haven't been closed yet are left for the scheduled task
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        if (worker != null) {
+            worker.shutdownNow();
+            worker = null;
+        }
+    }
+
+    /**
+     * Closes the specified visits, if they are still stale; called on the worker thread
+     *
+     * @param visitIds
+     * @return the number of visits that were closed
+     */
+    protected int close(List<Integer> visitIds) {
+        return Context.getService(AdtService.class).closeVisitsIfInactive(visitIds);
+    }
+
+    // the worker thread has no user context of its own, so we open a session and grant ourselves the privileges we
+    // need to load and save the visits; broken out into a separate method so that we can override it for testing
+    protected void runInSession(Runnable runnable) {
+        Context.openSession();
+        try {
+            Context.addProxyPrivilege(PrivilegeConstants.VIEW_VISITS);
+            Context.addProxyPrivilege(PrivilegeConstants.EDIT_VISITS);
+            runnable.run();
+        }
+        finally {
+            Context.removeProxyPrivilege(PrivilegeConstants.EDIT_VISITS);
+            Context.removeProxyPrivilege(PrivilegeConstants.VIEW_VISITS);
+            Context.closeSession();
+        }
+    }
+
+    private Runnable flush() {
+        return new Runnable() {
+            @Override
+            public void run() {
+
+                final List<Integer> visitIds;
+
+                synchronized (StaleVisitCloser.this) {
+                    visitIds = new ArrayList<Integer>(queuedVisitIds);
+                    queuedVisitIds.clear();
+                    flushScheduled = false;
+                }
+
+                try {
+                    runInSession(new Runnable() {
+                        @Override
+                        public void run() {
+                            int closed = close(visitIds);
+                            log.info("Closed " + closed + " of " + visitIds.size() + " queued stale visits");
+                        }
+                    });
+                }
+                catch (Exception e) {
+                    // the visits stay open, and will be queued again by the next lookup, or closed by the scheduled task
+                    log.error("Unable to close stale visits " + visitIds, e);
+                }
+            }
+        };
+    }
+
+    private ScheduledExecutorService getWorker() {
+        if (worker == null) {
+            worker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "emr-stale-visit-closer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return worker;
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.adt;
+
+import org.openmrs.Visit;
+import org.openmrs.util.OpenmrsUtil;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The visits of each patient that EmrVisitAssignmentHandler has looked at in the current transaction, so that
+ * creating many encounters for the same few patients in one transaction (ie, back-entering paper forms, or importing
+ * encounters) only queries each patient's visits once
+ *
+ * A cache is bound to the transaction the first time it is asked for, and is thrown away when the transaction
+ * completes. Visits that are saved, voided or purged through the VisitService during the transaction are added to or
+ * removed from the cache (see VisitAssignmentCacheAdvice), so the cache always holds the same visits that querying
+ * again would return. Outside of a transaction, there is no cache.
+ */
+public class VisitAssignmentCache {
+
+    private final Map<Integer, List<Visit>> visitsByPatient = new HashMap<Integer, List<Visit>>();
+
+    /**
+     * @return the cache for the current transaction (binding a new one if there isn't one yet), or null if there is
+     * no current transaction
+     */
+    public static VisitAssignmentCache getForCurrentTransaction() {
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return null;
+        }
+
+        VisitAssignmentCache cache = getIfBound();
+
+        if (cache == null) {
+            cache = new VisitAssignmentCache();
+            TransactionSynchronizationManager.bindResource(VisitAssignmentCache.class, cache);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (TransactionSynchronizationManager.hasResource(VisitAssignmentCache.class)) {
+                        TransactionSynchronizationManager.unbindResource(VisitAssignmentCache.class);
+                    }
+                }
+            });
+        }
+
+        return cache;
+    }
+
+    /**
+     * @return the cache for the current transaction, or null if nothing has been cached in it
+     */
+    public static VisitAssignmentCache getIfBound() {
+        return (VisitAssignmentCache) TransactionSynchronizationManager.getResource(VisitAssignmentCache.class);
+    }
+
+    /**
+     * @param patientId
+     * @return the cached (non-voided) visits of the specified patient, most recent first, or null if they haven't
+     * been cached
+     */
+    public List<Visit> getVisits(Integer patientId) {
+        return visitsByPatient.get(patientId);
+    }
+
+    /**
+     * @param patientId
+     * @param visits all the non-voided visits of the specified patient, most recent first
+     */
+    public void putVisits(Integer patientId, List<Visit> visits) {
+        visitsByPatient.put(patientId, new ArrayList<Visit>(visits));
+    }
+
+    /**
+     * Brings the cached visits of the visit's patient (if they are cached) up to date with the visit
+     *
+     * @param visit a visit that has been saved, voided or unvoided
+     * @param purged whether the visit has been purged
+     */
+    public void visitChanged(Visit visit, boolean purged) {
+
+        if (visit.getPatient() == null) {
+            return;
+        }
+
+        List<Visit> visits = visitsByPatient.get(visit.getPatient().getPatientId());
+
+        if (visits == null) {
+            return;
+        }
+
+        // the cached visit may not be the same instance, if the session has been cleared since it was cached
+        for (Iterator<Visit> i = visits.iterator(); i.hasNext(); ) {
+            Visit cached = i.next();
+            if (cached == visit || (visit.getVisitId() != null && visit.getVisitId().equals(cached.getVisitId()))) {
+                i.remove();
+            }
+        }
+
+        if (purged || visit.isVoided()) {
+            return;
+        }
+
+        // keep the visits most recent first, as they are when we query them
+        int index = 0;
+        while (index < visits.size()
+                && OpenmrsUtil.compareWithNullAsEarliest(visits.get(index).getStartDatetime(), visit.getStartDatetime()) >= 0) {
+            ++index;
+        }
+        visits.add(index, visit);
+    }
+
+    public void clear() {
+        visitsByPatient.clear();
+    }
+
+}
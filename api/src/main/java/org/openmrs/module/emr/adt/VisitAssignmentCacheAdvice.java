@@ -0,0 +1,48 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.adt;
+
+import org.openmrs.Visit;
+import org.springframework.aop.AfterReturningAdvice;
+
+import java.lang.reflect.Method;
+
+/**
+ * Keeps the visit assignment cache of the current transaction (if there is one) up to date as visits are saved,
+ * voided, unvoided or purged through the VisitService
+ *
+ * @see VisitAssignmentCache
+ */
+public class VisitAssignmentCacheAdvice implements AfterReturningAdvice {
+
+    @Override
+    public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+
+        if (args == null || args.length == 0 || !(args[0] instanceof Visit)) {
+            return;
+        }
+
+        String name = method.getName();
+        if (!(name.startsWith("save") || name.startsWith("void") || name.startsWith("unvoid") || name.startsWith("purge"))) {
+            return;
+        }
+
+        VisitAssignmentCache cache = VisitAssignmentCache.getIfBound();
+        if (cache != null) {
+            cache.visitChanged((Visit) args[0], name.startsWith("purge"));
+        }
+    }
+
+}
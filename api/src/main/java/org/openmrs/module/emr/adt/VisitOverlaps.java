@@ -0,0 +1,246 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.adt;
+
+import org.openmrs.Location;
+import org.openmrs.Visit;
+import org.openmrs.util.OpenmrsUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds (and merges) overlapping visits between two patients by sweeping over their visits in order of start date,
+ * only comparing each visit against the visits that are still open at that point, rather than against every other
+ * visit
+ *
+ * Two visits overlap if their locations are the same (or one is an ancestor of the other, or both are null) and their
+ * date ranges overlap, treating a null stop date as still open. The lineage of each location is only walked once.
+ *
+ * Not thread-safe; create one per operation.
+ */
+public class VisitOverlaps {
+
+    private static final Comparator<Visit> BY_START = new Comparator<Visit>() {
+        @Override
+        public int compare(Visit left, Visit right) {
+            return OpenmrsUtil.compareWithNullAsEarliest(left.getStartDatetime(), right.getStartDatetime());
+        }
+    };
+
+    private final Map<Location, Set<Location>> lineages = new HashMap<Location, Set<Location>>();
+
+    /**
+     * @param v1
+     * @param v2
+     * @return true if the two visits are at related locations, and their date ranges overlap
+     */
+    public boolean overlap(Visit v1, Visit v2) {
+        if (!isRelated(v1.getLocation(), v2.getLocation())) {
+            return false;
+        }
+        // assuming startDatetime is never null
+        return (OpenmrsUtil.compareWithNullAsLatest(v1.getStartDatetime(), v2.getStopDatetime()) <= 0)
+                && (OpenmrsUtil.compareWithNullAsLatest(v2.getStartDatetime(), v1.getStopDatetime()) <= 0);
+    }
+
+    /**
+     * @param visits
+     * @param others
+     * @return true if any of visits overlaps with any of others
+     */
+    public boolean anyOverlap(Collection<Visit> visits, Collection<Visit> others) {
+
+        List<Visit> sorted = new ArrayList<Visit>(visits.size() + others.size());
+        sorted.addAll(visits);
+        sorted.addAll(others);
+        Collections.sort(sorted, BY_START);
+
+        Set<Visit> fromVisits = Collections.newSetFromMap(new IdentityHashMap<Visit, Boolean>());
+        fromVisits.addAll(visits);
+
+        List<Visit> openVisits = new ArrayList<Visit>();
+        List<Visit> openOthers = new ArrayList<Visit>();
+
+        for (Visit visit : sorted) {
+            pruneVisits(openVisits, visit);
+            pruneVisits(openOthers, visit);
+
+            boolean isFromVisits = fromVisits.contains(visit);
+            for (Visit open : isFromVisits ? openOthers : openVisits) {
+                if (overlap(visit, open)) {
+                    return true;
+                }
+            }
+            (isFromVisits ? openVisits : openOthers).add(visit);
+        }
+
+        return false;
+    }
+
+    /**
+     * Merges overlapping visits together, so that none of the resulting (non-voided) visits overlap. Each not-preferred
+     * visit is merged into a preferred visit it overlaps with, if there is one, and preferred visits that overlap each
+     * other (possibly only because a not-preferred visit extended one of them) are merged into the earliest of them.
+     * A not-preferred visit is never chosen as the visit to merge into. Voided visits are ignored.
+     *
+     * @param preferred
+     * @param notPreferred
+     * @param merger does the actual merging; it is expected to extend the date range of the preferred visit it is
+     *               given, to cover the visit merged into it
+     */
+    public void mergeOverlapping(List<Visit> preferred, List<Visit> notPreferred, Merger merger) {
+
+        List<Group> sorted = new ArrayList<Group>();
+        for (Visit visit : preferred) {
+            if (!visit.isVoided()) {
+                sorted.add(new Group(visit, true));
+            }
+        }
+        for (Visit visit : notPreferred) {
+            if (!visit.isVoided()) {
+                sorted.add(new Group(visit, false));
+            }
+        }
+        Collections.sort(sorted, new Comparator<Group>() {
+            @Override
+            public int compare(Group left, Group right) {
+                return BY_START.compare(left.visit, right.visit);
+            }
+        });
+
+        // groups that may still overlap with visits that start later: each is either a preferred visit (that other
+        // visits have been merged into) or a not-preferred visit that hasn't overlapped with any preferred one yet
+        List<Group> open = new ArrayList<Group>();
+
+        for (Group current : sorted) {
+            pruneGroups(open, current.visit);
+
+            List<Group> matches = new ArrayList<Group>();
+            Group target = null;
+            for (Group group : open) {
+                if (overlap(current.visit, group.visit)) {
+                    matches.add(group);
+                    if (target == null && group.preferred) {
+                        target = group;
+                    }
+                }
+            }
+
+            if (!current.preferred) {
+                if (target != null) {
+                    merger.merge(target.visit, current.visit);
+                }
+                else {
+                    open.add(current);
+                }
+                continue;
+            }
+
+            if (target == null) {
+                target = current;
+                open.add(current);
+            }
+            else {
+                merger.merge(target.visit, current.visit);
+            }
+            for (Group match : matches) {
+                if (match != target) {
+                    merger.merge(target.visit, match.visit);
+                    open.remove(match);
+                }
+            }
+        }
+    }
+
+    private void pruneVisits(List<Visit> open, Visit current) {
+        for (Iterator<Visit> i = open.iterator(); i.hasNext(); ) {
+            if (hasEndedBefore(i.next(), current)) {
+                i.remove();
+            }
+        }
+    }
+
+    private void pruneGroups(List<Group> open, Visit current) {
+        for (Iterator<Group> i = open.iterator(); i.hasNext(); ) {
+            if (hasEndedBefore(i.next().visit, current)) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Since we sweep in order of start date, a visit that ended before the current one started cannot overlap with
+     * the current visit or any later one
+     */
+    private boolean hasEndedBefore(Visit visit, Visit current) {
+        return OpenmrsUtil.compareWithNullAsLatest(visit.getStopDatetime(), current.getStartDatetime()) < 0;
+    }
+
+    /**
+     * @param a
+     * @param b
+     * @return true if both are null, or a is the same as or an ancestor of b, or vice versa
+     */
+    boolean isRelated(Location a, Location b) {
+        if (a == null || b == null) {
+            return a == null && b == null;
+        }
+        return lineage(b).contains(a) || lineage(a).contains(b);
+    }
+
+    private Set<Location> lineage(Location location) {
+        Set<Location> lineage = lineages.get(location);
+        if (lineage == null) {
+            lineage = new HashSet<Location>();
+            for (Location l = location; l != null && lineage.add(l); l = l.getParentLocation()) {
+                // walk up to the root (stopping if there is a cycle)
+            }
+            lineages.put(location, lineage);
+        }
+        return lineage;
+    }
+
+    /**
+     * Merges one visit into another
+     */
+    public interface Merger {
+
+        void merge(Visit preferred, Visit notPreferred);
+
+    }
+
+    private static class Group {
+
+        private final Visit visit;
+
+        private final boolean preferred;
+
+        private Group(Visit visit, boolean preferred) {
+            this.visit = visit;
+            this.preferred = preferred;
+        }
+    }
+
+}
@@ -15,6 +15,7 @@
 package org.openmrs.module.emr.adt;
 
 import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
 import org.openmrs.Visit;
 import org.openmrs.module.emr.EmrProperties;
 
@@ -27,17 +28,37 @@ public class VisitSummary {
 	
 	private EmrProperties props;
 	
+	private boolean encountersKnown = false;
+	
+	private Encounter checkInEncounter;
+	
+	private Encounter lastEncounter;
+	
 	public VisitSummary(Visit visit, EmrProperties props) {
 		this.visit = visit;
 		this.props = props;
 	}
 	
+	/**
+	 * Creates a summary whose encounters of interest are already known (ie, from the active visits board), so that
+	 * the visit's encounters never need to be loaded
+	 */
+	public VisitSummary(Visit visit, Encounter checkInEncounter, Encounter lastEncounter) {
+		this.visit = visit;
+		this.checkInEncounter = checkInEncounter;
+		this.lastEncounter = lastEncounter;
+		this.encountersKnown = true;
+	}
+	
 	/**
 	 * @return the check-in encounter for this visit, or null if none exists
 	 */
 	public Encounter getCheckInEncounter() {
+		if (encountersKnown)
+			return checkInEncounter;
+		EncounterType checkInEncounterType = props.getCheckInEncounterType();
 		for (Encounter e : visit.getEncounters()) {
-			if (props.getCheckInEncounterType().equals(e.getEncounterType()))
+			if (checkInEncounterType.equals(e.getEncounterType()))
 				return e;
 		}
 		return null;
@@ -47,6 +68,8 @@ public class VisitSummary {
 	 * @return the most recent encounter in the visit
 	 */
 	public Encounter getLastEncounter() {
+		if (encountersKnown)
+			return lastEncounter;
 		if (visit.getEncounters().size() > 0)
 			return visit.getEncounters().iterator().next();
 		return null;
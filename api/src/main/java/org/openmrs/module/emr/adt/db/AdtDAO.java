@@ -0,0 +1,87 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.adt.db;
+
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
+import org.openmrs.Patient;
+import org.openmrs.Visit;
+import org.openmrs.module.emr.adt.ActiveVisit;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+public interface AdtDAO {
+
+    /**
+     * Finds (non-voided) open visits that have nothing (neither their start, nor any encounter) on or after the
+     * specified date, without loading the visits or their encounters
+     *
+     * @param mustHaveSomethingAfter
+     * @param afterVisitId only return visits with an id greater than this (may be null)
+     * @param maxResults
+     * @return the ids of the matching visits, in order, mapped to the datetime of their latest encounter (or null if
+     *         they have no encounters)
+     */
+    Map<Integer, Date> findInactiveOpenVisits(Date mustHaveSomethingAfter, Integer afterVisitId, int maxResults);
+
+    /**
+     * @param patient
+     * @return the (non-voided) visits for the specified patient that have not been stopped, most recent first
+     */
+    List<Visit> findOpenVisits(Patient patient);
+
+    /**
+     * Summarizes the (non-voided) open visits, and their (non-voided) encounters, without loading them
+     *
+     * @param visitIds only summarize these visits (or all open visits, if null)
+     * @param checkInEncounterType
+     * @return a summary of each of the open visits
+     */
+    List<ActiveVisit> findOpenVisitActivity(Collection<Integer> visitIds, EncounterType checkInEncounterType);
+
+    /**
+     * @param visitIds
+     * @return the visits with the specified ids, most recent first
+     */
+    List<Visit> getVisits(Collection<Integer> visitIds);
+
+    /**
+     * @param encounterIds
+     * @return the encounters with the specified ids
+     */
+    List<Encounter> getEncounters(Collection<Integer> encounterIds);
+
+    /**
+     * @param patient
+     * @return the number of (non-voided) encounters the patient has
+     */
+    int getCountOfEncounters(Patient patient);
+
+    /**
+     * @param patient
+     * @return the number of (non-voided) visits the patient has
+     */
+    int getCountOfVisits(Patient patient);
+
+    /**
+     * @param patient
+     * @return the patient's most recent (non-voided) encounter, or null if they have none
+     */
+    Encounter getLastEncounter(Patient patient);
+
+}
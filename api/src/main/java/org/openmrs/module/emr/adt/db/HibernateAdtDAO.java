@@ -0,0 +1,191 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.adt.db;
+
+import org.hibernate.Criteria;
+import org.hibernate.Query;
+import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
+import org.openmrs.Patient;
+import org.openmrs.Visit;
+import org.openmrs.module.emr.adt.ActiveVisit;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class HibernateAdtDAO implements AdtDAO {
+
+    private SessionFactory sessionFactory;
+
+    public void setSessionFactory(SessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    @Override
+    public Map<Integer, Date> findInactiveOpenVisits(Date mustHaveSomethingAfter, Integer afterVisitId, int maxResults) {
+
+        Query query = sessionFactory.getCurrentSession().createQuery(
+                "select visit.visitId, max(encounter.encounterDatetime) " +
+                "from Visit visit left join visit.encounters encounter " +
+                "where visit.stopDatetime is null and visit.voided = false " +
+                "and visit.startDatetime < :mustHaveSomethingAfter " +
+                (afterVisitId != null ? "and visit.visitId > :afterVisitId " : "") +
+                "group by visit.visitId " +
+                "having max(encounter.encounterDatetime) is null or max(encounter.encounterDatetime) < :mustHaveSomethingAfter " +
+                "order by visit.visitId");
+
+        query.setTimestamp("mustHaveSomethingAfter", mustHaveSomethingAfter);
+        if (afterVisitId != null) {
+            query.setInteger("afterVisitId", afterVisitId);
+        }
+        query.setMaxResults(maxResults);
+
+        Map<Integer, Date> visits = new LinkedHashMap<Integer, Date>();
+        for (Object[] row : (List<Object[]>) query.list()) {
+            visits.put((Integer) row[0], (Date) row[1]);
+        }
+        return visits;
+    }
+
+    @Override
+    public List<Visit> findOpenVisits(Patient patient) {
+
+        Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Visit.class);
+
+        criteria.add(Restrictions.eq("patient", patient));
+        criteria.add(Restrictions.isNull("stopDatetime"));
+        criteria.add(Restrictions.eq("voided", false));
+
+        // same order as VisitService.getVisitsByPatient
+        criteria.addOrder(Order.desc("startDatetime"));
+        criteria.addOrder(Order.desc("visitId"));
+
+        return (List<Visit>) criteria.list();
+    }
+
+    @Override
+    public List<ActiveVisit> findOpenVisitActivity(Collection<Integer> visitIds, EncounterType checkInEncounterType) {
+
+        if (visitIds != null && visitIds.isEmpty()) {
+            return new ArrayList<ActiveVisit>();
+        }
+
+        // the location is left joined, so that we don't lose visits without a location
+        Query visitQuery = sessionFactory.getCurrentSession().createQuery(
+                "select visit.visitId, location.locationId, visit.startDatetime " +
+                "from Visit visit left join visit.location location " +
+                "where visit.stopDatetime is null and visit.voided = false" +
+                (visitIds != null ? " and visit.visitId in (:visitIds)" : ""));
+
+        Query encounterQuery = sessionFactory.getCurrentSession().createQuery(
+                "select encounter.visit.visitId, encounter.encounterId, encounter.encounterDatetime, encounter.encounterType " +
+                "from Encounter encounter " +
+                "where encounter.voided = false and encounter.visit.stopDatetime is null and encounter.visit.voided = false" +
+                (visitIds != null ? " and encounter.visit.visitId in (:visitIds)" : ""));
+
+        if (visitIds != null) {
+            visitQuery.setParameterList("visitIds", visitIds);
+            encounterQuery.setParameterList("visitIds", visitIds);
+        }
+
+        Map<Integer, ActiveVisit> activeVisits = new LinkedHashMap<Integer, ActiveVisit>();
+        for (Object[] row : (List<Object[]>) visitQuery.list()) {
+            activeVisits.put((Integer) row[0], new ActiveVisit((Integer) row[0], (Integer) row[1], (Date) row[2]));
+        }
+
+        for (Object[] row : (List<Object[]>) encounterQuery.list()) {
+            ActiveVisit activeVisit = activeVisits.get(row[0]);
+            if (activeVisit != null) {
+                activeVisit.addEncounter((Integer) row[1], (Date) row[2], row[3].equals(checkInEncounterType));
+            }
+        }
+
+        return new ArrayList<ActiveVisit>(activeVisits.values());
+    }
+
+    @Override
+    public List<Visit> getVisits(Collection<Integer> visitIds) {
+
+        if (visitIds.isEmpty()) {
+            return new ArrayList<Visit>();
+        }
+
+        Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Visit.class);
+        criteria.add(Restrictions.in("visitId", visitIds));
+
+        // same order as VisitService.getVisits
+        criteria.addOrder(Order.desc("startDatetime"));
+        criteria.addOrder(Order.desc("visitId"));
+
+        return (List<Visit>) criteria.list();
+    }
+
+    @Override
+    public List<Encounter> getEncounters(Collection<Integer> encounterIds) {
+
+        if (encounterIds.isEmpty()) {
+            return new ArrayList<Encounter>();
+        }
+
+        Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Encounter.class);
+        criteria.add(Restrictions.in("encounterId", encounterIds));
+
+        return (List<Encounter>) criteria.list();
+    }
+
+    @Override
+    public int getCountOfEncounters(Patient patient) {
+
+        Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Encounter.class);
+        criteria.add(Restrictions.eq("patient", patient));
+        criteria.add(Restrictions.eq("voided", false));
+        criteria.setProjection(Projections.rowCount());
+
+        return ((Number) criteria.uniqueResult()).intValue();
+    }
+
+    @Override
+    public int getCountOfVisits(Patient patient) {
+
+        Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Visit.class);
+        criteria.add(Restrictions.eq("patient", patient));
+        criteria.add(Restrictions.eq("voided", false));
+        criteria.setProjection(Projections.rowCount());
+
+        return ((Number) criteria.uniqueResult()).intValue();
+    }
+
+    @Override
+    public Encounter getLastEncounter(Patient patient) {
+
+        Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Encounter.class);
+        criteria.add(Restrictions.eq("patient", patient));
+        criteria.add(Restrictions.eq("voided", false));
+        criteria.addOrder(Order.desc("encounterDatetime"));
+        criteria.addOrder(Order.desc("encounterId"));
+        criteria.setMaxResults(1);
+
+        return (Encounter) criteria.uniqueResult();
+    }
+
+}
@@ -0,0 +1,42 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.adt.db;
+
+import org.hibernate.Criteria;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Restrictions;
+import org.openmrs.module.emr.adt.MergePatientsJob;
+import org.openmrs.module.emr.api.db.hibernate.HibernateSingleClassDAO;
+
+import java.util.List;
+
+public class HibernateMergePatientsJobDAO extends HibernateSingleClassDAO<MergePatientsJob> implements MergePatientsJobDAO {
+
+    public HibernateMergePatientsJobDAO() {
+        super(MergePatientsJob.class);
+    }
+
+    @Override
+    public List<MergePatientsJob> findMergePatientsJobs(MergePatientsJob.Status status) {
+
+        Criteria criteria = sessionFactory.getCurrentSession().createCriteria(MergePatientsJob.class);
+        criteria.add(Restrictions.eq("status", status));
+        criteria.addOrder(Order.asc("dateCreated"));
+        criteria.addOrder(Order.asc("mergePatientsJobId"));
+
+        return (List<MergePatientsJob>) criteria.list();
+    }
+
+}
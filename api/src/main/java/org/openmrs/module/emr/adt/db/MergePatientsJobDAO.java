@@ -0,0 +1,32 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.adt.db;
+
+import org.openmrs.module.emr.adt.MergePatientsJob;
+import org.openmrs.module.emr.api.db.SingleClassDAO;
+
+import java.util.List;
+
+public interface MergePatientsJobDAO extends SingleClassDAO<MergePatientsJob> {
+
+    /**
+     * Fetches all merge patients jobs with the specified status
+     *
+     * @param status
+     * @return the matching jobs, oldest first
+     */
+    List<MergePatientsJob> findMergePatientsJobs(MergePatientsJob.Status status);
+
+}
@@ -19,6 +19,7 @@ import org.openmrs.ConceptSource;
 import org.openmrs.Location;
 import org.openmrs.Patient;
 import org.openmrs.api.OpenmrsService;
+import org.openmrs.module.emr.patient.PatientSearchResult;
 
 import java.util.Collection;
 import java.util.List;
@@ -29,8 +30,46 @@ import java.util.Locale;
  */
 public interface EmrService extends OpenmrsService {
 
+    /**
+     * Searches for patients by name, or (if the query contains a digit) by identifier. If the patient search index is
+     * enabled and has been built, the search is narrowed down to the patients it finds as candidates first.
+     *
+     * @param query
+     * @param checkedInAt if specified, only patients with an active visit at this location
+     * @param start
+     * @param length
+     * @return
+     */
     List<Patient> findPatients(String query, Location checkedInAt, Integer start, Integer length);
 
+    /**
+     * Same search as #findPatients, but returns just what is needed to show each patient in a list of results (their
+     * preferred name, gender, birthdate and primary identifiers), read in a single query, without loading the patients
+     *
+     * @param query
+     * @param checkedInAt if specified, only patients with an active visit at this location
+     * @param start
+     * @param length
+     * @return
+     */
+    List<PatientSearchResult> findPatientSearchResults(String query, Location checkedInAt, Integer start, Integer length);
+
+    /**
+     * Replaces the patient search index rows of the specified patient with the trigrams of their current (non-voided)
+     * names and identifiers, or removes them if the patient has been voided or purged
+     *
+     * @param patientId
+     */
+    void updatePatientSearchIndex(Integer patientId);
+
+    /**
+     * Indexes the next batch of patients, carrying on from where the last batch left off (see
+     * EmrConstants#GP_PATIENT_SEARCH_INDEX_PROGRESS)
+     *
+     * @return true if there may be more patients to index
+     */
+    boolean buildPatientSearchIndexBatch();
+
     /**
      * If any locations are tagged as supporting logins, we return only those. If no locations have this tag, we
      * return all non-retired ones.
@@ -41,8 +80,19 @@ public interface EmrService extends OpenmrsService {
 
     Patient findPatientByPrimaryId(String primaryId);
 
+    /**
+     * Same as #findPatientByPrimaryId, but returns the patient as a search result, without loading the patient
+     *
+     * @param primaryId
+     * @return
+     */
+    PatientSearchResult findPatientSearchResultByPrimaryId(String primaryId);
+
     /**
      * Searches for concepts by a fuzzy name match, or an exact match on a concept mapping
+     *
+     * Searches among the concepts of the diagnosis concept class are answered from the diagnosis search index, once it
+     * has been built (see #rebuildDiagnosisSearchIndex)
      * @param query
      * @param locale
      * @param classes if specified, only search among concepts with this class
@@ -52,4 +102,10 @@ public interface EmrService extends OpenmrsService {
      */
     List<ConceptSearchResult> conceptSearch(String query, Locale locale, Collection<ConceptClass> classes, Collection<ConceptSource> sources, Integer limit);
 
+    /**
+     * Builds the in-memory index that diagnosis concept searches are answered from; this is done in the background at
+     * startup, after which the index is maintained incrementally as concepts are saved
+     */
+    void rebuildDiagnosisSearchIndex();
+
 }
@@ -13,20 +13,70 @@
  */
 package org.openmrs.module.emr.api.db;
 
+import org.openmrs.Concept;
 import org.openmrs.ConceptClass;
 import org.openmrs.ConceptSearchResult;
 import org.openmrs.ConceptSource;
 import org.openmrs.Location;
 import org.openmrs.Patient;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.module.emr.consult.IndexedDiagnosis;
+import org.openmrs.module.emr.patient.PatientSearchResult;
 
 import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 
 public interface EmrDAO {
 
     List<Patient> findPatients(String query, Location checkedInAt, Integer start, Integer length);
 
+    /**
+     * Same search as #findPatients, but only reads the columns needed to show each patient in the results
+     *
+     * @param query
+     * @param checkedInAt
+     * @param start
+     * @param length
+     * @param primaryIdentifierType the type of the identifiers to include in the results (none if null)
+     * @return
+     */
+    List<PatientSearchResult> findPatientSearchResults(String query, Location checkedInAt, Integer start, Integer length,
+                                                       PatientIdentifierType primaryIdentifierType);
+
+    /**
+     * @param identifier
+     * @param identifierType
+     * @return the (non-voided) patients with this exact identifier of this type, with their identifiers of this type
+     */
+    List<PatientSearchResult> findPatientSearchResultsByIdentifier(String identifier, PatientIdentifierType identifierType);
+
+    /**
+     * Replaces the rows of the patient search index for the specified patient
+     *
+     * @param patientId
+     * @param nameTrigrams
+     * @param identifierTrigrams
+     */
+    void updatePatientSearchIndex(Integer patientId, Set<String> nameTrigrams, Set<String> identifierTrigrams);
+
+    /**
+     * @param afterPatientId if specified, only patients with a higher id
+     * @param maxResults
+     * @return the ids of (voided and non-voided) patients, in order
+     */
+    List<Integer> getPatientIds(Integer afterPatientId, int maxResults);
+
     List<ConceptSearchResult> conceptSearch(String query, Locale locale, Collection<ConceptClass> classes, Collection<ConceptSource> sources, Integer limit);
 
+    /**
+     * @param conceptClass
+     * @param conceptIds if specified, only these concepts
+     * @return the names and codes of the non-retired concepts of the specified class, for the diagnosis search index
+     */
+    List<IndexedDiagnosis> findIndexedDiagnoses(ConceptClass conceptClass, Collection<Integer> conceptIds);
+
+    List<Concept> getConcepts(Collection<Integer> conceptIds);
+
 }
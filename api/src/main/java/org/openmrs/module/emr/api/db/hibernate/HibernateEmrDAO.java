@@ -15,10 +15,15 @@ package org.openmrs.module.emr.api.db.hibernate;
 
 import org.apache.commons.lang.StringUtils;
 import org.hibernate.Criteria;
+import org.hibernate.Query;
+import org.hibernate.SQLQuery;
 import org.hibernate.SessionFactory;
 import org.hibernate.criterion.MatchMode;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Property;
 import org.hibernate.criterion.Restrictions;
+import org.openmrs.Concept;
 import org.openmrs.ConceptClass;
 import org.openmrs.ConceptMap;
 import org.openmrs.ConceptName;
@@ -32,17 +37,28 @@ import org.openmrs.Visit;
 import org.openmrs.api.db.hibernate.PatientSearchCriteria;
 import org.openmrs.module.emr.EmrProperties;
 import org.openmrs.module.emr.api.db.EmrDAO;
+import org.openmrs.module.emr.consult.IndexedDiagnosis;
+import org.openmrs.module.emr.patient.PatientSearchResult;
+import org.openmrs.module.emr.patient.PatientSearchTrigram;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 public class HibernateEmrDAO implements EmrDAO {
 
+    private static final int MAX_PATIENT_SEARCH_INDEX_CANDIDATES = 1000;
+
     private SessionFactory sessionFactory;
     private EmrProperties emrProperties;
 
@@ -57,6 +73,47 @@ public class HibernateEmrDAO implements EmrDAO {
     @Override
     public List<Patient> findPatients(String query, Location checkedInAt, Integer start, Integer maxResults) {
 
+        Criteria criteria = createFindPatientsCriteria(query, checkedInAt, start, maxResults);
+        if (criteria == null) {
+            return new ArrayList<Patient>();
+        }
+
+        return (List<Patient>) criteria.list();
+    }
+
+    @Override
+    public List<PatientSearchResult> findPatientSearchResults(String query, Location checkedInAt, Integer start, Integer maxResults,
+                                                              PatientIdentifierType primaryIdentifierType) {
+
+        Criteria criteria = createFindPatientsCriteria(query, checkedInAt, start, maxResults);
+        if (criteria == null) {
+            return new ArrayList<PatientSearchResult>();
+        }
+
+        // the same search, but only fetching the ids of the patients (which may come back more than once, when more
+        // than one of their names or visits match), so that we never load the patients themselves
+        criteria.setProjection(Projections.id());
+        Set<Integer> patientIds = new LinkedHashSet<Integer>((List<Integer>) criteria.list());
+
+        return getPatientSearchResults(patientIds, primaryIdentifierType);
+    }
+
+    @Override
+    public List<PatientSearchResult> findPatientSearchResultsByIdentifier(String identifier, PatientIdentifierType identifierType) {
+
+        Query idQuery = sessionFactory.getCurrentSession().createQuery(
+                "select distinct identifier.patient.patientId from PatientIdentifier identifier " +
+                "where identifier.voided = false and identifier.patient.voided = false " +
+                "and identifier.identifierType = :identifierType and identifier.identifier = :identifier");
+        idQuery.setParameter("identifierType", identifierType);
+        idQuery.setParameter("identifier", identifier);
+
+        return getPatientSearchResults((List<Integer>) idQuery.list(), identifierType);
+    }
+
+    // the criteria for a patient search, or null if the patient search index tells us nobody can match
+    private Criteria createFindPatientsCriteria(String query, Location checkedInAt, Integer start, Integer maxResults) {
+
         Criteria criteria;
         if (checkedInAt != null) {
             criteria = sessionFactory.getCurrentSession().createCriteria(Visit.class);
@@ -74,6 +131,16 @@ public class HibernateEmrDAO implements EmrDAO {
             criteria = buildCriteria(query, criteria);
         }
 
+        if (StringUtils.isNotBlank(query) && emrProperties.isPatientSearchIndexEnabled() && emrProperties.isPatientSearchIndexBuilt()) {
+            List<Integer> candidates = findPatientSearchIndexCandidates(query);
+            if (candidates != null) {
+                if (candidates.isEmpty()) {
+                    return null;
+                }
+                criteria.add(Restrictions.in("patientId", candidates));
+            }
+        }
+
         if (start != null) {
             criteria.setFirstResult(start);
         }
@@ -82,7 +149,102 @@ public class HibernateEmrDAO implements EmrDAO {
             criteria.setMaxResults(maxResults);
         }
 
-        return (List<Patient>) criteria.list();
+        return criteria;
+    }
+
+    // reads the search results for the specified patients, in the same order, in a single query that only projects the
+    // columns we need. Each patient comes back once per combination of their names and primary identifiers, so the
+    // rows are ordered such that the first row of a patient has their preferred name.
+    private List<PatientSearchResult> getPatientSearchResults(Collection<Integer> patientIds, PatientIdentifierType primaryIdentifierType) {
+
+        if (patientIds.isEmpty()) {
+            return new ArrayList<PatientSearchResult>();
+        }
+
+        Query resultQuery = sessionFactory.getCurrentSession().createQuery(
+                "select patient.patientId, patient.gender, patient.birthdate, patient.birthdateEstimated, patient.dead, patient.deathDate, " +
+                "name.prefix, name.givenName, name.middleName, " +
+                "name.familyNamePrefix, name.familyName, name.familyName2, name.familyNameSuffix, name.degree " +
+                (primaryIdentifierType != null ? ", identifier.patientIdentifierId, identifier.identifier " : "") +
+                "from Patient patient " +
+                "left join patient.names name with name.voided = false " +
+                (primaryIdentifierType != null ? "left join patient.identifiers identifier " +
+                        "with identifier.voided = false and identifier.identifierType = :primaryIdentifierType " : "") +
+                "where patient.patientId in (:patientIds) " +
+                "order by patient.patientId, name.preferred desc, name.personNameId" +
+                (primaryIdentifierType != null ? ", identifier.preferred desc, identifier.patientIdentifierId" : ""));
+        resultQuery.setParameterList("patientIds", patientIds);
+        if (primaryIdentifierType != null) {
+            resultQuery.setParameter("primaryIdentifierType", primaryIdentifierType);
+        }
+
+        Map<Integer, PatientSearchResult> results = new LinkedHashMap<Integer, PatientSearchResult>();
+        for (Integer patientId : patientIds) {
+            results.put(patientId, null);
+        }
+
+        Set<Integer> identifierIds = new HashSet<Integer>();
+        for (Object[] row : (List<Object[]>) resultQuery.list()) {
+            Integer patientId = (Integer) row[0];
+            PatientSearchResult result = results.get(patientId);
+            if (result == null) {
+                result = new PatientSearchResult(patientId);
+                result.setGender((String) row[1]);
+                result.setBirthdate((Date) row[2]);
+                result.setBirthdateEstimated((Boolean) row[3]);
+                result.setDead((Boolean) row[4]);
+                result.setDeathDate((Date) row[5]);
+                result.setPrefix((String) row[6]);
+                result.setGivenName((String) row[7]);
+                result.setMiddleName((String) row[8]);
+                result.setFamilyNamePrefix((String) row[9]);
+                result.setFamilyName((String) row[10]);
+                result.setFamilyName2((String) row[11]);
+                result.setFamilyNameSuffix((String) row[12]);
+                result.setDegree((String) row[13]);
+                results.put(patientId, result);
+            }
+            if (row.length > 14 && row[14] != null && identifierIds.add((Integer) row[14])) {
+                result.addPrimaryIdentifier((String) row[15]);
+            }
+        }
+
+        List<PatientSearchResult> ordered = new ArrayList<PatientSearchResult>();
+        for (PatientSearchResult result : results.values()) {
+            if (result != null) {
+                ordered.add(result);
+            }
+        }
+        return ordered;
+    }
+
+    // the ids of the patients that have every trigram the query needs, or null if the index can't narrow the search down
+    // enough to be worth using, in which case we just search among all patients
+    private List<Integer> findPatientSearchIndexCandidates(String query) {
+        String kind;
+        Set<String> trigrams;
+        if (query.matches(".*\\d.*")) {
+            kind = PatientSearchTrigram.IDENTIFIER;
+            trigrams = PatientSearchTrigram.getQueryIdentifierTrigrams(query);
+        } else {
+            kind = PatientSearchTrigram.NAME;
+            trigrams = PatientSearchTrigram.getQueryNameTrigrams(query, emrProperties.isPatientNameMatchAnywhere());
+        }
+        if (trigrams == null) {
+            return null;
+        }
+
+        Query candidateQuery = sessionFactory.getCurrentSession().createQuery(
+                "select trigram.patientId from PatientSearchTrigram trigram " +
+                "where trigram.kind = :kind and trigram.trigram in (:trigrams) " +
+                "group by trigram.patientId having count(*) = :count");
+        candidateQuery.setParameter("kind", kind);
+        candidateQuery.setParameterList("trigrams", trigrams);
+        candidateQuery.setParameter("count", (long) trigrams.size());
+        candidateQuery.setMaxResults(MAX_PATIENT_SEARCH_INDEX_CANDIDATES + 1);
+
+        List<Integer> candidates = (List<Integer>) candidateQuery.list();
+        return candidates.size() > MAX_PATIENT_SEARCH_INDEX_CANDIDATES ? null : candidates;
     }
 
     private Criteria buildCriteria(String query, Criteria criteria) {
@@ -95,6 +257,51 @@ public class HibernateEmrDAO implements EmrDAO {
         }
     }
 
+    @Override
+    public void updatePatientSearchIndex(Integer patientId, Set<String> nameTrigrams, Set<String> identifierTrigrams) {
+
+        sessionFactory.getCurrentSession().createQuery("delete from PatientSearchTrigram where patientId = :patientId")
+                .setParameter("patientId", patientId).executeUpdate();
+
+        // the rows are inserted directly, rather than saved as objects, so that they never end up in the session, where
+        // they would clash with the same rows being inserted again if the patient is saved twice in one transaction
+        insertPatientSearchTrigrams(patientId, PatientSearchTrigram.NAME, nameTrigrams);
+        insertPatientSearchTrigrams(patientId, PatientSearchTrigram.IDENTIFIER, identifierTrigrams);
+    }
+
+    private void insertPatientSearchTrigrams(Integer patientId, String kind, Set<String> trigrams) {
+
+        if (trigrams.isEmpty()) {
+            return;
+        }
+
+        StringBuilder sql = new StringBuilder("insert into emr_patient_search_trigram (kind, trigram, patient_id) values ");
+        for (int i = 0; i < trigrams.size(); ++i) {
+            sql.append(i == 0 ? "" : ", ").append("(?, ?, ?)");
+        }
+
+        SQLQuery insert = sessionFactory.getCurrentSession().createSQLQuery(sql.toString());
+        int position = 0;
+        for (String trigram : trigrams) {
+            insert.setString(position++, kind);
+            insert.setString(position++, trigram);
+            insert.setInteger(position++, patientId);
+        }
+        insert.executeUpdate();
+    }
+
+    @Override
+    public List<Integer> getPatientIds(Integer afterPatientId, int maxResults) {
+        Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Patient.class);
+        criteria.setProjection(Property.forName("patientId"));
+        if (afterPatientId != null) {
+            criteria.add(Restrictions.gt("patientId", afterPatientId));
+        }
+        criteria.addOrder(Order.asc("patientId"));
+        criteria.setMaxResults(maxResults);
+        return (List<Integer>) criteria.list();
+    }
+
     @Override
     @Transactional(readOnly=true)
     public List<ConceptSearchResult> conceptSearch(String query, Locale locale, Collection<ConceptClass> classes, Collection<ConceptSource> sources, Integer limit) {
@@ -161,6 +368,72 @@ public class HibernateEmrDAO implements EmrDAO {
         return results;
     }
 
+    @Override
+    public List<IndexedDiagnosis> findIndexedDiagnoses(ConceptClass conceptClass, Collection<Integer> conceptIds) {
+
+        if (conceptIds != null && conceptIds.isEmpty()) {
+            return new ArrayList<IndexedDiagnosis>();
+        }
+
+        Query conceptQuery = sessionFactory.getCurrentSession().createQuery(
+                "select concept.conceptId from Concept concept " +
+                "where concept.retired = false and concept.conceptClass = :conceptClass" +
+                (conceptIds != null ? " and concept.conceptId in (:conceptIds)" : ""));
+
+        Query nameQuery = sessionFactory.getCurrentSession().createQuery(
+                "select name.concept.conceptId, name.conceptNameId, name.locale, name.name, name.localePreferred " +
+                "from ConceptName name " +
+                "where name.voided = false and name.concept.retired = false and name.concept.conceptClass = :conceptClass" +
+                (conceptIds != null ? " and name.concept.conceptId in (:conceptIds)" : ""));
+
+        Query codeQuery = sessionFactory.getCurrentSession().createQuery(
+                "select mapping.concept.conceptId, term.conceptReferenceTermId, term.conceptSource.conceptSourceId, term.code " +
+                "from ConceptMap mapping join mapping.conceptReferenceTerm term " +
+                "where term.retired = false and mapping.concept.retired = false and mapping.concept.conceptClass = :conceptClass" +
+                (conceptIds != null ? " and mapping.concept.conceptId in (:conceptIds)" : ""));
+
+        for (Query query : new Query[] { conceptQuery, nameQuery, codeQuery }) {
+            query.setParameter("conceptClass", conceptClass);
+            if (conceptIds != null) {
+                query.setParameterList("conceptIds", conceptIds);
+            }
+        }
+
+        Map<Integer, IndexedDiagnosis> indexedDiagnoses = new LinkedHashMap<Integer, IndexedDiagnosis>();
+        for (Integer conceptId : (List<Integer>) conceptQuery.list()) {
+            indexedDiagnoses.put(conceptId, new IndexedDiagnosis(conceptId));
+        }
+
+        for (Object[] row : (List<Object[]>) nameQuery.list()) {
+            IndexedDiagnosis indexedDiagnosis = indexedDiagnoses.get(row[0]);
+            if (indexedDiagnosis != null && row[3] != null) {
+                indexedDiagnosis.addName((Integer) row[1], (Locale) row[2], (String) row[3], Boolean.TRUE.equals(row[4]));
+            }
+        }
+
+        for (Object[] row : (List<Object[]>) codeQuery.list()) {
+            IndexedDiagnosis indexedDiagnosis = indexedDiagnoses.get(row[0]);
+            if (indexedDiagnosis != null && row[3] != null) {
+                indexedDiagnosis.addCode((Integer) row[1], (Integer) row[2], (String) row[3]);
+            }
+        }
+
+        return new ArrayList<IndexedDiagnosis>(indexedDiagnoses.values());
+    }
+
+    @Override
+    public List<Concept> getConcepts(Collection<Integer> conceptIds) {
+
+        if (conceptIds.isEmpty()) {
+            return new ArrayList<Concept>();
+        }
+
+        Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Concept.class);
+        criteria.add(Restrictions.in("conceptId", conceptIds));
+
+        return (List<Concept>) criteria.list();
+    }
+
     private Double calculateMatchScore(String query, ConceptMap matchedMapping) {
         // eventually consider weighting this by map type (e.g. same-as > narrower-than > others)
         return 10000d;
@@ -168,7 +441,7 @@ public class HibernateEmrDAO implements EmrDAO {
 
     private Double calculateMatchScore(String query, List<String> uniqueWords, ConceptName matchedName) {
         double score = 0d;
-        if (query.equals(matchedName)) {
+        if (query.equals(matchedName.getName())) {
             score += 1000d;
         }
         if (matchedName.isLocalePreferred()) {
@@ -13,30 +13,52 @@
  */
 package org.openmrs.module.emr.api.impl;
 
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
 import org.openmrs.ConceptClass;
+import org.openmrs.ConceptName;
 import org.openmrs.ConceptSearchResult;
 import org.openmrs.ConceptSource;
+import org.openmrs.ConceptWord;
 import org.openmrs.Location;
 import org.openmrs.Patient;
 import org.openmrs.PatientIdentifierType;
 import org.openmrs.api.APIException;
+import org.openmrs.api.AdministrationService;
 import org.openmrs.api.EncounterService;
 import org.openmrs.api.LocationService;
 import org.openmrs.api.PatientService;
+import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
+import org.openmrs.module.emr.EmrConstants;
 import org.openmrs.module.emr.EmrProperties;
 import org.openmrs.module.emr.adt.AdtService;
 import org.openmrs.module.emr.api.EmrService;
 import org.openmrs.module.emr.api.db.EmrDAO;
+import org.openmrs.module.emr.consult.DiagnosisSearchIndex;
+import org.openmrs.module.emr.patient.PatientSearchResult;
+import org.openmrs.module.emr.patient.PatientSearchTrigram;
+import org.openmrs.util.PrivilegeConstants;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 public class EmrServiceImpl extends BaseOpenmrsService implements EmrService {
 
+    private static final int PATIENT_SEARCH_INDEX_BATCH_SIZE = 500;
+
+    private final Log log = LogFactory.getLog(getClass());
+
     private EmrDAO dao;
 
     private EmrProperties emrProperties;
@@ -49,6 +71,10 @@ public class EmrServiceImpl extends BaseOpenmrsService implements EmrService {
 
     private PatientService patientService;
 
+    private AdministrationService administrationService;
+
+    private DiagnosisSearchIndex diagnosisSearchIndex = new DiagnosisSearchIndex();
+
     public void setDao(EmrDAO dao) {
         this.dao = dao;
     }
@@ -73,6 +99,14 @@ public class EmrServiceImpl extends BaseOpenmrsService implements EmrService {
         this.patientService = patientService;
     }
 
+    public void setAdministrationService(AdministrationService administrationService) {
+        this.administrationService = administrationService;
+    }
+
+    public void setDiagnosisSearchIndex(DiagnosisSearchIndex diagnosisSearchIndex) {
+        this.diagnosisSearchIndex = diagnosisSearchIndex;
+    }
+
 	@Override
     public List<Patient> findPatients(String query, Location checkedInAt, Integer start, Integer length) {
         if (checkedInAt != null) {
@@ -81,6 +115,56 @@ public class EmrServiceImpl extends BaseOpenmrsService implements EmrService {
         return dao.findPatients(query, checkedInAt, start, length);
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    public List<PatientSearchResult> findPatientSearchResults(String query, Location checkedInAt, Integer start, Integer length) {
+        if (checkedInAt != null) {
+            checkedInAt = adtService.getLocationThatSupportsVisits(checkedInAt);
+        }
+        return dao.findPatientSearchResults(query, checkedInAt, start, length, emrProperties.getPrimaryIdentifierType());
+    }
+
+    @Override
+    @Transactional
+    public void updatePatientSearchIndex(Integer patientId) {
+        Patient patient = patientService.getPatient(patientId);
+        if (patient == null || patient.isVoided()) {
+            dao.updatePatientSearchIndex(patientId, Collections.<String>emptySet(), Collections.<String>emptySet());
+        }
+        else {
+            dao.updatePatientSearchIndex(patientId, PatientSearchTrigram.getNameTrigrams(patient),
+                    PatientSearchTrigram.getIdentifierTrigrams(patient));
+        }
+    }
+
+    @Override
+    @Transactional
+    public boolean buildPatientSearchIndexBatch() {
+
+        String progress = emrProperties.getPatientSearchIndexProgress();
+        if (EmrConstants.PATIENT_SEARCH_INDEX_COMPLETE.equals(progress) || !emrProperties.isPatientSearchIndexEnabled()) {
+            return false;
+        }
+
+        Integer afterPatientId = StringUtils.isBlank(progress) ? null : Integer.valueOf(progress);
+        List<Integer> patientIds = dao.getPatientIds(afterPatientId, PATIENT_SEARCH_INDEX_BATCH_SIZE);
+        for (Integer patientId : patientIds) {
+            updatePatientSearchIndex(patientId);
+        }
+
+        // if the index was disabled while we were indexing this batch, the progress has been forgotten (see
+        // PatientSearchIndexBuilder), and we mustn't put it back, since patients saved in the meantime were not indexed
+        if (!emrProperties.isPatientSearchIndexEnabled()) {
+            return false;
+        }
+
+        // patients saved from now on are indexed as they are saved (see PatientSearchIndexAdvice)
+        progress = patientIds.isEmpty() ? EmrConstants.PATIENT_SEARCH_INDEX_COMPLETE : patientIds.get(patientIds.size() - 1).toString();
+        administrationService.setGlobalProperty(EmrConstants.GP_PATIENT_SEARCH_INDEX_PROGRESS, progress);
+
+        return !patientIds.isEmpty();
+    }
+
     @Override
     @Transactional(readOnly = true)
     public List<Location> getLoginLocations() {
@@ -93,15 +177,7 @@ public class EmrServiceImpl extends BaseOpenmrsService implements EmrService {
 
     @Override
     public Patient findPatientByPrimaryId(String primaryId) {
-        if(primaryId==null){
-            throw new IllegalArgumentException("primary ID should not be null");
-        }
-
-        PatientIdentifierType primaryIdentifierType = emrProperties.getPrimaryIdentifierType();
-
-        if(primaryIdentifierType==null){
-            throw new RuntimeException("primary identifier is not configured");
-        }
+        PatientIdentifierType primaryIdentifierType = getPrimaryIdentifierTypeToFind(primaryId);
 
         List<PatientIdentifierType> patientIdentifierTypes = new ArrayList<PatientIdentifierType>();
         patientIdentifierTypes.add(primaryIdentifierType);
@@ -117,10 +193,135 @@ public class EmrServiceImpl extends BaseOpenmrsService implements EmrService {
     }
 
     @Override
+    @Transactional(readOnly = true)
+    public PatientSearchResult findPatientSearchResultByPrimaryId(String primaryId) {
+        PatientIdentifierType primaryIdentifierType = getPrimaryIdentifierTypeToFind(primaryId);
+
+        List<PatientSearchResult> results = dao.findPatientSearchResultsByIdentifier(primaryId, primaryIdentifierType);
+
+        if (results.isEmpty()) {
+            throw new APIException("no such patient");
+        }
+
+        return results.get(0);
+    }
+
+    private PatientIdentifierType getPrimaryIdentifierTypeToFind(String primaryId) {
+        if(primaryId==null){
+            throw new IllegalArgumentException("primary ID should not be null");
+        }
+
+        PatientIdentifierType primaryIdentifierType = emrProperties.getPrimaryIdentifierType();
+
+        if(primaryIdentifierType==null){
+            throw new RuntimeException("primary identifier is not configured");
+        }
+
+        return primaryIdentifierType;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
     public List<ConceptSearchResult> conceptSearch(String query, Locale locale, Collection<ConceptClass> classes, Collection<ConceptSource> sources, Integer limit) {
         if (limit == null) {
             limit = 100;
         }
+        if (classes != null && classes.size() == 1) {
+            ConceptClass conceptClass = classes.iterator().next();
+            if (conceptClass != null && diagnosisSearchIndex.covers(conceptClass.getConceptClassId())) {
+                return searchDiagnosisIndex(query, locale, conceptClass, sources, limit);
+            }
+        }
         return dao.conceptSearch(query, locale, classes, sources, limit);
     }
+
+    // the index only holds ids, so the matched concepts are fetched by id, one query in all, once we know which of the
+    // matches we are going to return
+    private List<ConceptSearchResult> searchDiagnosisIndex(String query, Locale locale, ConceptClass conceptClass, Collection<ConceptSource> sources, Integer limit) {
+        List<String> uniqueWords = ConceptWord.getUniqueWords(query, locale);
+        if (uniqueWords.size() == 0) {
+            return Collections.emptyList();
+        }
+
+        refreshDiagnosisSearchIndex(conceptClass);
+
+        Set<Integer> sourceIds = null;
+        if (sources != null) {
+            sourceIds = new HashSet<Integer>();
+            for (ConceptSource source : sources) {
+                sourceIds.add(source.getConceptSourceId());
+            }
+        }
+
+        List<DiagnosisSearchIndex.Match> matches = diagnosisSearchIndex.search(query, uniqueWords, locale, sourceIds, limit);
+
+        Set<Integer> conceptIds = new HashSet<Integer>();
+        for (DiagnosisSearchIndex.Match match : matches) {
+            conceptIds.add(match.getConceptId());
+        }
+        Map<Integer, Concept> conceptsById = new HashMap<Integer, Concept>();
+        for (Concept concept : dao.getConcepts(conceptIds)) {
+            conceptsById.put(concept.getConceptId(), concept);
+        }
+
+        List<ConceptSearchResult> results = new ArrayList<ConceptSearchResult>();
+        for (DiagnosisSearchIndex.Match match : matches) {
+            Concept concept = conceptsById.get(match.getConceptId());
+            ConceptName conceptName = match.getConceptNameId() == null ? null : getName(concept, match.getConceptNameId());
+            // anything that has been purged since the index was refreshed is simply left out
+            if (concept != null && (match.getConceptNameId() == null || conceptName != null)) {
+                results.add(new ConceptSearchResult(null, concept, conceptName, match.getScore()));
+            }
+        }
+        return results;
+    }
+
+    private ConceptName getName(Concept concept, Integer conceptNameId) {
+        if (concept != null) {
+            for (ConceptName name : concept.getNames()) {
+                if (conceptNameId.equals(name.getConceptNameId())) {
+                    return name;
+                }
+            }
+        }
+        return null;
+    }
+
+    // applies any changes to concepts since the index was last searched; synchronized on the index so that two
+    // readers can't apply an older and a newer view of the same concept in the wrong order
+    private void refreshDiagnosisSearchIndex(ConceptClass conceptClass) {
+        synchronized (diagnosisSearchIndex) {
+            Set<Integer> changedConceptIds = diagnosisSearchIndex.takeChangedConceptIds();
+            if (!changedConceptIds.isEmpty()) {
+                diagnosisSearchIndex.update(changedConceptIds, dao.findIndexedDiagnoses(conceptClass, changedConceptIds));
+            }
+        }
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public void rebuildDiagnosisSearchIndex() {
+
+        long start = System.currentTimeMillis();
+
+        // the index is built at startup, before anybody has logged in, so we grant ourselves the privilege we need to
+        // look up the diagnosis concept class
+        ConceptClass diagnosisClass;
+        Context.addProxyPrivilege(PrivilegeConstants.VIEW_CONCEPT_CLASSES);
+        try {
+            diagnosisClass = emrProperties.getDiagnosisConceptClass();
+        }
+        finally {
+            Context.removeProxyPrivilege(PrivilegeConstants.VIEW_CONCEPT_CLASSES);
+        }
+        if (diagnosisClass == null) {
+            log.warn("Not building the diagnosis search index, since there is no diagnosis concept class");
+            return;
+        }
+
+        diagnosisSearchIndex.rebuild(diagnosisClass.getConceptClassId(), dao.findIndexedDiagnoses(diagnosisClass, null));
+
+        log.info("Built diagnosis search index with " + diagnosisSearchIndex.size() + " concepts in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
 }
@@ -14,7 +14,6 @@
 
 package org.openmrs.module.emr.consult;
 
-import org.apache.commons.beanutils.PropertyUtils;
 import org.openmrs.Concept;
 import org.openmrs.ConceptAnswer;
 import org.openmrs.ConceptMap;
@@ -24,60 +23,143 @@ import org.openmrs.Obs;
 import org.openmrs.api.ConceptService;
 import org.openmrs.module.emr.EmrConstants;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Metadata describing how a diagnosis is represented as an Obs group.
+ *
+ * This is immutable, and everything that would otherwise be looked up or scanned for each diagnosis (the answers
+ * of the diagnosis order concept, by their code in the emr concept source, and vice versa) is worked out when it is
+ * constructed, so that one instance can be cached (see EmrProperties#getDiagnosisMetadata) and, via #reload, bound
+ * to each hibernate session that uses it without looking anything up by mapping again.
  * TODO refactor to pull more of this functionality into a base class, e.g. ConceptSetDescriptor
  */
 public class DiagnosisMetadata {
 
-    private Concept diagnosisSetConcept;
-    private Concept codedDiagnosisConcept;
-    private Concept nonCodedDiagnosisConcept;
-    private Concept diagnosisOrderConcept;
+    private final Concept diagnosisSetConcept;
+    private final Concept codedDiagnosisConcept;
+    private final Concept nonCodedDiagnosisConcept;
+    private final Concept diagnosisOrderConcept;
+
+    private final ConceptSource emrConceptSource;
+
+    private final Map<String, Concept> diagnosisOrderAnswersByCode;
 
-    private ConceptSource emrConceptSource;
+    private final Map<Integer, String> codesByDiagnosisOrderAnswerId;
 
     public DiagnosisMetadata(ConceptService conceptService, ConceptSource emrConceptSource) {
-        setup(conceptService, EmrConstants.EMR_CONCEPT_SOURCE_NAME, "diagnosisSetConcept", EmrConstants.CONCEPT_CODE_DIAGNOSIS_CONCEPT_SET,
-                "codedDiagnosisConcept", EmrConstants.CONCEPT_CODE_CODED_DIAGNOSIS,
-                "nonCodedDiagnosisConcept", EmrConstants.CONCEPT_CODE_NON_CODED_DIAGNOSIS,
-                "diagnosisOrderConcept", EmrConstants.CONCEPT_CODE_DIAGNOSIS_ORDER);
+        String sourceName = EmrConstants.EMR_CONCEPT_SOURCE_NAME;
+        this.diagnosisSetConcept = conceptService.getConceptByMapping(EmrConstants.CONCEPT_CODE_DIAGNOSIS_CONCEPT_SET, sourceName);
+        if (diagnosisSetConcept == null) {
+            throw new IllegalStateException("Couldn't find primary concept for " + getClass().getSimpleName() + " which should be mapped as " + sourceName + ":" + EmrConstants.CONCEPT_CODE_DIAGNOSIS_CONCEPT_SET);
+        }
+        this.codedDiagnosisConcept = getSetMemberByMapping(conceptService, sourceName, "codedDiagnosisConcept", EmrConstants.CONCEPT_CODE_CODED_DIAGNOSIS);
+        this.nonCodedDiagnosisConcept = getSetMemberByMapping(conceptService, sourceName, "nonCodedDiagnosisConcept", EmrConstants.CONCEPT_CODE_NON_CODED_DIAGNOSIS);
+        this.diagnosisOrderConcept = getSetMemberByMapping(conceptService, sourceName, "diagnosisOrderConcept", EmrConstants.CONCEPT_CODE_DIAGNOSIS_ORDER);
         this.emrConceptSource = emrConceptSource;
+        this.diagnosisOrderAnswersByCode = mapAnswersByCode(diagnosisOrderConcept);
+        this.codesByDiagnosisOrderAnswerId = mapCodesByAnswerId(diagnosisOrderAnswersByCode);
     }
 
     /**
      * Used for testing -- in production you'll use the constructor that takes ConceptService
      */
-    public DiagnosisMetadata() {
+    public DiagnosisMetadata(Concept diagnosisSetConcept, Concept codedDiagnosisConcept, Concept nonCodedDiagnosisConcept,
+                             Concept diagnosisOrderConcept, ConceptSource emrConceptSource) {
+        this.diagnosisSetConcept = diagnosisSetConcept;
+        this.codedDiagnosisConcept = codedDiagnosisConcept;
+        this.nonCodedDiagnosisConcept = nonCodedDiagnosisConcept;
+        this.diagnosisOrderConcept = diagnosisOrderConcept;
+        this.emrConceptSource = emrConceptSource;
+        this.diagnosisOrderAnswersByCode = mapAnswersByCode(diagnosisOrderConcept);
+        this.codesByDiagnosisOrderAnswerId = mapCodesByAnswerId(diagnosisOrderAnswersByCode);
+    }
+
+    private DiagnosisMetadata(Concept diagnosisSetConcept, Concept codedDiagnosisConcept, Concept nonCodedDiagnosisConcept,
+                              Concept diagnosisOrderConcept, ConceptSource emrConceptSource,
+                              Map<String, Concept> diagnosisOrderAnswersByCode, Map<Integer, String> codesByDiagnosisOrderAnswerId) {
+        this.diagnosisSetConcept = diagnosisSetConcept;
+        this.codedDiagnosisConcept = codedDiagnosisConcept;
+        this.nonCodedDiagnosisConcept = nonCodedDiagnosisConcept;
+        this.diagnosisOrderConcept = diagnosisOrderConcept;
+        this.emrConceptSource = emrConceptSource;
+        this.diagnosisOrderAnswersByCode = diagnosisOrderAnswersByCode;
+        this.codesByDiagnosisOrderAnswerId = codesByDiagnosisOrderAnswerId;
     }
 
-    private void setup(ConceptService conceptService, String conceptSourceName, String... fieldsAndConceptCodes) {
-        try {
-            String primaryConceptCode = fieldsAndConceptCodes[1];
-            Concept primaryConcept = conceptService.getConceptByMapping(primaryConceptCode, conceptSourceName);
-            if (primaryConcept == null) {
-                throw new IllegalStateException("Couldn't find primary concept for " + getClass().getSimpleName() + " which should be mapped as " + conceptSourceName + ":" + primaryConceptCode);
+    /**
+     * Loads each of our concepts again, by id (which the hibernate session caches), so that the metadata can be used
+     * with the current session rather than the one it was first looked up in
+     *
+     * @param conceptService
+     * @return the same metadata, with concepts from the current session, or null if any of them no longer exists
+     */
+    public DiagnosisMetadata reload(ConceptService conceptService) {
+        Map<String, Concept> answersByCode = new HashMap<String, Concept>();
+        for (Map.Entry<String, Concept> entry : diagnosisOrderAnswersByCode.entrySet()) {
+            Concept answer = reload(conceptService, entry.getValue());
+            if (answer == null) {
+                return null;
             }
-            PropertyUtils.setProperty(this, fieldsAndConceptCodes[0], primaryConcept);
-            for (int i = 2; i < fieldsAndConceptCodes.length; i += 2) {
-                String propertyName = fieldsAndConceptCodes[i];
-                String mappingCode = fieldsAndConceptCodes[i + 1];
-                Concept childConcept = conceptService.getConceptByMapping(mappingCode, conceptSourceName);
-                if (childConcept == null) {
-                    throw new IllegalStateException("Couldn't find " + propertyName + " concept for " + getClass().getSimpleName() + " which should be mapped as " + conceptSourceName + ":" + mappingCode);
-                }
-                if (!primaryConcept.getSetMembers().contains(childConcept)) {
-                    throw new IllegalStateException("Concept mapped as " + conceptSourceName + ":" + mappingCode + " needs to be a set member of concept " + primaryConcept.getConceptId() + " which is mapped as " + conceptSourceName + ":" + primaryConceptCode);
+            answersByCode.put(entry.getKey(), answer);
+        }
+
+        Concept diagnosisSet = reload(conceptService, diagnosisSetConcept);
+        Concept codedDiagnosis = reload(conceptService, codedDiagnosisConcept);
+        Concept nonCodedDiagnosis = reload(conceptService, nonCodedDiagnosisConcept);
+        Concept diagnosisOrder = reload(conceptService, diagnosisOrderConcept);
+        if (diagnosisSet == null || codedDiagnosis == null || nonCodedDiagnosis == null || diagnosisOrder == null) {
+            return null;
+        }
+
+        return new DiagnosisMetadata(diagnosisSet, codedDiagnosis, nonCodedDiagnosis, diagnosisOrder, emrConceptSource,
+                Collections.unmodifiableMap(answersByCode), codesByDiagnosisOrderAnswerId);
+    }
+
+    private Concept reload(ConceptService conceptService, Concept concept) {
+        return concept.getConceptId() == null ? null : conceptService.getConcept(concept.getConceptId());
+    }
+
+    private Concept getSetMemberByMapping(ConceptService conceptService, String sourceName, String propertyName, String mappingCode) {
+        Concept childConcept = conceptService.getConceptByMapping(mappingCode, sourceName);
+        if (childConcept == null) {
+            throw new IllegalStateException("Couldn't find " + propertyName + " concept for " + getClass().getSimpleName() + " which should be mapped as " + sourceName + ":" + mappingCode);
+        }
+        if (!diagnosisSetConcept.getSetMembers().contains(childConcept)) {
+            throw new IllegalStateException("Concept mapped as " + sourceName + ":" + mappingCode + " needs to be a set member of concept " + diagnosisSetConcept.getConceptId() + " which is mapped as " + sourceName + ":" + EmrConstants.CONCEPT_CODE_DIAGNOSIS_CONCEPT_SET);
+        }
+        return childConcept;
+    }
+
+    private static Map<String, Concept> mapAnswersByCode(Concept concept) {
+        Map<String, Concept> answersByCode = new HashMap<String, Concept>();
+        if (concept != null && concept.getAnswers() != null) {
+            for (ConceptAnswer conceptAnswer : concept.getAnswers()) {
+                Concept answerConcept = conceptAnswer.getAnswerConcept();
+                if (answerConcept != null) {
+                    for (ConceptMap conceptMap : answerConcept.getConceptMappings()) {
+                        ConceptReferenceTerm term = conceptMap.getConceptReferenceTerm();
+                        if (EmrConstants.EMR_CONCEPT_SOURCE_NAME.equals(term.getConceptSource().getName())
+                                && !answersByCode.containsKey(term.getCode())) {
+                            answersByCode.put(term.getCode(), answerConcept);
+                        }
+                    }
                 }
-                PropertyUtils.setProperty(this, propertyName, childConcept);
             }
-        } catch (Exception ex) {
-            if (ex instanceof RuntimeException) {
-                throw (RuntimeException) ex;
-            } else {
-                throw new IllegalStateException(ex);
+        }
+        return Collections.unmodifiableMap(answersByCode);
+    }
+
+    private static Map<Integer, String> mapCodesByAnswerId(Map<String, Concept> answersByCode) {
+        Map<Integer, String> codesByAnswerId = new HashMap<Integer, String>();
+        for (Map.Entry<String, Concept> entry : answersByCode.entrySet()) {
+            if (entry.getValue().getConceptId() != null && !codesByAnswerId.containsKey(entry.getValue().getConceptId())) {
+                codesByAnswerId.put(entry.getValue().getConceptId(), entry.getKey());
             }
         }
+        return Collections.unmodifiableMap(codesByAnswerId);
     }
 
     public Concept getDiagnosisSetConcept() {
@@ -96,30 +178,10 @@ public class DiagnosisMetadata {
         return diagnosisOrderConcept;
     }
 
-    public void setDiagnosisSetConcept(Concept diagnosisSetConcept) {
-        this.diagnosisSetConcept = diagnosisSetConcept;
-    }
-
-    public void setCodedDiagnosisConcept(Concept codedDiagnosisConcept) {
-        this.codedDiagnosisConcept = codedDiagnosisConcept;
-    }
-
-    public void setNonCodedDiagnosisConcept(Concept nonCodedDiagnosisConcept) {
-        this.nonCodedDiagnosisConcept = nonCodedDiagnosisConcept;
-    }
-
-    public void setDiagnosisOrderConcept(Concept diagnosisOrderConcept) {
-        this.diagnosisOrderConcept = diagnosisOrderConcept;
-    }
-
     public ConceptSource getEmrConceptSource() {
         return emrConceptSource;
     }
 
-    public void setEmrConceptSource(ConceptSource emrConceptSource) {
-        this.emrConceptSource = emrConceptSource;
-    }
-
     public Obs buildDiagnosisObsGroup(Diagnosis diagnosis) {
         Obs order = new Obs();
         order.setConcept(diagnosisOrderConcept);
@@ -148,25 +210,11 @@ public class DiagnosisMetadata {
     }
 
     private Concept findAnswer(Concept concept, String codeForAnswer) {
-        for (ConceptAnswer conceptAnswer : concept.getAnswers()) {
-            Concept answerConcept = conceptAnswer.getAnswerConcept();
-            if (answerConcept != null) {
-                if (hasConceptMapping(answerConcept, EmrConstants.EMR_CONCEPT_SOURCE_NAME, codeForAnswer)) {
-                    return answerConcept;
-                }
-            }
+        Concept answer = diagnosisOrderAnswersByCode.get(codeForAnswer);
+        if (answer == null) {
+            throw new IllegalStateException("Cannot find answer mapped with " + EmrConstants.EMR_CONCEPT_SOURCE_NAME + ":" + codeForAnswer + " in the concept " + concept.getName());
         }
-        throw new IllegalStateException("Cannot find answer mapped with " + EmrConstants.EMR_CONCEPT_SOURCE_NAME + ":" + codeForAnswer + " in the concept " + concept.getName());
-    }
-
-    private boolean hasConceptMapping(Concept concept, String sourceName, String codeToLookFor) {
-        for (ConceptMap conceptMap : concept.getConceptMappings()) {
-            ConceptReferenceTerm conceptReferenceTerm = conceptMap.getConceptReferenceTerm();
-            if (sourceName.equals(conceptReferenceTerm.getConceptSource().getName()) && codeToLookFor.equals(conceptReferenceTerm.getCode())) {
-                return true;
-            }
-        }
-        return false;
+        return answer;
     }
 
     public boolean isDiagnosis(Obs obsGroup) {
@@ -218,6 +266,11 @@ public class DiagnosisMetadata {
     }
 
     private String findMapping(Concept concept) {
+        String code = codesByDiagnosisOrderAnswerId.get(concept.getConceptId());
+        if (code != null) {
+            return code;
+        }
+        // not one of the current answers (ie, recorded before the answers were changed), so we have to look
         for (ConceptMap conceptMap : concept.getConceptMappings()) {
             ConceptReferenceTerm conceptReferenceTerm = conceptMap.getConceptReferenceTerm();
             if (conceptReferenceTerm.getConceptSource().equals(emrConceptSource)) {
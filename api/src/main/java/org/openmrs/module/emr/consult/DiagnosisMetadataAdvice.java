@@ -0,0 +1,69 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.consult;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.emr.EmrProperties;
+import org.springframework.aop.AfterReturningAdvice;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * Discards the cached diagnosis metadata whenever a concept (or its mappings, answers or set members, which are all
+ * saved through the ConceptService) changes
+ */
+public class DiagnosisMetadataAdvice implements AfterReturningAdvice {
+
+    private EmrProperties emrProperties;
+
+    @Override
+    public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+
+        if (!isChange(method)) {
+            return;
+        }
+
+        final EmrProperties emrProperties = getEmrProperties();
+        emrProperties.invalidateDiagnosisMetadata();
+
+        // until the change commits, another thread may look up and cache the metadata as it was before
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    emrProperties.invalidateDiagnosisMetadata();
+                }
+            });
+        }
+    }
+
+    private boolean isChange(Method method) {
+        String name = method.getName();
+        return name.startsWith("save") || name.startsWith("purge") || name.startsWith("retire")
+                || name.startsWith("unretire");
+    }
+
+    protected EmrProperties getEmrProperties() {
+        if (emrProperties == null) {
+            List<EmrProperties> candidates = Context.getRegisteredComponents(EmrProperties.class);
+            emrProperties = candidates.get(0);
+        }
+        return emrProperties;
+    }
+
+}
@@ -0,0 +1,480 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.consult;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory index of the names (in each locale) and codes of the concepts of the diagnosis concept class, so that
+ * the diagnosis autocomplete can be answered without querying concept names with a '%word%' match for each word
+ *
+ * For each locale, we keep a posting list of the names that contain each word, and a sorted map from every suffix of
+ * every word to the words that end with it, so that the words containing a query word anywhere (which is how the
+ * database search matches) are found with a single range lookup, as if it were a prefix trie over the suffixes.
+ *
+ * The index is built in the background at startup (see EmrService#rebuildDiagnosisSearchIndex); until then, callers
+ * should fall back to querying the database (see #covers). After that, it is maintained incrementally: whenever a
+ * concept or reference term is saved (see DiagnosisSearchIndexAdvice) the affected concepts are recorded as changed,
+ * and their entries are refreshed the next time the index is searched.
+ */
+public class DiagnosisSearchIndex {
+
+    private static final double CODE_MATCH_SCORE = 10000d;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<Integer, IndexedDiagnosis> diagnoses = new HashMap<Integer, IndexedDiagnosis>();
+
+    private final Map<Locale, LocaleIndex> locales = new HashMap<Locale, LocaleIndex>();
+
+    private final Map<String, Set<IndexedDiagnosis>> diagnosesByCode = new HashMap<String, Set<IndexedDiagnosis>>();
+
+    private final Set<Integer> changedConceptIds = new LinkedHashSet<Integer>();
+
+    private volatile Integer conceptClassId;
+
+    /**
+     * @param conceptClassId
+     * @return true once the index has been built for the specified concept class, and can be used in place of
+     * querying the database
+     */
+    public boolean covers(Integer conceptClassId) {
+        return conceptClassId != null && conceptClassId.equals(this.conceptClassId);
+    }
+
+    /**
+     * @return the id of the concept class that the index was built for, or null if it hasn't been built
+     */
+    public Integer getConceptClassId() {
+        return conceptClassId;
+    }
+
+    /**
+     * Replaces the contents of the index; any changes recorded in the meantime are kept, and will be applied the next
+     * time the index is searched
+     *
+     * @param conceptClassId the concept class that the diagnoses belong to
+     * @param indexedDiagnoses
+     */
+    public void rebuild(Integer conceptClassId, Collection<IndexedDiagnosis> indexedDiagnoses) {
+        lock.writeLock().lock();
+        try {
+            diagnoses.clear();
+            locales.clear();
+            diagnosesByCode.clear();
+            for (IndexedDiagnosis indexedDiagnosis : indexedDiagnoses) {
+                add(indexedDiagnosis);
+            }
+            this.conceptClassId = conceptClassId;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Empties the index, so that searches go back to querying the database until it is rebuilt
+     */
+    public void clear() {
+        rebuild(null, Collections.<IndexedDiagnosis>emptyList());
+        takeChangedConceptIds();
+    }
+
+    /**
+     * Records that the concept with the specified id has changed; if called within a transaction, the change is only
+     * recorded once (and if) the transaction commits, so that we never refresh the index before the change can be seen
+     *
+     * @param conceptId
+     */
+    public void recordChange(final Integer conceptId) {
+
+        if (conceptId == null) {
+            return;
+        }
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    append(conceptId);
+                }
+            });
+        }
+        else {
+            append(conceptId);
+        }
+    }
+
+    /**
+     * Records that the reference term with the specified id has changed, which changes the codes of every indexed
+     * concept that is mapped to it
+     *
+     * @param conceptReferenceTermId
+     */
+    public void recordTermChange(Integer conceptReferenceTermId) {
+
+        if (conceptReferenceTermId == null) {
+            return;
+        }
+
+        List<Integer> conceptIds = new ArrayList<Integer>();
+        lock.readLock().lock();
+        try {
+            for (IndexedDiagnosis indexedDiagnosis : diagnoses.values()) {
+                if (indexedDiagnosis.refersTo(conceptReferenceTermId)) {
+                    conceptIds.add(indexedDiagnosis.getConceptId());
+                }
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+
+        for (Integer conceptId : conceptIds) {
+            recordChange(conceptId);
+        }
+    }
+
+    /**
+     * @return the ids of the concepts that have changed since this was last called
+     */
+    public synchronized Set<Integer> takeChangedConceptIds() {
+        Set<Integer> taken = new LinkedHashSet<Integer>(changedConceptIds);
+        changedConceptIds.clear();
+        return taken;
+    }
+
+    /**
+     * Refreshes the entries for the specified (changed) concepts
+     *
+     * @param conceptIds the concepts that changed
+     * @param indexedDiagnoses those of the changed concepts that are still non-retired diagnoses
+     */
+    public void update(Collection<Integer> conceptIds, Collection<IndexedDiagnosis> indexedDiagnoses) {
+        lock.writeLock().lock();
+        try {
+            for (Integer conceptId : conceptIds) {
+                remove(conceptId);
+            }
+            for (IndexedDiagnosis indexedDiagnosis : indexedDiagnoses) {
+                remove(indexedDiagnosis.getConceptId());
+                add(indexedDiagnosis);
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the names in the specified locale that contain all of the query words, and (if any sources are specified)
+     * the codes in those sources that exactly match the query, scored as the database search scores them
+     *
+     * @param query
+     * @param uniqueWords the words of the query (see ConceptWord#getUniqueWords)
+     * @param locale
+     * @param conceptSourceIds if specified, look for exact matches on codes in these sources
+     * @param limit return up to this many matches
+     * @return the best matches, best first
+     */
+    public List<Match> search(String query, List<String> uniqueWords, Locale locale, Collection<Integer> conceptSourceIds, int limit) {
+
+        List<Match> matches = new ArrayList<Match>();
+
+        lock.readLock().lock();
+        try {
+            LocaleIndex localeIndex = locales.get(locale);
+            if (localeIndex != null) {
+                for (IndexedDiagnosis.Name name : localeIndex.find(uniqueWords)) {
+                    matches.add(new Match(name.getConceptId(), name.getConceptNameId(), calculateMatchScore(query, name)));
+                }
+            }
+
+            Set<IndexedDiagnosis> codeMatches = conceptSourceIds == null ? null : diagnosesByCode.get(normalizeCode(query));
+            if (codeMatches != null) {
+                for (IndexedDiagnosis indexedDiagnosis : codeMatches) {
+                    for (IndexedDiagnosis.Code code : indexedDiagnosis.getCodes()) {
+                        if (code.getCode().equalsIgnoreCase(query) && conceptSourceIds.contains(code.getConceptSourceId())) {
+                            matches.add(new Match(indexedDiagnosis.getConceptId(), null, CODE_MATCH_SCORE));
+                        }
+                    }
+                }
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+
+        Collections.sort(matches, new Comparator<Match>() {
+            @Override
+            public int compare(Match left, Match right) {
+                return Double.compare(right.getScore(), left.getScore());
+            }
+        });
+
+        if (matches.size() > limit) {
+            matches = matches.subList(0, limit);
+        }
+        return matches;
+    }
+
+    /**
+     * @return the number of concepts in the index (for logging)
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return diagnoses.size();
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // same as HibernateEmrDAO#calculateMatchScore
+    private double calculateMatchScore(String query, IndexedDiagnosis.Name name) {
+        double score = 0d;
+        if (query.equals(name.getName())) {
+            score += 1000d;
+        }
+        if (name.isLocalePreferred()) {
+            score += 500d;
+        }
+        score -= name.getName().length();
+        return score;
+    }
+
+    private synchronized void append(Integer conceptId) {
+        changedConceptIds.add(conceptId);
+    }
+
+    // must hold the write lock
+    private void add(IndexedDiagnosis indexedDiagnosis) {
+        diagnoses.put(indexedDiagnosis.getConceptId(), indexedDiagnosis);
+
+        for (IndexedDiagnosis.Name name : indexedDiagnosis.getNames()) {
+            LocaleIndex localeIndex = locales.get(name.getLocale());
+            if (localeIndex == null) {
+                localeIndex = new LocaleIndex(name.getLocale());
+                locales.put(name.getLocale(), localeIndex);
+            }
+            localeIndex.add(name);
+        }
+
+        for (IndexedDiagnosis.Code code : indexedDiagnosis.getCodes()) {
+            String key = normalizeCode(code.getCode());
+            Set<IndexedDiagnosis> withCode = diagnosesByCode.get(key);
+            if (withCode == null) {
+                withCode = new HashSet<IndexedDiagnosis>();
+                diagnosesByCode.put(key, withCode);
+            }
+            withCode.add(indexedDiagnosis);
+        }
+    }
+
+    // must hold the write lock
+    private void remove(Integer conceptId) {
+        IndexedDiagnosis indexedDiagnosis = diagnoses.remove(conceptId);
+        if (indexedDiagnosis == null) {
+            return;
+        }
+
+        for (IndexedDiagnosis.Name name : indexedDiagnosis.getNames()) {
+            LocaleIndex localeIndex = locales.get(name.getLocale());
+            if (localeIndex != null) {
+                localeIndex.remove(name);
+            }
+        }
+
+        for (IndexedDiagnosis.Code code : indexedDiagnosis.getCodes()) {
+            String key = normalizeCode(code.getCode());
+            Set<IndexedDiagnosis> withCode = diagnosesByCode.get(key);
+            if (withCode != null) {
+                withCode.remove(indexedDiagnosis);
+                if (withCode.isEmpty()) {
+                    diagnosesByCode.remove(key);
+                }
+            }
+        }
+    }
+
+    private static String normalizeCode(String code) {
+        return code.toUpperCase(Locale.ENGLISH);
+    }
+
+    /**
+     * A match for a search: either on one of the names of a concept, or (if conceptNameId is null) on one of its codes
+     */
+    public static class Match {
+
+        private final Integer conceptId;
+
+        private final Integer conceptNameId;
+
+        private final double score;
+
+        public Match(Integer conceptId, Integer conceptNameId, double score) {
+            this.conceptId = conceptId;
+            this.conceptNameId = conceptNameId;
+            this.score = score;
+        }
+
+        public Integer getConceptId() {
+            return conceptId;
+        }
+
+        public Integer getConceptNameId() {
+            return conceptNameId;
+        }
+
+        public double getScore() {
+            return score;
+        }
+    }
+
+    /**
+     * The names in a single locale, by the words they contain
+     */
+    private static class LocaleIndex {
+
+        private final Locale locale;
+
+        private final Map<String, Set<IndexedDiagnosis.Name>> namesByWord = new HashMap<String, Set<IndexedDiagnosis.Name>>();
+
+        private final TreeMap<String, Set<String>> wordsBySuffix = new TreeMap<String, Set<String>>();
+
+        private LocaleIndex(Locale locale) {
+            this.locale = locale;
+        }
+
+        public void add(IndexedDiagnosis.Name name) {
+            for (String word : getWords(name)) {
+                Set<IndexedDiagnosis.Name> names = namesByWord.get(word);
+                if (names == null) {
+                    names = new HashSet<IndexedDiagnosis.Name>();
+                    namesByWord.put(word, names);
+                    for (int i = 0; i < word.length(); ++i) {
+                        String suffix = word.substring(i);
+                        Set<String> words = wordsBySuffix.get(suffix);
+                        if (words == null) {
+                            words = new HashSet<String>();
+                            wordsBySuffix.put(suffix, words);
+                        }
+                        words.add(word);
+                    }
+                }
+                names.add(name);
+            }
+        }
+
+        public void remove(IndexedDiagnosis.Name name) {
+            for (String word : getWords(name)) {
+                Set<IndexedDiagnosis.Name> names = namesByWord.get(word);
+                if (names == null) {
+                    continue;
+                }
+                names.remove(name);
+                if (names.isEmpty()) {
+                    namesByWord.remove(word);
+                    for (int i = 0; i < word.length(); ++i) {
+                        String suffix = word.substring(i);
+                        Set<String> words = wordsBySuffix.get(suffix);
+                        if (words != null) {
+                            words.remove(word);
+                            if (words.isEmpty()) {
+                                wordsBySuffix.remove(suffix);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param uniqueWords
+         * @return the names that contain every one of the specified words (anywhere, ignoring case)
+         */
+        public Set<IndexedDiagnosis.Name> find(List<String> uniqueWords) {
+
+            Set<IndexedDiagnosis.Name> found = new LinkedHashSet<IndexedDiagnosis.Name>();
+            if (uniqueWords.isEmpty()) {
+                return found;
+            }
+
+            // we look up the longest word, which is usually the most selective, and check the others against each name
+            List<String> words = new ArrayList<String>();
+            for (String word : uniqueWords) {
+                words.add(word.toUpperCase(locale));
+            }
+            Collections.sort(words, new Comparator<String>() {
+                @Override
+                public int compare(String left, String right) {
+                    return right.length() - left.length();
+                }
+            });
+            String longest = words.get(0);
+            List<String> others = words.subList(1, words.size());
+
+            for (Set<String> containingWords : wordsBySuffix.subMap(longest, longest + Character.MAX_VALUE).values()) {
+                for (String containingWord : containingWords) {
+                    for (IndexedDiagnosis.Name name : namesByWord.get(containingWord)) {
+                        if (containsAll(name.getSearchableName(), others)) {
+                            found.add(name);
+                        }
+                    }
+                }
+            }
+
+            return found;
+        }
+
+        private boolean containsAll(String searchableName, List<String> words) {
+            for (String word : words) {
+                if (!searchableName.contains(word)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // query words never contain whitespace, so any of them that appears in a name appears within one of these
+        private Set<String> getWords(IndexedDiagnosis.Name name) {
+            Set<String> words = new HashSet<String>();
+            for (String word : name.getSearchableName().split("\\s+")) {
+                if (word.length() > 0) {
+                    words.add(word);
+                }
+            }
+            return words;
+        }
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.consult;
+
+import org.openmrs.Concept;
+import org.openmrs.ConceptReferenceTerm;
+import org.openmrs.api.context.Context;
+import org.springframework.aop.AfterReturningAdvice;
+
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * Keeps the diagnosis search index up to date: whenever a concept (along with its names and mappings) or a reference
+ * term is saved, retired, unretired or purged through the ConceptService, the affected concepts are recorded as changed
+ * in the index
+ *
+ * @see DiagnosisSearchIndex
+ */
+public class DiagnosisSearchIndexAdvice implements AfterReturningAdvice {
+
+    private DiagnosisSearchIndex diagnosisSearchIndex;
+
+    @Override
+    public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+
+        if (!isChange(method) || args == null || args.length == 0) {
+            return;
+        }
+
+        if (args[0] instanceof Concept) {
+            getDiagnosisSearchIndex().recordChange(((Concept) args[0]).getConceptId());
+        }
+        else if (args[0] instanceof ConceptReferenceTerm) {
+            getDiagnosisSearchIndex().recordTermChange(((ConceptReferenceTerm) args[0]).getConceptReferenceTermId());
+        }
+    }
+
+    private boolean isChange(Method method) {
+        String name = method.getName();
+        return name.startsWith("save") || name.startsWith("purge") || name.startsWith("retire")
+                || name.startsWith("unretire");
+    }
+
+    protected DiagnosisSearchIndex getDiagnosisSearchIndex() {
+        if (diagnosisSearchIndex == null) {
+            List<DiagnosisSearchIndex> indexes = Context.getRegisteredComponents(DiagnosisSearchIndex.class);
+            diagnosisSearchIndex = indexes.get(0);
+        }
+        return diagnosisSearchIndex;
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.consult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Just enough about a (non-retired) diagnosis concept to search for it by name or by code, without loading the concept
+ * (see DiagnosisSearchIndex)
+ */
+public class IndexedDiagnosis {
+
+    private Integer conceptId;
+
+    private List<Name> names = new ArrayList<Name>();
+
+    private List<Code> codes = new ArrayList<Code>();
+
+    public IndexedDiagnosis(Integer conceptId) {
+        this.conceptId = conceptId;
+    }
+
+    /**
+     * Takes the specified (non-voided) name of this concept into account
+     *
+     * @param conceptNameId
+     * @param locale
+     * @param name
+     * @param localePreferred
+     */
+    public void addName(Integer conceptNameId, Locale locale, String name, boolean localePreferred) {
+        names.add(new Name(conceptId, conceptNameId, locale, name, localePreferred));
+    }
+
+    /**
+     * Takes the specified mapping of this concept (to a non-retired reference term) into account
+     *
+     * @param conceptReferenceTermId
+     * @param conceptSourceId
+     * @param code
+     */
+    public void addCode(Integer conceptReferenceTermId, Integer conceptSourceId, String code) {
+        codes.add(new Code(conceptReferenceTermId, conceptSourceId, code));
+    }
+
+    public Integer getConceptId() {
+        return conceptId;
+    }
+
+    public List<Name> getNames() {
+        return Collections.unmodifiableList(names);
+    }
+
+    public List<Code> getCodes() {
+        return Collections.unmodifiableList(codes);
+    }
+
+    /**
+     * @param conceptReferenceTermId
+     * @return true if this concept is mapped to the specified reference term
+     */
+    public boolean refersTo(Integer conceptReferenceTermId) {
+        for (Code code : codes) {
+            if (conceptReferenceTermId.equals(code.getConceptReferenceTermId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static class Name {
+
+        private final Integer conceptId;
+
+        private final Integer conceptNameId;
+
+        private final Locale locale;
+
+        private final String name;
+
+        private final String searchableName;
+
+        private final boolean localePreferred;
+
+        private Name(Integer conceptId, Integer conceptNameId, Locale locale, String name, boolean localePreferred) {
+            this.conceptId = conceptId;
+            this.conceptNameId = conceptNameId;
+            this.locale = locale;
+            this.name = name;
+            this.searchableName = name.toUpperCase(locale);
+            this.localePreferred = localePreferred;
+        }
+
+        public Integer getConceptId() {
+            return conceptId;
+        }
+
+        public Integer getConceptNameId() {
+            return conceptNameId;
+        }
+
+        public Locale getLocale() {
+            return locale;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the name in upper case, which is how query words are compared against it
+         */
+        public String getSearchableName() {
+            return searchableName;
+        }
+
+        public boolean isLocalePreferred() {
+            return localePreferred;
+        }
+    }
+
+    public static class Code {
+
+        private final Integer conceptReferenceTermId;
+
+        private final Integer conceptSourceId;
+
+        private final String code;
+
+        private Code(Integer conceptReferenceTermId, Integer conceptSourceId, String code) {
+            this.conceptReferenceTermId = conceptReferenceTermId;
+            this.conceptSourceId = conceptSourceId;
+            this.code = code;
+        }
+
+        public Integer getConceptReferenceTermId() {
+            return conceptReferenceTermId;
+        }
+
+        public Integer getConceptSourceId() {
+            return conceptSourceId;
+        }
+
+        public String getCode() {
+            return code;
+        }
+    }
+
+}
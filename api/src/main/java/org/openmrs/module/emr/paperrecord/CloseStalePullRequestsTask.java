@@ -2,6 +2,8 @@ package org.openmrs.module.emr.paperrecord;
 
 import org.apache.commons.lang.time.DateUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
 import org.openmrs.scheduler.tasks.AbstractTask;
 
@@ -20,6 +22,8 @@ public class CloseStalePullRequestsTask extends AbstractTask {
 
     private static Integer DEFAULT_PULL_RECORD_EXPIRE_HOURS = 12;
 
+    private final Log log = LogFactory.getLog(getClass());
+
     @Override
     public void execute() {
 
@@ -32,6 +36,7 @@ public class CloseStalePullRequestsTask extends AbstractTask {
 
         Date expireDate = DateUtils.addHours(new Date(), -pullRecordExpireHours);
 
-        Context.getService(PaperRecordService.class).expirePendingPullRequests(expireDate);
+        int expired = Context.getService(PaperRecordService.class).expirePendingPullRequests(expireDate);
+        log.info("Closed " + expired + " pull requests created before " + expireDate);
     }
 }
@@ -0,0 +1,139 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.paperrecord;
+
+import org.apache.commons.lang.StringUtils;
+import org.openmrs.PersonAddress;
+import org.openmrs.api.APIException;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An address layout template that has been compiled into the PersonAddress getters needed to print each line, so
+ * that we only have to walk the template and look up the getters once, rather than once per label
+ *
+ * Produces the same lines as walking the template and calling GeneralUtils.getPersonAddressProperty for each token:
+ * the non-blank properties on each line, separated by ", ", with blank lines skipped.
+ */
+public class CompiledAddressLayout {
+
+    private final List<List<Accessor>> lines;
+
+    private CompiledAddressLayout(List<List<Accessor>> lines) {
+        this.lines = lines;
+    }
+
+    /**
+     * @param layoutLines the lines of the layout template
+     * @param layoutToken the value of "isToken" that identifies the entries of a line that are address properties
+     * @return
+     */
+    public static CompiledAddressLayout compile(List<List<Map<String, String>>> layoutLines, String layoutToken) {
+
+        List<List<Accessor>> lines = new ArrayList<List<Accessor>>();
+
+        for (List<Map<String, String>> layoutLine : layoutLines) {
+            List<Accessor> line = new ArrayList<Accessor>();
+            for (Map<String, String> token : layoutLine) {
+                if (token.get("isToken").equals(layoutToken)) {
+                    line.add(new Accessor(token.get("codeName")));
+                }
+            }
+            lines.add(line);
+        }
+
+        return new CompiledAddressLayout(lines);
+    }
+
+    /**
+     * Appends a ZPL field for each non-blank line of the address, starting at the specified vertical position and
+     * moving down 50 dots per line
+     *
+     * @param address
+     * @param verticalPosition
+     * @param data
+     */
+    public void appendZpl(PersonAddress address, int verticalPosition, StringBuilder data) {
+
+        for (List<Accessor> line : lines) {
+
+            int start = data.length();
+            data.append("^FO140,").append(verticalPosition).append("^ATN^FD");
+            int lineStart = data.length();
+
+            for (Accessor accessor : line) {
+                String property = accessor.get(address);
+                if (!StringUtils.isBlank(property)) {
+                    if (data.length() > lineStart) {
+                        data.append(", ");
+                    }
+                    data.append(property);
+                }
+            }
+
+            if (data.length() > lineStart) {
+                data.append("^FS");
+                verticalPosition = verticalPosition + 50;
+            }
+            else {
+                // nothing to print on this line
+                data.setLength(start);
+            }
+        }
+    }
+
+    /**
+     * Gets a single property off of a person address, via a getter that is looked up once
+     */
+    private static class Accessor {
+
+        private final String property;
+
+        private final Method getter;
+
+        private Accessor(String property) {
+            this.property = property;
+            this.getter = getGetter(property);
+        }
+
+        public String get(PersonAddress address) {
+
+            // we fail when the property is used rather than when the layout is compiled, as we always have
+            if (getter == null) {
+                throw new APIException("Invalid property name " + property + " passed to getPersonAddressProperty");
+            }
+
+            try {
+                return (String) getter.invoke(address);
+            }
+            catch (Exception e) {
+                throw new APIException("Invalid property name " + property + " passed to getPersonAddressProperty");
+            }
+        }
+
+        private static Method getGetter(String property) {
+            try {
+                return PersonAddress.class.getMethod("get" + property.substring(0, 1).toUpperCase() + property.substring(1));
+            }
+            catch (Exception e) {
+                return null;
+            }
+        }
+    }
+
+}
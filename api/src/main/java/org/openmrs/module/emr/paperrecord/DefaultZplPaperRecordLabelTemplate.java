@@ -1,26 +1,31 @@
 package org.openmrs.module.emr.paperrecord;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.time.FastDateFormat;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.Patient;
 import org.openmrs.PatientIdentifier;
 import org.openmrs.api.context.Context;
+import org.openmrs.layout.web.LayoutTemplate;
 import org.openmrs.layout.web.address.AddressSupport;
 import org.openmrs.messagesource.MessageSourceService;
 import org.openmrs.module.emr.EmrProperties;
-import org.openmrs.module.emr.utils.GeneralUtils;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 
 public class DefaultZplPaperRecordLabelTemplate implements PaperRecordLabelTemplate {
 
+    private static final String BIRTHDATE_FORMAT = "dd/MMM/yyyy";
+
+    // big enough for a typical label, so that we don't have to grow the buffer as we go
+    private static final int INITIAL_BUFFER_SIZE = 512;
+
     private final Log log = LogFactory.getLog(getClass());
 
+    private volatile CompiledAddressLayoutEntry compiledAddressLayout;
+
     private MessageSourceService messageSourceService;
 
     private EmrProperties emrProperties;
@@ -46,11 +51,9 @@ public class DefaultZplPaperRecordLabelTemplate implements PaperRecordLabelTempl
             throw new IllegalArgumentException("No primary identifier for this patient");
         }
 
-        DateFormat df = new SimpleDateFormat("dd/MMM/yyyy", Context.getLocale());
-
         // TODO: potentially pull this formatting code into a configurable template?
         // build the command to send to the printer -- written in ZPL
-        StringBuilder data = new StringBuilder();
+        StringBuilder data = new StringBuilder(INITIAL_BUFFER_SIZE);
         data.append("^XA");
         data.append("^CI28");   // specify Unicode encoding
 
@@ -58,18 +61,24 @@ public class DefaultZplPaperRecordLabelTemplate implements PaperRecordLabelTempl
 
         /* Name (Only print first and last name) */
         if (patient.getPersonName() != null) {
-            data.append("^FO140,40^AVN^FD" + (patient.getPersonName().getGivenName() != null ? patient.getPersonName().getGivenName() : "") + " "
-                    + (patient.getPersonName().getFamilyName() != null ? patient.getPersonName().getFamilyName() : "") + "^FS");
+            data.append("^FO140,40^AVN^FD")
+                    .append(patient.getPersonName().getGivenName() != null ? patient.getPersonName().getGivenName() : "")
+                    .append(" ")
+                    .append(patient.getPersonName().getFamilyName() != null ? patient.getPersonName().getFamilyName() : "")
+                    .append("^FS");
         }
 
         /* Primary identifier */
-        data.append("^FO140,120^AUN^FD" +  primaryIdentifier.getIdentifier() + "^FS");
+        data.append("^FO140,120^AUN^FD").append(primaryIdentifier.getIdentifier()).append("^FS");
 
 
         /* Birthdate & Gender */
         data.append("^FO140,190^ATN^FD");
         if (patient.getBirthdate() != null) {
-           data.append(df.format(patient.getBirthdate()) + (patient.getBirthdateEstimated() ? " (*)" : "") + ", ");
+            // FastDateFormat caches its instances and is thread-safe, unlike SimpleDateFormat
+            data.append(FastDateFormat.getInstance(BIRTHDATE_FORMAT, Context.getLocale()).format(patient.getBirthdate()))
+                    .append(patient.getBirthdateEstimated() ? " (*)" : "")
+                    .append(", ");
         }
         if (patient.getGender() != null) {
             data.append(messageSourceService.getMessage("emr.gender." + patient.getGender()));
@@ -79,41 +88,10 @@ public class DefaultZplPaperRecordLabelTemplate implements PaperRecordLabelTempl
         /* Address (using address template) */
         if (patient.getPersonAddress() != null) {
 
-            int verticalPosition = 250;
-
-            // print out the address using the layout format
-            // first iterate through all the lines in the format
-            if (AddressSupport.getInstance().getDefaultLayoutTemplate() != null && AddressSupport.getInstance().getDefaultLayoutTemplate().getLines() != null) {
-
-                List<List<Map<String,String>>> lines = AddressSupport.getInstance().getDefaultLayoutTemplate().getLines();
-                ListIterator<List<Map<String,String>>> iter = lines.listIterator();
-
-                while(iter.hasNext()){
-                    List<Map<String,String>> line = iter.next();
-                    // now iterate through all the tokens in the line and build the string to print
-                    StringBuffer output = new StringBuffer();
-                    for (Map<String,String> token : line) {
-                        // find all the tokens on this line, and then add them to that output line
-                        if(token.get("isToken").equals(AddressSupport.getInstance().getDefaultLayoutTemplate().getLayoutToken())) {
-
-                            String property = GeneralUtils.getPersonAddressProperty(patient.getPersonAddress(), token.get("codeName"));
-
-                            if (!StringUtils.isBlank(property)) {
-                                output.append(property + ", ");
-                            }
-                        }
-                    }
-
-                    if (output.length() > 2) {
-                        // drop the trailing comma and space from the last token on the line
-                        output.replace(output.length() - 2, output.length(), "");
-                    }
-
-                    if (!StringUtils.isBlank(output.toString())) {
-                        data.append("^FO140," + verticalPosition + "^ATN^FD" + output.toString() + "^FS");
-                        verticalPosition = verticalPosition + 50;
-                    }
-                }
+            CompiledAddressLayout addressLayout = getAddressLayout();
+
+            if (addressLayout != null) {
+                addressLayout.appendZpl(patient.getPersonAddress(), 250, data);
             }
             else {
                 log.error("Address template not properly configured");
@@ -124,12 +102,12 @@ public class DefaultZplPaperRecordLabelTemplate implements PaperRecordLabelTempl
 
         /* Print the patient's paper record identifier, if it exists */
         if (StringUtils.isNotBlank(paperRecordIdentifier)) {
-            data.append("^FO680,40^FB520,1,0,R,0^AUN^FD" + messageSourceService.getMessage("emr.archivesRoom.recordNumber.label")
-                    + " " + paperRecordIdentifier + "^FS");
+            data.append("^FO680,40^FB520,1,0,R,0^AUN^FD").append(messageSourceService.getMessage("emr.archivesRoom.recordNumber.label"))
+                    .append(" ").append(paperRecordIdentifier).append("^FS");
         }
 
         /* Print the bar code, based on the primary identifier */
-        data.append("^FO780,100^ATN^BY4^BCN,150,N^FD" + primaryIdentifier.getIdentifier() + "^FS");    // print barcode & identifier
+        data.append("^FO780,100^ATN^BY4^BCN,150,N^FD").append(primaryIdentifier.getIdentifier()).append("^FS");    // print barcode & identifier
 
         /* Print command */
         data.append("^XZ");
@@ -137,8 +115,58 @@ public class DefaultZplPaperRecordLabelTemplate implements PaperRecordLabelTempl
         return data.toString();
     }
 
+    /**
+     * Gets the default address layout, compiled; we only recompile when AddressSupport's default layout template has
+     * changed (AddressSupport replaces the template when the address template global property is changed)
+     *
+     * @return the compiled layout, or null if the address template isn't configured
+     */
+    protected CompiledAddressLayout getAddressLayout() {
+
+        LayoutTemplate layoutTemplate = AddressSupport.getInstance().getDefaultLayoutTemplate();
+
+        if (layoutTemplate == null || layoutTemplate.getLines() == null) {
+            return null;
+        }
+
+        CompiledAddressLayoutEntry entry = compiledAddressLayout;
+
+        if (entry == null || !entry.isCompiledFrom(layoutTemplate)) {
+            entry = new CompiledAddressLayoutEntry(layoutTemplate);
+            compiledAddressLayout = entry;
+        }
+
+        return entry.addressLayout;
+    }
+
     @Override
     public String getEncoding() {
         return "UTF-8";
     }
+
+    /**
+     * A compiled address layout, along with what it was compiled from
+     */
+    private static class CompiledAddressLayoutEntry {
+
+        private final LayoutTemplate layoutTemplate;
+
+        private final List<List<Map<String, String>>> lines;
+
+        private final String layoutToken;
+
+        private final CompiledAddressLayout addressLayout;
+
+        private CompiledAddressLayoutEntry(LayoutTemplate layoutTemplate) {
+            this.layoutTemplate = layoutTemplate;
+            this.lines = layoutTemplate.getLines();
+            this.layoutToken = layoutTemplate.getLayoutToken();
+            this.addressLayout = CompiledAddressLayout.compile(lines, layoutToken);
+        }
+
+        private boolean isCompiledFrom(LayoutTemplate layoutTemplate) {
+            return this.layoutTemplate == layoutTemplate && this.lines == layoutTemplate.getLines()
+                    && StringUtils.equals(this.layoutToken, layoutTemplate.getLayoutToken());
+        }
+    }
 }
@@ -106,6 +106,9 @@ public class PaperRecordRequest extends BaseOpenmrsObject {
 
     private Date dateStatusChanged;
 
+    // used by hibernate for optimistic locking, so that two concurrent assignments of the same request can't both succeed
+    private Integer version;
+
     // TODO: we could add a type here at some point if need be
 
     public PaperRecordRequest() {
@@ -203,4 +206,12 @@ public class PaperRecordRequest extends BaseOpenmrsObject {
     public void setDateStatusChanged(Date dateStatusChanged) {
         this.dateStatusChanged = dateStatusChanged;
     }
+
+    public Integer getVersion() {
+        return version;
+    }
+
+    public void setVersion(Integer version) {
+        this.version = version;
+    }
 }
@@ -0,0 +1,190 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.paperrecord;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Set;
+
+/**
+ * Keeps an in-memory, sequence-numbered log of the paper record requests that have been created or modified, so that
+ * clients (ie, the archives room) can ask for just the requests that have changed since they last looked, instead of
+ * reloading every queue.
+ *
+ * The log only retains the most recent changes (see capacity); a client that asks for changes from before the oldest
+ * retained change (or that has never asked before) is told that the changes are incomplete and that it must reload
+ * everything.  Since the log lives in memory, sequence numbers are seeded from the clock when the log is created, so
+ * that a client that was connected before a server restart simply ends up reloading.
+ */
+public class PaperRecordRequestChangeLog {
+
+    private static final int DEFAULT_CAPACITY = 1000;
+
+    private final int capacity;
+
+    private final LinkedList<Change> changes = new LinkedList<Change>();
+
+    private long latestSequence;
+
+    public PaperRecordRequestChangeLog() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PaperRecordRequestChangeLog(int capacity) {
+        this.capacity = capacity;
+        this.latestSequence = System.currentTimeMillis();
+    }
+
+    /**
+     * Records that the specified request has changed; if called within a transaction, the change is only recorded
+     * once (and if) the transaction commits, so that clients never see a change that was rolled back
+     *
+     * @param request
+     */
+    public void recordChange(PaperRecordRequest request) {
+        if (request.getRequestId() != null) {
+            recordChanges(Collections.singletonList(request.getRequestId()));
+        }
+    }
+
+    /**
+     * Records that the requests with the specified ids have changed (ie, as the result of a bulk update); as with
+     * #recordChange, the changes are only recorded once (and if) the current transaction commits
+     *
+     * @param requestIds
+     */
+    public void recordChanges(final Collection<Integer> requestIds) {
+
+        if (requestIds.isEmpty()) {
+            return;
+        }
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    append(requestIds);
+                }
+            });
+        }
+        else {
+            append(requestIds);
+        }
+    }
+
+    public synchronized long getLatestSequence() {
+        return latestSequence;
+    }
+
+    /**
+     * Returns the ids of all the requests that have changed after the specified sequence number
+     *
+     * @param sequence the last sequence number the client has seen (may be null if the client has never asked)
+     * @return the changes; if the log can no longer account for all the changes since the specified sequence, the
+     *         result is marked as incomplete and contains no request ids
+     */
+    public synchronized PaperRecordRequestChanges getChangesSince(Long sequence) {
+
+        PaperRecordRequestChanges result = new PaperRecordRequestChanges(latestSequence);
+
+        if (!canReportChangesSince(sequence)) {
+            result.setComplete(false);
+            return result;
+        }
+
+        Set<Integer> requestIds = new LinkedHashSet<Integer>();
+        Iterator<Change> i = changes.descendingIterator();
+
+        while (i.hasNext()) {
+            Change change = i.next();
+            if (change.sequence <= sequence) {
+                break;
+            }
+            requestIds.add(change.requestId);
+        }
+
+        result.setComplete(true);
+        result.setRequestIds(requestIds);
+        return result;
+    }
+
+    /**
+     * Blocks until there is a change after the specified sequence number, or until the timeout expires; returns
+     * immediately if the client needs to reload everything anyway
+     *
+     * @param sequence the last sequence number the client has seen
+     * @param timeoutInMilliseconds
+     * @return true if there is something for the client to fetch
+     * @throws InterruptedException
+     */
+    public synchronized boolean waitForChangesSince(Long sequence, long timeoutInMilliseconds) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + timeoutInMilliseconds;
+
+        while (canReportChangesSince(sequence) && latestSequence == sequence) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+
+        return true;
+    }
+
+    private synchronized void append(Collection<Integer> requestIds) {
+
+        for (Integer requestId : requestIds) {
+            latestSequence++;
+            changes.addLast(new Change(latestSequence, requestId));
+        }
+
+        while (changes.size() > capacity) {
+            changes.removeFirst();
+        }
+
+        notifyAll();
+    }
+
+    private boolean canReportChangesSince(Long sequence) {
+
+        if (sequence == null || sequence > latestSequence) {
+            return false;
+        }
+
+        // we can only report all the changes if the change immediately after the requested sequence is still in the log
+        long oldestReportableSequence = changes.isEmpty() ? latestSequence : changes.getFirst().sequence - 1;
+        return sequence >= oldestReportableSequence;
+    }
+
+    private static class Change {
+
+        private final long sequence;
+
+        private final Integer requestId;
+
+        private Change(long sequence, Integer requestId) {
+            this.sequence = sequence;
+            this.requestId = requestId;
+        }
+    }
+
+}
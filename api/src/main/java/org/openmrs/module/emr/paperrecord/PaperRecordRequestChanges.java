@@ -0,0 +1,72 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.paperrecord;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The result of asking the paper record request change feed what has changed since a given sequence number
+ *
+ * If complete is false, the feed can no longer account for everything that has changed since the requested
+ * sequence number, and the client should reload all its queues and then continue from the returned sequence number.
+ *
+ * Note that the requests are returned in their current state; requests that have moved out of a pending state
+ * (ie, SENT, RETURNED, CANCELLED) are included so that the client knows to remove them from its queues.
+ */
+public class PaperRecordRequestChanges {
+
+    private long sequence;
+
+    private boolean complete;
+
+    private Set<Integer> requestIds = new LinkedHashSet<Integer>();
+
+    private List<PaperRecordRequest> requests = new ArrayList<PaperRecordRequest>();
+
+    public PaperRecordRequestChanges(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public void setComplete(boolean complete) {
+        this.complete = complete;
+    }
+
+    public Set<Integer> getRequestIds() {
+        return requestIds;
+    }
+
+    public void setRequestIds(Set<Integer> requestIds) {
+        this.requestIds = requestIds;
+    }
+
+    public List<PaperRecordRequest> getRequests() {
+        return requests;
+    }
+
+    public void setRequests(List<PaperRecordRequest> requests) {
+        this.requests = requests;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.paperrecord;
+
+import org.openmrs.OpenmrsObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks used to make sure that the same paper record request (or the same paper record) is never assigned by
+ * two threads at once, without forcing archivists working on unrelated requests (ie, different queues or different
+ * archives rooms) to wait on each other.
+ *
+ * Each request maps to two stripes: one for the request itself, and one for the patient's record at the record
+ * location (since we don't want to create two record numbers for the same patient at the same location).
+ * Stripes are always acquired in ascending order so that two threads locking overlapping sets of requests can't
+ * deadlock.
+ *
+ * These locks only protect a single server; the version column on emr_paper_record_request ensures that a
+ * concurrent assignment that slips past them still fails when the transaction is flushed.
+ */
+public class PaperRecordRequestLocks {
+
+    private static final int DEFAULT_NUMBER_OF_STRIPES = 64;
+
+    private final Lock[] stripes;
+
+    public PaperRecordRequestLocks() {
+        this(DEFAULT_NUMBER_OF_STRIPES);
+    }
+
+    public PaperRecordRequestLocks(int numberOfStripes) {
+        stripes = new Lock[numberOfStripes];
+        for (int i = 0; i < numberOfStripes; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Acquires all the stripes associated with the specified requests, blocking until they are available
+     *
+     * @param requests
+     * @return the locks that were acquired, which must be passed to #unlock once the caller is done
+     */
+    public List<Lock> lock(List<PaperRecordRequest> requests) {
+
+        List<Lock> acquired = new ArrayList<Lock>();
+
+        for (Integer stripe : getStripesFor(requests)) {
+            Lock lock = stripes[stripe];
+            lock.lock();
+            acquired.add(lock);
+        }
+
+        return acquired;
+    }
+
+    /**
+     * Releases locks acquired via #lock, in the reverse of the order they were acquired
+     *
+     * @param locks
+     */
+    public void unlock(List<Lock> locks) {
+
+        List<Lock> toRelease = new ArrayList<Lock>(locks);
+        Collections.reverse(toRelease);
+
+        for (Lock lock : toRelease) {
+            lock.unlock();
+        }
+    }
+
+    protected SortedSet<Integer> getStripesFor(List<PaperRecordRequest> requests) {
+
+        SortedSet<Integer> stripeIndexes = new TreeSet<Integer>();
+
+        for (PaperRecordRequest request : requests) {
+
+            if (request.getRequestId() != null) {
+                stripeIndexes.add(getStripe("request", request.getRequestId()));
+            }
+
+            stripeIndexes.add(getStripe("record", getId(request.getRecordLocation()), getId(request.getPatient())));
+        }
+
+        return stripeIndexes;
+    }
+
+    private int getStripe(Object... key) {
+        // spread the bits a bit so that sequential ids don't all end up in neighbouring stripes
+        int hash = Arrays.hashCode(key);
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return Math.abs(hash % stripes.length);
+    }
+
+    private Integer getId(OpenmrsObject object) {
+        return object != null ? object.getId() : null;
+    }
+
+}
@@ -14,6 +14,7 @@
 
 package org.openmrs.module.emr.paperrecord;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -55,6 +56,18 @@ public interface PaperRecordService extends OpenmrsService {
     @Authorized(EmrConstants.PRIVILEGE_PAPER_RECORDS_REQUEST_RECORDS)
     boolean paperRecordExistsForPatientWithIdentifier(String patientIdentifier, Location location);
 
+    /**
+     * Returns true/false if there is a paper record at the specified location that is identified by the given
+     * identifier, which may either be the paper record identifier itself, or the primary identifier of the patient
+     * (ie, what might be scanned at the archives room desk); looks up both in a single query, and caches recent hits
+     *
+     * @param identifier
+     * @param location
+     * @return
+     */
+    @Authorized(EmrConstants.PRIVILEGE_PAPER_RECORDS_REQUEST_RECORDS)
+    boolean paperRecordExistsForIdentifier(String identifier, Location location);
+
 
     /**
      * Fetches the Paper Record Request with the specified id
@@ -105,6 +118,16 @@ public interface PaperRecordService extends OpenmrsService {
     @Authorized(EmrConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
     List<PaperRecordRequest> getOpenPaperRecordRequestsToPull();
 
+    /**
+     * Retrieves a page of the records that are open and need to be pulled, in the same order as #getOpenPaperRecordRequestsToPull()
+     *
+     * @param after the last request of the previous page, or null to retrieve the first page
+     * @param maxResults the maximum number of requests to return
+     * @return the page of open paper record requests that need to be pulled that come after the specified request
+     */
+    @Authorized(EmrConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    List<PaperRecordRequest> getOpenPaperRecordRequestsToPull(PaperRecordRequest after, int maxResults);
+
     /**
      * Retrieves all records that are open (ie, have yet to be assigned to an archivist for retrieval)
      * and need to be created (ie, do not yet exist)
@@ -115,6 +138,16 @@ public interface PaperRecordService extends OpenmrsService {
     @Authorized(EmrConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
     List<PaperRecordRequest> getOpenPaperRecordRequestsToCreate();
 
+    /**
+     * Retrieves a page of the records that are open and need to be created, in the same order as #getOpenPaperRecordRequestsToCreate()
+     *
+     * @param after the last request of the previous page, or null to retrieve the first page
+     * @param maxResults the maximum number of requests to return
+     * @return the page of open paper record requests that need to be created that come after the specified request
+     */
+    @Authorized(EmrConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    List<PaperRecordRequest> getOpenPaperRecordRequestsToCreate(PaperRecordRequest after, int maxResults);
+
     /**
      * 
      * Creates or updates a Paper Record Request
@@ -154,6 +187,16 @@ public interface PaperRecordService extends OpenmrsService {
     @Authorized(EmrConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
     List<PaperRecordRequest> getAssignedPaperRecordRequestsToPull();
 
+    /**
+     * Retrieves a page of the records that have been assigned and need to be pulled, in the same order as #getAssignedPaperRecordRequestsToPull()
+     *
+     * @param after the last request of the previous page, or null to retrieve the first page
+     * @param maxResults the maximum number of requests to return
+     * @return the page of assigned paper record requests that need to be pulled that come after the specified request
+     */
+    @Authorized(EmrConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    List<PaperRecordRequest> getAssignedPaperRecordRequestsToPull(PaperRecordRequest after, int maxResults);
+
     /**
      * Retrieves all records that have been assigned and need to be created
      *
@@ -162,6 +205,16 @@ public interface PaperRecordService extends OpenmrsService {
     @Authorized(EmrConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
     List<PaperRecordRequest> getAssignedPaperRecordRequestsToCreate();
 
+    /**
+     * Retrieves a page of the records that have been assigned and need to be created, in the same order as #getAssignedPaperRecordRequestsToCreate()
+     *
+     * @param after the last request of the previous page, or null to retrieve the first page
+     * @param maxResults the maximum number of requests to return
+     * @return the page of assigned paper record requests that need to be created that come after the specified request
+     */
+    @Authorized(EmrConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    List<PaperRecordRequest> getAssignedPaperRecordRequestsToCreate(PaperRecordRequest after, int maxResults);
+
     /**
      * Returns the pending (ie, open or assigned) paper record request (if any) for the record with the specified identifier
      * (there should only be one pending request per identifier & *location*)
@@ -196,6 +249,42 @@ public interface PaperRecordService extends OpenmrsService {
      */
     PaperRecordRequest getMostRecentSentPaperRecordRequestByIdentifier(String identifier);
 
+    /**
+     * Returns the most recent "sent" paper record request (if any) for each of the records with the specified paper
+     * record identifiers, using a single query rather than one query per identifier
+     * "Most Recent" is the one with the most recent dateStatusChanged field
+     *
+     * Unlike #getMostRecentSentPaperRecordRequestByIdentifier, this only matches paper record identifiers, not patient
+     * identifiers
+     *
+     * @param identifiers paper record identifiers
+     * @return a map from paper record identifier to the most recent "sent" paper record request for that identifier;
+     *         identifiers with no "sent" requests are not included
+     */
+    Map<String, PaperRecordRequest> getMostRecentSentPaperRecordRequestsByIdentifiers(Collection<String> identifiers);
+
+    /**
+     * Returns all the paper record requests that have been created or modified since the specified point in the
+     * change feed, so that clients polling the archives room queues only need to fetch what has changed
+     *
+     * @param sequence the sequence number returned by the client's previous call (null if this is the first call)
+     * @return the changed requests (in their current state) and the sequence number to pass on the next call; if
+     *         the result is not complete, the client must reload all its queues
+     */
+    @Authorized(EmrConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    PaperRecordRequestChanges getPaperRecordRequestChangesSince(Long sequence);
+
+    /**
+     * Blocks (outside of any transaction) until a paper record request has changed after the specified point in the
+     * change feed, or until the timeout expires; used to long-poll the change feed
+     *
+     * @param sequence the sequence number returned by the client's previous call
+     * @param timeoutInMilliseconds the maximum amount of time to wait
+     * @return true if there are changes to fetch via getPaperRecordRequestChangesSince, false if the timeout expired
+     */
+    @Authorized(EmrConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    boolean waitForPaperRecordRequestChanges(Long sequence, long timeoutInMilliseconds);
+
     /**
      * Marks the specified paper record request as "sent"
      *
@@ -280,9 +369,26 @@ public interface PaperRecordService extends OpenmrsService {
      * have a date_created before the specified expire date; Expires requests by setting the status
      * of those requests to CANCELLED
      *
+     * Requests are expired in the database, in fixed-size chunks, each in its own transaction (unless this is
+     * called within an existing transaction), so that we never load all the requests into memory or hold locks on
+     * all of them at once
+     *
+     * @param expireDate
+     * @return the number of requests that were expired
+     */
+    int expirePendingPullRequests(Date expireDate);
+
+    /**
+     * This internal method should not be invoked directly!
+     *
+     * Expires a single chunk of at most maxRequests pending pull requests; broken out so that each chunk can be run
+     * in its own transaction (see assignRequestsInternal for the same workaround)
+     *
      * @param expireDate
+     * @param maxRequests
+     * @return the number of requests that were expired
      */
-    void expirePendingPullRequests(Date expireDate);
+    int expirePendingPullRequestsInternal(Date expireDate, int maxRequests);
 
     /**
      * Hack to bring this up to the interface level to allow us to stub out the template when printing
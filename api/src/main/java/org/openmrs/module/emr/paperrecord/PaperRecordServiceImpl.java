@@ -15,6 +15,8 @@
 package org.openmrs.module.emr.paperrecord;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
@@ -22,6 +24,7 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
 
 import org.apache.commons.collections.ComparatorUtils;
 import org.apache.commons.lang.StringUtils;
@@ -43,6 +46,8 @@ import org.openmrs.module.emr.printer.Printer;
 import org.openmrs.module.emr.printer.PrinterService;
 import org.openmrs.module.emr.utils.GeneralUtils;
 import org.openmrs.module.idgen.service.IdentifierSourceService;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
 import static org.openmrs.module.emr.paperrecord.PaperRecordRequest.PENDING_STATUSES;
@@ -50,6 +55,9 @@ import static org.openmrs.module.emr.paperrecord.PaperRecordRequest.Status;
 
 public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperRecordService {
 
+    // how many stale pull requests we expire per transaction
+    private static final int EXPIRE_PULL_REQUESTS_CHUNK_SIZE = 500;
+
     private PaperRecordRequestDAO paperRecordRequestDAO;
 
     private PaperRecordMergeRequestDAO paperRecordMergeRequestDAO;
@@ -68,6 +76,12 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
 
     private PaperRecordLabelTemplate paperRecordLabelTemplate;
 
+    private PaperRecordRequestChangeLog paperRecordRequestChangeLog = new PaperRecordRequestChangeLog();
+
+    private PaperRecordRequestLocks paperRecordRequestLocks = new PaperRecordRequestLocks();
+
+    private RecentIdentifierCache recentIdentifiers = new RecentIdentifierCache();
+
 
     public void setPaperRecordRequestDAO(PaperRecordRequestDAO paperRecordRequestDAO) {
         this.paperRecordRequestDAO = paperRecordRequestDAO;
@@ -101,6 +115,18 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
         this.paperRecordLabelTemplate = paperRecordLabelTemplate;
     }
 
+    public void setPaperRecordRequestChangeLog(PaperRecordRequestChangeLog paperRecordRequestChangeLog) {
+        this.paperRecordRequestChangeLog = paperRecordRequestChangeLog;
+    }
+
+    public void setPaperRecordRequestLocks(PaperRecordRequestLocks paperRecordRequestLocks) {
+        this.paperRecordRequestLocks = paperRecordRequestLocks;
+    }
+
+    public void setRecentIdentifiers(RecentIdentifierCache recentIdentifiers) {
+        this.recentIdentifiers = recentIdentifiers;
+    }
+
     @Override
     public void setPrinterService(PrinterService printerService) {
         this.printerService = printerService;
@@ -140,6 +166,28 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
         }
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    public boolean paperRecordExistsForIdentifier(String identifier, Location location) {
+
+        Location recordLocation = getMedicalRecordLocationAssociatedWith(location);
+        String key = recordLocation.getId() + ":" + identifier;
+
+        if (recentIdentifiers.contains(key)) {
+            return true;
+        }
+
+        Integer patientId = paperRecordRequestDAO.findPatientIdWithPaperRecord(identifier,
+                emrProperties.getPaperRecordIdentifierType(), emrProperties.getPrimaryIdentifierType(), recordLocation);
+
+        if (patientId == null) {
+            return false;
+        }
+
+        recentIdentifiers.add(key);
+        return true;
+    }
+
     @Override
     @Transactional(readOnly = true)
     public PaperRecordRequest getPaperRecordRequestById(Integer id) {
@@ -183,7 +231,7 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
         // patients with pending records are merged)
         for (PaperRecordRequest request : requests) {
             request.setRequestLocation(requestLocation);
-            paperRecordRequestDAO.saveOrUpdate(request);
+            saveAndRecordChange(request);
             return request;
         }
 
@@ -201,7 +249,7 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
         request.setPatient(patient);
         request.setRequestLocation(requestLocation);
 
-        paperRecordRequestDAO.saveOrUpdate(request);
+        saveAndRecordChange(request);
 
         return request;
     }
@@ -211,7 +259,7 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
     public PaperRecordRequest savePaperRecordRequest(PaperRecordRequest paperRecordRequest) {
         PaperRecordRequest request = null;
         if (paperRecordRequest != null) {
-            return paperRecordRequestDAO.saveOrUpdate(paperRecordRequest);
+            return saveAndRecordChange(paperRecordRequest);
         }
         return request;
     }
@@ -224,6 +272,13 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
             null, null, null, true);
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    public List<PaperRecordRequest> getOpenPaperRecordRequestsToPull(PaperRecordRequest after, int maxResults) {
+        return paperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(PaperRecordRequest.Status.OPEN),
+            null, null, null, true, after, maxResults);
+    }
+
     @Override
     @Transactional(readOnly = true)
     public List<PaperRecordRequest> getOpenPaperRecordRequestsToCreate() {
@@ -232,11 +287,19 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
             null, null, null, false);
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    public List<PaperRecordRequest> getOpenPaperRecordRequestsToCreate(PaperRecordRequest after, int maxResults) {
+        return paperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(PaperRecordRequest.Status.OPEN),
+            null, null, null, false, after, maxResults);
+    }
+
     // we break this out into an external public and internal private method because we want the transaction to
-    // occur within the synchronized block
+    // occur while we hold the locks on the requests being assigned; we only lock the requests (and records) in
+    // question, so archivists assigning unrelated requests don't block each other
 
     @Override
-    public synchronized Map<String, List<String>> assignRequests(List<PaperRecordRequest> requests, Person assignee, Location location) throws UnableToPrintPaperRecordLabelException {
+    public Map<String, List<String>> assignRequests(List<PaperRecordRequest> requests, Person assignee, Location location) throws UnableToPrintPaperRecordLabelException {
 
         if (requests == null) {
             throw new IllegalArgumentException("Requests cannot be null");
@@ -246,10 +309,21 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
             throw new IllegalArgumentException("Assignee cannot be null");
         }
 
-        // HACK: we need to reference the service here because an internal call won't pick up the @Transactional on the
-        // internal method; we could potentially wire the bean into itself, but are unsure of that
-        // see PaperRecordService.assignRequestsInternal(...  for more information
-        return Context.getService(PaperRecordService.class).assignRequestsInternal(requests, assignee, location);
+        List<Lock> locks = paperRecordRequestLocks.lock(requests);
+
+        try {
+            // HACK: we need to reference the service here because an internal call won't pick up the @Transactional on the
+            // internal method; we could potentially wire the bean into itself, but are unsure of that
+            // see PaperRecordService.assignRequestsInternal(...  for more information
+            return Context.getService(PaperRecordService.class).assignRequestsInternal(requests, assignee, location);
+        }
+        catch (OptimisticLockingFailureException e) {
+            // another server (or another thread that didn't go through this method) modified one of these requests
+            throw new IllegalStateException("Paper record request was modified while being assigned", e);
+        }
+        finally {
+            paperRecordRequestLocks.unlock(locks);
+        }
     }
 
 
@@ -263,6 +337,12 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
         response.put("error", new LinkedList<String>());
 
         for (PaperRecordRequest request : requests) {
+            // the request may have been loaded before we acquired the lock on it, so make sure we are looking at the
+            // current state, in case someone else assigned it in the meantime
+            if (request.getRequestId() != null) {
+                paperRecordRequestDAO.refresh(request);
+            }
+
             // first do a sanity check, in case an identifier has been created since the request was placed
             // and verify that this request is open, or else we can't assign it
             if (patientHasPaperRecordIdentifier(request) || request.getStatus() != Status.OPEN) {
@@ -277,17 +357,17 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
                     request.updateStatus(Status.ASSIGNED_TO_CREATE);
 
                     // we print two labels if we are creating a new record
-                    printPaperRecordLabels(request, location, 2);
+                    queuePaperRecordLabels(request.getPatient(), identifier, location, 2);
                 }
                 else {
                     request.updateStatus(PaperRecordRequest.Status.ASSIGNED_TO_PULL);
 
                     // we print one label if we are pulling a record
-                    printPaperRecordLabel(request, location);
+                    queuePaperRecordLabels(request.getPatient(), identifier, location, 1);
                 }
 
                 request.setAssignee(assignee);
-                paperRecordRequestDAO.saveOrUpdate(request);
+                saveAndRecordChange(request);
 
                 response.get("success").add(identifier);
             }
@@ -309,6 +389,13 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
             Collections.singletonList(PaperRecordRequest.Status.ASSIGNED_TO_PULL), null, null, null, null);
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    public List<PaperRecordRequest> getAssignedPaperRecordRequestsToPull(PaperRecordRequest after, int maxResults) {
+        return paperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(PaperRecordRequest.Status.ASSIGNED_TO_PULL),
+            null, null, null, null, after, maxResults);
+    }
+
     @Override
     @Transactional(readOnly = true)
     public List<PaperRecordRequest> getAssignedPaperRecordRequestsToCreate() {
@@ -317,6 +404,13 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
             Collections.singletonList(PaperRecordRequest.Status.ASSIGNED_TO_CREATE), null, null, null, null);
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    public List<PaperRecordRequest> getAssignedPaperRecordRequestsToCreate(PaperRecordRequest after, int maxResults) {
+        return paperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(PaperRecordRequest.Status.ASSIGNED_TO_CREATE),
+            null, null, null, null, after, maxResults);
+    }
+
     @Override
     @Transactional(readOnly = true)
     public List<PaperRecordRequest> getPaperRecordRequestsByPatient(Patient patient) {
@@ -349,26 +443,39 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
     private List<PaperRecordRequest> getPaperRecordRequestByIdentifierAndStatus(String identifier, List<Status> statusList) {
         // TODO: once we have multiple medical record locations, we will need to add location as a criteria
 
-        // first see if we find any requests by paper record identifier
-        List<PaperRecordRequest> requests = paperRecordRequestDAO.findPaperRecordRequests(
-                statusList, null, null, identifier, null);
+        // fetch the requests with this paper record identifier AND the requests for the patient with this patient
+        // identifier in a single query, then give precedence to the ones matched by paper record identifier
+        List<PaperRecordRequest> candidates = paperRecordRequestDAO.findPaperRecordRequestsByPaperRecordOrPatientIdentifier(
+                statusList, identifier, emrProperties.getPrimaryIdentifierType());
 
-        // if no requests, see if this is patient identifier
-        if (requests == null || requests.size() == 0) {
-            List<Patient> patients = patientService.getPatients(null, identifier, Collections.singletonList(emrProperties.getPrimaryIdentifierType()), true);
-            if (patients != null && patients.size() > 0)  {
-                if (patients.size() > 1) {
-                    throw new IllegalStateException("Duplicate patients exist with identifier " + identifier);
-                }
-                else {
-                    requests = paperRecordRequestDAO.findPaperRecordRequests(statusList, patients.get(0), null,
-                            null, null);
-                }
+        if (candidates == null || candidates.size() == 0) {
+            return candidates;
+        }
+
+        List<PaperRecordRequest> requestsByPaperRecordIdentifier = new ArrayList<PaperRecordRequest>();
+        List<PaperRecordRequest> requestsByPatientIdentifier = new ArrayList<PaperRecordRequest>();
+
+        for (PaperRecordRequest candidate : candidates) {
+            if (identifier.equals(candidate.getIdentifier())) {
+                requestsByPaperRecordIdentifier.add(candidate);
             }
+            else {
+                requestsByPatientIdentifier.add(candidate);
+            }
+        }
 
+        if (requestsByPaperRecordIdentifier.size() > 0) {
+            return requestsByPaperRecordIdentifier;
         }
 
-        return requests;
+        Patient patient = requestsByPatientIdentifier.get(0).getPatient();
+        for (PaperRecordRequest request : requestsByPatientIdentifier) {
+            if (!request.getPatient().equals(patient)) {
+                throw new IllegalStateException("Duplicate patients exist with identifier " + identifier);
+            }
+        }
+
+        return requestsByPatientIdentifier;
     }
 
     @Override
@@ -392,6 +499,58 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
         }
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    public Map<String, PaperRecordRequest> getMostRecentSentPaperRecordRequestsByIdentifiers(Collection<String> identifiers) {
+
+        Map<String, PaperRecordRequest> mostRecent = new HashMap<String, PaperRecordRequest>();
+
+        if (identifiers == null || identifiers.isEmpty()) {
+            return mostRecent;
+        }
+
+        for (PaperRecordRequest request : paperRecordRequestDAO.findMostRecentPaperRecordRequestsByIdentifier(identifiers, Status.SENT)) {
+            // if two requests were sent at exactly the same time, pick the one that was created last
+            PaperRecordRequest existing = mostRecent.get(request.getIdentifier());
+            if (existing == null || existing.getId() < request.getId()) {
+                mostRecent.put(request.getIdentifier(), request);
+            }
+        }
+
+        return mostRecent;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public PaperRecordRequestChanges getPaperRecordRequestChangesSince(Long sequence) {
+
+        PaperRecordRequestChanges changes = paperRecordRequestChangeLog.getChangesSince(sequence);
+
+        List<PaperRecordRequest> requests = new ArrayList<PaperRecordRequest>();
+        for (Integer requestId : changes.getRequestIds()) {
+            PaperRecordRequest request = paperRecordRequestDAO.getById(requestId);
+            if (request != null) {
+                requests.add(request);
+            }
+        }
+
+        changes.setRequests(requests);
+        return changes;
+    }
+
+    // we don't want to hold on to a transaction (and a database connection) while a client is long-polling
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public boolean waitForPaperRecordRequestChanges(Long sequence, long timeoutInMilliseconds) {
+        try {
+            return paperRecordRequestChangeLog.waitForChangesSince(sequence, timeoutInMilliseconds);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
     @Override
     @Transactional
     public void markPaperRecordRequestAsSent(PaperRecordRequest request) {
@@ -438,8 +597,34 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
             return;  // just do nothing if we don't have a count
         }
 
+        try {
+            printerService.printViaSocket(generateLabels(patient, identifier, count), Printer.Type.LABEL, location,
+                paperRecordLabelTemplate.getEncoding());
+        }
+        catch (Exception e) {
+            throw new UnableToPrintPaperRecordLabelException("Unable to print paper record label for patient " + patient, e);
+        }
+    }
+
+    // used when assigning requests: the labels are printed in the background once the assignment has been committed,
+    // so that we aren't waiting on the label printer while holding the locks on the requests
+    private void queuePaperRecordLabels(Patient patient, String identifier, Location location, Integer count) throws UnableToPrintPaperRecordLabelException {
+        if (count == null || count == 0) {
+            return;  // just do nothing if we don't have a count
+        }
+
+        try {
+            printerService.queuePrintJob(generateLabels(patient, identifier, count), Printer.Type.LABEL, location,
+                paperRecordLabelTemplate.getEncoding());
+        }
+        catch (Exception e) {
+            throw new UnableToPrintPaperRecordLabelException("Unable to queue paper record label for patient " + patient, e);
+        }
+    }
+
+    private String generateLabels(Patient patient, String identifier, Integer count) {
+
         String data = paperRecordLabelTemplate.generateLabel(patient, identifier);
-        String encoding = paperRecordLabelTemplate.getEncoding();
 
         // just duplicate the data if we are printing multiple labels
         StringBuffer dataBuffer = new StringBuffer();
@@ -450,12 +635,7 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
             count--;
         }
 
-        try {
-            printerService.printViaSocket(dataBuffer.toString(), Printer.Type.LABEL, location, encoding);
-        }
-        catch (Exception e) {
-            throw new UnableToPrintPaperRecordLabelException("Unable to print paper record label for patient " + patient, e);
-        }
+        return dataBuffer.toString();
     }
 
     @Override
@@ -505,6 +685,9 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
         // then just mark the request as merged
         mergeRequest.setStatus(PaperRecordMergeRequest.Status.MERGED);
         paperRecordMergeRequestDAO.saveOrUpdate(mergeRequest);
+
+        // the merge may have moved identifiers from one patient to another
+        recentIdentifiers.clear();
     }
 
     @Override
@@ -514,23 +697,43 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
             Collections.singletonList(PaperRecordMergeRequest.Status.OPEN));
     }
 
+    // like assignRequests, this is broken out into an external method and an internal transactional method, so that
+    // each chunk is committed (and its locks released) before we move on to the next one
+
     @Override
-    @Transactional
-    public void expirePendingPullRequests(Date expireDate) {
+    public int expirePendingPullRequests(Date expireDate) {
 
-        List<PaperRecordRequest> pullRequests = new ArrayList<PaperRecordRequest>();
+        int expired = 0;
+        int expiredInChunk;
 
-        // note that since we are calling the other service methods directly, they
-        // won't be transactional, so we need to make sure this method is transactional
+        do {
+            // HACK: we need to reference the service here because an internal call won't pick up the @Transactional on
+            // the internal method; see PaperRecordService.assignRequestsInternal(...  for more information
+            expiredInChunk = Context.getService(PaperRecordService.class).expirePendingPullRequestsInternal(expireDate,
+                    EXPIRE_PULL_REQUESTS_CHUNK_SIZE);
+            expired += expiredInChunk;
+        } while (expiredInChunk > 0);
 
-        pullRequests.addAll(getOpenPaperRecordRequestsToPull());
-        pullRequests.addAll(getAssignedPaperRecordRequestsToPull());
+        return expired;
+    }
 
-        for (PaperRecordRequest request : pullRequests) {
-            if (request.getDateCreated().before(expireDate)) {
-                markPaperRecordRequestAsCancelled(request);
-            }
+    // HACK; note that this method must be public in order for Spring to pick up the @Transactional annotation
+    @Override
+    @Transactional
+    public int expirePendingPullRequestsInternal(Date expireDate, int maxRequests) {
+
+        List<Integer> requestIds = paperRecordRequestDAO.findPendingPullRequestIds(expireDate, maxRequests);
+
+        if (requestIds.isEmpty()) {
+            return 0;
         }
+
+        int expired = paperRecordRequestDAO.updateStatus(requestIds,
+                Arrays.asList(Status.OPEN, Status.ASSIGNED_TO_PULL), Status.CANCELLED);
+
+        paperRecordRequestChangeLog.recordChanges(requestIds);
+
+        return expired;
     }
 
     // leaving this method as public so that it can be tested by integration test in mirebalais module
@@ -573,6 +776,12 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
         return paperRecordIdentifier != null ? paperRecordIdentifier.getIdentifier() : null;
     }
 
+    private PaperRecordRequest saveAndRecordChange(PaperRecordRequest request) {
+        PaperRecordRequest savedRequest = paperRecordRequestDAO.saveOrUpdate(request);
+        paperRecordRequestChangeLog.recordChange(request);
+        return savedRequest;
+    }
+
     private void mergePendingPaperRecordRequests(PaperRecordMergeRequest mergeRequest) {
 
         // (note that we are not searching by patient here because the patient may have been changed during the merge)
@@ -612,14 +821,14 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
             }
 
             notPreferredRequest.updateStatus(Status.CANCELLED);
-            paperRecordRequestDAO.saveOrUpdate(preferredRequest);
-            paperRecordRequestDAO.saveOrUpdate(notPreferredRequest);
+            saveAndRecordChange(preferredRequest);
+            saveAndRecordChange(notPreferredRequest);
         }
 
         // if there is only a non-preferred request, we need to update it with the right identifier
         if (preferredRequest == null && notPreferredRequest != null) {
             notPreferredRequest.setIdentifier(mergeRequest.getPreferredIdentifier());
-            paperRecordRequestDAO.saveOrUpdate(notPreferredRequest);
+            saveAndRecordChange(notPreferredRequest);
         }
 
     }
@@ -631,7 +840,7 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
 
         for (PaperRecordRequest notPreferredRequest : notPreferredRequests) {
             notPreferredRequest.updateStatus(Status.RETURNED);
-            paperRecordRequestDAO.saveOrUpdate(notPreferredRequest);
+            saveAndRecordChange(notPreferredRequest);
         }
     }
 
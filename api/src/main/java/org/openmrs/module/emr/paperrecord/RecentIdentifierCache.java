@@ -0,0 +1,67 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.paperrecord;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small cache of recently scanned identifiers (paper record numbers or primary patient identifiers) that are known to
+ * identify a paper record, so that scanning the same record again at the archives room desk doesn't have to look it up
+ * again
+ *
+ * Only the most recently used identifiers are kept (see capacity). We only cache identifiers that were found; an
+ * identifier that wasn't found is looked up again every time. Since voiding a patient or an identifier (or moving an
+ * identifier from one patient to another) can mean that an identifier no longer identifies a paper record, the whole
+ * cache is cleared whenever patients or their identifiers change.
+ *
+ * @see RecentIdentifierCacheAdvice
+ */
+public class RecentIdentifierCache {
+
+    private static final int DEFAULT_CAPACITY = 500;
+
+    private final Map<String, Boolean> identifiers;
+
+    public RecentIdentifierCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public RecentIdentifierCache(final int capacity) {
+        this.identifiers = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @param key
+     * @return true if the specified key was recently found to identify a paper record
+     */
+    public synchronized boolean contains(String key) {
+        return identifiers.get(key) != null;
+    }
+
+    public synchronized void add(String key) {
+        identifiers.put(key, Boolean.TRUE);
+    }
+
+    public synchronized void clear() {
+        identifiers.clear();
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.paperrecord;
+
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.Person;
+import org.openmrs.api.context.Context;
+import org.springframework.aop.AfterReturningAdvice;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Discards the recently scanned paper record identifiers whenever a patient, or one of their identifiers, is saved,
+ * voided, unvoided or purged through the PatientService or PersonService, or patients are merged
+ *
+ * @see RecentIdentifierCache
+ */
+public class RecentIdentifierCacheAdvice implements AfterReturningAdvice {
+
+    private RecentIdentifierCache recentIdentifierCache;
+
+    @Override
+    public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+
+        if (!isChange(method) || !isAboutPatients(args)) {
+            return;
+        }
+
+        final RecentIdentifierCache cache = getRecentIdentifierCache();
+        cache.clear();
+
+        // until the change commits, another thread may still find (and cache) the identifier as it was before
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    cache.clear();
+                }
+            });
+        }
+    }
+
+    private boolean isAboutPatients(Object[] args) {
+        if (args == null) {
+            return false;
+        }
+        for (Object arg : args) {
+            if (arg instanceof Patient || arg instanceof PatientIdentifier) {
+                return true;
+            }
+            if (arg instanceof Person && ((Person) arg).isPatient()) {
+                return true;
+            }
+            if (arg instanceof Collection) {
+                for (Object element : (Collection) arg) {
+                    if (element instanceof Patient) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isChange(Method method) {
+        String name = method.getName();
+        return name.startsWith("save") || name.startsWith("void") || name.startsWith("unvoid")
+                || name.startsWith("purge") || name.startsWith("merge");
+    }
+
+    protected RecentIdentifierCache getRecentIdentifierCache() {
+        if (recentIdentifierCache == null) {
+            List<RecentIdentifierCache> caches = Context.getRegisteredComponents(RecentIdentifierCache.class);
+            recentIdentifierCache = caches.get(0);
+        }
+        return recentIdentifierCache;
+    }
+
+}
@@ -15,29 +15,47 @@
 package org.openmrs.module.emr.paperrecord.db;
 
 import org.hibernate.Criteria;
-import org.hibernate.criterion.Disjunction;
+import org.hibernate.Query;
+import org.hibernate.criterion.DetachedCriteria;
 import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.criterion.Subqueries;
+import org.hibernate.type.Type;
 import org.openmrs.Location;
 import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
 import org.openmrs.module.emr.api.db.hibernate.HibernateSingleClassDAO;
 import org.openmrs.module.emr.paperrecord.PaperRecordRequest;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 
 public class HibernatePaperRecordRequestDAO  extends HibernateSingleClassDAO<PaperRecordRequest> implements PaperRecordRequestDAO {
 
+    private static final int MAX_IDENTIFIERS_PER_QUERY = 500;
+
     public HibernatePaperRecordRequestDAO() {
         super(PaperRecordRequest.class);
     }
 
     @Override
     public List<PaperRecordRequest> findPaperRecordRequests(List<PaperRecordRequest.Status> statusList, Patient patient, Location recordLocation, String identifier, Boolean hasIdentifier) {
+        return findPaperRecordRequests(statusList, patient, recordLocation, identifier, hasIdentifier, null, null);
+    }
+
+    @Override
+    public List<PaperRecordRequest> findPaperRecordRequests(List<PaperRecordRequest.Status> statusList, Patient patient,
+                                                            Location recordLocation, String identifier, Boolean hasIdentifier,
+                                                            PaperRecordRequest after, Integer maxResults) {
 
         Criteria criteria = createPaperRecordCriteria();
 
         if (statusList != null) {
-            addStatusDisjunctionRestriction(criteria, statusList);
+            addStatusRestriction(criteria, statusList);
         }
 
         if (patient != null) {
@@ -56,28 +74,151 @@ public class HibernatePaperRecordRequestDAO  extends HibernateSingleClassDAO<Pap
             addHasIdentifierRestriction(criteria, hasIdentifier);
         }
 
+        if (after != null) {
+            addAfterRestriction(criteria, after);
+        }
+
+        addOrderByDateCreated(criteria);
+
+        if (maxResults != null) {
+            criteria.setMaxResults(maxResults);
+        }
+
+        return (List<PaperRecordRequest>) criteria.list();
+    }
+
+    @Override
+    public List<PaperRecordRequest> findPaperRecordRequestsByPaperRecordOrPatientIdentifier(List<PaperRecordRequest.Status> statusList,
+                                                                                             String identifier,
+                                                                                             PatientIdentifierType primaryIdentifierType) {
+
+        Criteria criteria = createPaperRecordCriteria();
+
+        addStatusRestriction(criteria, statusList);
+        criteria.add(Restrictions.or(Restrictions.eq("identifier", identifier),
+                Subqueries.propertyIn("patient", getPatientsWithIdentifier(identifier, primaryIdentifierType))));
+
         addOrderByDateCreated(criteria);
 
         return (List<PaperRecordRequest>) criteria.list();
     }
 
+    @Override
+    public Integer findPatientIdWithPaperRecord(String identifier, PatientIdentifierType paperRecordIdentifierType,
+                                                PatientIdentifierType primaryIdentifierType, Location recordLocation) {
+
+        Criteria criteria = sessionFactory.getCurrentSession().createCriteria(PatientIdentifier.class, "record");
+        criteria.createAlias("record.patient", "recordPatient");
+
+        criteria.add(Restrictions.eq("record.identifierType", paperRecordIdentifierType));
+        criteria.add(Restrictions.eq("record.location", recordLocation));
+        criteria.add(Restrictions.eq("record.voided", false));
+        criteria.add(Restrictions.eq("recordPatient.voided", false));
+        criteria.add(Restrictions.or(Restrictions.eq("record.identifier", identifier),
+                Subqueries.propertyIn("record.patient", getPatientsWithIdentifier(identifier, primaryIdentifierType))));
+
+        criteria.setProjection(Projections.property("record.patient.id"));
+        criteria.setMaxResults(1);
+
+        return (Integer) criteria.uniqueResult();
+    }
+
+    @Override
+    public List<PaperRecordRequest> findMostRecentPaperRecordRequestsByIdentifier(Collection<String> identifiers,
+                                                                                  PaperRecordRequest.Status status) {
+
+        List<PaperRecordRequest> requests = new ArrayList<PaperRecordRequest>();
+        List<String> identifierList = new ArrayList<String>(identifiers);
+
+        // split up the identifiers so that we don't hit any database limits on the size of the "in" clause
+        for (int i = 0; i < identifierList.size(); i += MAX_IDENTIFIERS_PER_QUERY) {
+
+            List<String> batch = identifierList.subList(i, Math.min(i + MAX_IDENTIFIERS_PER_QUERY, identifierList.size()));
+
+            // the most recent dateStatusChanged among the requests with the same identifier and status
+            DetachedCriteria mostRecent = DetachedCriteria.forClass(PaperRecordRequest.class, "other")
+                    .add(Restrictions.eqProperty("other.identifier", "request.identifier"))
+                    .add(Restrictions.eq("other.status", status))
+                    .setProjection(Projections.max("other.dateStatusChanged"));
+
+            Criteria criteria = sessionFactory.getCurrentSession().createCriteria(PaperRecordRequest.class, "request");
+            criteria.add(Restrictions.in("request.identifier", batch));
+            criteria.add(Restrictions.eq("request.status", status));
+            criteria.add(Subqueries.propertyEq("request.dateStatusChanged", mostRecent));
+
+            requests.addAll((List<PaperRecordRequest>) criteria.list());
+        }
+
+        return requests;
+    }
+
+    @Override
+    public List<Integer> findPendingPullRequestIds(Date createdBefore, int maxResults) {
+
+        Criteria criteria = createPaperRecordCriteria();
+
+        criteria.add(Restrictions.lt("dateCreated", createdBefore));
+        criteria.add(Restrictions.or(Restrictions.eq("status", PaperRecordRequest.Status.ASSIGNED_TO_PULL),
+                Restrictions.and(Restrictions.eq("status", PaperRecordRequest.Status.OPEN), Restrictions.isNotNull("identifier"))));
+
+        criteria.setProjection(Projections.id());
+        addOrderByDateCreated(criteria);
+        criteria.setMaxResults(maxResults);
+
+        return (List<Integer>) criteria.list();
+    }
+
+    @Override
+    public int updateStatus(List<Integer> requestIds, List<PaperRecordRequest.Status> fromStatuses, PaperRecordRequest.Status toStatus) {
+
+        if (requestIds.isEmpty()) {
+            return 0;
+        }
+
+        // status is mapped with a custom type, so we have to tell Hibernate how to bind it
+        Type statusType = sessionFactory.getClassMetadata(PaperRecordRequest.class).getPropertyType("status");
+
+        // "versioned" bumps the version, so that anyone who loaded one of these requests before we changed it can't
+        // then overwrite our change
+        Query query = sessionFactory.getCurrentSession().createQuery("update versioned PaperRecordRequest "
+                + "set status = :toStatus, dateStatusChanged = :dateStatusChanged "
+                + "where requestId in (:requestIds) and status in (:fromStatuses)");
+
+        query.setParameter("toStatus", toStatus, statusType);
+        query.setTimestamp("dateStatusChanged", new Date());
+        query.setParameterList("requestIds", requestIds);
+        query.setParameterList("fromStatuses", fromStatuses, statusType);
+
+        return query.executeUpdate();
+    }
+
+    @Override
+    public void refresh(PaperRecordRequest request) {
+        sessionFactory.getCurrentSession().refresh(request);
+    }
+
+    // the (non-voided) patients with the specified (non-voided) identifier of the specified type
+    private DetachedCriteria getPatientsWithIdentifier(String identifier, PatientIdentifierType identifierType) {
+        return DetachedCriteria.forClass(PatientIdentifier.class, "patientIdentifier")
+                .createAlias("patientIdentifier.patient", "identifiedPatient")
+                .add(Restrictions.eq("patientIdentifier.identifier", identifier))
+                .add(Restrictions.eq("patientIdentifier.identifierType", identifierType))
+                .add(Restrictions.eq("patientIdentifier.voided", false))
+                .add(Restrictions.eq("identifiedPatient.voided", false))
+                .setProjection(Projections.property("patientIdentifier.patient"));
+    }
+
     private Criteria createPaperRecordCriteria() {
         return sessionFactory.getCurrentSession().createCriteria(PaperRecordRequest.class);
     }
 
-    private void addStatusDisjunctionRestriction(Criteria criteria, List<PaperRecordRequest.Status> statusList) {
+    private void addStatusRestriction(Criteria criteria, List<PaperRecordRequest.Status> statusList) {
 
         if (statusList.size() == 1) {
             criteria.add(Restrictions.eq("status", statusList.get(0)));
         }
         else {
-            Disjunction statusDisjunction = Restrictions.disjunction();
-
-            for (PaperRecordRequest.Status status : statusList) {
-                statusDisjunction.add(Restrictions.eq("status", status));
-            }
-
-            criteria.add(statusDisjunction);
+            criteria.add(Restrictions.in("status", statusList));
         }
     }
 
@@ -103,8 +244,17 @@ public class HibernatePaperRecordRequestDAO  extends HibernateSingleClassDAO<Pap
         }
     }
 
+    private void addAfterRestriction(Criteria criteria, PaperRecordRequest after) {
+        // seek past the specified request, using the same (date created, id) ordering as the results
+        criteria.add(Restrictions.or(Restrictions.gt("dateCreated", after.getDateCreated()),
+                Restrictions.and(Restrictions.eq("dateCreated", after.getDateCreated()),
+                        Restrictions.gt("requestId", after.getRequestId()))));
+    }
+
     private void addOrderByDateCreated(Criteria criteria) {
+        // order by id as well, so that requests created at the same time always come back in the same order
         criteria.addOrder(Order.asc("dateCreated"));
+        criteria.addOrder(Order.asc("requestId"));
     }
 
 }
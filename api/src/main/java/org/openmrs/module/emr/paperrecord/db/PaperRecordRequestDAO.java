@@ -16,9 +16,12 @@ package org.openmrs.module.emr.paperrecord.db;
 
 import org.openmrs.Location;
 import org.openmrs.Patient;
+import org.openmrs.PatientIdentifierType;
 import org.openmrs.module.emr.api.db.SingleClassDAO;
 import org.openmrs.module.emr.paperrecord.PaperRecordRequest;
 
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 
 public interface PaperRecordRequestDAO extends SingleClassDAO<PaperRecordRequest> {
@@ -37,4 +40,93 @@ public interface PaperRecordRequestDAO extends SingleClassDAO<PaperRecordRequest
     List<PaperRecordRequest> findPaperRecordRequests(List<PaperRecordRequest.Status> statusList, Patient patient,
                                                      Location recordLocation, String identifier, Boolean hasIdentifier);
 
+    /**
+     * Returns a page of the paper record requests for the given patient and given location with ANY of the specified
+     * statuses, ordered by date created (and then by id)
+     *
+     * Pages are fetched by seeking past the last request of the previous page, rather than by offset, so fetching a
+     * page costs the same no matter how far into the results it is
+     *
+     * @param statusList
+     * @param patient
+     * @param recordLocation
+     * @param identifier
+     * @param hasIdentifier restricts based on whether or not the identifier field null
+     * @param after the last request of the previous page, or null to fetch the first page
+     * @param maxResults the maximum number of requests to return, or null to return them all
+     * @return the page of matching paper record requests that come after the specified request
+     */
+    List<PaperRecordRequest> findPaperRecordRequests(List<PaperRecordRequest.Status> statusList, Patient patient,
+                                                     Location recordLocation, String identifier, Boolean hasIdentifier,
+                                                     PaperRecordRequest after, Integer maxResults);
+
+    /**
+     * Returns all the paper record requests with ANY of the specified statuses that either have the specified paper
+     * record identifier, or are for the (non-voided) patient with the specified primary identifier, in a single query
+     *
+     * @param statusList
+     * @param identifier a paper record identifier OR a primary patient identifier
+     * @param primaryIdentifierType
+     * @return the matching paper record requests, ordered by date created
+     */
+    List<PaperRecordRequest> findPaperRecordRequestsByPaperRecordOrPatientIdentifier(List<PaperRecordRequest.Status> statusList,
+                                                                                      String identifier,
+                                                                                      PatientIdentifierType primaryIdentifierType);
+
+    /**
+     * Finds the (non-voided) patient with a (non-voided) paper record at the specified record location that is
+     * identified by the specified identifier, which may either be the paper record identifier itself, or the primary
+     * identifier of the patient, in a single query
+     *
+     * @param identifier a paper record identifier OR a primary patient identifier
+     * @param paperRecordIdentifierType
+     * @param primaryIdentifierType
+     * @param recordLocation
+     * @return the id of the patient the paper record belongs to, or null if there is no such paper record
+     */
+    Integer findPatientIdWithPaperRecord(String identifier, PatientIdentifierType paperRecordIdentifierType,
+                                         PatientIdentifierType primaryIdentifierType, Location recordLocation);
+
+    /**
+     * Returns, for each of the given paper record identifiers, the request for that identifier with the specified status
+     * that has the most recent dateStatusChanged, fetched in a single query (there may be more than one request per
+     * identifier in the result if two requests changed status at exactly the same time)
+     *
+     * @param identifiers paper record identifiers
+     * @param status
+     * @return the most recent requests with the specified status for the given identifiers
+     */
+    List<PaperRecordRequest> findMostRecentPaperRecordRequestsByIdentifier(Collection<String> identifiers,
+                                                                           PaperRecordRequest.Status status);
+
+    /**
+     * Returns the ids of pending pull requests (ie, those with status ASSIGNED_TO_PULL, or with status OPEN and an
+     * identifier) that were created before the specified date
+     *
+     * @param createdBefore
+     * @param maxResults the maximum number of ids to return
+     * @return the ids of the matching requests, oldest first
+     */
+    List<Integer> findPendingPullRequestIds(Date createdBefore, int maxResults);
+
+    /**
+     * Changes the status (and date status changed) of the specified requests in a single update, without loading
+     * them; requests that are no longer in one of the specified "from" statuses are left alone
+     *
+     * Note that this bypasses the session, so any of these requests that are already loaded will be out of date
+     *
+     * @param requestIds
+     * @param fromStatuses
+     * @param toStatus
+     * @return the number of requests that were updated
+     */
+    int updateStatus(List<Integer> requestIds, List<PaperRecordRequest.Status> fromStatuses, PaperRecordRequest.Status toStatus);
+
+    /**
+     * Re-reads the state of the given paper record request from the database
+     *
+     * @param request
+     */
+    void refresh(PaperRecordRequest request);
+
 }
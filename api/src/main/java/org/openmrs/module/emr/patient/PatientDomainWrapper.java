@@ -28,6 +28,7 @@ import org.openmrs.api.EncounterService;
 import org.openmrs.api.VisitService;
 import org.openmrs.module.emr.EmrProperties;
 import org.openmrs.module.emr.adt.AdtService;
+import org.openmrs.module.emr.adt.VisitOverlaps;
 import org.openmrs.module.emr.visit.VisitDomainWrapper;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -39,11 +40,23 @@ import java.util.Set;
 
 /**
  * A rich-domain-model class that wraps a Patient, and lets you perform common queries.
+ *
+ * A wrapper is created for each request, and the patient header and dashboard ask it for the same summary stats
+ * (last encounter, count of encounters and visits) several times while rendering a page, so these are only looked up
+ * once per wrapper.
  */
 public class PatientDomainWrapper {
 
     private Patient patient;
 
+    private boolean lastEncounterLoaded = false;
+
+    private Encounter lastEncounter;
+
+    private Integer countOfEncounters;
+
+    private Integer countOfVisits;
+
     @Qualifier("emrProperties")
     @Autowired
     protected EmrProperties emrProperties;
@@ -74,6 +87,10 @@ public class PatientDomainWrapper {
 
     public void setPatient(Patient patient) {
         this.patient = patient;
+        this.lastEncounterLoaded = false;
+        this.lastEncounter = null;
+        this.countOfEncounters = null;
+        this.countOfVisits = null;
     }
 
     public Patient getPatient() {
@@ -162,19 +179,29 @@ public class PatientDomainWrapper {
     }
 
     public Encounter getLastEncounter() {
-        return adtService.getLastEncounter(patient);
+        if (!lastEncounterLoaded) {
+            lastEncounter = adtService.getLastEncounter(patient);
+            lastEncounterLoaded = true;
+        }
+        return lastEncounter;
     }
 
     public Visit getActiveVisit(Location location) {
-        return adtService.getActiveVisit(patient, location);
+        return adtService.findActiveVisit(patient, location);
     }
 
     public int getCountOfEncounters() {
-        return adtService.getCountOfEncounters(patient);
+        if (countOfEncounters == null) {
+            countOfEncounters = adtService.getCountOfEncounters(patient);
+        }
+        return countOfEncounters;
     }
 
     public int getCountOfVisits() {
-        return adtService.getCountOfVisits(patient);
+        if (countOfVisits == null) {
+            countOfVisits = adtService.getCountOfVisits(patient);
+        }
+        return countOfVisits;
     }
 
     public List<Encounter> getAllEncounters() {
@@ -189,14 +216,7 @@ public class PatientDomainWrapper {
         List<Visit> otherVisits = visitService.getVisitsByPatient(otherPatient, true, false);
         List<Visit> myVisits = getAllVisits();
 
-        for (Visit v : myVisits) {
-            for (Visit o : otherVisits) {
-                if (adtService.visitsOverlap(v, o)) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        return new VisitOverlaps().anyOverlap(myVisits, otherVisits);
     }
 
     public boolean isUnknownPatient() {
@@ -0,0 +1,107 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.patient;
+
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.Person;
+import org.openmrs.PersonName;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.emr.EmrProperties;
+import org.openmrs.module.emr.api.EmrService;
+import org.springframework.aop.AfterReturningAdvice;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps the patient search index up to date (while it is enabled): whenever a patient, or one of their names or
+ * identifiers, is saved, voided, unvoided or purged through the PatientService or PersonService, or patients are
+ * merged, the affected patients are indexed again, in the same transaction
+ *
+ * @see PatientSearchTrigram
+ */
+public class PatientSearchIndexAdvice implements AfterReturningAdvice {
+
+    private EmrProperties emrProperties;
+
+    @Override
+    public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+
+        if (!isChange(method) || args == null || args.length == 0) {
+            return;
+        }
+
+        Set<Integer> patientIds = new LinkedHashSet<Integer>();
+        for (Object arg : args) {
+            addPatientIds(patientIds, arg);
+        }
+
+        if (patientIds.isEmpty() || !getEmrProperties().isPatientSearchIndexEnabled()) {
+            return;
+        }
+
+        EmrService emrService = Context.getService(EmrService.class);
+        for (Integer patientId : patientIds) {
+            emrService.updatePatientSearchIndex(patientId);
+        }
+    }
+
+    // mergePatients takes the patient (or list of patients) being merged away as its second argument
+    private void addPatientIds(Set<Integer> patientIds, Object arg) {
+        if (arg instanceof Patient) {
+            patientIds.add(((Patient) arg).getPatientId());
+        }
+        else if (arg instanceof PatientIdentifier && ((PatientIdentifier) arg).getPatient() != null) {
+            patientIds.add(((PatientIdentifier) arg).getPatient().getPatientId());
+        }
+        else if (arg instanceof PersonName && isPatient(((PersonName) arg).getPerson())) {
+            patientIds.add(((PersonName) arg).getPerson().getPersonId());
+        }
+        else if (arg instanceof Person && isPatient((Person) arg)) {
+            patientIds.add(((Person) arg).getPersonId());
+        }
+        else if (arg instanceof Collection) {
+            for (Object element : (Collection) arg) {
+                if (element instanceof Patient) {
+                    patientIds.add(((Patient) element).getPatientId());
+                }
+            }
+        }
+        patientIds.remove(null);
+    }
+
+    private boolean isPatient(Person person) {
+        return person != null && person.isPatient();
+    }
+
+    private boolean isChange(Method method) {
+        String name = method.getName();
+        return name.startsWith("save") || name.startsWith("void") || name.startsWith("unvoid")
+                || name.startsWith("purge") || name.startsWith("merge");
+    }
+
+    protected EmrProperties getEmrProperties() {
+        if (emrProperties == null) {
+            List<EmrProperties> candidates = Context.getRegisteredComponents(EmrProperties.class);
+            emrProperties = candidates.get(0);
+        }
+        return emrProperties;
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.patient;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.emr.EmrConstants;
+import org.openmrs.module.emr.api.EmrService;
+
+/**
+ * Builds the patient search index in the background, a batch of patients at a time (see
+ * EmrService#buildPatientSearchIndexBatch), each in its own transaction, clearing the session between batches
+ *
+ * How far the build has got is saved along with each batch, so a build that is interrupted by a restart carries on
+ * from where it left off. Building starts whenever emr.patientSearchIndex.enabled is turned on; when it is turned off,
+ * the index is no longer maintained, so we forget how far it had got, and it is built again from scratch the next
+ * time it is turned on.
+ */
+public class PatientSearchIndexBuilder implements GlobalPropertyListener {
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private DaemonToken daemonToken;
+
+    private volatile boolean running = false;
+
+    private volatile boolean stopped = false;
+
+    public void setDaemonToken(DaemonToken daemonToken) {
+        this.daemonToken = daemonToken;
+    }
+
+    /**
+     * Starts building the index in the background, unless we are already doing so (in which case we make sure the
+     * build carries on, even if it had been asked to stop)
+     */
+    public synchronized void start() {
+        if (daemonToken == null) {
+            throw new IllegalStateException("Cannot build the patient search index before the module has been given a daemon token");
+        }
+        stopped = false;
+        if (running) {
+            return;
+        }
+        running = true;
+
+        Daemon.runInDaemonThread(new Runnable() {
+            @Override
+            public void run() {
+                boolean stoppedEarly = false;
+                try {
+                    stoppedEarly = build();
+                }
+                finally {
+                    finished(stoppedEarly);
+                }
+            }
+        }, daemonToken);
+    }
+
+    /**
+     * Stops building the index after the batch currently being indexed
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    // if the build was stopped, but then started again before it had finished, it has to carry on
+    private synchronized void finished(boolean stoppedEarly) {
+        running = false;
+        if (stoppedEarly && !stopped) {
+            start();
+        }
+    }
+
+    // called on the daemon thread, returns true if the build was stopped before it was complete
+    protected boolean build() {
+        long start = System.currentTimeMillis();
+        int batches = 0;
+        try {
+            EmrService emrService = Context.getService(EmrService.class);
+            while (!stopped && emrService.buildPatientSearchIndexBatch()) {
+                ++batches;
+                Context.clearSession();
+            }
+            log.info("Indexed " + batches + " batches of patients for the patient search index in "
+                    + (System.currentTimeMillis() - start) + " ms" + (stopped ? " before being stopped" : ""));
+            return stopped;
+        }
+        catch (Exception e) {
+            log.error("Unable to build patient search index after " + batches + " batches", e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean supportsPropertyName(String propertyName) {
+        return EmrConstants.GP_PATIENT_SEARCH_INDEX_ENABLED.equals(propertyName);
+    }
+
+    @Override
+    public void globalPropertyChanged(GlobalProperty newValue) {
+        if (Boolean.parseBoolean(newValue.getPropertyValue())) {
+            start();
+        }
+        else {
+            disabled();
+        }
+    }
+
+    @Override
+    public void globalPropertyDeleted(String propertyName) {
+        disabled();
+    }
+
+    private void disabled() {
+        stop();
+        Context.getAdministrationService().setGlobalProperty(EmrConstants.GP_PATIENT_SEARCH_INDEX_PROGRESS, "");
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.patient;
+
+import org.openmrs.Person;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Just enough about a (non-voided) patient to show them in a list of patient search results, read straight out of the
+ * database without loading the patient, their names or their identifiers
+ */
+public class PatientSearchResult {
+
+    private Integer patientId;
+
+    private String gender;
+
+    private Date birthdate;
+
+    private Boolean birthdateEstimated;
+
+    private Boolean dead;
+
+    private Date deathDate;
+
+    private String prefix;
+
+    private String givenName;
+
+    private String middleName;
+
+    private String familyNamePrefix;
+
+    private String familyName;
+
+    private String familyName2;
+
+    private String familyNameSuffix;
+
+    private String degree;
+
+    private List<String> primaryIdentifiers = new ArrayList<String>();
+
+    public PatientSearchResult(Integer patientId) {
+        this.patientId = patientId;
+    }
+
+    public Integer getPatientId() {
+        return patientId;
+    }
+
+    public String getGender() {
+        return gender;
+    }
+
+    public void setGender(String gender) {
+        this.gender = gender;
+    }
+
+    public Date getBirthdate() {
+        return birthdate;
+    }
+
+    public void setBirthdate(Date birthdate) {
+        this.birthdate = birthdate;
+    }
+
+    public Boolean getBirthdateEstimated() {
+        return birthdateEstimated;
+    }
+
+    public void setBirthdateEstimated(Boolean birthdateEstimated) {
+        this.birthdateEstimated = birthdateEstimated;
+    }
+
+    public Boolean getDead() {
+        return dead;
+    }
+
+    public void setDead(Boolean dead) {
+        this.dead = dead;
+    }
+
+    public Date getDeathDate() {
+        return deathDate;
+    }
+
+    public void setDeathDate(Date deathDate) {
+        this.deathDate = deathDate;
+    }
+
+    /**
+     * @return the age of the patient, calculated the same way as Person#getAge
+     */
+    public Integer getAge() {
+        Person person = new Person();
+        person.setBirthdate(birthdate);
+        person.setDead(dead);
+        person.setDeathDate(deathDate);
+        return person.getAge();
+    }
+
+    /*
+     * The name parts below are those of the preferred (non-voided) name of the patient, or of their first non-voided
+     * name if none is preferred
+     */
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public String getGivenName() {
+        return givenName;
+    }
+
+    public void setGivenName(String givenName) {
+        this.givenName = givenName;
+    }
+
+    public String getMiddleName() {
+        return middleName;
+    }
+
+    public void setMiddleName(String middleName) {
+        this.middleName = middleName;
+    }
+
+    public String getFamilyNamePrefix() {
+        return familyNamePrefix;
+    }
+
+    public void setFamilyNamePrefix(String familyNamePrefix) {
+        this.familyNamePrefix = familyNamePrefix;
+    }
+
+    public String getFamilyName() {
+        return familyName;
+    }
+
+    public void setFamilyName(String familyName) {
+        this.familyName = familyName;
+    }
+
+    public String getFamilyName2() {
+        return familyName2;
+    }
+
+    public void setFamilyName2(String familyName2) {
+        this.familyName2 = familyName2;
+    }
+
+    public String getFamilyNameSuffix() {
+        return familyNameSuffix;
+    }
+
+    public void setFamilyNameSuffix(String familyNameSuffix) {
+        this.familyNameSuffix = familyNameSuffix;
+    }
+
+    public String getDegree() {
+        return degree;
+    }
+
+    public void setDegree(String degree) {
+        this.degree = degree;
+    }
+
+    /**
+     * @return the non-voided identifiers of the patient of the primary identifier type, preferred one first
+     */
+    public List<String> getPrimaryIdentifiers() {
+        return primaryIdentifiers;
+    }
+
+    public void addPrimaryIdentifier(String identifier) {
+        primaryIdentifiers.add(identifier);
+    }
+
+}
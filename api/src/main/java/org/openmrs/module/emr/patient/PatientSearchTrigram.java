@@ -0,0 +1,201 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.patient;
+
+import org.apache.commons.lang.builder.EqualsBuilder;
+import org.apache.commons.lang.builder.HashCodeBuilder;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PersonName;
+
+import java.io.Serializable;
+import java.text.Normalizer;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * One row of the patient search index: a trigram that occurs in one of a patient's (non-voided) names or identifiers
+ *
+ * Values are normalized (accents removed, upper case, whitespace collapsed) and padded with two spaces in front and
+ * one behind, as in "  SMITH ", so that the trigrams a query needs to match the start of a name are anchored ones,
+ * like "  S" and " SM". Each word of a name with several words, like "JEAN BAPTISTE", is also padded on its own, since
+ * a query may match the start of any of them. A patient whose trigrams include every trigram of the query is a
+ * candidate; the search itself is still carried out by PatientSearchCriteria, among the candidates (see
+ * HibernateEmrDAO#findPatients).
+ */
+public class PatientSearchTrigram implements Serializable {
+
+    public static final String NAME = "N";
+
+    public static final String IDENTIFIER = "I";
+
+    private String kind;
+
+    private String trigram;
+
+    private Integer patientId;
+
+    public PatientSearchTrigram() {
+    }
+
+    public PatientSearchTrigram(String kind, String trigram, Integer patientId) {
+        this.kind = kind;
+        this.trigram = trigram;
+        this.patientId = patientId;
+    }
+
+    /**
+     * @param patient
+     * @return the trigrams of the given, middle and family names of the patient's non-voided names
+     */
+    public static Set<String> getNameTrigrams(Patient patient) {
+        Set<String> trigrams = new LinkedHashSet<String>();
+        for (PersonName name : patient.getNames()) {
+            if (!name.isVoided()) {
+                for (String part : new String[] { name.getGivenName(), name.getMiddleName(), name.getFamilyName(), name.getFamilyName2() }) {
+                    addNameTrigrams(trigrams, part);
+                }
+            }
+        }
+        return trigrams;
+    }
+
+    /**
+     * @param patient
+     * @return the trigrams of the patient's non-voided identifiers (of any type)
+     */
+    public static Set<String> getIdentifierTrigrams(Patient patient) {
+        Set<String> trigrams = new LinkedHashSet<String>();
+        for (PatientIdentifier identifier : patient.getIdentifiers()) {
+            if (!identifier.isVoided()) {
+                addTrigrams(trigrams, pad(identifier.getIdentifier()));
+            }
+        }
+        return trigrams;
+    }
+
+    /**
+     * @param query a name query, whose words must each match one of the names of the patient
+     * @param matchAnywhere whether the words may match anywhere in a name, rather than at the start
+     * @return the trigrams that any patient matching the query must have, or null if the query is too short for the
+     * index to narrow down (a word of less than three letters that may match anywhere)
+     */
+    public static Set<String> getQueryNameTrigrams(String query, boolean matchAnywhere) {
+        Set<String> trigrams = new LinkedHashSet<String>();
+        for (String word : normalize(query).split("[\\s,]+")) {
+            if (word.length() == 0) {
+                continue;
+            }
+            if (matchAnywhere) {
+                if (word.length() < 3) {
+                    return null;
+                }
+                addTrigrams(trigrams, word);
+            }
+            else {
+                addTrigrams(trigrams, "  " + word);
+            }
+        }
+        return trigrams.isEmpty() ? null : trigrams;
+    }
+
+    /**
+     * @param query an identifier query
+     * @return the trigrams that any patient with an identifier containing the query must have, or null if the query is
+     * too short for the index to narrow down
+     */
+    public static Set<String> getQueryIdentifierTrigrams(String query) {
+        String identifier = normalize(query);
+        if (identifier.length() < 3) {
+            return null;
+        }
+        Set<String> trigrams = new LinkedHashSet<String>();
+        addTrigrams(trigrams, identifier);
+        return trigrams;
+    }
+
+    /**
+     * @param value
+     * @return the value without accents, in upper case, with runs of whitespace collapsed to a single space
+     */
+    public static String normalize(String value) {
+        if (value == null) {
+            return "";
+        }
+        String normalized = Normalizer.normalize(value, Normalizer.Form.NFD).replaceAll("\\p{InCombiningDiacriticalMarks}+", "");
+        return normalized.toUpperCase(Locale.ENGLISH).replaceAll("\\s+", " ").trim();
+    }
+
+    private static void addNameTrigrams(Set<String> trigrams, String name) {
+        String normalized = normalize(name);
+        addTrigrams(trigrams, pad(normalized));
+        if (normalized.indexOf(' ') >= 0) {
+            for (String word : normalized.split(" ")) {
+                addTrigrams(trigrams, pad(word));
+            }
+        }
+    }
+
+    private static String pad(String value) {
+        String normalized = normalize(value);
+        return normalized.length() == 0 ? "" : "  " + normalized + " ";
+    }
+
+    private static void addTrigrams(Set<String> trigrams, String value) {
+        for (int i = 0; i + 3 <= value.length(); ++i) {
+            trigrams.add(value.substring(i, i + 3));
+        }
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    public void setKind(String kind) {
+        this.kind = kind;
+    }
+
+    public String getTrigram() {
+        return trigram;
+    }
+
+    public void setTrigram(String trigram) {
+        this.trigram = trigram;
+    }
+
+    public Integer getPatientId() {
+        return patientId;
+    }
+
+    public void setPatientId(Integer patientId) {
+        this.patientId = patientId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof PatientSearchTrigram)) {
+            return false;
+        }
+        PatientSearchTrigram other = (PatientSearchTrigram) o;
+        return new EqualsBuilder().append(kind, other.kind).append(trigram, other.trigram).append(patientId, other.patientId).isEquals();
+    }
+
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder().append(kind).append(trigram).append(patientId).toHashCode();
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.printer;
+
+import org.openmrs.BaseOpenmrsObject;
+import org.openmrs.User;
+
+import java.util.Date;
+
+/**
+ * A piece of data that has been queued to be sent to a printer
+ *
+ * Print jobs are persisted when they are queued (within the same transaction as whatever caused them to be queued),
+ * and are then sent to the printer in the background once that transaction has committed, so that a slow or
+ * unreachable printer never holds up the request that wanted something printed.
+ *
+ * QUEUED--the job is waiting to be sent to the printer (either for the first time, or to be retried)
+ *
+ * PRINTED--the job was successfully sent to the printer
+ *
+ * FAILED--we gave up trying to send the job to the printer
+ */
+public class PrintJob extends BaseOpenmrsObject {
+
+    public enum Status { QUEUED, PRINTED, FAILED }
+
+    private Integer printJobId;
+
+    private Printer printer;
+
+    private String data;
+
+    private String encoding;
+
+    private Status status = Status.QUEUED;
+
+    private Integer attempts = 0;
+
+    private String lastError;
+
+    private User creator;
+
+    private Date dateCreated;
+
+    private Date dateStatusChanged;
+
+    public PrintJob() {
+    }
+
+    public void updateStatus(Status status) {
+        this.status = status;
+        this.dateStatusChanged = new Date();
+    }
+
+    @Override
+    public Integer getId() {
+        return printJobId;
+    }
+
+    @Override
+    public void setId(Integer id) {
+        this.printJobId = id;
+    }
+
+    public Integer getPrintJobId() {
+        return printJobId;
+    }
+
+    public void setPrintJobId(Integer printJobId) {
+        this.printJobId = printJobId;
+    }
+
+    public Printer getPrinter() {
+        return printer;
+    }
+
+    public void setPrinter(Printer printer) {
+        this.printer = printer;
+    }
+
+    public String getData() {
+        return data;
+    }
+
+    public void setData(String data) {
+        this.data = data;
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    public void setEncoding(String encoding) {
+        this.encoding = encoding;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public Integer getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(Integer attempts) {
+        this.attempts = attempts;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+
+    public User getCreator() {
+        return creator;
+    }
+
+    public void setCreator(User creator) {
+        this.creator = creator;
+    }
+
+    public Date getDateCreated() {
+        return dateCreated;
+    }
+
+    public void setDateCreated(Date dateCreated) {
+        this.dateCreated = dateCreated;
+    }
+
+    public Date getDateStatusChanged() {
+        return dateStatusChanged;
+    }
+
+    public void setDateStatusChanged(Date dateStatusChanged) {
+        this.dateStatusChanged = dateStatusChanged;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.printer;
+
+/**
+ * Counts the batches of print jobs that have been sent to printers in the background since startup (see
+ * PrintJobDispatcher), so that we can see how well jobs are being coalesced, and how long they wait before being sent
+ */
+public class PrintJobBatchStatistics {
+
+    private long batches = 0;
+
+    private long printJobs = 0;
+
+    private int maxBatchSize = 0;
+
+    private long totalLatency = 0;
+
+    private long maxLatency = 0;
+
+    /**
+     * @param batchSize the number of print jobs in the batch
+     * @param latency how long (in milliseconds) the first job of the batch waited before the batch was sent
+     */
+    synchronized void record(int batchSize, long latency) {
+        ++batches;
+        printJobs += batchSize;
+        maxBatchSize = Math.max(maxBatchSize, batchSize);
+        totalLatency += latency;
+        maxLatency = Math.max(maxLatency, latency);
+    }
+
+    public synchronized long getBatches() {
+        return batches;
+    }
+
+    public synchronized long getPrintJobs() {
+        return printJobs;
+    }
+
+    public synchronized int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public synchronized double getAverageBatchSize() {
+        return batches == 0 ? 0 : (double) printJobs / batches;
+    }
+
+    /**
+     * @return the longest time (in milliseconds) the first job of a batch has waited before the batch was sent
+     */
+    public synchronized long getMaxLatency() {
+        return maxLatency;
+    }
+
+    /**
+     * @return the average time (in milliseconds) the first job of a batch waited before the batch was sent
+     */
+    public synchronized double getAverageLatency() {
+        return batches == 0 ? 0 : (double) totalLatency / batches;
+    }
+
+}
@@ -0,0 +1,381 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.printer;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.emr.EmrConstants;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends queued print jobs to their printers in the background
+ *
+ * Each printer gets its own worker thread, so jobs sent to the same printer are sent one at a time, in the order they
+ * were dispatched, and a slow or unreachable printer only holds up the jobs waiting for that printer. If a job can't be
+ * sent, it is retried (waiting twice as long before each retry) until maxAttempts is reached, after which it is marked
+ * as FAILED.
+ *
+ * Jobs for the same printer are coalesced: once a job is dispatched we wait batchWindow milliseconds (or until
+ * maxBatchSize jobs are waiting) and then send all the waiting jobs to the printer in a single write. So when an
+ * archivist assigns forty requests at once, the printer gets one write of forty labels instead of forty writes. Each
+ * job is encoded once, straight into a buffer that the printer's worker reuses from batch to batch, and the bytes are
+ * written to the printer as they are. The size of each batch and how long it waited are counted in the statistics.
+ *
+ * The status of each job is saved after every attempt, so that a job that was queued before a server restart can
+ * be picked up again (see PrinterService#dispatchQueuedPrintJobs()), and so that the UI can report failures.
+ */
+public class PrintJobDispatcher {
+
+    private static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+    private static final long DEFAULT_INITIAL_RETRY_DELAY = 2000;  // 2s
+
+    private static final long DEFAULT_BATCH_WINDOW = 200;  // 0.2s
+
+    private static final int DEFAULT_MAX_BATCH_SIZE = 50;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final Map<Integer, ScheduledExecutorService> workers = new HashMap<Integer, ScheduledExecutorService>();
+
+    private final Map<Integer, Batch> batches = new HashMap<Integer, Batch>();
+
+    private final PrintJobBatchStatistics statistics = new PrintJobBatchStatistics();
+
+    private boolean shutdown = false;
+
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    private long initialRetryDelay = DEFAULT_INITIAL_RETRY_DELAY;
+
+    private long batchWindow = DEFAULT_BATCH_WINDOW;
+
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public void setInitialRetryDelay(long initialRetryDelay) {
+        this.initialRetryDelay = initialRetryDelay;
+    }
+
+    public void setBatchWindow(long batchWindow) {
+        this.batchWindow = batchWindow;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public PrintJobBatchStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Hands the specified (already saved) print job to the worker for its printer
+     *
+     * @param printJob
+     */
+    public void dispatch(PrintJob printJob) {
+        enqueue(printJob.getPrinter().getId(), printJob.getId());
+    }
+
+    /**
+     * Stops all the workers; any jobs that haven't been sent remain QUEUED
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        for (ScheduledExecutorService worker : workers.values()) {
+            worker.shutdownNow();
+        }
+        workers.clear();
+    }
+
+    /**
+     * Sends the specified print jobs to their printer, as a single write per encoding; called on the worker thread
+     * for the jobs' printer
+     *
+     * @param printJobIds the jobs to send, which must all be for the same printer
+     * @param buffer used to assemble the encoded data to send (cleared before use)
+     * @return the jobs that should be retried, mapped to the delay before they should be retried
+     */
+    protected Map<Integer, Long> send(List<Integer> printJobIds, Buffer buffer) {
+
+        PrinterService printerService = getPrinterService();
+        Map<Integer, Long> retries = new LinkedHashMap<Integer, Long>();
+
+        // group the jobs by encoding, since each write can only use one encoding (in practice, they'll all be the same)
+        Map<String, List<PrintJob>> jobsByEncoding = new LinkedHashMap<String, List<PrintJob>>();
+
+        for (Integer printJobId : printJobIds) {
+            PrintJob printJob = printerService.getPrintJobById(printJobId);
+
+            // someone else may have already handled this job (for instance, if it was dispatched twice)
+            if (printJob == null || printJob.getStatus() != PrintJob.Status.QUEUED) {
+                continue;
+            }
+
+            if (!jobsByEncoding.containsKey(printJob.getEncoding())) {
+                jobsByEncoding.put(printJob.getEncoding(), new ArrayList<PrintJob>());
+            }
+            jobsByEncoding.get(printJob.getEncoding()).add(printJob);
+        }
+
+        for (Map.Entry<String, List<PrintJob>> entry : jobsByEncoding.entrySet()) {
+
+            List<PrintJob> printJobs = entry.getValue();
+            Printer printer = printJobs.get(0).getPrinter();
+
+            for (PrintJob printJob : printJobs) {
+                printJob.setAttempts(printJob.getAttempts() + 1);
+            }
+
+            String error = null;
+
+            try {
+                buffer.reset();
+                for (PrintJob printJob : printJobs) {
+                    buffer.write(printJob.getData().getBytes(entry.getKey()));
+                }
+                printerService.printViaSocket(buffer.getBytes(), buffer.size(), printer);
+            }
+            catch (Exception e) {
+                log.warn("Failed to send batch of " + printJobs.size() + " print jobs to printer " + printer.getName(), e);
+                error = StringUtils.abbreviate(getMessage(e), 1024);
+            }
+
+            for (PrintJob printJob : printJobs) {
+                printJob.setLastError(error);
+
+                if (error == null) {
+                    printJob.updateStatus(PrintJob.Status.PRINTED);
+                }
+                else if (printJob.getAttempts() >= maxAttempts) {
+                    log.error("Giving up on print job " + printJob.getId() + " after " + printJob.getAttempts() + " attempts");
+                    printJob.updateStatus(PrintJob.Status.FAILED);
+                }
+                else {
+                    // back off exponentially: 2s, 4s, 8s...
+                    retries.put(printJob.getId(), initialRetryDelay * (1L << (printJob.getAttempts() - 1)));
+                }
+
+                printerService.savePrintJob(printJob);
+            }
+        }
+
+        return retries;
+    }
+
+    // the worker threads have no user context of their own, so we open a session and grant ourselves the privileges
+    // we need to load and save the print job; broken out into a separate method so that we can override it for testing
+    protected void runInSession(Runnable runnable) {
+        Context.openSession();
+        try {
+            Context.addProxyPrivilege(EmrConstants.PRIVILEGE_PRINTERS_ACCESS_PRINTERS);
+            runnable.run();
+        }
+        finally {
+            Context.removeProxyPrivilege(EmrConstants.PRIVILEGE_PRINTERS_ACCESS_PRINTERS);
+            Context.closeSession();
+        }
+    }
+
+    protected PrinterService getPrinterService() {
+        return Context.getService(PrinterService.class);
+    }
+
+    private void enqueue(Integer printerId, Integer printJobId) {
+
+        Batch batch = getBatch(printerId);
+
+        synchronized (batch) {
+            if (batch.printJobIds.isEmpty()) {
+                batch.firstEnqueued = System.currentTimeMillis();
+            }
+            batch.printJobIds.add(printJobId);
+
+            // flush once the window has passed, or right away if we've already got a full batch
+            if (batch.printJobIds.size() >= maxBatchSize) {
+                schedule(printerId, flush(printerId), 0);
+            }
+            else if (!batch.flushScheduled) {
+                batch.flushScheduled = schedule(printerId, flush(printerId), batchWindow);
+            }
+        }
+    }
+
+    private Runnable flush(final Integer printerId) {
+        return new Runnable() {
+            @Override
+            public void run() {
+
+                final Batch batch = getBatch(printerId);
+                final List<Integer> printJobIds = new ArrayList<Integer>();
+                long firstEnqueued;
+
+                synchronized (batch) {
+                    batch.flushScheduled = false;
+                    firstEnqueued = batch.firstEnqueued;
+
+                    while (!batch.printJobIds.isEmpty() && printJobIds.size() < maxBatchSize) {
+                        printJobIds.add(batch.printJobIds.removeFirst());
+                    }
+
+                    // anything that didn't fit in this batch goes in the next one
+                    if (!batch.printJobIds.isEmpty()) {
+                        batch.firstEnqueued = System.currentTimeMillis();
+                        batch.flushScheduled = schedule(printerId, flush(printerId), 0);
+                    }
+                }
+
+                if (printJobIds.isEmpty()) {
+                    return;
+                }
+
+                try {
+                    runInSession(new Runnable() {
+                        @Override
+                        public void run() {
+                            // only the worker for this printer uses its buffer, so we can reuse it from batch to batch
+                            Map<Integer, Long> retries = send(printJobIds, batch.buffer);
+
+                            for (Map.Entry<Integer, Long> retry : retries.entrySet()) {
+                                scheduleRetry(printerId, retry.getKey(), retry.getValue());
+                            }
+                        }
+                    });
+                }
+                catch (Exception e) {
+                    // the jobs stay QUEUED, and will be picked up again the next time queued jobs are dispatched
+                    log.error("Unable to process print jobs " + printJobIds, e);
+                }
+
+                long latency = System.currentTimeMillis() - firstEnqueued;
+                statistics.record(printJobIds.size(), latency);
+                if (log.isDebugEnabled()) {
+                    log.debug("Flushed batch of " + printJobIds.size() + " print jobs for printer " + printerId + " in "
+                            + latency + " ms");
+                }
+            }
+        };
+    }
+
+    private void scheduleRetry(final Integer printerId, final Integer printJobId, long delay) {
+        schedule(printerId, new Runnable() {
+            @Override
+            public void run() {
+                enqueue(printerId, printJobId);
+            }
+        }, delay);
+    }
+
+    private boolean schedule(Integer printerId, Runnable runnable, long delay) {
+
+        ScheduledExecutorService worker = getWorker(printerId);
+
+        if (worker == null) {
+            // we've been shut down; the job stays QUEUED
+            return false;
+        }
+
+        worker.schedule(runnable, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    private synchronized ScheduledExecutorService getWorker(final Integer printerId) {
+
+        if (shutdown) {
+            return null;
+        }
+
+        ScheduledExecutorService worker = workers.get(printerId);
+
+        if (worker == null) {
+            worker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "emr-printer-" + printerId);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            workers.put(printerId, worker);
+        }
+
+        return worker;
+    }
+
+    private synchronized Batch getBatch(Integer printerId) {
+        Batch batch = batches.get(printerId);
+        if (batch == null) {
+            batch = new Batch();
+            batches.put(printerId, batch);
+        }
+        return batch;
+    }
+
+    private String getMessage(Throwable throwable) {
+        // the interesting message (ie, "connection refused") is usually on the cause
+        String message = throwable.getMessage();
+        if (throwable.getCause() != null && throwable.getCause().getMessage() != null) {
+            message = message + ": " + throwable.getCause().getMessage();
+        }
+        return message;
+    }
+
+    /**
+     * A byte buffer whose contents can be written out without first being copied
+     */
+    static class Buffer extends ByteArrayOutputStream {
+
+        /**
+         * @return the buffer itself, of which only the first #size() bytes are in use
+         */
+        byte[] getBytes() {
+            return buf;
+        }
+
+    }
+
+    /**
+     * The jobs waiting to be sent to a single printer
+     */
+    private static class Batch {
+
+        private final LinkedList<Integer> printJobIds = new LinkedList<Integer>();
+
+        private final Buffer buffer = new Buffer();
+
+        private long firstEnqueued;
+
+        private boolean flushScheduled = false;
+
+    }
+
+}
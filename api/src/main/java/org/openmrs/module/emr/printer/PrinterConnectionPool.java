@@ -0,0 +1,431 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.printer;
+
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps socket connections to printers open between print jobs, so that we don't pay for a DNS lookup and a new TCP
+ * connection for every label we print
+ *
+ * Connections are pooled by printer id; at most maxConnectionsPerPrinter connections to a single printer are in use at
+ * once, and idle connections are closed once they haven't been used for idleTimeout milliseconds. Before an idle
+ * connection is reused we check that the printer hasn't closed it in the meantime.
+ *
+ * The address of each printer is only looked up again if its ip address or port change, or if we fail to connect to
+ * it.
+ *
+ * Printers that haven't been saved (and therefore have no id) are never pooled: we connect, print, and close, as we
+ * always have.
+ */
+public abstract class PrinterConnectionPool {
+
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_PRINTER = 2;
+
+    private static final long DEFAULT_IDLE_TIMEOUT = 60000;  // 1 minute
+
+    private static final long DEFAULT_MAX_WAIT = 10000;  // 10s
+
+    private static final int CONNECT_TIMEOUT = 1000;   // 1s
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final Map<Integer, LinkedList<Connection>> idleConnections = new HashMap<Integer, LinkedList<Connection>>();
+
+    private final Map<Integer, Semaphore> permits = new HashMap<Integer, Semaphore>();
+
+    private final Map<Integer, ResolvedAddress> resolvedAddresses = new HashMap<Integer, ResolvedAddress>();
+
+    private int maxConnectionsPerPrinter = DEFAULT_MAX_CONNECTIONS_PER_PRINTER;
+
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    private long maxWait = DEFAULT_MAX_WAIT;
+
+    public void setMaxConnectionsPerPrinter(int maxConnectionsPerPrinter) {
+        this.maxConnectionsPerPrinter = maxConnectionsPerPrinter;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Gets a connection to the specified printer, reusing an idle one if possible; the caller *must* pass the
+     * connection to #release when done with it
+     *
+     * @param printer
+     * @return
+     * @throws IOException if we are unable to connect to the printer, or if we have to wait too long for one of the
+     *         printer's connections to become available
+     */
+    public Connection getConnection(Printer printer) throws IOException {
+
+        InetSocketAddress address = getAddress(printer);
+        Integer printerId = printer.getId();
+
+        if (printerId == null) {
+            return new Connection(null, address, connect(null, address), false);
+        }
+
+        acquirePermit(printer);
+
+        try {
+            Connection connection = getIdleConnection(printerId, address);
+
+            if (connection == null) {
+                connection = new Connection(printerId, address, connect(printerId, address), false);
+            }
+
+            return connection;
+        }
+        catch (IOException e) {
+            getPermits(printerId).release();
+            throw e;
+        }
+        catch (RuntimeException e) {
+            getPermits(printerId).release();
+            throw e;
+        }
+    }
+
+    /**
+     * Replaces the socket of a connection that turned out to be unusable with a brand new one
+     *
+     * @param connection
+     * @return
+     * @throws IOException if we are unable to connect to the printer
+     */
+    public Connection reconnect(Connection connection) throws IOException {
+        close(connection.getSocket());
+        Socket socket = connect(connection.printerId, connection.address);
+        return new Connection(connection.printerId, connection.address, socket, false);
+    }
+
+    /**
+     * Returns a connection obtained via #getConnection to the pool
+     *
+     * @param connection
+     * @param reusable false if something went wrong while using the connection, in which case it is closed
+     */
+    public void release(Connection connection, boolean reusable) {
+
+        if (connection.printerId == null) {
+            close(connection.getSocket());
+            return;
+        }
+
+        try {
+            if (reusable && !connection.getSocket().isClosed()) {
+                connection.lastUsed = System.currentTimeMillis();
+                synchronized (this) {
+                    getIdleConnections(connection.printerId).addFirst(connection);
+                }
+            }
+            else {
+                close(connection.getSocket());
+            }
+
+            evictIdleConnections();
+        }
+        finally {
+            getPermits(connection.printerId).release();
+        }
+    }
+
+    /**
+     * Closes all idle connections
+     */
+    public void closeAll() {
+
+        LinkedList<Connection> toClose = new LinkedList<Connection>();
+
+        synchronized (this) {
+            for (LinkedList<Connection> connections : idleConnections.values()) {
+                toClose.addAll(connections);
+            }
+            idleConnections.clear();
+            resolvedAddresses.clear();
+        }
+
+        for (Connection connection : toClose) {
+            close(connection.getSocket());
+        }
+    }
+
+    /**
+     * Closes any idle connections that haven't been used within the idle timeout
+     */
+    public void evictIdleConnections() {
+
+        long cutoff = System.currentTimeMillis() - idleTimeout;
+        LinkedList<Connection> toClose = new LinkedList<Connection>();
+
+        synchronized (this) {
+            for (LinkedList<Connection> connections : idleConnections.values()) {
+                Iterator<Connection> i = connections.iterator();
+                while (i.hasNext()) {
+                    Connection connection = i.next();
+                    if (connection.lastUsed < cutoff) {
+                        i.remove();
+                        toClose.add(connection);
+                    }
+                }
+            }
+        }
+
+        for (Connection connection : toClose) {
+            close(connection.getSocket());
+        }
+    }
+
+    // broken out so that the printer service can supply the socket (which lets us mock the socket for testing)
+    protected abstract Socket createSocket();
+
+    // looks up the address of a printer; broken out so that we can count the lookups for testing
+    protected InetSocketAddress resolve(String ipAddress, String port) throws IOException {
+        InetAddress addr = InetAddress.getByName(ipAddress);
+        return new InetSocketAddress(addr, Integer.valueOf(port));
+    }
+
+    /**
+     * Checks that the printer hasn't closed a pooled connection since we last used it; printers don't normally send
+     * us anything, so if a read doesn't immediately time out, the other end has hung up
+     */
+    protected boolean isValid(Socket socket) {
+
+        if (socket.isClosed() || !socket.isConnected() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+            return false;
+        }
+
+        try {
+            int originalTimeout = socket.getSoTimeout();
+            socket.setSoTimeout(1);
+            try {
+                InputStream in = socket.getInputStream();
+                while (in.available() > 0) {
+                    in.read();  // discard any status the printer sent back
+                }
+                return in.read() != -1;
+            }
+            catch (SocketTimeoutException e) {
+                // nothing to read, but the connection is still open
+                return true;
+            }
+            finally {
+                socket.setSoTimeout(originalTimeout);
+            }
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    private Connection getIdleConnection(Integer printerId, InetSocketAddress address) {
+
+        while (true) {
+            Connection connection;
+
+            synchronized (this) {
+                connection = getIdleConnections(printerId).pollFirst();
+            }
+
+            if (connection == null) {
+                return null;
+            }
+
+            // the printer's address may have been changed since the connection was opened
+            if (connection.address.equals(address) && System.currentTimeMillis() - connection.lastUsed < idleTimeout
+                    && isValid(connection.getSocket())) {
+                return new Connection(printerId, address, connection.getSocket(), true);
+            }
+
+            close(connection.getSocket());
+        }
+    }
+
+    private void acquirePermit(Printer printer) throws IOException {
+        try {
+            if (!getPermits(printer.getId()).tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for a connection to printer " + printer.getName());
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a connection to printer " + printer.getName());
+        }
+    }
+
+    private InetSocketAddress getAddress(Printer printer) throws IOException {
+
+        Integer printerId = printer.getId();
+        if (printerId == null) {
+            return resolve(printer.getIpAddress(), printer.getPort());
+        }
+
+        synchronized (this) {
+            ResolvedAddress resolved = resolvedAddresses.get(printerId);
+            if (resolved != null && resolved.isFor(printer)) {
+                return resolved.address;
+            }
+        }
+
+        InetSocketAddress address = resolve(printer.getIpAddress(), printer.getPort());
+
+        synchronized (this) {
+            resolvedAddresses.put(printerId, new ResolvedAddress(printer.getIpAddress(), printer.getPort(), address));
+        }
+
+        return address;
+    }
+
+    // if we can't connect, the printer's address may have changed, so we look it up again next time
+    private Socket connect(Integer printerId, InetSocketAddress address) throws IOException {
+        try {
+            return connect(address);
+        }
+        catch (IOException e) {
+            if (printerId != null) {
+                synchronized (this) {
+                    resolvedAddresses.remove(printerId);
+                }
+            }
+            throw e;
+        }
+    }
+
+    private Socket connect(InetSocketAddress address) throws IOException {
+
+        // Create an unbound socket
+        Socket socket = createSocket();
+
+        try {
+            // This method will block no more than the timeout.
+            // If the timeout occurs, SocketTimeoutException is thrown.
+            socket.connect(address, CONNECT_TIMEOUT);
+            socket.setKeepAlive(true);
+        }
+        catch (IOException e) {
+            close(socket);
+            throw e;
+        }
+
+        return socket;
+    }
+
+    private synchronized LinkedList<Connection> getIdleConnections(Integer printerId) {
+        LinkedList<Connection> connections = idleConnections.get(printerId);
+        if (connections == null) {
+            connections = new LinkedList<Connection>();
+            idleConnections.put(printerId, connections);
+        }
+        return connections;
+    }
+
+    private synchronized Semaphore getPermits(Integer printerId) {
+        Semaphore semaphore = permits.get(printerId);
+        if (semaphore == null) {
+            semaphore = new Semaphore(maxConnectionsPerPrinter, true);
+            permits.put(printerId, semaphore);
+        }
+        return semaphore;
+    }
+
+    private void close(Socket socket) {
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            log.error("failed to close socket to printer", e);
+        }
+    }
+
+    /**
+     * The address a printer's ip address and port were last resolved to
+     */
+    private static class ResolvedAddress {
+
+        private final String ipAddress;
+
+        private final String port;
+
+        private final InetSocketAddress address;
+
+        private ResolvedAddress(String ipAddress, String port, InetSocketAddress address) {
+            this.ipAddress = ipAddress;
+            this.port = port;
+            this.address = address;
+        }
+
+        private boolean isFor(Printer printer) {
+            return ObjectUtils.equals(ipAddress, printer.getIpAddress()) && ObjectUtils.equals(port, printer.getPort());
+        }
+    }
+
+    /**
+     * A socket connection to a printer, obtained from the pool
+     */
+    public static class Connection {
+
+        private final Integer printerId;
+
+        private final InetSocketAddress address;
+
+        private final Socket socket;
+
+        private final boolean reused;
+
+        private long lastUsed;
+
+        private Connection(Integer printerId, InetSocketAddress address, Socket socket, boolean reused) {
+            this.printerId = printerId;
+            this.address = address;
+            this.socket = socket;
+            this.reused = reused;
+        }
+
+        public Socket getSocket() {
+            return socket;
+        }
+
+        /**
+         * @return true if this connection had already been used to print something, and so may have been closed by
+         *         the printer without our noticing
+         */
+        public boolean isReused() {
+            return reused;
+        }
+    }
+
+}
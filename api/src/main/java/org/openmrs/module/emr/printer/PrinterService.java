@@ -19,6 +19,7 @@ import org.openmrs.annotation.Authorized;
 import org.openmrs.api.OpenmrsService;
 import org.openmrs.module.emr.EmrConstants;
 
+import java.util.Date;
 import java.util.List;
 
 public interface PrinterService extends OpenmrsService {
@@ -129,4 +130,82 @@ public interface PrinterService extends OpenmrsService {
     @Authorized(EmrConstants.PRIVILEGE_PRINTERS_ACCESS_PRINTERS)
     void printViaSocket(String data, Printer printer, String encoding)
         throws UnableToPrintViaSocketException;
+
+    /**
+     * Prints data that has already been encoded for the printer to the specified printer
+     *
+     * @param data
+     * @param length the number of bytes of data to print
+     * @param printer
+     */
+    @Authorized(EmrConstants.PRIVILEGE_PRINTERS_ACCESS_PRINTERS)
+    void printViaSocket(byte[] data, int length, Printer printer)
+        throws UnableToPrintViaSocketException;
+
+    /**
+     * Queues the string data to be printed in the background on the default printer of the specified type
+     * at the specified location; the data is sent to the printer once the current transaction commits
+     *
+     * @param data
+     * @param type
+     * @param location
+     * @param encoding
+     * @return the queued print job
+     * @throws IllegalStateException if there is no default printer of the specified type at the location
+     */
+    @Authorized(EmrConstants.PRIVILEGE_PRINTERS_ACCESS_PRINTERS)
+    PrintJob queuePrintJob(String data, Printer.Type type, Location location, String encoding);
+
+    /**
+     * Queues the string data to be printed in the background on the specified printer; the data is sent to the
+     * printer once the current transaction commits
+     *
+     * @param data
+     * @param printer
+     * @param encoding
+     * @return the queued print job
+     */
+    @Authorized(EmrConstants.PRIVILEGE_PRINTERS_ACCESS_PRINTERS)
+    PrintJob queuePrintJob(String data, Printer printer, String encoding);
+
+    /**
+     * Fetches a print job by id
+     *
+     * @param id
+     * @return
+     */
+    @Authorized(EmrConstants.PRIVILEGE_PRINTERS_ACCESS_PRINTERS)
+    PrintJob getPrintJobById(Integer id);
+
+    /**
+     * Fetches all print jobs with ANY of the specified statuses
+     *
+     * @param statusList
+     * @param printer restricts to jobs sent to this printer (if not null)
+     * @param statusChangedSince restricts to jobs whose status changed on or after this date (if not null)
+     * @return the matching print jobs, oldest first
+     */
+    @Authorized(EmrConstants.PRIVILEGE_PRINTERS_ACCESS_PRINTERS)
+    List<PrintJob> getPrintJobs(List<PrintJob.Status> statusList, Printer printer, Date statusChangedSince);
+
+    /**
+     * Saves a print job
+     *
+     * @param printJob
+     */
+    @Authorized(EmrConstants.PRIVILEGE_PRINTERS_ACCESS_PRINTERS)
+    void savePrintJob(PrintJob printJob);
+
+    /**
+     * Hands all QUEUED print jobs to the background workers; called on startup, so that jobs that were queued
+     * before the server was stopped are still printed
+     */
+    @Authorized(EmrConstants.PRIVILEGE_PRINTERS_ACCESS_PRINTERS)
+    void dispatchQueuedPrintJobs();
+
+    /**
+     * @return the counts of the batches of print jobs sent to printers in the background since startup
+     */
+    @Authorized(EmrConstants.PRIVILEGE_PRINTERS_MANAGE_PRINTERS)
+    PrintJobBatchStatistics getPrintJobBatchStatistics();
 }
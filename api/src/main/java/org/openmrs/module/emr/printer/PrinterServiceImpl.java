@@ -21,15 +21,18 @@ import org.openmrs.Location;
 import org.openmrs.LocationAttribute;
 import org.openmrs.LocationAttributeType;
 import org.openmrs.api.LocationService;
+import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
+import org.openmrs.module.emr.printer.db.PrintJobDAO;
 import org.openmrs.module.emr.printer.db.PrinterDAO;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketAddress;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 
 import static org.openmrs.module.emr.EmrConstants.LOCATION_ATTRIBUTE_TYPE_DEFAULT_PRINTER;
@@ -40,12 +43,35 @@ public class PrinterServiceImpl extends BaseOpenmrsService implements PrinterSer
 
     private PrinterDAO printerDAO;
 
+    private PrintJobDAO printJobDAO;
+
     private LocationService locationService;
 
+    private PrintJobDispatcher printJobDispatcher = new PrintJobDispatcher();
+
+    private PrinterConnectionPool printerConnectionPool = new PrinterConnectionPool() {
+        @Override
+        protected Socket createSocket() {
+            return PrinterServiceImpl.this.createSocket();
+        }
+    };
+
     public void setPrinterDAO(PrinterDAO printerDAO) {
         this.printerDAO = printerDAO;
     }
 
+    public void setPrintJobDAO(PrintJobDAO printJobDAO) {
+        this.printJobDAO = printJobDAO;
+    }
+
+    public void setPrintJobDispatcher(PrintJobDispatcher printJobDispatcher) {
+        this.printJobDispatcher = printJobDispatcher;
+    }
+
+    public void setPrinterConnectionPool(PrinterConnectionPool printerConnectionPool) {
+        this.printerConnectionPool = printerConnectionPool;
+    }
+
     public void setLocationService(LocationService locationService) {
         this.locationService = locationService;
     }
@@ -148,49 +174,164 @@ public class PrinterServiceImpl extends BaseOpenmrsService implements PrinterSer
     }
 
     @Override
-    public void printViaSocket(String data, Printer printer, String encoding)
+    public void printViaSocket(final String data, Printer printer, final String encoding)
         throws UnableToPrintViaSocketException {
 
-        Socket socket = null;
-        // Create a socket with a timeout
-        try {
-            InetAddress addr = InetAddress.getByName(printer.getIpAddress());
-            SocketAddress sockaddr = new InetSocketAddress(addr, Integer.valueOf(printer.getPort()));
+        printViaSocket(printer, new SocketWriter() {
+            @Override
+            public void write(Socket socket) throws IOException {
+                PrinterServiceImpl.this.write(socket, data, encoding);
+            }
+        });
+    }
+
+    @Override
+    public void printViaSocket(final byte[] data, final int length, Printer printer)
+        throws UnableToPrintViaSocketException {
 
-            // Create an unbound socket
-            socket = createSocket();
+        printViaSocket(printer, new SocketWriter() {
+            @Override
+            public void write(Socket socket) throws IOException {
+                socket.getOutputStream().write(data, 0, length);
+            }
+        });
+    }
 
-            // This method will block no more than timeoutMs.
-            // If the timeout occurs, SocketTimeoutException is thrown.
-            int timeoutMs = 1000;   // 1s
-            socket.connect(sockaddr, timeoutMs);
+    private void printViaSocket(Printer printer, SocketWriter writer) throws UnableToPrintViaSocketException {
 
-            if (encoding.equals("Windows-1252")) {
-                IOUtils.write(data.toString().getBytes("Windows-1252"), socket.getOutputStream());
+        PrinterConnectionPool.Connection connection = null;
+        boolean reusable = false;
+
+        try {
+            connection = printerConnectionPool.getConnection(printer);
+
+            try {
+                writer.write(connection.getSocket());
             }
-            else {
-                IOUtils.write(data.toString(), socket.getOutputStream(), encoding);
+            catch (IOException e) {
+                if (!connection.isReused()) {
+                    throw e;
+                }
+                // the printer may have dropped the pooled connection since we last used it, so try again on a new one
+                log.debug("Failed to print on pooled connection to printer " + printer.getName() + ", reconnecting", e);
+                connection = printerConnectionPool.reconnect(connection);
+                writer.write(connection.getSocket());
             }
+
+            reusable = true;
         }
         catch (Exception e) {
             throw new UnableToPrintViaSocketException("Unable to print to printer " + printer.getName(), e);
         }
-        finally{
-            try {
-                if (socket != null) {
-                    socket.close();
-                }
-            } catch (IOException e) {
-                log.error("failed to close the socket to printer " + printer.getName(), e);
+        finally {
+            if (connection != null) {
+                printerConnectionPool.release(connection, reusable);
             }
         }
     }
 
+    @Override
+    @Transactional
+    public PrintJob queuePrintJob(String data, Printer.Type type, Location location, String encoding) {
+        Printer printer = getDefaultPrinter(location, type);
+
+        if (printer == null) {
+            throw new IllegalStateException("No default printer assigned for " + location.getDisplayString() + ". Please contact your system administrator");
+        }
+
+        return queuePrintJob(data, printer, encoding);
+    }
+
+    @Override
+    @Transactional
+    public PrintJob queuePrintJob(String data, Printer printer, String encoding) {
+
+        final PrintJob printJob = new PrintJob();
+        printJob.setPrinter(printer);
+        printJob.setData(data);
+        printJob.setEncoding(encoding);
+        printJob.setCreator(Context.getAuthenticatedUser());
+        printJob.setDateCreated(new Date());
+        printJob.updateStatus(PrintJob.Status.QUEUED);
+
+        printJobDAO.saveOrUpdate(printJob);
+
+        // don't send the job until the transaction that queued it has committed (if it never commits, the job never existed)
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    printJobDispatcher.dispatch(printJob);
+                }
+            });
+        }
+        else {
+            printJobDispatcher.dispatch(printJob);
+        }
+
+        return printJob;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public PrintJob getPrintJobById(Integer id) {
+        return printJobDAO.getById(id);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<PrintJob> getPrintJobs(List<PrintJob.Status> statusList, Printer printer, Date statusChangedSince) {
+        return printJobDAO.findPrintJobs(statusList, printer, statusChangedSince);
+    }
+
+    @Override
+    @Transactional
+    public void savePrintJob(PrintJob printJob) {
+        printJobDAO.saveOrUpdate(printJob);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public void dispatchQueuedPrintJobs() {
+        for (PrintJob printJob : printJobDAO.findPrintJobs(Collections.singletonList(PrintJob.Status.QUEUED), null, null)) {
+            printJobDispatcher.dispatch(printJob);
+        }
+    }
+
+    @Override
+    public PrintJobBatchStatistics getPrintJobBatchStatistics() {
+        return printJobDispatcher.getStatistics();
+    }
+
+    @Override
+    public void onShutdown() {
+        printJobDispatcher.shutdown();
+        printerConnectionPool.closeAll();
+    }
+
+    private void write(Socket socket, String data, String encoding) throws IOException {
+        if (encoding.equals("Windows-1252")) {
+            IOUtils.write(data.toString().getBytes("Windows-1252"), socket.getOutputStream());
+        }
+        else {
+            IOUtils.write(data.toString(), socket.getOutputStream(), encoding);
+        }
+    }
+
     // do this is separate method so that we can override it for test purposes
     protected Socket createSocket() {
         return new Socket();
     }
 
+    /**
+     * Writes whatever we are printing to a socket connected to the printer
+     */
+    private interface SocketWriter {
+
+        void write(Socket socket) throws IOException;
+
+    }
+
 
     private LocationAttributeType getLocationAttributeTypeDefaultPrinter(Printer.Type type) {
 
@@ -0,0 +1,59 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.printer.db;
+
+import org.hibernate.Criteria;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Restrictions;
+import org.openmrs.module.emr.api.db.hibernate.HibernateSingleClassDAO;
+import org.openmrs.module.emr.printer.PrintJob;
+import org.openmrs.module.emr.printer.Printer;
+
+import java.util.Date;
+import java.util.List;
+
+public class HibernatePrintJobDAO extends HibernateSingleClassDAO<PrintJob> implements PrintJobDAO {
+
+    public HibernatePrintJobDAO() {
+        super(PrintJob.class);
+    }
+
+    @Override
+    public List<PrintJob> findPrintJobs(List<PrintJob.Status> statusList, Printer printer, Date statusChangedSince) {
+
+        Criteria criteria = createPrintJobCriteria();
+
+        if (statusList != null) {
+            criteria.add(Restrictions.in("status", statusList));
+        }
+
+        if (printer != null) {
+            criteria.add(Restrictions.eq("printer", printer));
+        }
+
+        if (statusChangedSince != null) {
+            criteria.add(Restrictions.ge("dateStatusChanged", statusChangedSince));
+        }
+
+        criteria.addOrder(Order.asc("dateCreated"));
+
+        return (List<PrintJob>) criteria.list();
+    }
+
+    private Criteria createPrintJobCriteria() {
+        return sessionFactory.getCurrentSession().createCriteria(PrintJob.class);
+    }
+
+}
@@ -0,0 +1,36 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.printer.db;
+
+import org.openmrs.module.emr.api.db.SingleClassDAO;
+import org.openmrs.module.emr.printer.PrintJob;
+import org.openmrs.module.emr.printer.Printer;
+
+import java.util.Date;
+import java.util.List;
+
+public interface PrintJobDAO extends SingleClassDAO<PrintJob> {
+
+    /**
+     * Fetches all print jobs with ANY of the specified statuses
+     *
+     * @param statusList
+     * @param printer restricts to jobs sent to this printer (if not null)
+     * @param statusChangedSince restricts to jobs whose status changed on or after this date (if not null)
+     * @return the matching print jobs, oldest first
+     */
+    List<PrintJob> findPrintJobs(List<PrintJob.Status> statusList, Printer printer, Date statusChangedSince);
+
+}
@@ -138,7 +138,7 @@ public class EmrContextArgumentProvider implements PageModelConfigurator, Fragme
                     emrContext.setCurrentPatient(patient);
 
                     Location visitLocation = adtService.getLocationThatSupportsVisits(emrContext.getSessionLocation());
-                    Visit activeVisit = adtService.getActiveVisit(patient, visitLocation);
+                    Visit activeVisit = adtService.findActiveVisit(patient, visitLocation);
                     if (activeVisit != null) {
                         emrContext.setActiveVisitSummary(new VisitSummary(activeVisit, emrProperties));
                     }
@@ -0,0 +1,105 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.utils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the metadata that global properties have been resolved to (ie, the id and uuid of the
+ * encounter type that "emr.checkInEncounterType" names), so that the global property and the lookup by uuid don't
+ * have to be repeated every time the metadata is needed
+ *
+ * Resolving another global property produces a new snapshot (see #with) rather than changing this one, and each
+ * snapshot belongs to a generation, so that a value resolved against an old generation can be discarded once a
+ * global property change has replaced the snapshot.
+ */
+public class MetadataSnapshot {
+
+    private final long generation;
+
+    private final long created;
+
+    private final Map<String, Entry> entries;
+
+    public MetadataSnapshot(long generation) {
+        this(generation, System.currentTimeMillis(), Collections.<String, Entry>emptyMap());
+    }
+
+    private MetadataSnapshot(long generation, long created, Map<String, Entry> entries) {
+        this.generation = generation;
+        this.created = created;
+        this.entries = entries;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return when this generation of the snapshot was started
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean contains(String globalPropertyName) {
+        return entries.containsKey(globalPropertyName);
+    }
+
+    /**
+     * @param globalPropertyName
+     * @return what globalPropertyName was resolved to, or null if it hasn't been
+     */
+    public Entry get(String globalPropertyName) {
+        return entries.get(globalPropertyName);
+    }
+
+    /**
+     * @return a copy of this snapshot (in the same generation) that also has globalPropertyName resolved to the
+     * specified metadata
+     */
+    public MetadataSnapshot with(String globalPropertyName, Integer id, String uuid) {
+        Map<String, Entry> copy = new HashMap<String, Entry>(entries);
+        copy.put(globalPropertyName, new Entry(id, uuid));
+        return new MetadataSnapshot(generation, created, Collections.unmodifiableMap(copy));
+    }
+
+    public static class Entry {
+
+        private final Integer id;
+
+        private final String uuid;
+
+        private Entry(Integer id, String uuid) {
+            this.id = id;
+            this.uuid = uuid;
+        }
+
+        public Integer getId() {
+            return id;
+        }
+
+        public String getUuid() {
+            return uuid;
+        }
+    }
+
+}
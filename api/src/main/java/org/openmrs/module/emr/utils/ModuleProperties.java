@@ -15,18 +15,23 @@
 package org.openmrs.module.emr.utils;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.openmrs.Concept;
 import org.openmrs.ConceptClass;
 import org.openmrs.ConceptSource;
 import org.openmrs.EncounterRole;
 import org.openmrs.EncounterType;
+import org.openmrs.GlobalProperty;
 import org.openmrs.Location;
+import org.openmrs.OpenmrsObject;
 import org.openmrs.OrderType;
 import org.openmrs.PatientIdentifierType;
 import org.openmrs.VisitType;
 import org.openmrs.api.AdministrationService;
 import org.openmrs.api.ConceptService;
 import org.openmrs.api.EncounterService;
+import org.openmrs.api.GlobalPropertyListener;
 import org.openmrs.api.LocationService;
 import org.openmrs.api.OrderService;
 import org.openmrs.api.PatientService;
@@ -36,14 +41,40 @@ import org.openmrs.api.VisitService;
 import org.openmrs.module.emr.api.EmrService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Helper class that lets modules centralize their configuration details. See EmrProperties for an example.
+ *
+ * Once #listenForChanges has been called, the metadata that global properties name is kept in a
+ * {@link MetadataSnapshot}, and later lookups load it by id (which the hibernate session caches) rather than repeating
+ * the global property and uuid queries. Any change to one of those global properties starts a new snapshot.
  */
-public abstract class ModuleProperties {
+public abstract class ModuleProperties implements GlobalPropertyListener {
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final AtomicReference<MetadataSnapshot> snapshot = new AtomicReference<MetadataSnapshot>(new MetadataSnapshot(0));
+
+    private volatile boolean listening = false;
+
+    private final ConcurrentMap<String, Boolean> resolvedGlobalProperties = new ConcurrentHashMap<String, Boolean>();
+
+    private final AtomicLong snapshotHits = new AtomicLong();
+
+    private final AtomicLong snapshotMisses = new AtomicLong();
+
+    private final AtomicLong staleEntries = new AtomicLong();
+
+    private final AtomicLong refreshes = new AtomicLong();
 
     @Autowired
     @Qualifier("conceptService")
@@ -122,21 +153,31 @@ public abstract class ModuleProperties {
     }
 
     protected ConceptClass getConceptClassByGlobalProperty(String globalPropertyName) {
-        String globalProperty = getGlobalProperty(globalPropertyName, true);
-        ConceptClass conceptClass = conceptService.getConceptClassByUuid(globalProperty);
-        if (conceptClass == null) {
-            throw new IllegalStateException("Configuration required: " + globalPropertyName);
-        }
-        return conceptClass;
+        return resolve(globalPropertyName, true, true, new Resolver<ConceptClass>() {
+            @Override
+            public ConceptClass getById(Integer id) {
+                return conceptService.getConceptClass(id);
+            }
+
+            @Override
+            public ConceptClass getByGlobalPropertyValue(String globalProperty) {
+                return conceptService.getConceptClassByUuid(globalProperty);
+            }
+        });
     }
 
     protected Concept getConceptByGlobalProperty(String globalPropertyName) {
-        String globalProperty = administrationService.getGlobalProperty(globalPropertyName);
-        Concept concept = conceptService.getConceptByUuid(globalProperty);
-        if (concept == null) {
-            throw new IllegalStateException("Configuration required: " + globalPropertyName);
-        }
-        return concept;
+        return resolve(globalPropertyName, false, true, new Resolver<Concept>() {
+            @Override
+            public Concept getById(Integer id) {
+                return conceptService.getConcept(id);
+            }
+
+            @Override
+            public Concept getByGlobalPropertyValue(String globalProperty) {
+                return conceptService.getConceptByUuid(globalProperty);
+            }
+        });
     }
 
     protected Concept getSingleConceptByMapping(ConceptSource conceptSource, String code) {
@@ -151,48 +192,73 @@ public abstract class ModuleProperties {
     }
 
     protected EncounterType getEncounterTypeByGlobalProperty(String globalPropertyName) {
-        String globalProperty = administrationService.getGlobalProperty(globalPropertyName);
-        EncounterType encounterType = encounterService.getEncounterTypeByUuid(globalProperty);
-        if (encounterType == null) {
-            throw new IllegalStateException("Configuration required: " + globalPropertyName);
-        }
-        return encounterType;
+        return resolve(globalPropertyName, false, true, new Resolver<EncounterType>() {
+            @Override
+            public EncounterType getById(Integer id) {
+                return encounterService.getEncounterType(id);
+            }
+
+            @Override
+            public EncounterType getByGlobalPropertyValue(String globalProperty) {
+                return encounterService.getEncounterTypeByUuid(globalProperty);
+            }
+        });
     }
 
     protected EncounterRole getEncounterRoleByGlobalProperty(String globalPropertyName) {
-        String globalProperty = administrationService.getGlobalProperty(globalPropertyName);
-        EncounterRole encounterRole = encounterService.getEncounterRoleByUuid(globalProperty);
-        if (encounterRole == null) {
-            throw new IllegalStateException("Configuration required: " + globalPropertyName);
-        }
-        return encounterRole;
+        return resolve(globalPropertyName, false, true, new Resolver<EncounterRole>() {
+            @Override
+            public EncounterRole getById(Integer id) {
+                return encounterService.getEncounterRole(id);
+            }
+
+            @Override
+            public EncounterRole getByGlobalPropertyValue(String globalProperty) {
+                return encounterService.getEncounterRoleByUuid(globalProperty);
+            }
+        });
     }
 
     protected VisitType getVisitTypeByGlobalProperty(String globalPropertyName) {
-        String globalProperty = administrationService.getGlobalProperty(globalPropertyName);
-        VisitType visitType = visitService.getVisitTypeByUuid(globalProperty);
-        if (visitType == null) {
-            throw new IllegalStateException("Configuration required: " + globalPropertyName);
-        }
-        return visitType;
+        return resolve(globalPropertyName, false, true, new Resolver<VisitType>() {
+            @Override
+            public VisitType getById(Integer id) {
+                return visitService.getVisitType(id);
+            }
+
+            @Override
+            public VisitType getByGlobalPropertyValue(String globalProperty) {
+                return visitService.getVisitTypeByUuid(globalProperty);
+            }
+        });
     }
 
     protected OrderType getOrderTypeByGlobalProperty(String globalPropertyName) {
-        String globalProperty = administrationService.getGlobalProperty(globalPropertyName);
-        OrderType orderType = orderService.getOrderTypeByUuid(globalProperty);
-        if (orderType == null) {
-            throw new IllegalStateException("Configuration required: " + globalPropertyName);
-        }
-        return orderType;
+        return resolve(globalPropertyName, false, true, new Resolver<OrderType>() {
+            @Override
+            public OrderType getById(Integer id) {
+                return orderService.getOrderType(id);
+            }
+
+            @Override
+            public OrderType getByGlobalPropertyValue(String globalProperty) {
+                return orderService.getOrderTypeByUuid(globalProperty);
+            }
+        });
     }
 
     protected PatientIdentifierType getPatientIdentifierTypeByGlobalProperty(String globalPropertyName, boolean required) {
-        String globalProperty = getGlobalProperty(globalPropertyName, required);
-        PatientIdentifierType patientIdentifierType = GeneralUtils.getPatientIdentifierType(globalProperty, patientService);
-        if (required && patientIdentifierType == null) {
-            throw new IllegalStateException("Configuration required: " + globalPropertyName);
-        }
-        return patientIdentifierType;
+        return resolve(globalPropertyName, required, required, new Resolver<PatientIdentifierType>() {
+            @Override
+            public PatientIdentifierType getById(Integer id) {
+                return patientService.getPatientIdentifierType(id);
+            }
+
+            @Override
+            public PatientIdentifierType getByGlobalPropertyValue(String globalProperty) {
+                return GeneralUtils.getPatientIdentifierType(globalProperty, patientService);
+            }
+        });
     }
 
     protected List<PatientIdentifierType> getPatientIdentifierTypesByGlobalProperty(String globalPropertyName, boolean required) {
@@ -210,6 +276,174 @@ public abstract class ModuleProperties {
         return types;
     }
 
+    /**
+     * Looks up the metadata that a global property names, from the snapshot if it has already been resolved (and the
+     * snapshot is in use), otherwise from the global property, recording the result in the snapshot
+     *
+     * @param globalPropertyName
+     * @param globalPropertyRequired whether to fail if the global property itself isn't set
+     * @param required whether to fail if the metadata isn't found
+     * @param resolver
+     * @return the metadata, or null if it isn't found and isn't required
+     */
+    private <T extends OpenmrsObject> T resolve(String globalPropertyName, boolean globalPropertyRequired,
+                                                boolean required, Resolver<T> resolver) {
+        // this has to be known before we read the global property, so that a change to it while we're resolving it
+        // still starts a new snapshot
+        resolvedGlobalProperties.put(globalPropertyName, Boolean.TRUE);
+        MetadataSnapshot current = snapshot.get();
+
+        if (listening) {
+            MetadataSnapshot.Entry entry = current.get(globalPropertyName);
+            if (entry != null) {
+                T cached = resolver.getById(entry.getId());
+                if (cached != null && entry.getUuid().equals(cached.getUuid())) {
+                    snapshotHits.incrementAndGet();
+                    return cached;
+                }
+                // the metadata was purged (or its id reused) without the global property changing
+                staleEntries.incrementAndGet();
+            }
+            snapshotMisses.incrementAndGet();
+        }
+
+        T resolved = resolver.getByGlobalPropertyValue(getGlobalProperty(globalPropertyName, globalPropertyRequired));
+        if (resolved == null) {
+            if (required) {
+                throw new IllegalStateException("Configuration required: " + globalPropertyName);
+            }
+            return null;
+        }
+
+        if (listening && resolved.getId() != null) {
+            remember(current, globalPropertyName, resolved);
+        }
+        return resolved;
+    }
+
+    private void remember(MetadataSnapshot basedOn, String globalPropertyName, OpenmrsObject resolved) {
+        MetadataSnapshot current = basedOn;
+        while (true) {
+            // if a global property changed while we were resolving this one, what we resolved may already be out
+            // of date, so we leave it for the next caller to resolve again
+            if (current.getGeneration() != basedOn.getGeneration()) {
+                return;
+            }
+            if (snapshot.compareAndSet(current, current.with(globalPropertyName, resolved.getId(), resolved.getUuid()))) {
+                return;
+            }
+            current = snapshot.get();
+        }
+    }
+
+    /**
+     * Starts using the metadata snapshot, which is only safe while we're told about global property changes, so this
+     * registers us as a global property listener
+     *
+     * @param administrationService
+     */
+    public void listenForChanges(AdministrationService administrationService) {
+        refresh();
+        administrationService.addGlobalPropertyListener(this);
+        listening = true;
+    }
+
+    public void stopListeningForChanges(AdministrationService administrationService) {
+        listening = false;
+        administrationService.removeGlobalPropertyListener(this);
+        refresh();
+    }
+
+    /**
+     * @return whether we are being told about global property changes, and so may keep what we resolve
+     */
+    protected boolean isListeningForChanges() {
+        return listening;
+    }
+
+    /**
+     * Discards everything resolved so far, so that all metadata is looked up from the global properties again
+     */
+    public void refresh() {
+        MetadataSnapshot current;
+        do {
+            current = snapshot.get();
+        } while (!snapshot.compareAndSet(current, new MetadataSnapshot(current.getGeneration() + 1)));
+        refreshes.incrementAndGet();
+    }
+
+    /**
+     * @return how long ago (in ms) the current snapshot was started, ie, when global properties were last refreshed
+     */
+    public long getSnapshotAge() {
+        return System.currentTimeMillis() - snapshot.get().getCreated();
+    }
+
+    public int getSnapshotSize() {
+        return snapshot.get().size();
+    }
+
+    public long getSnapshotHits() {
+        return snapshotHits.get();
+    }
+
+    public long getSnapshotMisses() {
+        return snapshotMisses.get();
+    }
+
+    /**
+     * @return how many times metadata in the snapshot was found to be out of date without a global property change
+     */
+    public long getStaleEntries() {
+        return staleEntries.get();
+    }
+
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    /**
+     * @see GlobalPropertyListener#supportsPropertyName(String)
+     */
+    @Override
+    public boolean supportsPropertyName(String propertyName) {
+        return resolvedGlobalProperties.containsKey(propertyName);
+    }
+
+    /**
+     * @see GlobalPropertyListener#globalPropertyChanged(GlobalProperty)
+     */
+    @Override
+    public void globalPropertyChanged(GlobalProperty newValue) {
+        globalPropertyChanged(newValue.getProperty());
+    }
+
+    /**
+     * @see GlobalPropertyListener#globalPropertyDeleted(String)
+     */
+    @Override
+    public void globalPropertyDeleted(String propertyName) {
+        globalPropertyChanged(propertyName);
+    }
+
+    private void globalPropertyChanged(String propertyName) {
+        if (log.isDebugEnabled()) {
+            log.debug("Global property " + propertyName + " changed; refreshing metadata snapshot of "
+                    + getSnapshotSize() + " entries, " + getSnapshotAge() + " ms old");
+        }
+        refresh();
+
+        // until the change commits, another thread may resolve the property to its old value again
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    refresh();
+                }
+            });
+        }
+    }
+
     protected String getGlobalProperty(String globalPropertyName, boolean required) {
         String globalProperty = administrationService.getGlobalProperty(globalPropertyName);
         if (required && StringUtils.isEmpty(globalProperty)) {
@@ -222,4 +456,14 @@ public abstract class ModuleProperties {
         return emrService.getLoginLocations();
     }
 
+    /**
+     * Looks up one kind of metadata, either by id (from the snapshot) or by the value of a global property
+     */
+    private interface Resolver<T> {
+
+        T getById(Integer id);
+
+        T getByGlobalPropertyValue(String globalProperty);
+    }
+
 }
@@ -19,7 +19,9 @@ import org.openmrs.LocationAttributeType;
 import org.openmrs.Role;
 import org.openmrs.api.LocationService;
 import org.openmrs.api.UserService;
+import org.openmrs.api.context.Context;
 import org.openmrs.module.emr.consult.ConsultService;
+import org.openmrs.module.emr.patient.PatientSearchIndexBuilder;
 import org.openmrs.module.emr.printer.Printer;
 import org.openmrs.module.htmlformentry.HtmlFormEntryService;
 import org.openmrs.scheduler.SchedulerService;
@@ -71,7 +73,15 @@ public class EmrActivatorComponentTest extends BaseModuleContextSensitiveTest {
 
     @Test
     public void testContextRefreshed() throws Exception {
-        new EmrActivator().contextRefreshed();
+        try {
+            new EmrActivator().contextRefreshed();
+        }
+        finally {
+            // other tests rely on metadata being looked up afresh, as their datasets change it behind our back
+            emrProperties.stopListeningForChanges(Context.getAdministrationService());
+            Context.getAdministrationService().removeGlobalPropertyListener(
+                    Context.getRegisteredComponent("patientSearchIndexBuilder", PatientSearchIndexBuilder.class));
+        }
 
         // ensure Privilege Level: Full role
         Role fullPrivsRole = userService.getRole(EmrConstants.PRIVILEGE_LEVEL_FULL_ROLE);
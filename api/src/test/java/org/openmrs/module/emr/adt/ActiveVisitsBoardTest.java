@@ -0,0 +1,145 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.adt;
+
+import org.apache.commons.lang.time.DateUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class ActiveVisitsBoardTest {
+
+    private ActiveVisitsBoard board;
+
+    private Date now;
+
+    private Date mustHaveSomethingAfter;
+
+    @Before
+    public void setup() {
+        board = new ActiveVisitsBoard();
+        now = new Date();
+        mustHaveSomethingAfter = DateUtils.addHours(now, -12);
+    }
+
+    @Test
+    public void shouldNotBeBuiltUntilRebuilt() {
+        assertFalse(board.isBuilt());
+        board.rebuild(Collections.<ActiveVisit>emptyList());
+        assertTrue(board.isBuilt());
+    }
+
+    @Test
+    public void shouldOnlyReturnActiveVisitsAtSpecifiedLocations() {
+
+        ActiveVisit atHospital = new ActiveVisit(1, 1, DateUtils.addHours(now, -1));
+        ActiveVisit atClinic = new ActiveVisit(2, 2, DateUtils.addHours(now, -1));
+        ActiveVisit elsewhere = new ActiveVisit(3, 3, DateUtils.addHours(now, -1));
+        ActiveVisit stale = new ActiveVisit(4, 1, DateUtils.addDays(now, -2));
+        ActiveVisit staleButRecentEncounter = new ActiveVisit(5, 1, DateUtils.addDays(now, -2));
+        staleButRecentEncounter.addEncounter(50, DateUtils.addHours(now, -1), false);
+
+        board.rebuild(Arrays.asList(atHospital, atClinic, elsewhere, stale, staleButRecentEncounter));
+
+        List<ActiveVisit> activeVisits = board.getActiveVisits(new HashSet<Integer>(Arrays.asList(1, 2)), mustHaveSomethingAfter);
+
+        assertThat(activeVisits, containsInAnyOrder(atHospital, atClinic, staleButRecentEncounter));
+        assertThat(board.size(), is(4));
+    }
+
+    @Test
+    public void shouldRefreshChangedVisits() {
+
+        ActiveVisit visit = new ActiveVisit(1, 1, DateUtils.addHours(now, -1));
+        ActiveVisit closedVisit = new ActiveVisit(2, 1, DateUtils.addHours(now, -1));
+        board.rebuild(Arrays.asList(visit, closedVisit));
+
+        board.recordChange(1);
+        board.recordChange(2);
+        board.recordChange(3);
+        board.recordChange(1);
+
+        assertThat(board.takeChangedVisitIds(), contains(1, 2, 3));
+        assertTrue(board.takeChangedVisitIds().isEmpty());
+
+        ActiveVisit updatedVisit = new ActiveVisit(1, 1, DateUtils.addHours(now, -1));
+        updatedVisit.addEncounter(10, now, true);
+        ActiveVisit newVisit = new ActiveVisit(3, 1, now);
+        board.update(Arrays.asList(1, 2, 3), Arrays.asList(updatedVisit, newVisit));
+
+        assertThat(board.getActiveVisits(Collections.singleton(1), mustHaveSomethingAfter), containsInAnyOrder(updatedVisit, newVisit));
+    }
+
+    @Test
+    public void shouldAskForARebuildInsteadOfTrackingTooManyChanges() {
+
+        board = new ActiveVisitsBoard(2);
+        board.rebuild(Collections.<ActiveVisit>emptyList());
+
+        board.recordChange(1);
+        board.recordChange(2);
+        assertThat(board.takeChangedVisitIds(), contains(1, 2));
+
+        board.recordChange(1);
+        board.recordChange(2);
+        board.recordChange(3);
+        board.recordChange(4);
+        assertThat(board.takeChangedVisitIds(), is(nullValue()));
+
+        // back to tracking changes once the caller has been told to rebuild
+        board.recordChange(5);
+        assertThat(board.takeChangedVisitIds(), contains(5));
+    }
+
+    @Test
+    public void shouldRecordVisitsThatReferToChangedEncounter() {
+
+        ActiveVisit visit = new ActiveVisit(1, 1, DateUtils.addHours(now, -1));
+        visit.addEncounter(10, now, false);
+        ActiveVisit anotherVisit = new ActiveVisit(2, 1, DateUtils.addHours(now, -1));
+        anotherVisit.addEncounter(20, now, true);
+        board.rebuild(Arrays.asList(visit, anotherVisit));
+
+        board.recordEncounterChange(20);
+
+        assertThat(board.takeChangedVisitIds(), contains(2));
+    }
+
+    @Test
+    public void shouldTrackLatestAndCheckInEncounters() {
+
+        ActiveVisit visit = new ActiveVisit(1, 1, DateUtils.addHours(now, -3));
+        visit.addEncounter(10, DateUtils.addHours(now, -3), true);
+        visit.addEncounter(11, DateUtils.addHours(now, -1), false);
+        visit.addEncounter(12, DateUtils.addHours(now, -2), true);
+
+        assertThat(visit.getLastEncounterId(), is(11));
+        assertThat(visit.getCheckInEncounterId(), is(12));
+    }
+
+}
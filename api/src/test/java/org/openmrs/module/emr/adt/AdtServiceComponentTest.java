@@ -15,21 +15,30 @@
 package org.openmrs.module.emr.adt;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
+import org.apache.commons.lang.time.DateUtils;
 import org.hamcrest.Matchers;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentMatcher;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.openmrs.Encounter;
 import org.openmrs.Location;
 import org.openmrs.LocationTag;
 import org.openmrs.Obs;
 import org.openmrs.Patient;
+import org.openmrs.Visit;
 import org.openmrs.api.ConceptService;
 import org.openmrs.api.LocationService;
 import org.openmrs.api.PatientService;
+import org.openmrs.api.VisitService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.emr.EmrConstants;
 import org.openmrs.module.emr.EmrProperties;
@@ -42,8 +51,14 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.IsNull.notNullValue;
+import static org.hamcrest.core.IsNull.nullValue;
 import static org.junit.Assert.assertThat;
 import static org.junit.matchers.JUnitMatchers.hasItem;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.openmrs.module.emr.TestUtils.isJustNow;
 
 @RunWith(SpringJUnit4ClassRunner.class)
@@ -59,6 +74,8 @@ public class AdtServiceComponentTest extends BaseModuleContextSensitiveTest {
     private PaperRecordService paperRecordService;
     @Autowired
     LocationService locationService;
+    @Autowired
+    ActiveVisitsBoard activeVisitsBoard;
 
     @Before
     public void before() throws Exception {
@@ -116,6 +133,84 @@ public class AdtServiceComponentTest extends BaseModuleContextSensitiveTest {
         // TODO once these are implemented, add Admission and Discharge to this test
     }
 
+    @Test
+    public void shouldCloseInactiveVisitsButNotActiveOnes() {
+        VisitService visitService = Context.getVisitService();
+        Patient patient = Context.getPatientService().getPatient(7);
+        Location location = locationService.getLocation(1);
+
+        Visit inactiveVisit = new Visit(patient, visitService.getVisitType(1), DateUtils.addDays(new Date(), -2));
+        inactiveVisit.setLocation(location);
+        visitService.saveVisit(inactiveVisit);
+
+        Visit activeVisit = new Visit(patient, visitService.getVisitType(1), DateUtils.addHours(new Date(), -1));
+        activeVisit.setLocation(location);
+        visitService.saveVisit(activeVisit);
+
+        service.closeInactiveVisits();
+
+        Visit closedVisit = visitService.getVisit(inactiveVisit.getId());
+        assertThat(closedVisit.getStopDatetime(), is(closedVisit.getStartDatetime()));
+        assertThat(visitService.getVisit(activeVisit.getId()).getStopDatetime(), nullValue());
+    }
+
+    @Test
+    public void getActiveVisitShouldOnlyConsiderOpenVisits() {
+        VisitService visitService = Context.getVisitService();
+        Patient patient = Context.getPatientService().getPatient(7);
+        Location location = locationService.getLocation(1);
+
+        Visit stoppedVisit = new Visit(patient, visitService.getVisitType(1), DateUtils.addHours(new Date(), -2));
+        stoppedVisit.setLocation(location);
+        stoppedVisit.setStopDatetime(DateUtils.addHours(new Date(), 1));
+        visitService.saveVisit(stoppedVisit);
+
+        Visit staleVisit = new Visit(patient, visitService.getVisitType(1), DateUtils.addDays(new Date(), -2));
+        staleVisit.setLocation(location);
+        visitService.saveVisit(staleVisit);
+
+        Visit openVisit = new Visit(patient, visitService.getVisitType(1), DateUtils.addHours(new Date(), -1));
+        openVisit.setLocation(location);
+        visitService.saveVisit(openVisit);
+
+        assertThat(service.getActiveVisit(patient, location), is(openVisit));
+        assertThat(staleVisit.getStopDatetime(), notNullValue());
+    }
+
+    @Test
+    public void shouldBuildTheActiveVisitsBoardWithNoAuthenticatedUser() {
+        VisitService visitService = Context.getVisitService();
+        Patient patient = Context.getPatientService().getPatient(7);
+        Location location = locationService.getLocation(1);
+
+        Visit activeVisit = new Visit(patient, visitService.getVisitType(1), DateUtils.addHours(new Date(), -1));
+        activeVisit.setLocation(location);
+        visitService.saveVisit(activeVisit);
+
+        // the board is built at startup, before anybody has logged in
+        Context.logout();
+        service.rebuildActiveVisitsBoard();
+
+        assertThat(activeVisitsBoard.isBuilt(), is(true));
+        List<Integer> visitIds = new ArrayList<Integer>();
+        for (ActiveVisit onBoard : activeVisitsBoard.getActiveVisits(Collections.singleton(location.getLocationId()),
+                DateUtils.addHours(new Date(), -emrProperties.getVisitExpireHours()))) {
+            visitIds.add(onBoard.getVisitId());
+        }
+        assertThat(visitIds, hasItem(activeVisit.getVisitId()));
+    }
+
+    @Test
+    public void summaryStatsShouldMatchFullLists() {
+        Patient patient = Context.getPatientService().getPatient(7);
+
+        List<Encounter> encounters = Context.getEncounterService().getEncountersByPatient(patient);
+
+        assertThat(service.getCountOfEncounters(patient), is(encounters.size()));
+        assertThat(service.getCountOfVisits(patient), is(Context.getVisitService().getVisitsByPatient(patient, true, false).size()));
+        assertThat(service.getLastEncounter(patient), is(encounters.get(encounters.size() - 1)));
+    }
+
     @Test
     public void shouldCancelPendingPaperRecordRequestsTAfterMerge() {
         PatientService patientService = Context.getPatientService();
@@ -149,6 +244,34 @@ public class AdtServiceComponentTest extends BaseModuleContextSensitiveTest {
         assertThat(paperRecordService.getPaperRecordRequestsByPatient(notPreferredPatient).size(), is(0));
     }
 
+    @Test
+    public void shouldMergePatientsThroughAQueuedJob() {
+        PatientService patientService = Context.getPatientService();
+        Location paperRecordLocation = locationService.getLocation(1);
+        Location someLocation = locationService.getLocation(2);
+
+        Patient preferredPatient = patientService.getPatient(7);
+        Patient notPreferredPatient = patientService.getPatient(8);
+
+        paperRecordService.requestPaperRecord(notPreferredPatient, paperRecordLocation, someLocation);
+
+        MergePatientsJob job = service.queueMergePatients(preferredPatient, notPreferredPatient);
+        assertThat(job.getId(), notNullValue());
+        assertThat(notPreferredPatient.isVoided(), is(false));
+
+        // the job isn't handed to the runner until this (test) transaction commits, so we run its steps ourselves
+        int steps = 0;
+        while (service.runMergePatientsJobStep(job.getId())) {
+            assertThat(++steps < 100, is(true));
+        }
+
+        job = service.getMergePatientsJob(job.getId());
+        assertThat(job.getStatus(), is(MergePatientsJob.Status.COMPLETED));
+        assertThat(job.getVisitsMerged(), is(job.getVisitsToMerge()));
+        assertThat(notPreferredPatient.isVoided(), is(true));
+        assertThat(paperRecordService.getPaperRecordRequestsByPatient(notPreferredPatient).size(), is(0));
+    }
+
   /*  @Test
     public void shoulMoveOpenPaperRecordRequestsToCreateToOpenRequestToPullAfterMerge() {
         PatientService patientService = Context.getPatientService();
@@ -258,4 +381,43 @@ public class AdtServiceComponentTest extends BaseModuleContextSensitiveTest {
         return pr;
     }
 
+    @Test
+    public void testAssigningManyEncountersToVisitsQueriesThePatientsVisitsOnce() {
+        // as when back-entering or importing encounters, many encounters for the same patient are assigned to visits
+        // in one transaction
+        Patient patient = Context.getPatientService().getPatient(7);
+        Location location = locationService.getLocation(2);
+
+        Visit visit = new Visit();
+        visit.setPatient(patient);
+        visit.setLocation(location);
+        visit.setStartDatetime(DateUtils.addDays(new Date(), -1));
+        visit.setVisitType(emrProperties.getAtFacilityVisitType());
+        Context.getVisitService().saveVisit(visit);
+
+        final VisitService visitService = Context.getVisitService();
+        VisitService countingVisitService = mock(VisitService.class, new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                return invocation.getMethod().invoke(visitService, invocation.getArguments());
+            }
+        });
+
+        EmrVisitAssignmentHandler handler = new EmrVisitAssignmentHandler();
+        handler.setVisitService(countingVisitService);
+
+        for (int i = 0; i < 200; i++) {
+            Encounter encounter = new Encounter();
+            encounter.setPatient(patient);
+            encounter.setLocation(location);
+            encounter.setEncounterDatetime(new Date());
+            handler.beforeCreateEncounter(encounter);
+            assertThat(encounter.getVisit(), notNullValue());
+        }
+
+        verify(countingVisitService, times(1)).getVisits(any(Collection.class), any(Collection.class), any(Collection.class),
+                any(Collection.class), any(Date.class), any(Date.class), any(Date.class), any(Date.class), any(Map.class),
+                anyBoolean(), anyBoolean());
+    }
+
 }
@@ -20,6 +20,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -48,6 +49,7 @@ import org.openmrs.Provider;
 import org.openmrs.User;
 import org.openmrs.Visit;
 import org.openmrs.VisitType;
+import org.openmrs.api.APIException;
 import org.openmrs.api.EncounterService;
 import org.openmrs.api.PatientService;
 import org.openmrs.api.ProviderService;
@@ -56,6 +58,8 @@ import org.openmrs.api.context.Context;
 import org.openmrs.module.emr.EmrConstants;
 import org.openmrs.module.emr.EmrProperties;
 import org.openmrs.module.emr.IsExpectedRequest;
+import org.openmrs.module.emr.adt.db.AdtDAO;
+import org.openmrs.module.emr.adt.db.MergePatientsJobDAO;
 import org.openmrs.module.emr.paperrecord.PaperRecordRequest;
 import org.openmrs.module.emr.paperrecord.PaperRecordService;
 import org.openmrs.serialization.SerializationException;
@@ -69,12 +73,11 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.anyBoolean;
-import static org.mockito.Matchers.anyCollection;
-import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
@@ -94,6 +97,8 @@ public class AdtServiceTest {
     private AdtServiceImpl service;
 
     VisitService mockVisitService;
+    AdtDAO mockAdtDAO;
+    StaleVisitCloser mockStaleVisitCloser;
     PaperRecordService mockPaperRecordService;
     EncounterService mockEncounterService;
     ProviderService mockProviderService;
@@ -128,6 +133,8 @@ public class AdtServiceTest {
         when(mockProviderService.getProvidersByPerson(personForCurrentUser, false)).thenReturn(Collections.singletonList(providerForCurrentUser));
 
         mockVisitService = mock(VisitService.class);
+        mockAdtDAO = mock(AdtDAO.class);
+        mockStaleVisitCloser = mock(StaleVisitCloser.class);
         mockEncounterService = mock(EncounterService.class);
         mockPatientService = mock(PatientService.class);
         mockPaperRecordService = mock(PaperRecordService.class);
@@ -165,6 +172,8 @@ public class AdtServiceTest {
         AdtServiceImpl service = new AdtServiceImpl();
         service.setPatientService(mockPatientService);
         service.setVisitService(mockVisitService);
+        service.setAdtDAO(mockAdtDAO);
+        service.setStaleVisitCloser(mockStaleVisitCloser);
         service.setPaperRecordService(mockPaperRecordService);
         service.setEncounterService(mockEncounterService);
         service.setProviderService(mockProviderService);
@@ -205,7 +214,7 @@ public class AdtServiceTest {
     public void testEnsureActiveVisitCreatesNewVisit() throws Exception {
         final Patient patient = new Patient();
 
-        when(mockVisitService.getVisitsByPatient(patient)).thenReturn(new ArrayList<Visit>());
+        when(mockAdtDAO.findOpenVisits(patient)).thenReturn(new ArrayList<Visit>());
 
         service.ensureActiveVisit(patient, outpatientDepartment);
 
@@ -230,7 +239,7 @@ public class AdtServiceTest {
         recentVisit.setLocation(mirebalaisHospital);
         recentVisit.setStartDatetime(DateUtils.addHours(new Date(), -1));
 
-        when(mockVisitService.getVisitsByPatient(patient)).thenReturn(Collections.singletonList(recentVisit));
+        when(mockAdtDAO.findOpenVisits(patient)).thenReturn(Collections.singletonList(recentVisit));
 
         assertThat(service.ensureActiveVisit(patient, outpatientDepartment), is(recentVisit));
 
@@ -245,7 +254,7 @@ public class AdtServiceTest {
         oldVisit.setLocation(mirebalaisHospital);
         oldVisit.setStartDatetime(DateUtils.addDays(new Date(), -7));
 
-        when(mockVisitService.getVisitsByPatient(patient)).thenReturn(Collections.singletonList(oldVisit));
+        when(mockAdtDAO.findOpenVisits(patient)).thenReturn(Collections.singletonList(oldVisit));
 
         final Visit created = service.ensureActiveVisit(patient, outpatientDepartment);
         assertNotNull(created);
@@ -289,7 +298,7 @@ public class AdtServiceTest {
     public void test_checkInPatient_forNewVisit() throws Exception {
         final Patient patient = new Patient();
 
-        when(mockVisitService.getVisitsByPatient(patient)).thenReturn(new ArrayList<Visit>());
+        when(mockAdtDAO.findOpenVisits(patient)).thenReturn(new ArrayList<Visit>());
 
         service.checkInPatient(patient, outpatientDepartment, null, null, null, false);
 
@@ -350,6 +359,41 @@ public class AdtServiceTest {
         assertThat(activeVisitSummaries, isCollectionOfExactlyElementsWithProperties("visit", visit1, visit2));
 	}
 
+    @Test
+    public void shouldGetActiveVisitSummariesFromBoardOnceBuilt() throws Exception {
+        mirebalaisHospital.setId(1);
+        outpatientDepartment.setId(2);
+
+        Date now = new Date();
+
+        ActiveVisit activeVisit1 = new ActiveVisit(1, 1, DateUtils.addHours(now, -2));
+        activeVisit1.addEncounter(10, DateUtils.addHours(now, -1), true);
+        ActiveVisit activeVisit2 = new ActiveVisit(2, 2, DateUtils.addHours(now, -1));
+        ActiveVisit activeVisitElsewhere = new ActiveVisit(3, 3, DateUtils.addHours(now, -1));
+        ActiveVisit staleVisit = new ActiveVisit(4, 1, DateUtils.addDays(now, -2));
+
+        ActiveVisitsBoard board = new ActiveVisitsBoard();
+        board.rebuild(Arrays.asList(activeVisit1, activeVisit2, activeVisitElsewhere, staleVisit));
+        service.setActiveVisitsBoard(board);
+
+        // visit 2 has since been closed
+        board.recordChange(2);
+        when(mockAdtDAO.findOpenVisitActivity(eq(Collections.singleton(2)), any(EncounterType.class))).thenReturn(new ArrayList<ActiveVisit>());
+
+        Visit visit1 = new Visit(1);
+        Encounter checkIn = new Encounter(10);
+        when(mockAdtDAO.getVisits(Collections.singleton(1))).thenReturn(Collections.singletonList(visit1));
+        when(mockAdtDAO.getEncounters(Collections.singleton(10))).thenReturn(Collections.singletonList(checkIn));
+
+        List<VisitSummary> activeVisitSummaries = service.getActiveVisitSummaries(mirebalaisHospital);
+
+        assertThat(activeVisitSummaries.size(), is(1));
+        assertSame(visit1, activeVisitSummaries.get(0).getVisit());
+        assertSame(checkIn, activeVisitSummaries.get(0).getCheckInEncounter());
+        assertSame(checkIn, activeVisitSummaries.get(0).getLastEncounter());
+        assertThat(board.size(), is(2));
+    }
+
     @Test
     public void shouldCloseInactiveVisitWithLastEncounterDate() {
         Visit visit = new Visit();
@@ -364,7 +408,7 @@ public class AdtServiceTest {
         encounter2.setEncounterDatetime(stopDatetime);
         visit.addEncounter(encounter2);
 
-        when(mockVisitService.getVisitsByPatient(null)).thenReturn(Collections.singletonList(visit));
+        when(mockAdtDAO.findOpenVisits(null)).thenReturn(Collections.singletonList(visit));
 
         service.getActiveVisit(null, null);
 
@@ -377,7 +421,7 @@ public class AdtServiceTest {
         Date startDatetime = DateUtils.addHours(new Date(), -14);
         visit.setStartDatetime(startDatetime);
 
-        when(mockVisitService.getVisitsByPatient(null)).thenReturn(Collections.singletonList(visit));
+        when(mockAdtDAO.findOpenVisits(null)).thenReturn(Collections.singletonList(visit));
 
         service.getActiveVisit(null, null);
 
@@ -385,30 +429,107 @@ public class AdtServiceTest {
     }
 
     @Test
-    public void shouldCloseAnyInactiveButOpenVisits() {
-        Visit old1 = new Visit();
-        old1.setStartDatetime(DateUtils.addDays(new Date(), -2));
+    public void findActiveVisitShouldQueueInactiveVisitsRatherThanClosingThem() {
+        Visit visit = new Visit(1);
+        visit.setStartDatetime(DateUtils.addHours(new Date(), -14));
+
+        when(mockAdtDAO.findOpenVisits(null)).thenReturn(Collections.singletonList(visit));
+
+        assertNull(service.findActiveVisit(null, null));
+
+        verify(mockStaleVisitCloser).queue(1);
+        verify(mockVisitService, never()).saveVisit(visit);
+        assertNull(visit.getStopDatetime());
+    }
+
+    @Test
+    public void findActiveVisitShouldReturnActiveVisit() {
+        Visit visit = new Visit(1);
+        visit.setStartDatetime(DateUtils.addHours(new Date(), -2));
+
+        when(mockAdtDAO.findOpenVisits(null)).thenReturn(Collections.singletonList(visit));
+
+        assertSame(visit, service.findActiveVisit(null, null));
+        verify(mockStaleVisitCloser, never()).queue(1);
+    }
+
+    @Test
+    public void closeVisitsIfInactiveShouldOnlyCloseVisitsThatAreStillInactive() {
+        Visit stale = new Visit(1);
+        Date staleStart = DateUtils.addHours(new Date(), -14);
+        stale.setStartDatetime(staleStart);
+
+        Visit active = new Visit(2);
+        active.setStartDatetime(DateUtils.addHours(new Date(), -2));
+
+        Visit alreadyClosed = new Visit(3);
+        Date alreadyClosedStop = DateUtils.addHours(new Date(), -12);
+        alreadyClosed.setStartDatetime(DateUtils.addHours(new Date(), -14));
+        alreadyClosed.setStopDatetime(alreadyClosedStop);
+
+        when(mockVisitService.getVisit(1)).thenReturn(stale);
+        when(mockVisitService.getVisit(2)).thenReturn(active);
+        when(mockVisitService.getVisit(3)).thenReturn(alreadyClosed);
+
+        assertThat(service.closeVisitsIfInactive(Arrays.asList(1, 2, 3, 4)), is(1));
+
+        verify(mockVisitService).saveVisit(stale);
+        verify(mockVisitService, never()).saveVisit(active);
+        verify(mockVisitService, never()).saveVisit(alreadyClosed);
+        assertThat(stale.getStopDatetime(), is(staleStart));
+        assertThat(alreadyClosed.getStopDatetime(), is(alreadyClosedStop));
+    }
 
-        Encounter oldEncounter = new Encounter();
-        oldEncounter.setEncounterDatetime(DateUtils.addHours(DateUtils.addDays(new Date(), -2), 6));
+    @Test
+    public void shouldCloseAnyInactiveButOpenVisits() {
+        Visit old1 = new Visit(1);
+        Date old1Start = DateUtils.addDays(new Date(), -2);
+        old1.setStartDatetime(old1Start);
 
-        Visit old2 = new Visit();
+        Date oldEncounterDatetime = DateUtils.addHours(DateUtils.addDays(new Date(), -2), 6);
+        Visit old2 = new Visit(2);
         old2.setStartDatetime(DateUtils.addDays(new Date(), -2));
-        old2.addEncounter(oldEncounter);
 
-        Visit new1 = new Visit();
-        new1.setStartDatetime(DateUtils.addHours(new Date(), -2));
+        Map<Integer, Date> inactiveVisits = new LinkedHashMap<Integer, Date>();
+        inactiveVisits.put(1, null);
+        inactiveVisits.put(2, oldEncounterDatetime);
 
-        when(mockVisitService.getVisits(anyCollection(), anyCollection(), anyCollection(), anyCollection(), any(Date.class), any(Date.class), any(Date.class), any(Date.class), anyMap(), anyBoolean(), anyBoolean())).thenReturn(Arrays.asList(old1, old2, new1));
+        when(mockAdtDAO.findInactiveOpenVisits(any(Date.class), (Integer) isNull(), anyInt())).thenReturn(inactiveVisits);
+        when(mockAdtDAO.findInactiveOpenVisits(any(Date.class), eq(2), anyInt())).thenReturn(new LinkedHashMap<Integer, Date>());
+        when(mockVisitService.getVisit(1)).thenReturn(old1);
+        when(mockVisitService.getVisit(2)).thenReturn(old2);
 
-        service.closeInactiveVisits();
+        assertThat(service.closeInactiveVisits(), is(2));
 
         verify(mockVisitService).saveVisit(old1);
         verify(mockVisitService).saveVisit(old2);
-        verify(mockVisitService, never()).saveVisit(new1);
-        assertNull(new1.getStopDatetime());
-        assertNotNull(old1.getStopDatetime());
-        assertNotNull(old2.getStopDatetime());
+        assertThat(old1.getStopDatetime(), is(old1Start));
+        assertThat(old2.getStopDatetime(), is(oldEncounterDatetime));
+    }
+
+    @Test
+    public void closeInactiveVisitsShouldContinuePastVisitsThatFailToClose() {
+        Visit old1 = new Visit(1);
+        old1.setStartDatetime(DateUtils.addDays(new Date(), -2));
+
+        Visit old2 = new Visit(2);
+        old2.setStartDatetime(DateUtils.addDays(new Date(), -2));
+
+        Map<Integer, Date> firstChunk = new LinkedHashMap<Integer, Date>();
+        firstChunk.put(1, null);
+        Map<Integer, Date> secondChunk = new LinkedHashMap<Integer, Date>();
+        secondChunk.put(2, null);
+
+        when(mockAdtDAO.findInactiveOpenVisits(any(Date.class), (Integer) isNull(), anyInt())).thenReturn(firstChunk);
+        when(mockAdtDAO.findInactiveOpenVisits(any(Date.class), eq(1), anyInt())).thenReturn(secondChunk);
+        when(mockAdtDAO.findInactiveOpenVisits(any(Date.class), eq(2), anyInt())).thenReturn(new LinkedHashMap<Integer, Date>());
+        when(mockVisitService.getVisit(1)).thenReturn(old1);
+        when(mockVisitService.getVisit(2)).thenReturn(old2);
+        when(mockVisitService.saveVisit(old1)).thenThrow(new APIException("failed"));
+
+        assertThat(service.closeInactiveVisits(), is(1));
+
+        verify(mockVisitService).saveVisit(old2);
     }
 
     @Test
@@ -559,6 +680,161 @@ public class AdtServiceTest {
         verify(mockPatientService).mergePatients(preferred, notPreferred);
     }
 
+    @Test
+    public void testQueueMergePatientsPlansVisitMergesWithoutChangingVisits() throws Exception {
+        Patient preferred = new Patient();
+        Patient notPreferred = new Patient();
+
+        Date now = new Date();
+        Date twelveDaysAgo = DateUtils.addDays(now, -12);
+        Date elevenDaysAgo = DateUtils.addDays(now, -11);
+        Date tenDaysAgo = DateUtils.addDays(now, -10);
+        Date nineDaysAgo = DateUtils.addDays(now, -9);
+        Date eightDaysAgo = DateUtils.addDays(now, -8);
+        Date sevenDaysAgo = DateUtils.addDays(now, -7);
+
+        // same visits as testMergePatientsDoesNotResultInOverlappingVisits
+        Visit nonPreferredVisit = buildVisit(notPreferred, null, mirebalaisHospital, elevenDaysAgo, eightDaysAgo);
+        nonPreferredVisit.setVisitId(1);
+        Visit firstPreferredVisit = buildVisit(preferred, null, mirebalaisHospital, twelveDaysAgo, tenDaysAgo);
+        firstPreferredVisit.setVisitId(2);
+        Visit secondPreferredVisit = buildVisit(preferred, null, mirebalaisHospital, nineDaysAgo, sevenDaysAgo);
+        secondPreferredVisit.setVisitId(3);
+
+        when(mockVisitService.getVisitsByPatient(notPreferred, true, false)).thenReturn(Arrays.asList(nonPreferredVisit));
+        when(mockVisitService.getVisitsByPatient(preferred, true, false)).thenReturn(Arrays.asList(firstPreferredVisit, secondPreferredVisit));
+
+        MergePatientsJobDAO mockMergePatientsJobDAO = mock(MergePatientsJobDAO.class);
+        doAnswer(new Answer() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                MergePatientsJob job = (MergePatientsJob) invocation.getArguments()[0];
+                job.setId(7);
+                return job;
+            }
+        }).when(mockMergePatientsJobDAO).saveOrUpdate(any(MergePatientsJob.class));
+        MergePatientsJobRunner mockMergePatientsJobRunner = mock(MergePatientsJobRunner.class);
+        service.setMergePatientsJobDAO(mockMergePatientsJobDAO);
+        service.setMergePatientsJobRunner(mockMergePatientsJobRunner);
+
+        MergePatientsJob job = service.queueMergePatients(preferred, notPreferred);
+
+        // the second preferred visit only overlaps once the first has been extended to cover the non-preferred one
+        assertThat(job.getPlan(), is("2:1,2:3"));
+        assertThat(job.getVisitsToMerge(), is(2));
+        assertThat(job.getStatus(), is(MergePatientsJob.Status.QUEUED));
+        assertThat(job.getStep(), is(MergePatientsJob.Step.MERGE_VISITS));
+        assertThat(job.getPreferred(), is(preferred));
+        assertThat(job.getNotPreferred(), is(notPreferred));
+
+        assertThat(firstPreferredVisit.getStopDatetime(), is(tenDaysAgo));
+        verify(mockVisitService, never()).saveVisit(any(Visit.class));
+        verify(mockVisitService, never()).voidVisit(any(Visit.class), anyString());
+        verify(mockPatientService, never()).mergePatients(any(Patient.class), any(Patient.class));
+
+        verify(mockMergePatientsJobRunner).submit(7);
+    }
+
+    @Test
+    public void testRunMergePatientsJobStepMergesPlannedVisitsAndThenPatients() throws Exception {
+        Patient preferred = new Patient();
+        Patient notPreferred = new Patient();
+
+        Date now = new Date();
+        Date tenDaysAgo = DateUtils.addDays(now, -10);
+        Date nineDaysAgo = DateUtils.addDays(now, -9);
+        Date eightDaysAgo = DateUtils.addDays(now, -8);
+        Date sevenDaysAgo = DateUtils.addDays(now, -7);
+
+        Visit preferredVisit = buildVisit(preferred, null, mirebalaisHospital, tenDaysAgo, eightDaysAgo);
+        Visit notPreferredVisit = buildVisit(notPreferred, null, mirebalaisHospital, nineDaysAgo, sevenDaysAgo);
+        Encounter encounter = buildEncounter(notPreferred, eightDaysAgo);
+        notPreferredVisit.addEncounter(encounter);
+
+        when(mockVisitService.getVisit(1)).thenReturn(preferredVisit);
+        when(mockVisitService.getVisit(2)).thenReturn(notPreferredVisit);
+
+        MergePatientsJob job = new MergePatientsJob();
+        job.setPreferred(preferred);
+        job.setNotPreferred(notPreferred);
+        job.addPlannedVisitMerge(1, 2);
+
+        MergePatientsJobDAO mockMergePatientsJobDAO = mock(MergePatientsJobDAO.class);
+        when(mockMergePatientsJobDAO.getById(5)).thenReturn(job);
+        service.setMergePatientsJobDAO(mockMergePatientsJobDAO);
+
+        // the planned visit merge
+        assertThat(service.runMergePatientsJobStep(5), is(true));
+
+        assertThat(encounter.getVisit(), is(preferredVisit));
+        assertThat(encounter.getPatient(), is(preferred));
+        assertThat(notPreferredVisit.getEncounters().size(), is(0));
+        assertThat(preferredVisit.getStartDatetime(), is(tenDaysAgo));
+        assertThat(preferredVisit.getStopDatetime(), is(sevenDaysAgo));
+        verify(mockEncounterService).saveEncounter(encounter);
+        verify(mockVisitService).voidVisit(eq(notPreferredVisit), anyString());
+        verify(mockVisitService).saveVisit(preferredVisit);
+        assertThat(job.getVisitsMerged(), is(1));
+        assertThat(job.getEncountersMoved(), is(1));
+        verify(mockPatientService, never()).mergePatients(any(Patient.class), any(Patient.class));
+
+        // no visits left to merge
+        assertThat(service.runMergePatientsJobStep(5), is(true));
+        assertThat(job.getStep(), is(MergePatientsJob.Step.MERGE_PATIENTS));
+        verify(mockPatientService, never()).mergePatients(any(Patient.class), any(Patient.class));
+
+        // the patients themselves
+        assertThat(service.runMergePatientsJobStep(5), is(false));
+        assertThat(job.getStatus(), is(MergePatientsJob.Status.COMPLETED));
+        verify(mockPatientService).mergePatients(preferred, notPreferred);
+
+        // and nothing more once it's done
+        assertThat(service.runMergePatientsJobStep(5), is(false));
+        verify(mockPatientService, times(1)).mergePatients(preferred, notPreferred);
+        verify(mockMergePatientsJobDAO, times(3)).saveOrUpdate(job);
+    }
+
+    @Test
+    public void testRunMergePatientsJobStepMovesEncountersInBoundedChunks() throws Exception {
+        Patient preferred = new Patient();
+        Patient notPreferred = new Patient();
+
+        Date now = new Date();
+        Date tenDaysAgo = DateUtils.addDays(now, -10);
+        Date nineDaysAgo = DateUtils.addDays(now, -9);
+
+        Visit preferredVisit = buildVisit(preferred, null, mirebalaisHospital, tenDaysAgo, null);
+        Visit notPreferredVisit = buildVisit(notPreferred, null, mirebalaisHospital, nineDaysAgo, null);
+        for (int i = 0; i < 150; ++i) {
+            notPreferredVisit.addEncounter(buildEncounter(notPreferred, nineDaysAgo));
+        }
+
+        when(mockVisitService.getVisit(1)).thenReturn(preferredVisit);
+        when(mockVisitService.getVisit(2)).thenReturn(notPreferredVisit);
+
+        MergePatientsJob job = new MergePatientsJob();
+        job.setPreferred(preferred);
+        job.setNotPreferred(notPreferred);
+        job.addPlannedVisitMerge(1, 2);
+
+        MergePatientsJobDAO mockMergePatientsJobDAO = mock(MergePatientsJobDAO.class);
+        when(mockMergePatientsJobDAO.getById(5)).thenReturn(job);
+        service.setMergePatientsJobDAO(mockMergePatientsJobDAO);
+
+        assertThat(service.runMergePatientsJobStep(5), is(true));
+        assertThat(job.getEncountersMoved(), is(100));
+        assertThat(job.getVisitsMerged(), is(0));
+        assertThat(notPreferredVisit.getEncounters().size(), is(50));
+        verify(mockVisitService, never()).voidVisit(any(Visit.class), anyString());
+
+        assertThat(service.runMergePatientsJobStep(5), is(true));
+        assertThat(job.getEncountersMoved(), is(150));
+        assertThat(job.getVisitsMerged(), is(1));
+        assertThat(preferredVisit.getEncounters().size(), is(150));
+        verify(mockVisitService).voidVisit(eq(notPreferredVisit), anyString());
+        verify(mockEncounterService, times(150)).saveEncounter(any(Encounter.class));
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void shouldNotAllowMergingAnUnknownRecordIntoAPermanentOne() {
         Patient preferred = new Patient();
@@ -0,0 +1,279 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.adt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterRole;
+import org.openmrs.EncounterType;
+import org.openmrs.Location;
+import org.openmrs.LocationTag;
+import org.openmrs.Patient;
+import org.openmrs.Person;
+import org.openmrs.Provider;
+import org.openmrs.User;
+import org.openmrs.Visit;
+import org.openmrs.VisitType;
+import org.openmrs.api.EncounterService;
+import org.openmrs.api.ProviderService;
+import org.openmrs.api.VisitService;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.emr.EmrConstants;
+import org.openmrs.module.emr.EmrProperties;
+import org.openmrs.module.emr.adt.db.AdtDAO;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs hundreds of check-ins for a handful of patients in parallel, against an in-memory stand-in for the database
+ * whose new visits are only visible to other threads once the transaction that saved them "commits", and checks that
+ * each patient still ends up with only one visit
+ *
+ * Like a repeatable read transaction, each transaction only sees the visits that had been committed when it first
+ * read anything.
+ */
+public class ConcurrentCheckInTest {
+
+    private static final int PATIENTS = 5;
+
+    private static final int CHECK_INS_PER_PATIENT = 60;
+
+    private AdtServiceImpl service;
+
+    private Location outpatientDepartment;
+
+    private Provider clerk;
+
+    private User user;
+
+    private final List<Visit> committedVisits = Collections.synchronizedList(new ArrayList<Visit>());
+
+    private final ThreadLocal<List<Visit>> uncommittedVisits = new ThreadLocal<List<Visit>>();
+
+    private final ThreadLocal<List<Visit>> snapshot = new ThreadLocal<List<Visit>>();
+
+    private final AtomicInteger nextVisitId = new AtomicInteger(1);
+
+    private ExecutorService executor;
+
+    @Before
+    public void setup() {
+        LocationTag supportsVisits = new LocationTag();
+        supportsVisits.setName(EmrConstants.LOCATION_TAG_SUPPORTS_VISITS);
+
+        outpatientDepartment = new Location();
+        Location mirebalaisHospital = new Location();
+        mirebalaisHospital.addTag(supportsVisits);
+        mirebalaisHospital.addChildLocation(outpatientDepartment);
+
+        clerk = new Provider();
+        user = new User();
+        user.setPerson(new Person());
+
+        EmrProperties emrProperties = mock(EmrProperties.class);
+        when(emrProperties.getVisitExpireHours()).thenReturn(10);
+        when(emrProperties.getCheckInEncounterType()).thenReturn(new EncounterType());
+        when(emrProperties.getAtFacilityVisitType()).thenReturn(new VisitType());
+        when(emrProperties.getCheckInClerkEncounterRole()).thenReturn(new EncounterRole());
+
+        AdtDAO adtDAO = mock(AdtDAO.class);
+        when(adtDAO.findOpenVisits(any(Patient.class))).thenAnswer(new Answer<List<Visit>>() {
+            @Override
+            public List<Visit> answer(InvocationOnMock invocation) throws Throwable {
+                Patient patient = (Patient) invocation.getArguments()[0];
+                List<Visit> openVisits = new ArrayList<Visit>();
+                for (Visit visit : read()) {
+                    if (visit.getPatient().getPatientId().equals(patient.getPatientId()) && visit.getStopDatetime() == null) {
+                        openVisits.add(visit);
+                    }
+                }
+                return openVisits;
+            }
+        });
+
+        ProviderService providerService = mock(ProviderService.class);
+        when(providerService.getProvidersByPerson(any(Person.class), anyBoolean())).thenAnswer(new Answer<Collection<Provider>>() {
+            @Override
+            public Collection<Provider> answer(InvocationOnMock invocation) throws Throwable {
+                read();
+                return Collections.singleton(clerk);
+            }
+        });
+
+        VisitService visitService = mock(VisitService.class);
+        when(visitService.saveVisit(any(Visit.class))).thenAnswer(new Answer<Visit>() {
+            @Override
+            public Visit answer(InvocationOnMock invocation) throws Throwable {
+                Visit visit = (Visit) invocation.getArguments()[0];
+                if (visit.getVisitId() == null) {
+                    visit.setVisitId(nextVisitId.getAndIncrement());
+                    uncommittedVisits.get().add(visit);
+                }
+                // give any other check-in for this patient every chance to look for the active visit meanwhile
+                Thread.sleep(1);
+                return visit;
+            }
+        });
+
+        EncounterService encounterService = mock(EncounterService.class);
+        when(encounterService.saveEncounter(any(Encounter.class))).thenAnswer(new Answer<Encounter>() {
+            @Override
+            public Encounter answer(InvocationOnMock invocation) throws Throwable {
+                return (Encounter) invocation.getArguments()[0];
+            }
+        });
+
+        service = new AdtServiceImpl();
+        service.setAdtDAO(adtDAO);
+        service.setVisitService(visitService);
+        service.setEncounterService(encounterService);
+        service.setProviderService(providerService);
+        service.setEmrProperties(emrProperties);
+        service.setStaleVisitCloser(mock(StaleVisitCloser.class));
+
+        executor = Executors.newFixedThreadPool(50);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void shouldCreateOnlyOneVisitPerPatientUnderConcurrentCheckIns() throws Exception {
+        checkInConcurrently(clerk);
+    }
+
+    @Test
+    public void shouldCreateOnlyOneVisitPerPatientUnderConcurrentCheckInsByTheAuthenticatedUser() throws Exception {
+        // the check-in clerk is then looked up, which must not happen before the patient is locked
+        checkInConcurrently(null);
+    }
+
+    private void checkInConcurrently(final Provider checkInClerk) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Encounter>> results = new ArrayList<Future<Encounter>>();
+
+        for (int i = 0; i < PATIENTS * CHECK_INS_PER_PATIENT; i++) {
+            final Patient patient = new Patient(1 + i % PATIENTS);
+            results.add(executor.submit(new Callable<Encounter>() {
+                @Override
+                public Encounter call() throws Exception {
+                    start.await();
+                    UserContext userContext = mock(UserContext.class);
+                    when(userContext.getAuthenticatedUser()).thenReturn(user);
+                    Context.setUserContext(userContext);
+                    try {
+                        return inTransaction(new Callable<Encounter>() {
+                            @Override
+                            public Encounter call() throws Exception {
+                                return service.checkInPatient(patient, outpatientDepartment, checkInClerk, null, null, false);
+                            }
+                        });
+                    }
+                    finally {
+                        Context.clearUserContext();
+                    }
+                }
+            }));
+        }
+
+        start.countDown();
+        for (Future<Encounter> result : results) {
+            assertTrue(result.get(30, TimeUnit.SECONDS).getVisit() != null);
+        }
+
+        assertThat(committedVisits.size(), is(PATIENTS));
+        for (Visit visit : committedVisits) {
+            assertThat(visit.getEncounters().size(), is(CHECK_INS_PER_PATIENT));
+        }
+    }
+
+    @Test
+    public void shouldNotHoldThePatientLockOnceTheTransactionHasCompleted() throws Exception {
+        PatientLocks patientLocks = new PatientLocks();
+        service.setPatientLocks(patientLocks);
+
+        final Patient patient = new Patient(1);
+        inTransaction(new Callable<Visit>() {
+            @Override
+            public Visit call() throws Exception {
+                return service.ensureActiveVisit(patient, outpatientDepartment);
+            }
+        });
+
+        assertThat(patientLocks.getLock(1).isLocked(), is(false));
+    }
+
+    // what the current transaction sees, which is fixed the first time it reads anything
+    private List<Visit> read() {
+        if (snapshot.get() == null) {
+            synchronized (committedVisits) {
+                snapshot.set(new ArrayList<Visit>(committedVisits));
+            }
+        }
+        return snapshot.get();
+    }
+
+    /**
+     * Runs the callable as a transaction would: with transaction synchronization active, and with any visits it
+     * saves only being made visible to other threads when it completes, before the synchronizations are told that it
+     * has committed
+     */
+    private <T> T inTransaction(Callable<T> callable) throws Exception {
+        TransactionSynchronizationManager.initSynchronization();
+        uncommittedVisits.set(new ArrayList<Visit>());
+        try {
+            T result = callable.call();
+            committedVisits.addAll(uncommittedVisits.get());
+            return result;
+        }
+        finally {
+            List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+            TransactionSynchronizationManager.clearSynchronization();
+            for (TransactionSynchronization synchronization : synchronizations) {
+                synchronization.afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+            }
+            uncommittedVisits.remove();
+            snapshot.remove();
+        }
+    }
+
+}
@@ -24,6 +24,7 @@ import org.openmrs.Location;
 import org.openmrs.Patient;
 import org.openmrs.Visit;
 import org.openmrs.api.VisitService;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.util.Arrays;
 import java.util.Collection;
@@ -32,10 +33,13 @@ import java.util.Date;
 import java.util.Map;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.collection.IsIterableContainingInOrder.contains;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class EmrVisitAssignmentHandlerTest {
@@ -110,4 +114,116 @@ public class EmrVisitAssignmentHandlerTest {
         Assert.assertThat(suitable.getEncounters(), contains(encounter));
 	}
 	
+
+    @Test
+    public void testQueriesEachPatientsVisitsOnlyOnceWithinATransaction() throws Exception {
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            Patient patient = new Patient(1);
+            Location location = new Location();
+
+            Visit suitable = new Visit();
+            suitable.setPatient(patient);
+            suitable.setStartDatetime(DateUtils.addDays(new Date(), -1));
+            suitable.setLocation(location);
+
+            when(
+                visitService.getVisits(any(Collection.class), any(Collection.class), any(Collection.class),
+                    any(Collection.class), any(Date.class), any(Date.class), any(Date.class), any(Date.class), any(Map.class),
+                    anyBoolean(), anyBoolean())).thenReturn(Arrays.asList(suitable));
+
+            Encounter first = new Encounter();
+            first.setPatient(patient);
+            first.setLocation(location);
+            handler.beforeCreateEncounter(first);
+
+            Encounter second = new Encounter();
+            second.setPatient(patient);
+            second.setLocation(location);
+            handler.beforeCreateEncounter(second);
+
+            Assert.assertThat(first.getVisit(), is(suitable));
+            Assert.assertThat(second.getVisit(), is(suitable));
+            verify(visitService, times(1)).getVisits(any(Collection.class), any(Collection.class), any(Collection.class),
+                    any(Collection.class), any(Date.class), any(Date.class), any(Date.class), any(Date.class), any(Map.class),
+                    anyBoolean(), anyBoolean());
+        }
+        finally {
+            endTransaction();
+        }
+    }
+
+    @Test
+    public void testAssignsVisitSavedLaterInTheSameTransaction() throws Exception {
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            Patient patient = new Patient(1);
+            Location location = new Location();
+
+            when(
+                visitService.getVisits(any(Collection.class), any(Collection.class), any(Collection.class),
+                    any(Collection.class), any(Date.class), any(Date.class), any(Date.class), any(Date.class), any(Map.class),
+                    anyBoolean(), anyBoolean())).thenReturn(Collections.<Visit>emptyList());
+
+            Encounter first = new Encounter();
+            first.setPatient(patient);
+            first.setLocation(location);
+            handler.beforeCreateEncounter(first);
+            Assert.assertThat(first.getVisit(), nullValue());
+
+            Visit created = new Visit();
+            created.setPatient(patient);
+            created.setStartDatetime(DateUtils.addDays(new Date(), -1));
+            created.setLocation(location);
+            new VisitAssignmentCacheAdvice().afterReturning(created, VisitService.class.getMethod("saveVisit", Visit.class),
+                    new Object[] { created }, visitService);
+
+            Encounter second = new Encounter();
+            second.setPatient(patient);
+            second.setLocation(location);
+            handler.beforeCreateEncounter(second);
+            Assert.assertThat(second.getVisit(), is(created));
+
+            created.setVoided(true);
+            new VisitAssignmentCacheAdvice().afterReturning(created, VisitService.class.getMethod("voidVisit", Visit.class, String.class),
+                    new Object[] { created, "test" }, visitService);
+
+            Encounter third = new Encounter();
+            third.setPatient(patient);
+            third.setLocation(location);
+            handler.beforeCreateEncounter(third);
+            Assert.assertThat(third.getVisit(), nullValue());
+        }
+        finally {
+            endTransaction();
+        }
+    }
+
+    @Test
+    public void testCacheRecognizesAChangedVisitReloadedIntoANewSession() throws Exception {
+        Patient patient = new Patient(1);
+
+        Visit cached = new Visit(5);
+        cached.setPatient(patient);
+        cached.setStartDatetime(DateUtils.addDays(new Date(), -1));
+
+        VisitAssignmentCache cache = new VisitAssignmentCache();
+        cache.putVisits(1, Arrays.asList(cached));
+
+        Visit reloaded = new Visit(5);
+        reloaded.setPatient(patient);
+        reloaded.setStartDatetime(cached.getStartDatetime());
+        reloaded.setVoided(true);
+        cache.visitChanged(reloaded, false);
+
+        Assert.assertThat(cache.getVisits(1).size(), is(0));
+    }
+
+    private void endTransaction() {
+        if (TransactionSynchronizationManager.hasResource(VisitAssignmentCache.class)) {
+            TransactionSynchronizationManager.unbindResource(VisitAssignmentCache.class);
+        }
+        TransactionSynchronizationManager.clearSynchronization();
+    }
+
 }
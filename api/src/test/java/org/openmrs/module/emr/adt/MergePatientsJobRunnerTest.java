@@ -0,0 +1,133 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.adt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class MergePatientsJobRunnerTest {
+
+    private MergePatientsJobRunnerStub runner;
+
+    @Before
+    public void setup() {
+        runner = new MergePatientsJobRunnerStub();
+    }
+
+    @After
+    public void tearDown() {
+        runner.shutdown();
+    }
+
+    @Test
+    public void shouldRunStepsUntilJobIsDone() throws Exception {
+
+        runner.stepsPerJob = 3;
+        runner.submit(1);
+
+        assertTrue(runner.done.await(5, TimeUnit.SECONDS));
+        assertThat(runner.steps, is(Arrays.asList(1, 1, 1)));
+        assertTrue(runner.failures.isEmpty());
+    }
+
+    @Test
+    public void shouldRunJobsOneAtATimeInOrder() throws Exception {
+
+        runner.stepsPerJob = 2;
+        runner.done = new CountDownLatch(2);
+        runner.submit(1);
+        runner.submit(2);
+
+        assertTrue(runner.done.await(5, TimeUnit.SECONDS));
+        assertThat(runner.steps, is(Arrays.asList(1, 1, 2, 2)));
+    }
+
+    @Test
+    public void shouldMarkJobAsFailedWhenAStepFails() throws Exception {
+
+        runner.stepsPerJob = 3;
+        runner.failOnStep = 2;
+        runner.submit(1);
+
+        assertTrue(runner.done.await(5, TimeUnit.SECONDS));
+        assertThat(runner.steps, is(Arrays.asList(1, 1)));
+        assertThat(runner.failures, is(Collections.singletonList("1: step 2 failed")));
+    }
+
+    @Test
+    public void shouldIgnoreJobsSubmittedAfterShutdown() throws Exception {
+
+        runner.shutdown();
+        runner.submit(1);
+
+        assertFalse(runner.done.await(500, TimeUnit.MILLISECONDS));
+        assertTrue(runner.steps.isEmpty());
+    }
+
+    private class MergePatientsJobRunnerStub extends MergePatientsJobRunner {
+
+        private final List<Integer> steps = Collections.synchronizedList(new ArrayList<Integer>());
+
+        private final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+
+        private CountDownLatch done = new CountDownLatch(1);
+
+        private int stepsPerJob;
+
+        private int failOnStep = -1;
+
+        private int stepsOfCurrentJob = 0;
+
+        @Override
+        protected boolean runStep(Integer mergePatientsJobId) {
+            steps.add(mergePatientsJobId);
+            ++stepsOfCurrentJob;
+            if (stepsOfCurrentJob == failOnStep) {
+                throw new IllegalStateException("step " + stepsOfCurrentJob + " failed");
+            }
+            if (stepsOfCurrentJob < stepsPerJob) {
+                return true;
+            }
+            stepsOfCurrentJob = 0;
+            done.countDown();
+            return false;
+        }
+
+        @Override
+        protected void fail(Integer mergePatientsJobId, String error) {
+            failures.add(mergePatientsJobId + ": " + error);
+            done.countDown();
+        }
+
+        @Override
+        protected void runAsDaemon(Runnable runnable) {
+            runnable.run();
+        }
+    }
+
+}
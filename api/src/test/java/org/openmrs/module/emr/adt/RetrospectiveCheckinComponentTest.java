@@ -21,6 +21,9 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -76,6 +79,95 @@ public class RetrospectiveCheckinComponentTest extends BaseModuleContextSensitiv
         assertThat(visit.getStartDatetime(), is(checkinDate));
     }
 
+    @Test
+    public void importRetrospectiveCheckinsFromCsv() {
+        int visitsBefore = visitService.getVisitsByPatient(patient).size();
+
+        String csv = "patientIdentifier,location,provider,checkinDate,paymentReason,paymentAmount,receiptNumber\n"
+                + csvLine("25/07/2011 10:39", "123456") + "\n"
+                + csvLine("26/07/2011", "\"1234,57\"") + "\n";
+
+        RetrospectiveCheckinImportResult result = adtService.importRetrospectiveCheckins(csv);
+
+        assertThat(result.hasErrors(), is(false));
+        assertThat(result.getRowCount(), is(2));
+        assertThat(result.getImportedCount(), is(2));
+        assertThat(visitService.getVisitsByPatient(patient).size(), is(visitsBefore + 2));
+    }
+
+    @Test
+    public void importMoreRetrospectiveCheckinsThanAreFlushedAtOnce() {
+        int visitsBefore = visitService.getVisitsByPatient(patient).size();
+
+        // more than AdtServiceImpl.RETROSPECTIVE_CHECKINS_PER_FLUSH, so that later check-ins are created after the
+        // session has been cleared, and their patient, location, provider and payment reason have to be loaded again
+        int rows = 120;
+        StringBuilder csv = new StringBuilder("patientIdentifier,location,provider,checkinDate,paymentReason,paymentAmount,receiptNumber\n");
+        for (int i = 0; i < rows; i++) {
+            csv.append(csvLine(String.format("%02d/%02d/2010 10:00", i % 28 + 1, i / 28 + 1), "R" + i)).append("\n");
+        }
+
+        RetrospectiveCheckinImportResult result = adtService.importRetrospectiveCheckins(csv.toString());
+
+        assertThat(result.hasErrors(), is(false));
+        assertThat(result.getImportedCount(), is(rows));
+
+        List<Visit> visits = visitService.getVisitsByPatient(patientService.getPatient(patient.getPatientId()));
+        assertThat(visits.size(), is(visitsBefore + rows));
+
+        Set<String> receiptNumbers = new HashSet<String>();
+        for (Visit visit : visits) {
+            // only the visits we imported, all in 2010
+            if (visit.getStartDatetime().before(generateDateFor(2010, 0, 1, 0, 0))
+                    || !visit.getStartDatetime().before(generateDateFor(2011, 0, 1, 0, 0))) {
+                continue;
+            }
+            assertThat(visit.getLocation().getLocationId(), is(location.getLocationId()));
+            assertThat(visit.getEncounters().size(), is(1));
+
+            Encounter checkinEncounter = visit.getEncounters().iterator().next();
+            assertThat(checkinEncounter.getEncounterType().getUuid(), is(emrProperties.getCheckInEncounterType().getUuid()));
+            assertThat(checkinEncounter.getEncounterDatetime(), is(visit.getStartDatetime()));
+            assertThat(checkinEncounter.getProvidersByRole(emrProperties.getCheckInClerkEncounterRole()).iterator().next().getProviderId(),
+                    is(clerk.getProviderId()));
+
+            Obs paymentGroup = checkinEncounter.getObsAtTopLevel(false).iterator().next();
+            assertThat(paymentGroup.getGroupMembers().size(), is(3));
+            for (Obs member : paymentGroup.getGroupMembers()) {
+                if (member.getValueText() != null) {
+                    receiptNumbers.add(member.getValueText());
+                }
+            }
+        }
+        assertThat(receiptNumbers.size(), is(rows));
+    }
+
+    @Test
+    public void importNothingIfAnyRetrospectiveCheckinIsInvalid() {
+        int visitsBefore = visitService.getVisitsByPatient(patient).size();
+
+        String csv = "patientIdentifier,location,provider,checkinDate,paymentReason,paymentAmount,receiptNumber\n"
+                + csvLine("25/07/2011 10:39", "123456") + "\n"
+                + "no-such-patient," + location.getName() + "," + clerk.getIdentifier() + ",31/02/2011,16,50,123457\n";
+
+        RetrospectiveCheckinImportResult result = adtService.importRetrospectiveCheckins(csv);
+
+        assertThat(result.hasErrors(), is(true));
+        assertThat(result.getErrors().keySet(), containsInAnyOrder(3));
+        assertThat(result.getErrors().get(3).size(), is(2));
+        assertThat(result.getImportedCount(), is(0));
+        assertThat(visitService.getVisitsByPatient(patient).size(), is(visitsBefore));
+    }
+
+    private String csvLine(String checkinDate, String receiptNumber) {
+        if (clerk.getIdentifier() == null) {
+            clerk.setIdentifier("clerk-1");
+            providerService.saveProvider(clerk);
+        }
+        return patient.getPatientIdentifier().getIdentifier() + "," + location.getName() + "," + clerk.getIdentifier()
+                + "," + checkinDate + ",16,50," + receiptNumber;
+    }
+
     private Obs createPaymentAmountObservation(double amount) {
         Obs paymentAmount = new Obs();
         paymentAmount.setConcept(emrProperties.getPaymentAmountConcept());
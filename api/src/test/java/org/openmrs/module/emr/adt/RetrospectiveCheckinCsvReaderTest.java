@@ -0,0 +1,168 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.adt;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.ConceptAnswer;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.Provider;
+import org.openmrs.api.ConceptService;
+import org.openmrs.api.LocationService;
+import org.openmrs.api.PatientService;
+import org.openmrs.api.ProviderService;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RetrospectiveCheckinCsvReaderTest {
+
+    private static final String HEADER = "patientIdentifier,location,provider,checkinDate,paymentReason,paymentAmount,receiptNumber";
+
+    private LocationService locationService;
+
+    private RetrospectiveCheckinCsvReader reader;
+
+    private Patient patient;
+
+    private Location location;
+
+    private Provider clerk;
+
+    private Concept paymentReason;
+
+    @Before
+    public void setUp() {
+        PatientService patientService = mock(PatientService.class);
+        locationService = mock(LocationService.class);
+        ProviderService providerService = mock(ProviderService.class);
+        ConceptService conceptService = mock(ConceptService.class);
+        AdtService adtService = mock(AdtService.class);
+
+        patient = new Patient(2);
+        when(patientService.getPatients(null, "100-1", null, true)).thenReturn(Arrays.asList(patient));
+        when(patientService.getPatients(null, "100-2", null, true)).thenReturn(Arrays.asList(new Patient(3), new Patient(4)));
+        when(patientService.getPatients(null, "no-such-patient", null, true)).thenReturn(Collections.<Patient>emptyList());
+
+        location = new Location(2);
+        location.setName("Clinic");
+        when(locationService.getLocation("Clinic")).thenReturn(location);
+        when(adtService.getLocationThatSupportsVisits(location)).thenReturn(location);
+
+        clerk = new Provider(1);
+        when(providerService.getProviderByIdentifier("clerk-1")).thenReturn(clerk);
+
+        paymentReason = new Concept(16);
+        when(conceptService.getConcept(16)).thenReturn(paymentReason);
+        Concept paymentReasonsConcept = new Concept(221);
+        paymentReasonsConcept.addAnswer(new ConceptAnswer(paymentReason));
+
+        reader = new RetrospectiveCheckinCsvReader(patientService, locationService, providerService, conceptService,
+                adtService, paymentReasonsConcept);
+    }
+
+    @Test
+    public void shouldSplitQuotedFields() {
+        assertThat(RetrospectiveCheckinCsvReader.split(" a ,\"b, c\",\"say \"\"hi\"\"\",,"),
+                contains("a", "b, c", "say \"hi\"", "", ""));
+    }
+
+    @Test
+    public void shouldReadValidLines() throws Exception {
+        RetrospectiveCheckinImportResult result = new RetrospectiveCheckinImportResult();
+
+        List<RetrospectiveCheckin> checkins = reader.read(HEADER + "\r\n"
+                + "100-1,Clinic,clerk-1,25/07/2011 10:39,16,50,123456\r\n"
+                + "\r\n"
+                + "100-1,Clinic,clerk-1,26/07/2011,16,\"1234.5\",\"R,1\"\r\n", result);
+
+        assertThat(result.hasErrors(), is(false));
+        assertThat(result.getRowCount(), is(2));
+        assertThat(checkins.size(), is(2));
+
+        RetrospectiveCheckin checkin = checkins.get(0);
+        assertThat(checkin.getPatient(), is(patient));
+        assertThat(checkin.getLocation(), is(location));
+        assertThat(checkin.getClerk(), is(clerk));
+        assertThat(checkin.getCheckinDate(), is(new SimpleDateFormat("yyyy-MM-dd HH:mm").parse("2011-07-25 10:39")));
+        assertThat(checkin.getPaymentReason(), is(paymentReason));
+        assertThat(checkin.getPaymentAmount(), is(50.0));
+        assertThat(checkin.getReceiptNumber(), is("123456"));
+
+        checkin = checkins.get(1);
+        assertThat(checkin.getCheckinDate(), is(new SimpleDateFormat("yyyy-MM-dd").parse("2011-07-26")));
+        assertThat(checkin.getPaymentAmount(), is(1234.5));
+        assertThat(checkin.getReceiptNumber(), is("R,1"));
+
+        // the same location is only looked up once per file
+        verify(locationService, times(1)).getLocation("Clinic");
+    }
+
+    @Test
+    public void shouldReportErrorsByLine() {
+        RetrospectiveCheckinImportResult result = new RetrospectiveCheckinImportResult();
+
+        List<RetrospectiveCheckin> checkins = reader.read(HEADER + "\n"
+                + "100-1,Clinic,clerk-1,25/07/2011 10:39,16,50,123456\n"
+                + "no-such-patient,Nowhere,clerk-2,31/02/2011,175,-5,\n"
+                + "100-2,Clinic,clerk-1,25/07/2099,16,fifty,123457\n"
+                + "100-1,Clinic,clerk-1\n", result);
+
+        assertThat(result.hasErrors(), is(true));
+        assertThat(result.getRowCount(), is(4));
+        assertThat(checkins.size(), is(1));
+        assertThat(result.getErrors().keySet(), contains(3, 4, 5));
+
+        List<String> errors = result.getErrors().get(3);
+        assertThat(errors.size(), is(7));
+        assertThat(errors.get(0), containsString("No patient found"));
+        assertThat(errors.get(1), containsString("Unknown location"));
+        assertThat(errors.get(2), containsString("No provider found"));
+        assertThat(errors.get(3), containsString("Invalid check-in date"));
+        assertThat(errors.get(4), containsString("Unknown payment reason"));
+        assertThat(errors.get(5), containsString("cannot be negative"));
+        assertThat(errors.get(6), containsString("Receipt number is required"));
+
+        assertThat(result.getErrors().get(4), containsInAnyOrder(containsString("More than one patient"),
+                containsString("is in the future"), containsString("Invalid payment amount")));
+
+        assertThat(result.getErrors().get(5), contains(containsString("Expected 7 columns but found 3")));
+    }
+
+    @Test
+    public void shouldRequireTheHeader() {
+        RetrospectiveCheckinImportResult result = new RetrospectiveCheckinImportResult();
+
+        reader.read("100-1,Clinic,clerk-1,25/07/2011 10:39,16,50,123456\n", result);
+
+        assertThat(result.getErrors().keySet(), contains(1));
+        assertThat(result.getErrors().get(1).get(0), containsString("The first line must be the header"));
+    }
+
+}
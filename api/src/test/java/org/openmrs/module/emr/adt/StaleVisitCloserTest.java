@@ -0,0 +1,88 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.adt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class StaleVisitCloserTest {
+
+    private StaleVisitCloserStub closer;
+
+    @Before
+    public void setup() {
+        closer = new StaleVisitCloserStub();
+        closer.setDelay(100);
+    }
+
+    @After
+    public void tearDown() {
+        closer.shutdown();
+    }
+
+    @Test
+    public void shouldCloseQueuedVisitsTogetherOnlyOnce() throws Exception {
+
+        closer.queue(1);
+        closer.queue(2);
+        closer.queue(1);
+
+        assertTrue(closer.closed.await(5, TimeUnit.SECONDS));
+        assertThat(closer.batches.size(), is(1));
+        assertThat(closer.batches.get(0), is(Arrays.asList(1, 2)));
+    }
+
+    @Test
+    public void shouldIgnoreVisitsQueuedAfterShutdown() throws Exception {
+
+        closer.shutdown();
+        closer.queue(1);
+
+        assertFalse(closer.closed.await(500, TimeUnit.MILLISECONDS));
+        assertTrue(closer.batches.isEmpty());
+    }
+
+    private class StaleVisitCloserStub extends StaleVisitCloser {
+
+        private final List<List<Integer>> batches = new ArrayList<List<Integer>>();
+
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override
+        protected int close(List<Integer> visitIds) {
+            batches.add(visitIds);
+            closed.countDown();
+            return visitIds.size();
+        }
+
+        @Override
+        protected void runInSession(Runnable runnable) {
+            runnable.run();
+        }
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.adt;
+
+import org.apache.commons.lang.time.DateUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Encounter;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.Visit;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.emr.EmrProperties;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.Date;
+
+/**
+ * A rough benchmark of assigning many encounters for the same patient to visits in one transaction (as when
+ * back-entering or importing encounters), with the patient's visits cached for the transaction, and with the cache
+ * cleared before each encounter, which is what assigning them used to cost.
+ *
+ * It only logs the timings, and isn't part of the regular test run (which only picks up *Test classes); run it with
+ * mvn test -Dtest=VisitAssignmentCacheBenchmark
+ */
+public class VisitAssignmentCacheBenchmark extends BaseModuleContextSensitiveTest {
+
+    private static final int ENCOUNTERS = 200;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    @Autowired
+    private EmrProperties emrProperties;
+
+    @Before
+    public void before() throws Exception {
+        executeDataSet("retrospectiveCheckinComponentTestDataset.xml");
+    }
+
+    @Test
+    public void benchmarkAssigningEncountersToVisits() {
+        Patient patient = Context.getPatientService().getPatient(7);
+        Location location = Context.getLocationService().getLocation(2);
+
+        Visit visit = new Visit();
+        visit.setPatient(patient);
+        visit.setLocation(location);
+        visit.setStartDatetime(DateUtils.addDays(new Date(), -1));
+        visit.setVisitType(emrProperties.getAtFacilityVisitType());
+        Context.getVisitService().saveVisit(visit);
+
+        EmrVisitAssignmentHandler handler = new EmrVisitAssignmentHandler();
+
+        // warm up both ways first
+        assignEncountersToVisits(handler, patient, location, false);
+        assignEncountersToVisits(handler, patient, location, true);
+
+        long uncached = assignEncountersToVisits(handler, patient, location, false);
+        long cached = assignEncountersToVisits(handler, patient, location, true);
+
+        log.info("Assigned " + ENCOUNTERS + " encounters to visits in " + cached / 1000000 + " ms with the visit "
+                + "assignment cache, and " + uncached / 1000000 + " ms without it");
+    }
+
+    // returns the time taken in nanoseconds
+    private long assignEncountersToVisits(EmrVisitAssignmentHandler handler, Patient patient, Location location, boolean cached) {
+        long start = System.nanoTime();
+        for (int i = 0; i < ENCOUNTERS; i++) {
+            if (!cached && VisitAssignmentCache.getIfBound() != null) {
+                VisitAssignmentCache.getIfBound().clear();
+            }
+            Encounter encounter = new Encounter();
+            encounter.setPatient(patient);
+            encounter.setLocation(location);
+            encounter.setEncounterDatetime(new Date());
+            handler.beforeCreateEncounter(encounter);
+        }
+        return System.nanoTime() - start;
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.adt;
+
+import org.apache.commons.lang.time.DateUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Location;
+import org.openmrs.Visit;
+import org.openmrs.util.OpenmrsUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class VisitOverlapsTest {
+
+    private Location hospital;
+
+    private Location clinic;
+
+    private Location otherHospital;
+
+    private Date now;
+
+    private RecordingMerger merger;
+
+    @Before
+    public void setup() {
+        hospital = new Location(1);
+        clinic = new Location(2);
+        clinic.setParentLocation(hospital);
+        otherHospital = new Location(3);
+        now = new Date();
+        merger = new RecordingMerger();
+    }
+
+    @Test
+    public void shouldFindOverlapAtDescendantLocation() {
+        Visit mine = buildVisit(1, hospital, daysAgo(5), daysAgo(3));
+        Visit theirs = buildVisit(2, clinic, daysAgo(4), null);
+
+        assertTrue(new VisitOverlaps().anyOverlap(Arrays.asList(mine), Arrays.asList(theirs)));
+        assertTrue(new VisitOverlaps().anyOverlap(Arrays.asList(theirs), Arrays.asList(mine)));
+    }
+
+    @Test
+    public void shouldNotFindOverlapAtUnrelatedLocationsOrTimes() {
+        Visit mine = buildVisit(1, hospital, daysAgo(5), daysAgo(3));
+        Visit theirsElsewhere = buildVisit(2, otherHospital, daysAgo(4), null);
+        Visit theirsLater = buildVisit(3, clinic, daysAgo(2), null);
+        Visit theirsEarlier = buildVisit(4, hospital, daysAgo(10), daysAgo(6));
+
+        assertFalse(new VisitOverlaps().anyOverlap(Arrays.asList(mine),
+                Arrays.asList(theirsElsewhere, theirsLater, theirsEarlier)));
+    }
+
+    @Test
+    public void shouldNotFindOverlapBetweenVisitsOfTheSameSide() {
+        Visit first = buildVisit(1, hospital, daysAgo(5), daysAgo(3));
+        Visit second = buildVisit(2, hospital, daysAgo(4), null);
+
+        assertFalse(new VisitOverlaps().anyOverlap(Arrays.asList(first, second), Collections.<Visit>emptyList()));
+    }
+
+    @Test
+    public void shouldFindOverlapWithLongVisitThatStartedEarlier() {
+        Visit longVisit = buildVisit(1, hospital, daysAgo(30), null);
+        List<Visit> shortVisits = new ArrayList<Visit>();
+        for (int i = 29; i > 0; --i) {
+            shortVisits.add(buildVisit(100 + i, otherHospital, daysAgo(i), daysAgo(i)));
+        }
+        shortVisits.add(buildVisit(2, clinic, daysAgo(1), daysAgo(1)));
+
+        assertTrue(new VisitOverlaps().anyOverlap(shortVisits, Arrays.asList(longVisit)));
+    }
+
+    @Test
+    public void shouldMergeNotPreferredVisitIntoOverlappingPreferredVisit() {
+        Visit preferred = buildVisit(1, hospital, daysAgo(5), daysAgo(3));
+        Visit notPreferred = buildVisit(2, clinic, daysAgo(6), daysAgo(4));
+        Visit notOverlapping = buildVisit(3, hospital, daysAgo(2), null);
+
+        new VisitOverlaps().mergeOverlapping(Arrays.asList(preferred), Arrays.asList(notPreferred, notOverlapping), merger);
+
+        assertThat(merger.merges, is(Arrays.asList("2->1")));
+        assertThat(preferred.getStartDatetime(), is(daysAgo(6)));
+        assertThat(preferred.getStopDatetime(), is(daysAgo(3)));
+    }
+
+    @Test
+    public void shouldNeverMergeIntoNotPreferredVisit() {
+        Visit first = buildVisit(1, hospital, daysAgo(5), daysAgo(3));
+        Visit second = buildVisit(2, hospital, daysAgo(4), daysAgo(2));
+
+        new VisitOverlaps().mergeOverlapping(Collections.<Visit>emptyList(), Arrays.asList(first, second), merger);
+
+        assertThat(merger.merges.size(), is(0));
+    }
+
+    @Test
+    public void shouldMergePreferredVisitsThatOverlapAfterBeingExtended() {
+        Visit first = buildVisit(1, hospital, daysAgo(12), daysAgo(10));
+        Visit second = buildVisit(2, hospital, daysAgo(9), daysAgo(7));
+        Visit bridge = buildVisit(3, hospital, daysAgo(11), daysAgo(8));
+
+        new VisitOverlaps().mergeOverlapping(Arrays.asList(first, second), Arrays.asList(bridge), merger);
+
+        assertThat(merger.merges, is(Arrays.asList("3->1", "2->1")));
+        assertThat(first.getStartDatetime(), is(daysAgo(12)));
+        assertThat(first.getStopDatetime(), is(daysAgo(7)));
+    }
+
+    @Test
+    public void shouldMergeEarlierNotPreferredVisitWhenPreferredVisitStarts() {
+        Visit notPreferred = buildVisit(1, hospital, daysAgo(10), daysAgo(8));
+        Visit preferred = buildVisit(2, clinic, daysAgo(9), null);
+
+        new VisitOverlaps().mergeOverlapping(Arrays.asList(preferred), Arrays.asList(notPreferred), merger);
+
+        assertThat(merger.merges, is(Arrays.asList("1->2")));
+        assertThat(preferred.getStartDatetime(), is(daysAgo(10)));
+    }
+
+    @Test
+    public void shouldIgnoreVoidedVisits() {
+        Visit preferred = buildVisit(1, hospital, daysAgo(5), null);
+        Visit voided = buildVisit(2, hospital, daysAgo(4), daysAgo(3));
+        voided.setVoided(true);
+
+        new VisitOverlaps().mergeOverlapping(Arrays.asList(preferred), Arrays.asList(voided), merger);
+
+        assertThat(merger.merges.size(), is(0));
+    }
+
+    private Date daysAgo(int days) {
+        return DateUtils.addDays(now, -days);
+    }
+
+    private Visit buildVisit(Integer visitId, Location location, Date start, Date stop) {
+        Visit visit = new Visit(visitId);
+        visit.setLocation(location);
+        visit.setStartDatetime(start);
+        visit.setStopDatetime(stop);
+        return visit;
+    }
+
+    /**
+     * Extends the preferred visit's date range the same way AdtServiceImpl does, and records each merge
+     */
+    private class RecordingMerger implements VisitOverlaps.Merger {
+
+        private List<String> merges = new ArrayList<String>();
+
+        @Override
+        public void merge(Visit preferred, Visit notPreferred) {
+            if (OpenmrsUtil.compareWithNullAsEarliest(notPreferred.getStartDatetime(), preferred.getStartDatetime()) < 0) {
+                preferred.setStartDatetime(notPreferred.getStartDatetime());
+            }
+            if (preferred.getStopDatetime() != null && OpenmrsUtil.compareWithNullAsLatest(preferred.getStopDatetime(), notPreferred.getStopDatetime()) < 0) {
+                preferred.setStopDatetime(notPreferred.getStopDatetime());
+            }
+            notPreferred.setVoided(true);
+            merges.add(notPreferred.getVisitId() + "->" + preferred.getVisitId());
+        }
+    }
+
+}
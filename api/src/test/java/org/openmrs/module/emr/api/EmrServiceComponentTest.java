@@ -15,6 +15,7 @@ package org.openmrs.module.emr.api;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hibernate.SessionFactory;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentMatcher;
@@ -30,27 +31,36 @@ import org.openmrs.ConceptSource;
 import org.openmrs.Location;
 import org.openmrs.LocationTag;
 import org.openmrs.Patient;
+import org.openmrs.PersonName;
 import org.openmrs.Privilege;
 import org.openmrs.Role;
+import org.openmrs.Visit;
 import org.openmrs.api.AdministrationService;
 import org.openmrs.api.ConceptNameType;
 import org.openmrs.api.ConceptService;
 import org.openmrs.api.LocationService;
+import org.openmrs.api.PatientService;
 import org.openmrs.api.UserService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.emr.EmrConstants;
 import org.openmrs.module.emr.EmrProperties;
+import org.openmrs.module.emr.consult.DiagnosisSearchIndex;
+import org.openmrs.module.emr.patient.PatientSearchIndexAdvice;
+import org.openmrs.module.emr.patient.PatientSearchResult;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.util.StringUtils;
 
+import java.lang.reflect.Method;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
 import static org.hamcrest.collection.IsIterableContainingInAnyOrder.containsInAnyOrder;
+import static org.hamcrest.core.IsCollectionContaining.hasItem;
 import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.IsNull.nullValue;
 import static org.junit.Assert.assertEquals;
@@ -73,6 +83,12 @@ public class EmrServiceComponentTest extends BaseModuleContextSensitiveTest {
     @Autowired
     ConceptService conceptService;
 
+    @Autowired
+    DiagnosisSearchIndex diagnosisSearchIndex;
+
+    @Autowired
+    SessionFactory sessionFactory;
+
 	@Before
 	public void before() throws Exception{
 		executeDataSet("privilegeTestDataset.xml");
@@ -130,6 +146,144 @@ public class EmrServiceComponentTest extends BaseModuleContextSensitiveTest {
 		assertContainsElementWithProperty(patients, "patientId", 2);
 	}
 	
+    @Test
+    public void testFindPatientSearchResults() throws Exception {
+        administrationService.setGlobalProperty(EmrConstants.PRIMARY_IDENTIFIER_TYPE, "1");
+
+        List<PatientSearchResult> results = service.findPatientSearchResults("Test", null, null, null);
+        assertEquals(4, results.size());
+        assertContainsElementWithProperty(results, "patientId", 2);
+        assertContainsElementWithProperty(results, "patientId", 6);
+        assertContainsElementWithProperty(results, "patientId", 7);
+        assertContainsElementWithProperty(results, "patientId", 8);
+
+        results = service.findPatientSearchResults("Hora", where, null, null);
+        assertEquals(1, results.size());
+        assertContainsElementWithProperty(results, "patientId", 2);
+
+        results = service.findPatientSearchResults("6TS-4", null, null, null);
+        assertEquals(1, results.size());
+        PatientSearchResult result = results.get(0);
+        Patient patient = Context.getPatientService().getPatient(7);
+        assertThat(result.getPatientId(), is(7));
+        assertThat(result.getGender(), is(patient.getGender()));
+        assertThat(result.getAge(), is(patient.getAge()));
+        assertThat(result.getGivenName(), is(patient.getGivenName()));
+        assertThat(result.getFamilyName(), is(patient.getFamilyName()));
+        assertThat(result.getPrimaryIdentifiers(), hasItem("6TS-4"));
+    }
+
+    @Test
+    public void testFindPatientSearchResultsCheckedInAtReturnsPatientsRatherThanVisits() throws Exception {
+        Patient patient = Context.getPatientService().getPatient(7);
+        Visit visit = new Visit(patient, Context.getVisitService().getVisitType(1), new Date());
+        visit.setLocation(where);
+        Context.getVisitService().saveVisit(visit);
+        assertThat(visit.getVisitId().equals(patient.getPatientId()), is(false));
+
+        List<PatientSearchResult> results = service.findPatientSearchResults("", where, null, null);
+        assertEquals(2, results.size());
+        assertContainsElementWithProperty(results, "patientId", 2);
+        assertContainsElementWithProperty(results, "patientId", 7);
+    }
+
+    @Test
+    public void testFindPatientSearchResultByPrimaryId() throws Exception {
+        administrationService.setGlobalProperty(EmrConstants.PRIMARY_IDENTIFIER_TYPE, "1");
+
+        PatientSearchResult result = service.findPatientSearchResultByPrimaryId("6TS-4");
+        assertThat(result.getPatientId(), is(7));
+        assertThat(result.getPrimaryIdentifiers(), hasItem("6TS-4"));
+    }
+
+    @Test
+    public void testFindPatientsUsingPatientSearchIndex() throws Exception {
+        administrationService.setGlobalProperty(EmrConstants.PRIMARY_IDENTIFIER_TYPE, "1");
+        buildPatientSearchIndex();
+
+        List<Patient> patients = service.findPatients("Test", null, null, null);
+        assertEquals(4, patients.size());
+
+        patients = service.findPatients("6TS-4", null, null, null);
+        assertEquals(1, patients.size());
+        assertContainsElementWithProperty(patients, "patientId", 7);
+
+        patients = service.findPatients("Hora", where, null, null);
+        assertEquals(1, patients.size());
+        assertContainsElementWithProperty(patients, "patientId", 2);
+    }
+
+    @Test
+    public void testPatientSearchIndexIsUpdatedWhenAPatientIsSaved() throws Throwable {
+        buildPatientSearchIndex();
+
+        Patient patient = Context.getPatientService().getPatient(7);
+        patient.addName(new PersonName("Zanmi", null, "Lakay"));
+        Context.getPatientService().savePatient(patient);
+        runPatientSearchIndexAdvice("savePatient", new Class[] { Patient.class }, patient);
+
+        List<Patient> patients = service.findPatients("Zanmi", null, null, null);
+        assertEquals(1, patients.size());
+        assertContainsElementWithProperty(patients, "patientId", 7);
+    }
+
+    @Test
+    public void testPatientSearchIndexIsUpdatedWhenAPatientIsVoided() throws Throwable {
+        buildPatientSearchIndex();
+        assertThat(countPatientSearchTrigrams(7) > 0, is(true));
+
+        Patient patient = Context.getPatientService().getPatient(7);
+        Context.getPatientService().voidPatient(patient, "testing");
+        runPatientSearchIndexAdvice("voidPatient", new Class[] { Patient.class, String.class }, patient, "testing");
+
+        assertThat(countPatientSearchTrigrams(7), is(0L));
+    }
+
+    @Test
+    public void testPatientSearchIndexIsUpdatedWhenPatientsAreMerged() throws Throwable {
+        administrationService.setGlobalProperty(EmrConstants.PRIMARY_IDENTIFIER_TYPE, "1");
+        administrationService.setGlobalProperty(EmrConstants.GP_PAPER_RECORD_IDENTIFIER_TYPE, "2");
+        buildPatientSearchIndex();
+
+        Patient preferred = Context.getPatientService().getPatient(7);
+        Patient notPreferred = Context.getPatientService().getPatient(6);
+        Context.getPatientService().mergePatients(preferred, notPreferred);
+        runPatientSearchIndexAdvice("mergePatients", new Class[] { Patient.class, Patient.class }, preferred, notPreferred);
+
+        // the paper record number of the patient merged away now belongs to the preferred patient
+        List<Patient> patients = service.findPatients("12345K", null, null, null);
+        assertEquals(1, patients.size());
+        assertContainsElementWithProperty(patients, "patientId", 7);
+        assertThat(countPatientSearchTrigrams(6), is(0L));
+    }
+
+    @Test
+    public void testBuildingPatientSearchIndexDoesNothingWhileDisabled() throws Exception {
+        assertThat(service.buildPatientSearchIndexBatch(), is(false));
+        assertThat(countPatientSearchTrigrams(7), is(0L));
+        assertThat(StringUtils.hasText(emrProperties.getPatientSearchIndexProgress()), is(false));
+    }
+
+    private void buildPatientSearchIndex() {
+        administrationService.setGlobalProperty(EmrConstants.GP_PATIENT_SEARCH_INDEX_ENABLED, "true");
+        while (service.buildPatientSearchIndexBatch()) {
+            // index everyone
+        }
+        assertThat(emrProperties.isPatientSearchIndexBuilt(), is(true));
+    }
+
+    // the advice isn't wired around the PatientService in tests, so we run it as if it had been
+    private void runPatientSearchIndexAdvice(String methodName, Class[] parameterTypes, Object... args) throws Throwable {
+        Method method = PatientService.class.getMethod(methodName, parameterTypes);
+        new PatientSearchIndexAdvice().afterReturning(null, method, args, Context.getPatientService());
+    }
+
+    private long countPatientSearchTrigrams(Integer patientId) {
+        return (Long) sessionFactory.getCurrentSession()
+                .createQuery("select count(*) from PatientSearchTrigram where patientId = :patientId")
+                .setParameter("patientId", patientId).uniqueResult();
+    }
+
 	@Test
 	public void testFindAPIPrivileges() throws Exception{
 		UserService userService = Context.getUserService();
@@ -212,6 +366,59 @@ public class EmrServiceComponentTest extends BaseModuleContextSensitiveTest {
         assertThat(firstResult.getConceptName(), nullValue());
     }
 
+    @Test
+    public void testDiagnosisSearchIndexIsBuiltWithNoAuthenticatedUser() throws Exception {
+        ConceptClass diagnosis = conceptService.getConceptClassByName("Diagnosis");
+        setupConcepts();
+
+        // the index is built at startup, before anybody has logged in
+        Context.logout();
+        service.rebuildDiagnosisSearchIndex();
+        try {
+            assertThat(diagnosisSearchIndex.covers(diagnosis.getConceptClassId()), is(true));
+        }
+        finally {
+            diagnosisSearchIndex.clear();
+        }
+    }
+
+    @Test
+    public void testConceptSearchFromDiagnosisSearchIndex() throws Exception {
+        ConceptClass diagnosis = conceptService.getConceptClassByName("Diagnosis");
+        ConceptSource icd10 = conceptService.getConceptSourceByName("ICD-10");
+
+        Map<String, Concept> concepts = setupConcepts();
+
+        service.rebuildDiagnosisSearchIndex();
+        try {
+            assertThat(diagnosisSearchIndex.covers(diagnosis.getConceptClassId()), is(true));
+
+            List<ConceptSearchResult> searchResults = service.conceptSearch("malaria", Locale.ENGLISH, Collections.singleton(diagnosis), null, null);
+            assertThat(searchResults.size(), is(3));
+            assertThat(searchResults.get(0).getConcept(), is(concepts.get("malaria")));
+            assertThat(searchResults.get(0).getConceptName().getName(), is("Malaria"));
+            assertThat(searchResults.subList(1, searchResults.size()), containsInAnyOrder(
+                    searchResultMatcher(concepts.get("malaria"), "Clinical Malaria"),
+                    searchResultMatcher(concepts.get("cerebral malaria"), "Cerebral Malaria")));
+
+            searchResults = service.conceptSearch("malaria", Locale.FRENCH, Collections.singleton(diagnosis), null, null);
+            assertThat(searchResults.size(), is(1));
+            assertThat(searchResults.get(0).getConceptName().getName(), is("Malaria célébrale"));
+
+            searchResults = service.conceptSearch("laria cereb", Locale.ENGLISH, Collections.singleton(diagnosis), null, null);
+            assertThat(searchResults.size(), is(1));
+            assertThat(searchResults.get(0).getConceptName().getName(), is("Cerebral Malaria"));
+
+            searchResults = service.conceptSearch("e11.9", Locale.ENGLISH, Collections.singleton(diagnosis), Collections.singleton(icd10), null);
+            assertThat(searchResults.size(), is(1));
+            assertThat(searchResults.get(0).getConcept(), is(concepts.get("diabetes")));
+            assertThat(searchResults.get(0).getConceptName(), nullValue());
+        }
+        finally {
+            diagnosisSearchIndex.clear();
+        }
+    }
+
     private Map<String, Concept> setupConcepts() {
         Map<String, Concept> concepts = new HashMap<String, Concept>();
 
@@ -123,11 +123,8 @@ public class ConsultServiceTest {
         diagnosisGroupingConcept.addSetMember(codedDiagnosis);
         diagnosisGroupingConcept.addSetMember(nonCodedDiagnosis);
 
-        DiagnosisMetadata diagnosisMetadata = new DiagnosisMetadata();
-        diagnosisMetadata.setDiagnosisSetConcept(diagnosisGroupingConcept);
-        diagnosisMetadata.setCodedDiagnosisConcept(codedDiagnosis);
-        diagnosisMetadata.setNonCodedDiagnosisConcept(nonCodedDiagnosis);
-        diagnosisMetadata.setDiagnosisOrderConcept(diagnosisOrder);
+        DiagnosisMetadata diagnosisMetadata = new DiagnosisMetadata(diagnosisGroupingConcept, codedDiagnosis,
+                nonCodedDiagnosis, diagnosisOrder, emrConceptSource);
 
         emrProperties = mock(EmrProperties.class);
         when(emrProperties.getConsultFreeTextCommentsConcept()).thenReturn(freeTextComments);
@@ -23,14 +23,21 @@ import org.openmrs.ConceptMapType;
 import org.openmrs.ConceptName;
 import org.openmrs.ConceptReferenceTerm;
 import org.openmrs.ConceptSource;
+import org.openmrs.Obs;
 import org.openmrs.api.ConceptService;
 import org.openmrs.module.emr.EmrConstants;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
 import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -41,6 +48,7 @@ public class DiagnosisMetadataTest {
     private ConceptMapType sameAs;
     private ConceptSource emrConceptSource;
     private ConceptService conceptService;
+    private List<Concept> concepts = new ArrayList<Concept>();
 
     @Before
     public void setUp() throws Exception {
@@ -70,9 +78,65 @@ public class DiagnosisMetadataTest {
         assertThat(diagnosisMetadata.getDiagnosisOrderConcept(), is(diagnosisOrder));
     }
 
+    @Test
+    public void testBuildingAndReadingDiagnosesDoesNotLookUpMappingsAgain() throws Exception {
+        DiagnosisMetadata diagnosisMetadata = setupDiagnosisMetadata();
+        Concept malaria = new Concept(100);
+
+        Obs obsGroup = diagnosisMetadata.buildDiagnosisObsGroup(new Diagnosis(new CodedOrFreeTextAnswer(malaria), Diagnosis.Order.SECONDARY));
+        Diagnosis diagnosis = diagnosisMetadata.toDiagnosis(obsGroup);
+
+        assertThat(diagnosis.getOrder(), is(Diagnosis.Order.SECONDARY));
+        assertThat(diagnosis.getDiagnosis().getCodedAnswer(), is(malaria));
+        verify(conceptService, times(4)).getConceptByMapping(anyString(), anyString());
+    }
+
+    @Test
+    public void testReloadLoadsConceptsById() throws Exception {
+        DiagnosisMetadata diagnosisMetadata = setupDiagnosisMetadata();
+        for (Concept concept : concepts) {
+            when(conceptService.getConcept(concept.getConceptId())).thenReturn(concept);
+        }
+
+        DiagnosisMetadata reloaded = diagnosisMetadata.reload(conceptService);
+
+        assertThat(reloaded.getDiagnosisSetConcept(), is(diagnosisMetadata.getDiagnosisSetConcept()));
+        assertThat(reloaded.getDiagnosisOrderConcept(), is(diagnosisMetadata.getDiagnosisOrderConcept()));
+        Obs obsGroup = reloaded.buildDiagnosisObsGroup(new Diagnosis(new CodedOrFreeTextAnswer("Headache")));
+        assertThat(reloaded.toDiagnosis(obsGroup).getOrder(), is(Diagnosis.Order.PRIMARY));
+        verify(conceptService, times(4)).getConceptByMapping(anyString(), anyString());
+    }
+
+    @Test
+    public void testReloadReturnsNullIfAConceptNoLongerExists() throws Exception {
+        DiagnosisMetadata diagnosisMetadata = setupDiagnosisMetadata();
+        for (Concept concept : concepts) {
+            when(conceptService.getConcept(concept.getConceptId())).thenReturn(concept);
+        }
+        when(conceptService.getConcept(diagnosisMetadata.getCodedDiagnosisConcept().getConceptId())).thenReturn(null);
+
+        assertThat(diagnosisMetadata.reload(conceptService), is(nullValue()));
+    }
+
+    private DiagnosisMetadata setupDiagnosisMetadata() {
+        Concept codedDiagnosis = setupConcept(conceptService, "Coded Diagnosis", EmrConstants.CONCEPT_CODE_CODED_DIAGNOSIS);
+        Concept nonCodedDiagnosis = setupConcept(conceptService, "Non-Coded Diagnosis", EmrConstants.CONCEPT_CODE_NON_CODED_DIAGNOSIS);
+        Concept diagnosisOrder = setupConcept(conceptService, "Diagnosis Order", EmrConstants.CONCEPT_CODE_DIAGNOSIS_ORDER);
+        diagnosisOrder.addAnswer(new ConceptAnswer(setupConcept(conceptService, "Primary", EmrConstants.CONCEPT_CODE_DIAGNOSIS_ORDER_PRIMARY)));
+        diagnosisOrder.addAnswer(new ConceptAnswer(setupConcept(conceptService, "Secondary", EmrConstants.CONCEPT_CODE_DIAGNOSIS_ORDER_SECONDARY)));
+
+        Concept diagnosisSet = setupConcept(conceptService, "Diagnosis Set", EmrConstants.CONCEPT_CODE_DIAGNOSIS_CONCEPT_SET);
+        diagnosisSet.addSetMember(codedDiagnosis);
+        diagnosisSet.addSetMember(nonCodedDiagnosis);
+        diagnosisSet.addSetMember(diagnosisOrder);
+
+        return new DiagnosisMetadata(conceptService, emrConceptSource);
+    }
+
     private Concept setupConcept(ConceptService mockConceptService, String name, String mappingCode) {
-        Concept concept = new Concept();
+        Concept concept = new Concept(concepts.size() + 1);
         concept.addName(new ConceptName(name, Locale.ENGLISH));
+        concepts.add(concept);
         concept.addConceptMapping(new ConceptMap(new ConceptReferenceTerm(emrConceptSource, mappingCode, null), sameAs));
         when(mockConceptService.getConceptByMapping(mappingCode, emrConceptSource.getName())).thenReturn(concept);
         return concept;
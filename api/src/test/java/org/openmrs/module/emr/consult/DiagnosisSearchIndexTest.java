@@ -0,0 +1,149 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.consult;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class DiagnosisSearchIndexTest {
+
+    private static final Integer DIAGNOSIS_CLASS_ID = 4;
+
+    private static final Integer ICD10_ID = 1;
+
+    private DiagnosisSearchIndex index;
+
+    @Before
+    public void setup() {
+        index = new DiagnosisSearchIndex();
+
+        IndexedDiagnosis malaria = new IndexedDiagnosis(1);
+        malaria.addName(11, Locale.ENGLISH, "Malaria", true);
+        malaria.addName(12, Locale.ENGLISH, "Clinical Malaria", false);
+        malaria.addName(13, Locale.FRENCH, "Paludisme", true);
+        malaria.addCode(101, ICD10_ID, "B54");
+
+        IndexedDiagnosis cerebralMalaria = new IndexedDiagnosis(2);
+        cerebralMalaria.addName(21, Locale.ENGLISH, "Cerebral Malaria", true);
+        cerebralMalaria.addName(22, Locale.FRENCH, "Malaria célébrale", true);
+        cerebralMalaria.addCode(102, ICD10_ID, "B50.0");
+
+        IndexedDiagnosis diabetes = new IndexedDiagnosis(3);
+        diabetes.addName(31, Locale.ENGLISH, "Diabetes Mellitus, Type II", true);
+        diabetes.addCode(103, ICD10_ID, "E11.9");
+        diabetes.addCode(104, 2, "E11.9");
+
+        index.rebuild(DIAGNOSIS_CLASS_ID, Arrays.asList(malaria, cerebralMalaria, diabetes));
+    }
+
+    @Test
+    public void shouldOnlyCoverTheConceptClassItWasBuiltFor() {
+        assertFalse(new DiagnosisSearchIndex().covers(DIAGNOSIS_CLASS_ID));
+        assertTrue(index.covers(DIAGNOSIS_CLASS_ID));
+        assertFalse(index.covers(5));
+
+        index.clear();
+        assertFalse(index.covers(DIAGNOSIS_CLASS_ID));
+    }
+
+    @Test
+    public void shouldFindNamesContainingEveryWordAnywhereBestFirst() {
+        assertThat(nameIds(search("malaria", Locale.ENGLISH, "MALARIA")), contains(11, 21, 12));
+        assertThat(nameIds(search("laria cere", Locale.ENGLISH, "LARIA", "CERE")), contains(21));
+        assertThat(nameIds(search("type mellitus", Locale.ENGLISH, "TYPE", "MELLITUS")), contains(31));
+        assertThat(search("malaria type", Locale.ENGLISH, "MALARIA", "TYPE"), is(empty()));
+    }
+
+    @Test
+    public void shouldOnlyFindNamesInTheSpecifiedLocale() {
+        assertThat(nameIds(search("malaria", Locale.FRENCH, "MALARIA")), contains(22));
+        assertThat(search("malaria", Locale.GERMAN, "MALARIA"), is(empty()));
+    }
+
+    @Test
+    public void shouldScoreAsTheDatabaseSearchDoes() {
+        List<DiagnosisSearchIndex.Match> matches = search("Malaria", Locale.ENGLISH, "MALARIA");
+
+        assertThat(matches.get(0).getScore(), is(1000d + 500d - "Malaria".length()));
+        assertThat(matches.get(1).getScore(), is(500d - "Cerebral Malaria".length()));
+        assertThat(matches.get(2).getScore(), is(-1d * "Clinical Malaria".length()));
+    }
+
+    @Test
+    public void shouldFindExactCodeMatchesInTheSpecifiedSourcesFirst() {
+        List<DiagnosisSearchIndex.Match> matches = index.search("e11.9", Arrays.asList("E11", "9"), Locale.ENGLISH,
+                Collections.singleton(ICD10_ID), 100);
+
+        assertThat(matches.size(), is(1));
+        assertThat(matches.get(0).getConceptId(), is(3));
+        assertThat(matches.get(0).getConceptNameId(), is((Integer) null));
+
+        assertThat(index.search("E11", Arrays.asList("E11"), Locale.ENGLISH, Collections.singleton(ICD10_ID), 100), is(empty()));
+        assertThat(index.search("E11.9", Arrays.asList("E11", "9"), Locale.ENGLISH, null, 100), is(empty()));
+    }
+
+    @Test
+    public void shouldReturnUpToLimitMatches() {
+        assertThat(nameIds(index.search("malaria", Arrays.asList("MALARIA"), Locale.ENGLISH, null, 2)), contains(11, 21));
+    }
+
+    @Test
+    public void shouldReplaceChangedConceptsOnUpdate() {
+        IndexedDiagnosis renamed = new IndexedDiagnosis(2);
+        renamed.addName(23, Locale.ENGLISH, "Cerebral Paludism", true);
+
+        // concept 1 has been retired, and concept 2 renamed
+        index.update(Arrays.asList(1, 2), Arrays.asList(renamed));
+
+        assertThat(search("malaria", Locale.ENGLISH, "MALARIA"), is(empty()));
+        assertThat(nameIds(search("paludism", Locale.ENGLISH, "PALUDISM")), contains(23));
+        assertThat(index.search("B54", Arrays.asList("B54"), Locale.ENGLISH, Collections.singleton(ICD10_ID), 100), is(empty()));
+        assertThat(index.size(), is(2));
+    }
+
+    @Test
+    public void shouldRecordChangesOutsideOfATransactionImmediately() {
+        index.recordChange(1);
+        index.recordTermChange(103);
+
+        assertThat(index.takeChangedConceptIds(), contains(1, 3));
+        assertThat(index.takeChangedConceptIds(), is(empty()));
+    }
+
+    private List<DiagnosisSearchIndex.Match> search(String query, Locale locale, String... uniqueWords) {
+        return index.search(query, Arrays.asList(uniqueWords), locale, null, 100);
+    }
+
+    private List<Integer> nameIds(List<DiagnosisSearchIndex.Match> matches) {
+        Integer[] nameIds = new Integer[matches.size()];
+        for (int i = 0; i < nameIds.length; ++i) {
+            nameIds[i] = matches.get(i).getConceptNameId();
+        }
+        return Arrays.asList(nameIds);
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.paperrecord;
+
+import org.junit.Test;
+import org.openmrs.PersonAddress;
+import org.openmrs.api.APIException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class CompiledAddressLayoutTest {
+
+    @Test
+    public void shouldPrintNonBlankPropertiesOfEachLineAndSkipBlankLines() {
+
+        List<List<Map<String, String>>> lines = new ArrayList<List<Map<String, String>>>();
+        lines.add(line(token("address1"), text("-"), token("address2")));
+        lines.add(line(token("neighborhoodCell")));
+        lines.add(line(token("cityVillage"), token("countyDistrict"), token("country")));
+
+        PersonAddress address = new PersonAddress();
+        address.setAddress1("Cange");
+        address.setAddress2("2eme rue");
+        address.setCityVillage("Lascahobas");
+        address.setCountyDistrict(" ");
+        address.setCountry("Haiti");
+
+        StringBuilder data = new StringBuilder();
+        CompiledAddressLayout.compile(lines, "IS_ADDR_TOKEN").appendZpl(address, 250, data);
+
+        assertThat(data.toString(), is("^FO140,250^ATN^FDCange, 2eme rue^FS^FO140,300^ATN^FDLascahobas, Haiti^FS"));
+    }
+
+    @Test(expected = APIException.class)
+    public void shouldFailOnInvalidPropertyName() {
+
+        List<List<Map<String, String>>> lines = new ArrayList<List<Map<String, String>>>();
+        lines.add(line(token("notAProperty")));
+
+        CompiledAddressLayout.compile(lines, "IS_ADDR_TOKEN").appendZpl(new PersonAddress(), 250, new StringBuilder());
+    }
+
+    private List<Map<String, String>> line(Map<String, String>... tokens) {
+        List<Map<String, String>> line = new ArrayList<Map<String, String>>();
+        for (Map<String, String> token : tokens) {
+            line.add(token);
+        }
+        return line;
+    }
+
+    private Map<String, String> token(String codeName) {
+        Map<String, String> token = new HashMap<String, String>();
+        token.put("isToken", "IS_ADDR_TOKEN");
+        token.put("codeName", codeName);
+        return token;
+    }
+
+    private Map<String, String> text(String displayText) {
+        Map<String, String> token = new HashMap<String, String>();
+        token.put("isToken", "IS_NOT_ADDR_TOKEN");
+        token.put("displayText", displayText);
+        return token;
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.paperrecord;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class PaperRecordRequestChangeLogTest {
+
+    private PaperRecordRequestChangeLog changeLog;
+
+    @Before
+    public void setup() {
+        changeLog = new PaperRecordRequestChangeLog(3);
+    }
+
+    @Test
+    public void shouldReturnIncompleteChangesIfClientHasNeverAsked() {
+        PaperRecordRequestChanges changes = changeLog.getChangesSince(null);
+        assertFalse(changes.isComplete());
+        assertThat(changes.getSequence(), is(changeLog.getLatestSequence()));
+    }
+
+    @Test
+    public void shouldReturnOnlyRequestsChangedSinceSequence() {
+
+        changeLog.recordChange(createRequest(1));
+        long sequence = changeLog.getLatestSequence();
+
+        changeLog.recordChange(createRequest(2));
+        changeLog.recordChange(createRequest(3));
+        changeLog.recordChange(createRequest(2));
+
+        PaperRecordRequestChanges changes = changeLog.getChangesSince(sequence);
+        assertTrue(changes.isComplete());
+        assertThat(changes.getRequestIds(), containsInAnyOrder(2, 3));
+        assertThat(changes.getSequence(), is(sequence + 3));
+    }
+
+    @Test
+    public void shouldReturnIncompleteChangesIfChangesHaveBeenDroppedFromLog() {
+
+        long sequence = changeLog.getLatestSequence();
+
+        changeLog.recordChange(createRequest(1));
+        changeLog.recordChange(createRequest(2));
+        changeLog.recordChange(createRequest(3));
+        changeLog.recordChange(createRequest(4));
+
+        assertFalse(changeLog.getChangesSince(sequence).isComplete());
+        assertTrue(changeLog.getChangesSince(sequence + 1).isComplete());
+    }
+
+    @Test
+    public void shouldReturnIncompleteChangesIfSequenceIsFromTheFuture() {
+        assertFalse(changeLog.getChangesSince(changeLog.getLatestSequence() + 10).isComplete());
+    }
+
+    @Test
+    public void shouldNotRecordChangeForUnsavedRequest() {
+        long sequence = changeLog.getLatestSequence();
+        changeLog.recordChange(new PaperRecordRequest());
+        assertThat(changeLog.getLatestSequence(), is(sequence));
+    }
+
+    @Test
+    public void waitShouldTimeOutIfNothingChanges() throws Exception {
+        assertFalse(changeLog.waitForChangesSince(changeLog.getLatestSequence(), 10));
+    }
+
+    @Test
+    public void waitShouldReturnImmediatelyIfThereAreAlreadyChanges() throws Exception {
+        long sequence = changeLog.getLatestSequence();
+        changeLog.recordChange(createRequest(1));
+        assertTrue(changeLog.waitForChangesSince(sequence, 10000));
+    }
+
+    @Test
+    public void waitShouldReturnWhenChangeIsRecorded() throws Exception {
+
+        long sequence = changeLog.getLatestSequence();
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                }
+                catch (InterruptedException e) {
+                    // ignore
+                }
+                changeLog.recordChange(createRequest(1));
+            }
+        });
+        thread.start();
+
+        assertTrue(changeLog.waitForChangesSince(sequence, 10000));
+        assertThat(changeLog.getChangesSince(sequence).getRequestIds(), containsInAnyOrder(1));
+    }
+
+    private PaperRecordRequest createRequest(Integer id) {
+        PaperRecordRequest request = new PaperRecordRequest();
+        request.setId(id);
+        return request;
+    }
+}
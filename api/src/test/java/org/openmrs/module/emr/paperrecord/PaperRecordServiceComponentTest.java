@@ -17,6 +17,7 @@ package org.openmrs.module.emr.paperrecord;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import junit.framework.Assert;
 import org.junit.Before;
@@ -56,6 +57,9 @@ public class PaperRecordServiceComponentTest extends BaseModuleContextSensitiveT
     @Autowired
     EmrProperties emrProperties;
 
+    @Autowired
+    RecentIdentifierCache recentIdentifierCache;
+
     @Before
     public void beforeAllTests() throws Exception {
         executeDataSet("paperRecordServiceComponentTestDataset.xml");
@@ -63,6 +67,9 @@ public class PaperRecordServiceComponentTest extends BaseModuleContextSensitiveT
         // stub out the printer service
         PrinterService printerService = mock(PrinterService.class);
         paperRecordService.setPrinterService(printerService);
+
+        // identifiers found by earlier tests may still be cached
+        recentIdentifierCache.clear();
     }
 
     @Test
@@ -161,6 +168,60 @@ public class PaperRecordServiceComponentTest extends BaseModuleContextSensitiveT
         Assert.assertFalse(paperRecordService.paperRecordExistsForPatientWithIdentifier("101-6", medicalRecordLocation));
     }
 
+    @Test
+    public void testPaperRecordExistsForIdentifierShouldMatchPaperRecordIdentifier() {
+
+        // from the standard test dataset
+        Location medicalRecordLocation = locationService.getLocation(1);
+
+        // this paper record identifier exists in the standard test data set
+        Assert.assertTrue(paperRecordService.paperRecordExistsForIdentifier("101", medicalRecordLocation));
+    }
+
+    @Test
+    public void testPaperRecordExistsForIdentifierShouldMatchPrimaryIdentifierOfPatientWithPaperRecord() {
+
+        // from the standard test dataset
+        Location medicalRecordLocation = locationService.getLocation(1);
+
+        // the patient with this primary identifier has a paper record identifier for location 1
+        Assert.assertTrue(paperRecordService.paperRecordExistsForIdentifier("101-6", medicalRecordLocation));
+    }
+
+    @Test
+    public void testPaperRecordExistsForIdentifierShouldReturnFalseIfWrongLocation() {
+
+        // from the standard test dataset
+        Location medicalRecordLocation = locationService.getLocation(2);
+
+        Assert.assertFalse(paperRecordService.paperRecordExistsForIdentifier("101", medicalRecordLocation));
+        Assert.assertFalse(paperRecordService.paperRecordExistsForIdentifier("101-6", medicalRecordLocation));
+    }
+
+    @Test
+    public void testPaperRecordExistsForIdentifierShouldReturnFalseIfPaperRecordIdentifierVoided() {
+
+        // from the standard test dataset
+        Location medicalRecordLocation = locationService.getLocation(1);
+
+        Assert.assertFalse(paperRecordService.paperRecordExistsForIdentifier("ABC123", medicalRecordLocation));
+        Assert.assertFalse(paperRecordService.paperRecordExistsForIdentifier("7TU-8", medicalRecordLocation));
+    }
+
+    @Test
+    public void testPaperRecordExistsForIdentifierShouldReturnFalseIfPatientVoided() {
+
+        // from the standard test dataset
+        Location medicalRecordLocation = locationService.getLocation(1);
+
+        Patient patient = patientService.getPatientIdentifiers("101", null, null, null, null).get(0).getPatient();
+        patient.setVoided(true);
+        Context.flushSession();
+
+        Assert.assertFalse(paperRecordService.paperRecordExistsForIdentifier("101", medicalRecordLocation));
+        Assert.assertFalse(paperRecordService.paperRecordExistsForIdentifier("101-6", medicalRecordLocation));
+    }
+
     @Test
     public void testPaperMedicalRecordExistsForPatientShouldReturnFalseIfPaperRecordIdentifierVoided() {
 
@@ -287,6 +348,46 @@ public class PaperRecordServiceComponentTest extends BaseModuleContextSensitiveT
         Assert.assertEquals(2, paperRecordService.getOpenPaperRecordRequestsToPull().size());
     }
 
+    @Test
+    public void testGetOpenPaperRecordRequestsToPullPageByPage() {
+
+        // all these are from the standard test dataset (both patients have medical record identifiers at location 1)
+        Patient patient = patientService.getPatient(2);
+        Patient anotherPatient = patientService.getPatient(999);
+        Location medicalRecordLocation = locationService.getLocation(1);
+        Location requestLocation = locationService.getLocation(3);
+
+        paperRecordService.requestPaperRecord(patient, medicalRecordLocation, requestLocation);
+        paperRecordService.requestPaperRecord(anotherPatient, medicalRecordLocation, requestLocation);
+
+        List<PaperRecordRequest> firstPage = paperRecordService.getOpenPaperRecordRequestsToPull(null, 1);
+        Assert.assertEquals(1, firstPage.size());
+        Assert.assertEquals(patient, firstPage.get(0).getPatient());
+
+        List<PaperRecordRequest> secondPage = paperRecordService.getOpenPaperRecordRequestsToPull(firstPage.get(0), 1);
+        Assert.assertEquals(1, secondPage.size());
+        Assert.assertEquals(anotherPatient, secondPage.get(0).getPatient());
+
+        Assert.assertEquals(0, paperRecordService.getOpenPaperRecordRequestsToPull(secondPage.get(0), 1).size());
+    }
+
+    @Test
+    public void testExpirePendingPullRequestsShouldOnlyExpirePullRequests() {
+
+        // patient 2 has a medical record identifier at location 1, patient 8 doesn't have one at location 2
+        Patient patient = patientService.getPatient(2);
+        Patient anotherPatient = patientService.getPatient(8);
+        Location requestLocation = locationService.getLocation(3);
+
+        paperRecordService.requestPaperRecord(patient, locationService.getLocation(1), requestLocation);
+        paperRecordService.requestPaperRecord(anotherPatient, locationService.getLocation(2), requestLocation);
+
+        Assert.assertEquals(1, paperRecordService.expirePendingPullRequests(new Date(new Date().getTime() + 60000)));
+
+        Assert.assertEquals(0, paperRecordService.getOpenPaperRecordRequestsToPull().size());
+        Assert.assertEquals(1, paperRecordService.getOpenPaperRecordRequestsToCreate().size());
+    }
+
     @Test
     public void testGetPaperRecordRequestById() {
 
@@ -302,6 +403,18 @@ public class PaperRecordServiceComponentTest extends BaseModuleContextSensitiveT
 
     }
 
+    @Test
+    public void testGetMostRecentSentPaperRecordRequestsByIdentifiers() {
+
+        Map<String, PaperRecordRequest> requests = paperRecordService.getMostRecentSentPaperRecordRequestsByIdentifiers(
+                Arrays.asList("CATBALL", "DOGBALL", "NOTSENT"));
+
+        Assert.assertEquals(2, requests.size());
+        Assert.assertEquals(new Integer(1), requests.get("CATBALL").getId());
+        Assert.assertEquals(new Integer(2), requests.get("DOGBALL").getId());
+        Assert.assertNull(requests.get("NOTSENT"));
+    }
+
     @Test
     public void testAssignRequest() throws UnableToPrintPaperRecordLabelException {
 
@@ -27,6 +27,8 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatcher;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.openmrs.Location;
 import org.openmrs.Patient;
 import org.openmrs.PatientIdentifier;
@@ -203,6 +205,61 @@ public class PaperRecordServiceTest {
         assertFalse(paperRecordService.paperRecordExistsForPatientWithIdentifier("ABC123", medicalRecordLocation));
     }
 
+    @Test
+    public void testPaperRecordExistsForIdentifierShouldReturnTrueAndCacheResultIfPaperMedicalRecordExists() {
+
+        Location medicalRecordLocation = createMedicalRecordLocation();
+
+        when(mockPaperRecordDAO.findPatientIdWithPaperRecord("ABC123", paperRecordIdentifierType, primaryIdentifierType,
+                medicalRecordLocation)).thenReturn(2);
+
+        assertTrue(paperRecordService.paperRecordExistsForIdentifier("ABC123", medicalRecordLocation));
+        assertTrue(paperRecordService.paperRecordExistsForIdentifier("ABC123", medicalRecordLocation));
+
+        verify(mockPaperRecordDAO, times(1)).findPatientIdWithPaperRecord("ABC123", paperRecordIdentifierType,
+                primaryIdentifierType, medicalRecordLocation);
+    }
+
+    @Test
+    public void testPaperRecordExistsForIdentifierShouldLookUpIdentifierAgainOnceAnIdentifierChanges() throws Throwable {
+
+        Location medicalRecordLocation = createMedicalRecordLocation();
+
+        final RecentIdentifierCache recentIdentifiers = new RecentIdentifierCache();
+        paperRecordService.setRecentIdentifiers(recentIdentifiers);
+
+        when(mockPaperRecordDAO.findPatientIdWithPaperRecord("ABC123", paperRecordIdentifierType, primaryIdentifierType,
+                medicalRecordLocation)).thenReturn(2);
+
+        assertTrue(paperRecordService.paperRecordExistsForIdentifier("ABC123", medicalRecordLocation));
+
+        RecentIdentifierCacheAdvice advice = new RecentIdentifierCacheAdvice() {
+            @Override
+            protected RecentIdentifierCache getRecentIdentifierCache() {
+                return recentIdentifiers;
+            }
+        };
+        advice.afterReturning(null, PatientService.class.getMethod("voidPatientIdentifier", PatientIdentifier.class,
+                String.class), new Object[] { new PatientIdentifier(), "test" }, mockPatientService);
+
+        assertTrue(paperRecordService.paperRecordExistsForIdentifier("ABC123", medicalRecordLocation));
+
+        verify(mockPaperRecordDAO, times(2)).findPatientIdWithPaperRecord("ABC123", paperRecordIdentifierType,
+                primaryIdentifierType, medicalRecordLocation);
+    }
+
+    @Test
+    public void testPaperRecordExistsForIdentifierShouldReturnFalseAndNotCacheResultIfPaperMedicalRecordDoesNotExist() {
+
+        Location medicalRecordLocation = createMedicalRecordLocation();
+
+        assertFalse(paperRecordService.paperRecordExistsForIdentifier("ABC123", medicalRecordLocation));
+        assertFalse(paperRecordService.paperRecordExistsForIdentifier("ABC123", medicalRecordLocation));
+
+        verify(mockPaperRecordDAO, times(2)).findPatientIdWithPaperRecord("ABC123", paperRecordIdentifierType,
+                primaryIdentifierType, medicalRecordLocation);
+    }
+
     @Test
     public void testRequestPaperRecord() throws Exception {
 
@@ -326,6 +383,20 @@ public class PaperRecordServiceTest {
         verify(mockPaperRecordDAO, times(3)).saveOrUpdate(argThat(new IsAssignedTo(assignTo, PaperRecordRequest.Status.ASSIGNED_TO_CREATE)));
     }
 
+    @Test
+    public void testAssignRequestsShouldQueueLabelsRatherThanPrintingThem() throws Exception {
+        Person assignTo = new Person(15);
+        Location location = createLocation(4, "Archives");
+
+        when(mockPaperRecordLabelTemplate.generateLabel(any(Patient.class), any(String.class))).thenReturn("data\n");
+        when(mockPaperRecordLabelTemplate.getEncoding()).thenReturn("UTF-8");
+
+        paperRecordService.assignRequests(Collections.singletonList(buildPaperRecordRequestWithIdentifier()), assignTo, location);
+
+        verify(mockPrinterService).queuePrintJob("data\n", Printer.Type.LABEL, location, "UTF-8");
+        verify(mockPrinterService, never()).printViaSocket(any(String.class), any(Printer.Type.class), any(Location.class), any(String.class));
+    }
+
     @Test
     public void testAssignRequestsWithIdentifiersShouldReturnErrors() throws Exception {
         Person assignTo = new Person(15);
@@ -361,6 +432,53 @@ public class PaperRecordServiceTest {
         paperRecordService.assignRequests(requests, null, null);
     }
 
+    @Test
+    public void testConcurrentAssignmentOfTheSameRequestShouldOnlySucceedOnce() throws Exception {
+        final Person assignTo = new Person(15);
+
+        final PaperRecordRequest request = buildPaperRecordRequestWithoutIdentifier();
+        request.setId(10);
+        request.getPatient().addIdentifier(new PatientIdentifier("987", primaryIdentifierType, null));
+
+        // slow down the creation of the record number, so that without locking both threads would find the request open
+        when(mockIdentifierSourceService.generateIdentifier(paperRecordIdentifierType, "generating a new dossier number"))
+                .thenAnswer(new Answer<String>() {
+                    @Override
+                    public String answer(InvocationOnMock invocation) throws Throwable {
+                        Thread.sleep(200);
+                        return "A000001";
+                    }
+                });
+
+        final List<Map<String, List<String>>> responses = Collections.synchronizedList(new ArrayList<Map<String, List<String>>>());
+
+        Runnable assign = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    responses.add(paperRecordService.assignRequests(Collections.singletonList(request), assignTo, null));
+                }
+                catch (UnableToPrintPaperRecordLabelException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
+        Thread first = new Thread(assign);
+        Thread second = new Thread(assign);
+        first.start();
+        second.start();
+        first.join();
+        second.join();
+
+        assertThat(responses.size(), is(2));
+        assertThat(responses.get(0).get("success").size() + responses.get(1).get("success").size(), is(1));
+        assertThat(responses.get(0).get("error").size() + responses.get(1).get("error").size(), is(1));
+
+        verify(mockIdentifierSourceService, times(1)).generateIdentifier(paperRecordIdentifierType, "generating a new dossier number");
+        verify(mockPaperRecordDAO, times(1)).saveOrUpdate(argThat(new IsAssignedTo(assignTo, PaperRecordRequest.Status.ASSIGNED_TO_CREATE, "A000001")));
+    }
+
     @Test
     public void testAssignRequestsShouldReturnErrorIfPatientHasValidIdentifierEvenIfRequestDoesNot() throws Exception {
         Person assignTo = new Person(15);
@@ -476,8 +594,8 @@ public class PaperRecordServiceTest {
         request.setRequestLocation(requestLocation);
         request.setDateCreated(new Date());
 
-        when(mockPaperRecordDAO.findPaperRecordRequests(argThat(new StatusListOf(PENDING_STATUSES)),
-                argThat(new NullPatient()), argThat(new NullLocation()), eq(identifier), argThat(new NullBoolean()))).thenReturn(Collections.singletonList(request));
+        when(mockPaperRecordDAO.findPaperRecordRequestsByPaperRecordOrPatientIdentifier(argThat(new StatusListOf(PENDING_STATUSES)),
+                eq(identifier), eq(primaryIdentifierType))).thenReturn(Collections.singletonList(request));
         IsExpectedRequest expectedRequestMatcher = new IsExpectedRequest(request);
 
         PaperRecordRequest returnedRequest = paperRecordService.getPendingPaperRecordRequestByIdentifier(identifier);
@@ -507,9 +625,8 @@ public class PaperRecordServiceTest {
         request.setRequestLocation(requestLocation);
         request.setDateCreated(new Date());
 
-        when(mockPatientService.getPatients(null, "Patient_ID", Collections.singletonList(primaryIdentifierType), true)).thenReturn(Collections.singletonList(patient));
-        when(mockPaperRecordDAO.findPaperRecordRequests(argThat(new StatusListOf(PENDING_STATUSES)),
-                eq(patient), argThat(new NullLocation()), argThat(new NullString()), argThat(new NullBoolean()))).thenReturn(Collections.singletonList(request));
+        when(mockPaperRecordDAO.findPaperRecordRequestsByPaperRecordOrPatientIdentifier(argThat(new StatusListOf(PENDING_STATUSES)),
+                eq("Patient_ID"), eq(primaryIdentifierType))).thenReturn(Collections.singletonList(request));
         IsExpectedRequest expectedRequestMatcher = new IsExpectedRequest(request);
 
         PaperRecordRequest returnedRequest = paperRecordService.getPendingPaperRecordRequestByIdentifier("Patient_ID");
@@ -520,8 +637,8 @@ public class PaperRecordServiceTest {
     @Test
     public void getPendingPaperRecordRequestByIdentifierShouldReturnNullIfNoActiveRequestWithThatIdentifier() {
         String identifier = "ABC123";
-        when(mockPaperRecordDAO.findPaperRecordRequests(argThat(new StatusListOf(PENDING_STATUSES)),
-                argThat(new NullPatient()), argThat(new NullLocation()), eq(identifier),  argThat(new NullBoolean()))).thenReturn(null);
+        when(mockPaperRecordDAO.findPaperRecordRequestsByPaperRecordOrPatientIdentifier(argThat(new StatusListOf(PENDING_STATUSES)),
+                eq(identifier), eq(primaryIdentifierType))).thenReturn(null);
         assertNull(paperRecordService.getPendingPaperRecordRequestByIdentifier(identifier));
     }
 
@@ -546,8 +663,8 @@ public class PaperRecordServiceTest {
         request.setRequestLocation(requestLocation);
         request.setDateCreated(new Date());
 
-        when(mockPaperRecordDAO.findPaperRecordRequests(argThat(new StatusListOf(PENDING_STATUSES)),
-                argThat(new NullPatient()), argThat(new NullLocation()), eq(identifier),  argThat(new NullBoolean())))
+        when(mockPaperRecordDAO.findPaperRecordRequestsByPaperRecordOrPatientIdentifier(argThat(new StatusListOf(PENDING_STATUSES)),
+                eq(identifier), eq(primaryIdentifierType)))
                 .thenReturn(Arrays.asList(request, anotherRequest));
         paperRecordService.getPendingPaperRecordRequestByIdentifier(identifier);
     }
@@ -570,8 +687,8 @@ public class PaperRecordServiceTest {
         request.setDateCreated(new Date());
         request.updateStatus(Status.SENT);
 
-        when(mockPaperRecordDAO.findPaperRecordRequests(argThat(new StatusListOf(Collections.singletonList(Status.SENT))),
-                argThat(new NullPatient()), argThat(new NullLocation()), eq(identifier), argThat(new NullBoolean()))).thenReturn(Collections.singletonList(request));
+        when(mockPaperRecordDAO.findPaperRecordRequestsByPaperRecordOrPatientIdentifier(argThat(new StatusListOf(Collections.singletonList(Status.SENT))),
+                eq(identifier), eq(primaryIdentifierType))).thenReturn(Collections.singletonList(request));
         IsExpectedRequest expectedRequestMatcher = new IsExpectedRequest(request);
 
         List<PaperRecordRequest> returnedRequests = paperRecordService.getSentPaperRecordRequestByIdentifier(identifier);
@@ -583,8 +700,8 @@ public class PaperRecordServiceTest {
     @Test
     public void getSentPaperRecordRequestByIdentifierShouldReturnNullIfNoActiveRequestWithThatIdentifier() {
         String identifier = "ABC123";
-        when(mockPaperRecordDAO.findPaperRecordRequests(argThat(new StatusListOf(Collections.singletonList(Status.SENT))),
-                argThat(new NullPatient()), argThat(new NullLocation()), eq(identifier),  argThat(new NullBoolean()))).thenReturn(null);
+        when(mockPaperRecordDAO.findPaperRecordRequestsByPaperRecordOrPatientIdentifier(argThat(new StatusListOf(Collections.singletonList(Status.SENT))),
+                eq(identifier), eq(primaryIdentifierType))).thenReturn(null);
         assertNull(paperRecordService.getSentPaperRecordRequestByIdentifier(identifier));
     }
 
@@ -612,9 +729,8 @@ public class PaperRecordServiceTest {
         request.setDateCreated(new Date());
         request.updateStatus(Status.SENT);
 
-        when(mockPatientService.getPatients(null, "Patient_ID", Collections.singletonList(primaryIdentifierType), true)).thenReturn(Collections.singletonList(patient));
-        when(mockPaperRecordDAO.findPaperRecordRequests(argThat(new StatusListOf(Collections.singletonList(Status.SENT))),
-                eq(patient), argThat(new NullLocation()), argThat(new NullString()), argThat(new NullBoolean()))).thenReturn(Collections.singletonList(request));
+        when(mockPaperRecordDAO.findPaperRecordRequestsByPaperRecordOrPatientIdentifier(argThat(new StatusListOf(Collections.singletonList(Status.SENT))),
+                eq("Patient_ID"), eq(primaryIdentifierType))).thenReturn(Collections.singletonList(request));
 
         IsExpectedRequest expectedRequestMatcher = new IsExpectedRequest(request);
 
@@ -623,6 +739,59 @@ public class PaperRecordServiceTest {
 
     }
 
+    @Test
+    public void getSentPaperRecordRequestByIdentifierShouldPreferRequestsMatchingPaperRecordIdentifier() {
+
+        Location medicalRecordLocation = createMedicalRecordLocation();
+
+        Patient patient = new Patient();
+        patient.setId(15);
+
+        Patient anotherPatient = new Patient();
+        anotherPatient.setId(16);
+
+        // one request has the scanned value as its paper record identifier, the other is for a patient whose primary identifier matches
+        PaperRecordRequest request = createPaperRecordRequest(patient, medicalRecordLocation, "ABC123");
+        request.setId(10);
+        request.updateStatus(Status.SENT);
+
+        PaperRecordRequest anotherRequest = createPaperRecordRequest(anotherPatient, medicalRecordLocation, "DEF456");
+        anotherRequest.setId(11);
+        anotherRequest.updateStatus(Status.SENT);
+
+        when(mockPaperRecordDAO.findPaperRecordRequestsByPaperRecordOrPatientIdentifier(argThat(new StatusListOf(Collections.singletonList(Status.SENT))),
+                eq("ABC123"), eq(primaryIdentifierType))).thenReturn(Arrays.asList(request, anotherRequest));
+
+        List<PaperRecordRequest> returnedRequests = paperRecordService.getSentPaperRecordRequestByIdentifier("ABC123");
+        assertThat(returnedRequests.size(), is(1));
+        assertTrue(new IsExpectedRequest(request).matches(returnedRequests.get(0)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void getSentPaperRecordRequestByIdentifierShouldThrowIllegalStateExceptionIfPatientIdentifierMatchesMultiplePatients() {
+
+        Location medicalRecordLocation = createMedicalRecordLocation();
+
+        Patient patient = new Patient();
+        patient.setId(15);
+
+        Patient anotherPatient = new Patient();
+        anotherPatient.setId(16);
+
+        PaperRecordRequest request = createPaperRecordRequest(patient, medicalRecordLocation, "ABC123");
+        request.setId(10);
+        request.updateStatus(Status.SENT);
+
+        PaperRecordRequest anotherRequest = createPaperRecordRequest(anotherPatient, medicalRecordLocation, "DEF456");
+        anotherRequest.setId(11);
+        anotherRequest.updateStatus(Status.SENT);
+
+        when(mockPaperRecordDAO.findPaperRecordRequestsByPaperRecordOrPatientIdentifier(argThat(new StatusListOf(Collections.singletonList(Status.SENT))),
+                eq("Patient_ID"), eq(primaryIdentifierType))).thenReturn(Arrays.asList(request, anotherRequest));
+
+        paperRecordService.getSentPaperRecordRequestByIdentifier("Patient_ID");
+    }
+
     @Test
     public void getMostRecentSentPaperRecordRequestByIdentifierShouldRetrieveMostRecentSentRequest() {
 
@@ -652,8 +821,8 @@ public class PaperRecordServiceTest {
         yetAnotherRequest.setDateCreated(new Date());
         yetAnotherRequest.updateStatus(Status.SENT);
 
-        when(mockPaperRecordDAO.findPaperRecordRequests(argThat(new StatusListOf(Collections.singletonList(Status.SENT))),
-                argThat(new NullPatient()), argThat(new NullLocation()), eq(identifier), argThat(new NullBoolean())))
+        when(mockPaperRecordDAO.findPaperRecordRequestsByPaperRecordOrPatientIdentifier(argThat(new StatusListOf(Collections.singletonList(Status.SENT))),
+                eq(identifier), eq(primaryIdentifierType)))
                 .thenReturn(Arrays.asList(request, anotherRequest, yetAnotherRequest));
 
         IsExpectedRequest expectedRequestMatcher = new IsExpectedRequest(yetAnotherRequest);
@@ -667,8 +836,8 @@ public class PaperRecordServiceTest {
 
         String identifier = "ABC123";
 
-        when(mockPaperRecordDAO.findPaperRecordRequests(argThat(new StatusListOf(Collections.singletonList(Status.SENT))),
-                argThat(new NullPatient()), argThat(new NullLocation()), eq(identifier), argThat(new NullBoolean())))
+        when(mockPaperRecordDAO.findPaperRecordRequestsByPaperRecordOrPatientIdentifier(argThat(new StatusListOf(Collections.singletonList(Status.SENT))),
+                eq(identifier), eq(primaryIdentifierType)))
                 .thenReturn(null);
 
 
@@ -1045,98 +1214,41 @@ public class PaperRecordServiceTest {
         Calendar cal = Calendar.getInstance();
         cal.set(2012, 1, 22);
         cal.set(Calendar.HOUR_OF_DAY, 4);
-        cal.set(Calendar.MINUTE, 40);
-        Date beforeExpireDate = cal.getTime();
-
-        cal.set(Calendar.MINUTE, 50);
-
-        Date afterExpireDate = cal.getTime();
-
         cal.set(Calendar.MINUTE, 45);
         Date expireDate = cal.getTime();
 
-        Patient patient1 = new Patient(1);
-        Patient patient2 = new Patient(2);
-        Patient patient3 = new Patient(3);
-        Patient patient4 = new Patient(4);
-        Location requestLocation = new Location(1);
-        Location recordLocation = new Location(1);
-
-        PaperRecordRequest request1 = createPaperRecordRequest(patient1, recordLocation, "ABC", requestLocation,
-                Status.ASSIGNED_TO_PULL);
-        request1.setDateCreated(beforeExpireDate);
-
-        PaperRecordRequest request2 = createPaperRecordRequest(patient2, recordLocation, "DEF", requestLocation,
-                Status.ASSIGNED_TO_PULL);
-        request2.setDateCreated(afterExpireDate);
+        when(mockPaperRecordDAO.findPendingPullRequestIds(expireDate, 500))
+                .thenReturn(Arrays.asList(1, 3))
+                .thenReturn(Collections.<Integer>emptyList());
 
-        PaperRecordRequest request3 = createPaperRecordRequest(patient3, recordLocation, "GHI", requestLocation,
-                Status.OPEN);
-        request3.setDateCreated(beforeExpireDate);
+        when(mockPaperRecordDAO.updateStatus(Arrays.asList(1, 3), Arrays.asList(Status.OPEN, Status.ASSIGNED_TO_PULL),
+                Status.CANCELLED)).thenReturn(2);
 
-        PaperRecordRequest request4 = createPaperRecordRequest(patient4, recordLocation, "JKL", requestLocation,
-                Status.OPEN);
-        request4.setDateCreated(afterExpireDate);
+        assertThat(paperRecordService.expirePendingPullRequests(expireDate), is(2));
 
-        when(mockPaperRecordDAO.findPaperRecordRequests(Collections.singletonList(Status.OPEN), null,
-                null, null, true)).thenReturn(Arrays.asList(request1, request2));
-
-        when(mockPaperRecordDAO.findPaperRecordRequests(Collections.singletonList(Status.ASSIGNED_TO_PULL), null,
-                null, null, null)).thenReturn(Arrays.asList(request3, request4));
-
-        paperRecordService.expirePendingPullRequests(expireDate);
-
-        verify(mockPaperRecordDAO).saveOrUpdate(request1);
-        verify(mockPaperRecordDAO).saveOrUpdate(request3);
-
-        verify(mockPaperRecordDAO, never()).saveOrUpdate(request2);
-        verify(mockPaperRecordDAO, never()).saveOrUpdate(request4);
-
-        assertThat(request1.getStatus(), is(Status.CANCELLED));
-        assertThat(request3.getStatus(), is(Status.CANCELLED));
-
-        assertThat(request2.getStatus(), is(Status.ASSIGNED_TO_PULL));
-        assertThat(request4.getStatus(), is(Status.OPEN));
+        verify(mockPaperRecordDAO).updateStatus(Arrays.asList(1, 3), Arrays.asList(Status.OPEN, Status.ASSIGNED_TO_PULL),
+                Status.CANCELLED);
+        verify(mockPaperRecordDAO, never()).saveOrUpdate(any(PaperRecordRequest.class));
     }
 
     @Test
-    public void testExpirePullRequestsShouldoNotCancelCreateRequests() throws Exception {
-
-        Calendar cal = Calendar.getInstance();
-        cal.set(2012, 1, 22);
-        cal.set(Calendar.HOUR_OF_DAY, 4);
-        cal.set(Calendar.MINUTE, 40);
-        Date beforeExpireDate = cal.getTime();
-
-        cal.set(Calendar.MINUTE, 45);
-        Date expireDate = cal.getTime();
-
-        Patient patient1 = new Patient(1);
-        Patient patient2 = new Patient(2);
-        Location requestLocation = new Location(1);
-        Location recordLocation = new Location(1);
+    public void testExpirePullRequestsShouldExpireRequestsChunkByChunk() throws Exception {
 
-        PaperRecordRequest request1 = createPaperRecordRequest(patient1, recordLocation, "ABC", requestLocation,
-                Status.ASSIGNED_TO_CREATE);
-        request1.setDateCreated(beforeExpireDate);
+        Date expireDate = new Date();
 
-        PaperRecordRequest request2 = createPaperRecordRequest(patient2, recordLocation, null, requestLocation,
-                Status.OPEN);
-        request2.setDateCreated(beforeExpireDate);
+        when(mockPaperRecordDAO.findPendingPullRequestIds(expireDate, 500))
+                .thenReturn(Arrays.asList(1, 2))
+                .thenReturn(Arrays.asList(3))
+                .thenReturn(Collections.<Integer>emptyList());
 
-        when(mockPaperRecordDAO.findPaperRecordRequests(Collections.singletonList(Status.ASSIGNED_TO_CREATE), null,
-                null, null, null)).thenReturn(Collections.singletonList(request1));
+        when(mockPaperRecordDAO.updateStatus(Arrays.asList(1, 2), Arrays.asList(Status.OPEN, Status.ASSIGNED_TO_PULL),
+                Status.CANCELLED)).thenReturn(2);
+        when(mockPaperRecordDAO.updateStatus(Arrays.asList(3), Arrays.asList(Status.OPEN, Status.ASSIGNED_TO_PULL),
+                Status.CANCELLED)).thenReturn(1);
 
-        when(mockPaperRecordDAO.findPaperRecordRequests(Collections.singletonList(Status.OPEN), null,
-                null, null, false)).thenReturn(Collections.singletonList(request2));
+        assertThat(paperRecordService.expirePendingPullRequests(expireDate), is(3));
 
-        paperRecordService.expirePendingPullRequests(expireDate);
-
-        verify(mockPaperRecordDAO, never()).saveOrUpdate(request1);
-        verify(mockPaperRecordDAO, never()).saveOrUpdate(request2);
-
-        assertThat(request1.getStatus(), is(Status.ASSIGNED_TO_CREATE));
-        assertThat(request2.getStatus(), is(Status.OPEN));
+        verify(mockPaperRecordDAO, times(3)).findPendingPullRequestIds(expireDate, 500);
     }
 
     private PatientIdentifier createIdentifier(Location medicalRecordLocation, String identifier) {
@@ -1306,12 +1418,6 @@ public class PaperRecordServiceTest {
         }
     }
 
-    private class NullPatient extends ArgumentMatcher<Patient> {
-        public boolean matches(Object o) {
-            return o == null ? true : false;
-        }
-    }
-
 
     private class StatusListOf extends ArgumentMatcher<List<PaperRecordRequest.Status>> {
 
@@ -18,6 +18,8 @@ import static java.util.Arrays.asList;
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class PatientDomainWrapperTest {
@@ -62,6 +64,28 @@ public class PatientDomainWrapperTest {
         assertThat(visitDomainWrappers.size(), is(3));
     }
 
+    @Test
+    public void shouldOnlyLookUpSummaryStatsOncePerWrapper(){
+        AdtService adtService = mock(AdtService.class);
+        Encounter lastEncounter = new Encounter();
+        when(adtService.getLastEncounter(patient)).thenReturn(lastEncounter);
+        when(adtService.getCountOfEncounters(patient)).thenReturn(5);
+        when(adtService.getCountOfVisits(patient)).thenReturn(2);
+
+        patientDomainWrapper = new PatientDomainWrapper(patient, emrProperties, adtService,
+                visitService, mock(EncounterService.class) );
+
+        for (int i = 0; i < 3; i++) {
+            assertSame(lastEncounter, patientDomainWrapper.getLastEncounter());
+            assertThat(patientDomainWrapper.getCountOfEncounters(), is(5));
+            assertThat(patientDomainWrapper.getCountOfVisits(), is(2));
+        }
+
+        verify(adtService, times(1)).getLastEncounter(patient);
+        verify(adtService, times(1)).getCountOfEncounters(patient);
+        verify(adtService, times(1)).getCountOfVisits(patient);
+    }
+
     @Test
     public void shouldReturnFormattedName(){
         patient = mock(Patient.class);
@@ -0,0 +1,93 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.patient;
+
+import org.junit.Test;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PersonName;
+
+import java.util.Set;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class PatientSearchTrigramTest {
+
+    @Test
+    public void shouldNormalizeAccentsCaseAndWhitespace() {
+        assertThat(PatientSearchTrigram.normalize("  Jean-Rémy   Désir "), is("JEAN-REMY DESIR"));
+        assertThat(PatientSearchTrigram.normalize(null), is(""));
+    }
+
+    @Test
+    public void shouldIndexPaddedTrigramsOfNonVoidedNamesAndIdentifiers() {
+        Patient patient = new Patient();
+        patient.addName(new PersonName("Jo", null, "Désir"));
+        PersonName voided = new PersonName("Voided", null, "Name");
+        voided.setVoided(true);
+        patient.addName(voided);
+        patient.addIdentifier(new PatientIdentifier("A12", null, null));
+
+        assertThat(PatientSearchTrigram.getNameTrigrams(patient), containsInAnyOrder(
+                "  J", " JO", "JO ", "  D", " DE", "DES", "ESI", "SIR", "IR "));
+        assertThat(PatientSearchTrigram.getIdentifierTrigrams(patient), containsInAnyOrder("  A", " A1", "A12", "12 "));
+    }
+
+    @Test
+    public void shouldOnlyNeedAnchoredTrigramsToMatchTheStartOfNames() {
+        assertThat(PatientSearchTrigram.getQueryNameTrigrams("jo dés", false), contains("  J", " JO", "  D", " DE", "DES"));
+        assertThat(PatientSearchTrigram.getQueryNameTrigrams("Désir, Jo", false), contains("  D", " DE", "DES", "ESI", "SIR", "  J", " JO"));
+    }
+
+    @Test
+    public void shouldMatchTheStartOfEveryWordOfANameWithSeveralWords() {
+        Patient patient = new Patient();
+        patient.addName(new PersonName("Jean Baptiste", null, "De la Cruz"));
+
+        Set<String> indexed = PatientSearchTrigram.getNameTrigrams(patient);
+        assertTrue(indexed.containsAll(PatientSearchTrigram.getQueryNameTrigrams("jean baptiste", false)));
+        assertTrue(indexed.containsAll(PatientSearchTrigram.getQueryNameTrigrams("baptiste", false)));
+        assertTrue(indexed.containsAll(PatientSearchTrigram.getQueryNameTrigrams("de la cruz", false)));
+        assertTrue(indexed.containsAll(PatientSearchTrigram.getQueryNameTrigrams("cruz baptiste", false)));
+    }
+
+    @Test
+    public void shouldOnlyNeedInnerTrigramsToMatchAnywhereInNames() {
+        Set<String> trigrams = PatientSearchTrigram.getQueryNameTrigrams("esir", true);
+        assertThat(trigrams, contains("ESI", "SIR"));
+        assertThat(trigrams, not(hasItem("  E")));
+
+        // too short to narrow the search down
+        assertThat(PatientSearchTrigram.getQueryNameTrigrams("jo desir", true), is(nullValue()));
+    }
+
+    @Test
+    public void shouldFindIndexedIdentifiersContainingTheQuery() {
+        Patient patient = new Patient();
+        patient.addIdentifier(new PatientIdentifier("6ts-4", null, null));
+
+        Set<String> indexed = PatientSearchTrigram.getIdentifierTrigrams(patient);
+        assertTrue(indexed.containsAll(PatientSearchTrigram.getQueryIdentifierTrigrams("6TS-4")));
+        assertThat(PatientSearchTrigram.getQueryIdentifierTrigrams("6T"), is(nullValue()));
+    }
+
+}
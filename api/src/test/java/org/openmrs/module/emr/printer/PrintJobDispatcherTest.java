@@ -0,0 +1,183 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.printer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PrintJobDispatcherTest {
+
+    private PrinterService printerService;
+
+    private PrintJobDispatcher dispatcher;
+
+    private PrintJob printJob;
+
+    private Printer printer;
+
+    @Before
+    public void setup() {
+
+        printerService = mock(PrinterService.class);
+
+        dispatcher = new PrintJobDispatcherStub();
+        dispatcher.setMaxAttempts(3);
+        dispatcher.setInitialRetryDelay(100);
+
+        printer = new Printer();
+        printer.setId(1);
+        printer.setName("Test Printer");
+
+        printJob = new PrintJob();
+        printJob.setId(10);
+        printJob.setPrinter(printer);
+        printJob.setData("data");
+        printJob.setEncoding("UTF-8");
+
+        when(printerService.getPrintJobById(10)).thenReturn(printJob);
+    }
+
+    @Test
+    public void shouldMarkJobAsPrintedIfSentSuccessfully() throws Exception {
+
+        assertTrue(dispatcher.send(Arrays.asList(10), new PrintJobDispatcher.Buffer()).isEmpty());
+
+        verifyPrinted("data");
+        verify(printerService).savePrintJob(printJob);
+        assertThat(printJob.getStatus(), is(PrintJob.Status.PRINTED));
+        assertThat(printJob.getAttempts(), is(1));
+    }
+
+    @Test
+    public void shouldSendJobsForSamePrinterInSingleWrite() throws Exception {
+
+        PrintJob anotherPrintJob = new PrintJob();
+        anotherPrintJob.setId(11);
+        anotherPrintJob.setPrinter(printer);
+        anotherPrintJob.setData("more data");
+        anotherPrintJob.setEncoding("UTF-8");
+
+        when(printerService.getPrintJobById(11)).thenReturn(anotherPrintJob);
+
+        PrintJobDispatcher.Buffer buffer = new PrintJobDispatcher.Buffer();
+        buffer.write("left over from last batch".getBytes("UTF-8"));
+        assertTrue(dispatcher.send(Arrays.asList(10, 11), buffer).isEmpty());
+
+        verifyPrinted("datamore data");
+        assertThat(printJob.getStatus(), is(PrintJob.Status.PRINTED));
+        assertThat(anotherPrintJob.getStatus(), is(PrintJob.Status.PRINTED));
+    }
+
+    @Test
+    public void shouldBackOffAndThenGiveUpIfPrinterCannotBeReached() throws Exception {
+
+        doThrow(new UnableToPrintViaSocketException("Unable to print to printer Test Printer"))
+                .when(printerService).printViaSocket(any(byte[].class), anyInt(), eq(printer));
+
+        PrintJobDispatcher.Buffer buffer = new PrintJobDispatcher.Buffer();
+
+        Map<Integer, Long> retries = dispatcher.send(Arrays.asList(10), buffer);
+        assertThat(retries.get(10), is(100L));
+        assertThat(printJob.getStatus(), is(PrintJob.Status.QUEUED));
+
+        retries = dispatcher.send(Arrays.asList(10), buffer);
+        assertThat(retries.get(10), is(200L));
+        assertThat(printJob.getStatus(), is(PrintJob.Status.QUEUED));
+
+        assertTrue(dispatcher.send(Arrays.asList(10), buffer).isEmpty());
+        assertThat(printJob.getStatus(), is(PrintJob.Status.FAILED));
+        assertThat(printJob.getAttempts(), is(3));
+        assertThat(printJob.getLastError(), is("Unable to print to printer Test Printer"));
+    }
+
+    @Test
+    public void shouldNotResendJobThatIsNoLongerQueued() throws Exception {
+
+        printJob.updateStatus(PrintJob.Status.PRINTED);
+
+        assertTrue(dispatcher.send(Arrays.asList(10), new PrintJobDispatcher.Buffer()).isEmpty());
+
+        verify(printerService, never()).printViaSocket(any(byte[].class), anyInt(), any(Printer.class));
+        verify(printerService, never()).savePrintJob(any(PrintJob.class));
+    }
+
+    @Test
+    public void shouldCountTheBatchesSent() throws Exception {
+
+        PrintJob anotherPrintJob = new PrintJob();
+        anotherPrintJob.setId(11);
+        anotherPrintJob.setPrinter(printer);
+        anotherPrintJob.setData("more data");
+        anotherPrintJob.setEncoding("UTF-8");
+
+        when(printerService.getPrintJobById(11)).thenReturn(anotherPrintJob);
+
+        dispatcher.setBatchWindow(500);
+        try {
+            dispatcher.dispatch(printJob);
+            dispatcher.dispatch(anotherPrintJob);
+
+            long giveUpAt = System.currentTimeMillis() + 10000;
+            while (dispatcher.getStatistics().getBatches() == 0 && System.currentTimeMillis() < giveUpAt) {
+                Thread.sleep(10);
+            }
+        }
+        finally {
+            dispatcher.shutdown();
+        }
+
+        assertThat(dispatcher.getStatistics().getBatches(), is(1L));
+        assertThat(dispatcher.getStatistics().getPrintJobs(), is(2L));
+        assertThat(dispatcher.getStatistics().getMaxBatchSize(), is(2));
+        verifyPrinted("datamore data");
+    }
+
+    private void verifyPrinted(String data) throws Exception {
+        ArgumentCaptor<byte[]> bytes = ArgumentCaptor.forClass(byte[].class);
+        ArgumentCaptor<Integer> length = ArgumentCaptor.forClass(Integer.class);
+        verify(printerService).printViaSocket(bytes.capture(), length.capture(), eq(printer));
+        assertThat(new String(bytes.getValue(), 0, length.getValue(), "UTF-8"), is(data));
+    }
+
+    private class PrintJobDispatcherStub extends PrintJobDispatcher {
+
+        @Override
+        protected void runInSession(Runnable runnable) {
+            runnable.run();
+        }
+
+        @Override
+        protected PrinterService getPrinterService() {
+            return printerService;
+        }
+    }
+
+}
@@ -25,6 +25,7 @@ import org.openmrs.api.LocationService;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.Collections;
 import java.util.List;
 
 import static org.openmrs.module.emr.EmrConstants.LOCATION_ATTRIBUTE_TYPE_DEFAULT_PRINTER;
@@ -219,4 +220,22 @@ public class PrinterServiceComponentTest extends BaseModuleContextSensitiveTest
         Assert.assertEquals("Test Printer", printers.get(0).getName());
 
     }
+
+    @Test
+    public void testShouldQueuePrintJobForDefaultLabelPrinterAtLocation() {
+
+        Location location = locationService.getLocation(3);  // printer 1 has been set as the default printer for location 3 in dataset
+
+        // since the test transaction is never committed, the job is never handed off to be printed
+        PrintJob printJob = printerService.queuePrintJob("data", Printer.Type.LABEL, location, "UTF-8");
+
+        List<PrintJob> queuedJobs = printerService.getPrintJobs(Collections.singletonList(PrintJob.Status.QUEUED),
+                printerService.getPrinterById(1), null);
+
+        Assert.assertEquals(1, queuedJobs.size());
+        Assert.assertEquals(printJob, queuedJobs.get(0));
+        Assert.assertEquals("data", queuedJobs.get(0).getData());
+        Assert.assertEquals(new Integer(0), queuedJobs.get(0).getAttempts());
+        Assert.assertNotNull(queuedJobs.get(0).getCreator());
+    }
 }
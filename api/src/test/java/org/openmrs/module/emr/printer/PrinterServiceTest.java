@@ -26,20 +26,26 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
@@ -205,6 +211,85 @@ public class PrinterServiceTest {
         IOUtils.write(eq(testData.getBytes("Windows-1252")), any(OutputStream.class));
     }
 
+    @Test
+    public void shouldReuseConnectionWhenPrintingToSamePrinterAgain() throws IOException, UnableToPrintViaSocketException {
+
+        mockStatic(IOUtils.class);
+
+        // make the mocked socket look like an open connection that the printer hasn't closed
+        InputStream inputStream = mock(InputStream.class);
+        when(inputStream.read()).thenThrow(new SocketTimeoutException());
+        when(mockedSocket.isConnected()).thenReturn(true);
+        when(mockedSocket.getInputStream()).thenReturn(inputStream);
+
+        Printer printer = new Printer();
+        printer.setId(1);
+        printer.setIpAddress("127.0.0.1") ;
+        printer.setPort("9100");
+
+        printerService.printViaSocket("test data", printer, "UTF-8");
+        printerService.printViaSocket("more test data", printer, "UTF-8");
+
+        verify(mockedSocket, times(1)).connect(argThat(new IsExpectedSocketAddress("127.0.0.1", "9100")), eq(1000));
+        verify(mockedSocket, times(2)).getOutputStream();
+        verify(mockedSocket, never()).close();
+    }
+
+    @Test
+    public void shouldNotReuseConnectionThatPrinterHasClosed() throws IOException, UnableToPrintViaSocketException {
+
+        mockStatic(IOUtils.class);
+
+        // the printer has hung up, so reading from the socket returns end-of-stream
+        InputStream inputStream = mock(InputStream.class);
+        when(inputStream.read()).thenReturn(-1);
+        when(mockedSocket.isConnected()).thenReturn(true);
+        when(mockedSocket.getInputStream()).thenReturn(inputStream);
+
+        Printer printer = new Printer();
+        printer.setId(1);
+        printer.setIpAddress("127.0.0.1") ;
+        printer.setPort("9100");
+
+        printerService.printViaSocket("test data", printer, "UTF-8");
+        printerService.printViaSocket("more test data", printer, "UTF-8");
+
+        verify(mockedSocket, times(2)).connect(argThat(new IsExpectedSocketAddress("127.0.0.1", "9100")), eq(1000));
+        verify(mockedSocket).close();
+    }
+
+    @Test
+    public void shouldOnlyLookUpThePrinterAddressAgainIfItChangesOrWeCannotConnect() throws Exception {
+
+        mockStatic(IOUtils.class);
+
+        CountingPrinterConnectionPool pool = new CountingPrinterConnectionPool();
+        ((PrinterServiceImpl) printerService).setPrinterConnectionPool(pool);
+
+        Printer printer = new Printer();
+        printer.setId(1);
+        printer.setIpAddress("127.0.0.1") ;
+        printer.setPort("9100");
+
+        printerService.printViaSocket("test data", printer, "UTF-8");
+        printerService.printViaSocket("more test data", printer, "UTF-8");
+        assertThat(pool.lookups, is(1));
+
+        printer.setPort("9101");
+        printerService.printViaSocket("test data", printer, "UTF-8");
+        assertThat(pool.lookups, is(2));
+
+        doThrow(new IOException()).doNothing().when(mockedSocket).connect(any(SocketAddress.class), anyInt());
+        try {
+            printerService.printViaSocket("test data", printer, "UTF-8");
+        }
+        catch (UnableToPrintViaSocketException e) {
+            // expected
+        }
+        printerService.printViaSocket("test data", printer, "UTF-8");
+        assertThat(pool.lookups, is(3));
+    }
+
     @Test(expected = UnableToPrintViaSocketException.class)
     public void shouldFailIfInvalidIpAddress() throws UnableToPrintViaSocketException {
 
@@ -244,6 +329,22 @@ public class PrinterServiceTest {
 
     }
 
+    private class CountingPrinterConnectionPool extends PrinterConnectionPool {
+
+        private int lookups = 0;
+
+        @Override
+        protected Socket createSocket() {
+            return mockedSocket;
+        }
+
+        @Override
+        protected InetSocketAddress resolve(String ipAddress, String port) throws IOException {
+            ++lookups;
+            return super.resolve(ipAddress, port);
+        }
+    }
+
     private class IsExpectedSocketAddress extends ArgumentMatcher<SocketAddress> {
 
         private InetSocketAddress expectedSocketAddress;
@@ -0,0 +1,132 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.EncounterType;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.EncounterService;
+import org.openmrs.module.emr.EmrConstants;
+import org.openmrs.module.emr.EmrProperties;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ModulePropertiesTest {
+
+    private EmrProperties emrProperties;
+
+    private AdministrationService administrationService;
+
+    private EncounterService encounterService;
+
+    private EncounterType checkInEncounterType;
+
+    @Before
+    public void setup() {
+        checkInEncounterType = new EncounterType(7);
+        checkInEncounterType.setUuid("check-in-uuid");
+
+        administrationService = mock(AdministrationService.class);
+        when(administrationService.getGlobalProperty(EmrConstants.GP_CHECK_IN_ENCOUNTER_TYPE)).thenReturn("check-in-uuid");
+
+        encounterService = mock(EncounterService.class);
+        when(encounterService.getEncounterTypeByUuid("check-in-uuid")).thenReturn(checkInEncounterType);
+        when(encounterService.getEncounterType(7)).thenReturn(checkInEncounterType);
+
+        emrProperties = new EmrProperties();
+        emrProperties.setAdministrationService(administrationService);
+        emrProperties.setEncounterService(encounterService);
+    }
+
+    @Test
+    public void shouldLookUpMetadataEveryTimeWhenNotListeningForChanges() {
+        emrProperties.getCheckInEncounterType();
+        emrProperties.getCheckInEncounterType();
+
+        verify(administrationService, times(2)).getGlobalProperty(EmrConstants.GP_CHECK_IN_ENCOUNTER_TYPE);
+        verify(encounterService, times(2)).getEncounterTypeByUuid("check-in-uuid");
+        verify(encounterService, never()).getEncounterType(7);
+    }
+
+    @Test
+    public void shouldLoadMetadataByIdOnceResolvedWhenListeningForChanges() {
+        emrProperties.listenForChanges(administrationService);
+
+        assertThat(emrProperties.getCheckInEncounterType(), is(checkInEncounterType));
+        assertThat(emrProperties.getCheckInEncounterType(), is(checkInEncounterType));
+        assertThat(emrProperties.getCheckInEncounterType(), is(checkInEncounterType));
+
+        verify(administrationService).addGlobalPropertyListener(emrProperties);
+        verify(administrationService, times(1)).getGlobalProperty(EmrConstants.GP_CHECK_IN_ENCOUNTER_TYPE);
+        verify(encounterService, times(1)).getEncounterTypeByUuid("check-in-uuid");
+        verify(encounterService, times(2)).getEncounterType(7);
+        assertThat(emrProperties.getSnapshotHits(), is(2L));
+        assertThat(emrProperties.getSnapshotMisses(), is(1L));
+        assertThat(emrProperties.getSnapshotSize(), is(1));
+    }
+
+    @Test
+    public void shouldResolveMetadataAgainWhenItsGlobalPropertyChanges() {
+        emrProperties.listenForChanges(administrationService);
+        emrProperties.getCheckInEncounterType();
+
+        EncounterType otherEncounterType = new EncounterType(8);
+        otherEncounterType.setUuid("other-uuid");
+        when(administrationService.getGlobalProperty(EmrConstants.GP_CHECK_IN_ENCOUNTER_TYPE)).thenReturn("other-uuid");
+        when(encounterService.getEncounterTypeByUuid("other-uuid")).thenReturn(otherEncounterType);
+
+        assertThat(emrProperties.supportsPropertyName(EmrConstants.GP_CHECK_IN_ENCOUNTER_TYPE), is(true));
+        assertThat(emrProperties.supportsPropertyName("some.other.module.property"), is(false));
+        emrProperties.globalPropertyChanged(new GlobalProperty(EmrConstants.GP_CHECK_IN_ENCOUNTER_TYPE, "other-uuid"));
+
+        assertThat(emrProperties.getSnapshotSize(), is(0));
+        assertThat(emrProperties.getCheckInEncounterType(), is(otherEncounterType));
+    }
+
+    @Test
+    public void shouldResolveMetadataAgainIfItWasPurged() {
+        emrProperties.listenForChanges(administrationService);
+        emrProperties.getCheckInEncounterType();
+
+        when(encounterService.getEncounterType(7)).thenReturn(null);
+
+        assertThat(emrProperties.getCheckInEncounterType(), is(checkInEncounterType));
+        assertThat(emrProperties.getStaleEntries(), is(1L));
+        verify(encounterService, times(2)).getEncounterTypeByUuid("check-in-uuid");
+    }
+
+    @Test
+    public void shouldStopUsingTheSnapshotWhenNoLongerListening() {
+        emrProperties.listenForChanges(administrationService);
+        emrProperties.getCheckInEncounterType();
+        emrProperties.stopListeningForChanges(administrationService);
+
+        emrProperties.getCheckInEncounterType();
+
+        verify(administrationService).removeGlobalPropertyListener(emrProperties);
+        verify(encounterService, times(2)).getEncounterTypeByUuid(anyString());
+        verify(encounterService, never()).getEncounterType(7);
+    }
+
+}
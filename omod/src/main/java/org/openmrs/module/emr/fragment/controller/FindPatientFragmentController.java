@@ -18,19 +18,13 @@ import java.util.List;
 
 import org.apache.commons.lang.StringUtils;
 import org.openmrs.Location;
-import org.openmrs.Patient;
-import org.openmrs.PatientIdentifier;
-import org.openmrs.PatientIdentifierType;
-import org.openmrs.PersonName;
-import org.openmrs.module.emr.EmrProperties;
 import org.openmrs.module.emr.api.EmrService;
+import org.openmrs.module.emr.patient.PatientSearchResult;
 import org.openmrs.ui.framework.SimpleObject;
 import org.openmrs.ui.framework.UiUtils;
 import org.openmrs.ui.framework.annotation.SpringBean;
 import org.springframework.web.bind.annotation.RequestParam;
 
-import static java.util.Arrays.asList;
-
 /**
  * AJAX ssearch methods for patients
  */
@@ -41,7 +35,6 @@ public class FindPatientFragmentController {
                                      @RequestParam(value = "checkedInAt", required = false) Location checkedInAt,
                                      @RequestParam(value = "maxResults", required = false) Integer maxResults,
                                      @SpringBean EmrService service,
-                                     @SpringBean EmrProperties emrProperties,
                                      UiUtils ui) {
         if (StringUtils.isBlank(query)) {
             query = term;
@@ -50,41 +43,54 @@ public class FindPatientFragmentController {
         if(maxResults!=null && maxResults.intValue()>0){
             resultLimit = maxResults.intValue();
         }
-        List<Patient> results = service.findPatients(query, checkedInAt, 0, resultLimit);
-        return simplify(ui, emrProperties, results);
+        List<PatientSearchResult> results = service.findPatientSearchResults(query, checkedInAt, 0, resultLimit);
+        return simplify(ui, results);
     }
 
     public SimpleObject searchById(@RequestParam(value = "primaryId", required = false) String primaryId,
                                      @SpringBean EmrService service,
-                                     @SpringBean EmrProperties emrProperties,
                                      UiUtils ui) {
 
-        Patient patient = service.findPatientByPrimaryId(primaryId);
-        return simplify(ui, emrProperties, patient);
+        PatientSearchResult result = service.findPatientSearchResultByPrimaryId(primaryId);
+        return simplify(ui, result);
 
     }
 
-    List<SimpleObject> simplify(UiUtils ui, EmrProperties emrProperties, List<Patient> results) {
+    List<SimpleObject> simplify(UiUtils ui, List<PatientSearchResult> results) {
         List<SimpleObject> patients = new ArrayList<SimpleObject>(results.size());
-        for (Patient patient : results) {
-            patients.add(simplify(ui, emrProperties, patient));
+        for (PatientSearchResult result : results) {
+            patients.add(simplify(ui, result));
         }
         return patients;
     }
 
-    SimpleObject simplify(UiUtils ui, EmrProperties emrProperties, Patient patient) {
-        PersonName name = patient.getPersonName();
-        SimpleObject preferredName = SimpleObject.fromObject(name, ui, "givenName", "middleName", "familyName", "familyName2");
-        preferredName.put("fullName", name.getFullName());
+    SimpleObject simplify(UiUtils ui, PatientSearchResult result) {
+        SimpleObject preferredName = SimpleObject.fromObject(result, ui, "givenName", "middleName", "familyName", "familyName2");
+        preferredName.put("fullName", getFullName(result));
 
-        PatientIdentifierType primaryIdentifierType = emrProperties.getPrimaryIdentifierType();
-        List<PatientIdentifier> primaryIdentifiers = patient.getPatientIdentifiers(primaryIdentifierType);
+        List<SimpleObject> primaryIdentifiers = new ArrayList<SimpleObject>();
+        for (String identifier : result.getPrimaryIdentifiers()) {
+            primaryIdentifiers.add(SimpleObject.create("identifier", identifier));
+        }
 
-        SimpleObject o = SimpleObject.fromObject(patient, ui, "patientId", "gender", "age", "birthdate", "birthdateEstimated");
+        SimpleObject o = SimpleObject.fromObject(result, ui, "patientId", "gender", "age", "birthdate", "birthdateEstimated");
         o.put("preferredName", preferredName);
-        o.put("primaryIdentifiers", SimpleObject.fromCollection(primaryIdentifiers, ui, "identifier"));
+        o.put("primaryIdentifiers", primaryIdentifiers);
 
         return o;
     }
 
+    // the same as PersonName#getFullName, for the name parts of a search result
+    private String getFullName(PatientSearchResult result) {
+        List<String> parts = new ArrayList<String>();
+        for (String part : new String[] { result.getPrefix(), result.getGivenName(), result.getMiddleName(),
+                result.getFamilyNamePrefix(), result.getFamilyName(), result.getFamilyName2(),
+                result.getFamilyNameSuffix(), result.getDegree() }) {
+            if (StringUtils.isNotBlank(part)) {
+                parts.add(part);
+            }
+        }
+        return StringUtils.join(parts, " ");
+    }
+
 }
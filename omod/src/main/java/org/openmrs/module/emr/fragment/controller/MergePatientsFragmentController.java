@@ -0,0 +1,49 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.fragment.controller;
+
+import org.openmrs.module.emr.adt.AdtService;
+import org.openmrs.module.emr.adt.MergePatientsJob;
+import org.openmrs.ui.framework.SimpleObject;
+import org.openmrs.ui.framework.UiUtils;
+import org.openmrs.ui.framework.annotation.SpringBean;
+import org.openmrs.ui.framework.fragment.action.FailureResult;
+import org.springframework.web.bind.annotation.RequestParam;
+
+/**
+ * Reports the progress of a merge patients job, which the merge patients page polls while the merge is carried out
+ * in the background
+ */
+public class MergePatientsFragmentController {
+
+    public Object getJobStatus(@RequestParam("jobId") Integer jobId,
+                               @SpringBean("adtService") AdtService adtService,
+                               UiUtils ui) {
+
+        MergePatientsJob job = adtService.getMergePatientsJob(jobId);
+
+        if (job == null) {
+            return new FailureResult(ui.message("emr.mergePatients.error.noSuchJob"));
+        }
+
+        return SimpleObject.create("status", job.getStatus().toString(),
+                "step", job.getStep().toString(),
+                "visitsMerged", job.getVisitsMerged(),
+                "visitsToMerge", job.getVisitsToMerge(),
+                "encountersMoved", job.getEncountersMoved(),
+                "lastError", job.getLastError());
+    }
+
+}
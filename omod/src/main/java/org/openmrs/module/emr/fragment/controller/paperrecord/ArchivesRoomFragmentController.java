@@ -15,13 +15,18 @@
 package org.openmrs.module.emr.fragment.controller.paperrecord;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.DateUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.PatientIdentifierType;
 import org.openmrs.Person;
 import org.openmrs.module.emr.EmrContext;
 import org.openmrs.module.emr.EmrProperties;
 import org.openmrs.module.emr.paperrecord.*;
 import org.openmrs.module.emr.patient.PatientDomainWrapper;
+import org.openmrs.module.emr.printer.PrintJob;
+import org.openmrs.module.emr.printer.Printer;
+import org.openmrs.module.emr.printer.PrinterService;
 import org.openmrs.ui.framework.SimpleObject;
 import org.openmrs.ui.framework.UiUtils;
 import org.openmrs.ui.framework.annotation.SpringBean;
@@ -33,7 +38,13 @@ import org.springframework.web.bind.annotation.RequestParam;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class ArchivesRoomFragmentController {
 
@@ -48,12 +59,22 @@ public class ArchivesRoomFragmentController {
 
     private DateFormat dateAndTimeFormat = new SimpleDateFormat("dd/MM HH:mm");
 
-    public List<SimpleObject> getOpenRecordsToPull(@SpringBean("paperRecordService") PaperRecordService paperRecordService,
+    // how many requests we return at once from the queues, unless the client asks for a different number
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
+    private static final int MAX_PAGE_SIZE = 500;
+
+    // how long a long-polling client is held before we return an empty set of changes
+    private static final long CHANGES_LONG_POLL_TIMEOUT = 30000;  // 30s
+
+    public List<SimpleObject> getOpenRecordsToPull(@RequestParam(value = "after", required = false) PaperRecordRequest after,
+                                                   @RequestParam(value = "pageSize", required = false) Integer pageSize,
+                                                   @SpringBean("paperRecordService") PaperRecordService paperRecordService,
                                                    @SpringBean("emrProperties") EmrProperties emrProperties,
                                                    UiUtils ui) {
 
         // TODO: when we have multiple archives rooms this method will have to operate by location as well
-        List<PaperRecordRequest> requests = paperRecordService.getOpenPaperRecordRequestsToPull();
+        List<PaperRecordRequest> requests = paperRecordService.getOpenPaperRecordRequestsToPull(after, getPageSize(pageSize));
         List<SimpleObject> results = new ArrayList<SimpleObject>();
 
         if (requests != null && requests.size() > 0) {
@@ -63,12 +84,14 @@ public class ArchivesRoomFragmentController {
         return results;
     }
 
-    public List<SimpleObject> getOpenRecordsToCreate(@SpringBean("paperRecordService") PaperRecordService paperRecordService,
+    public List<SimpleObject> getOpenRecordsToCreate(@RequestParam(value = "after", required = false) PaperRecordRequest after,
+                                                        @RequestParam(value = "pageSize", required = false) Integer pageSize,
+                                                        @SpringBean("paperRecordService") PaperRecordService paperRecordService,
                                                         @SpringBean("emrProperties") EmrProperties emrProperties,
                                                         UiUtils ui) {
 
         // TODO: when we have multiple archives rooms this method will have to operate by location as well
-        List<PaperRecordRequest> requests = paperRecordService.getOpenPaperRecordRequestsToCreate();
+        List<PaperRecordRequest> requests = paperRecordService.getOpenPaperRecordRequestsToCreate(after, getPageSize(pageSize));
         List<SimpleObject> results = new ArrayList<SimpleObject>();
 
         if (requests != null && requests.size() > 0) {
@@ -92,12 +115,14 @@ public class ArchivesRoomFragmentController {
         return results;
     }
 
-    public List<SimpleObject> getAssignedRecordsToPull(@SpringBean("paperRecordService") PaperRecordService paperRecordService,
+    public List<SimpleObject> getAssignedRecordsToPull(@RequestParam(value = "after", required = false) PaperRecordRequest after,
+                                                       @RequestParam(value = "pageSize", required = false) Integer pageSize,
+                                                       @SpringBean("paperRecordService") PaperRecordService paperRecordService,
                                                        @SpringBean("emrProperties") EmrProperties emrProperties,
                                                        UiUtils ui) {
 
         // TODO: when we have multiple archives rooms this method will have to operate by location as well
-        List<PaperRecordRequest> requests = paperRecordService.getAssignedPaperRecordRequestsToPull();
+        List<PaperRecordRequest> requests = paperRecordService.getAssignedPaperRecordRequestsToPull(after, getPageSize(pageSize));
         List<SimpleObject> results = new ArrayList<SimpleObject>();
 
         if (requests != null && requests.size() > 0) {
@@ -107,12 +132,14 @@ public class ArchivesRoomFragmentController {
         return results;
     }
 
-    public List<SimpleObject> getAssignedRecordsToCreate(@SpringBean("paperRecordService") PaperRecordService paperRecordService,
+    public List<SimpleObject> getAssignedRecordsToCreate(@RequestParam(value = "after", required = false) PaperRecordRequest after,
+                                                         @RequestParam(value = "pageSize", required = false) Integer pageSize,
+                                                         @SpringBean("paperRecordService") PaperRecordService paperRecordService,
                                                          @SpringBean("emrProperties") EmrProperties emrProperties,
                                                          UiUtils ui) {
 
         // TODO: when we have multiple archives rooms this method will have to operate by location as well
-        List<PaperRecordRequest> requests = paperRecordService.getAssignedPaperRecordRequestsToCreate();
+        List<PaperRecordRequest> requests = paperRecordService.getAssignedPaperRecordRequestsToCreate(after, getPageSize(pageSize));
         List<SimpleObject> results = new ArrayList<SimpleObject>();
 
         if (requests != null && requests.size() > 0) {
@@ -122,6 +149,51 @@ public class ArchivesRoomFragmentController {
         return results;
     }
 
+    public SimpleObject getPaperRecordRequestChanges(@RequestParam(value = "since", required = false) Long since,
+                                                     @RequestParam(value = "wait", required = false) Boolean wait,
+                                                     @SpringBean("paperRecordService") PaperRecordService paperRecordService,
+                                                     @SpringBean("emrProperties") EmrProperties emrProperties,
+                                                     UiUtils ui) {
+
+        if (wait != null && wait) {
+            paperRecordService.waitForPaperRecordRequestChanges(since, CHANGES_LONG_POLL_TIMEOUT);
+        }
+
+        PaperRecordRequestChanges changes = paperRecordService.getPaperRecordRequestChangesSince(since);
+
+        SimpleObject result = new SimpleObject();
+        result.put("sequence", changes.getSequence());
+        result.put("complete", changes.isComplete());
+        result.put("requests", convertPaperRecordRequestsToSimpleObjects(changes.getRequests(), paperRecordService, emrProperties, ui));
+
+        return result;
+    }
+
+    public SimpleObject getFailedLabelPrintJobs(@RequestParam(value = "since", required = false) Long since,
+                                                @SpringBean("printerService") PrinterService printerService,
+                                                EmrContext emrContext, UiUtils ui) {
+
+        // labels for assigned requests are printed in the background, so the client checks back to see if any failed
+        // (we truncate to the second since that's all the precision the database may store)
+        SimpleObject result = new SimpleObject();
+        result.put("now", DateUtils.truncate(new Date(), Calendar.SECOND).getTime());
+
+        int failed = 0;
+        Printer printer = printerService.getDefaultPrinter(emrContext.getSessionLocation(), Printer.Type.LABEL);
+
+        if (since != null && printer != null) {
+            failed = printerService.getPrintJobs(Collections.singletonList(PrintJob.Status.FAILED), printer, new Date(since)).size();
+        }
+
+        result.put("failed", failed);
+
+        if (failed > 0) {
+            result.put("message", ui.message("emr.archivesRoom.error.unableToPrintLabel"));
+        }
+
+        return result;
+    }
+
     public FragmentActionResult assignPullRequests(@RequestParam("requestId[]") List<PaperRecordRequest> requests,
                                                    @SpringBean("paperRecordService") PaperRecordService paperRecordService,
                                                    EmrContext emrContext, UiUtils ui) {
@@ -232,8 +304,7 @@ public class ArchivesRoomFragmentController {
             // handle not finding a match
             if (sentRequests == null || sentRequests.size() == 0) {
                 // as long as this identifier exists, we can return a success message (no error if they mistakenly scan a record twice)
-                if (paperRecordService.paperRecordExistsWithIdentifier(identifier, emrContext.getSessionLocation())
-                        || paperRecordService.paperRecordExistsForPatientWithIdentifier(identifier, emrContext.getSessionLocation()) ) {
+                if (paperRecordService.paperRecordExistsForIdentifier(identifier, emrContext.getSessionLocation())) {
                     return new SuccessResult(ui.message("emr.archivesRoom.recordReturned.message"));
                 }
                 else {
@@ -296,19 +367,32 @@ public class ArchivesRoomFragmentController {
 
         List<SimpleObject> results = new ArrayList<SimpleObject>();
 
+        // look up where all the pending pull requests were last sent at once, rather than once per request
+        Set<String> pullIdentifiers = new HashSet<String>();
+        for (PaperRecordRequest request : requests) {
+            if (isPendingPullRequest(request)) {
+                pullIdentifiers.add(request.getIdentifier());
+            }
+        }
+
+        Map<String, PaperRecordRequest> lastSentRequests = pullIdentifiers.isEmpty() ? Collections.<String, PaperRecordRequest>emptyMap()
+                : paperRecordService.getMostRecentSentPaperRecordRequestsByIdentifiers(pullIdentifiers);
+
+        PatientIdentifierType primaryIdentifierType = emrProperties.getPrimaryIdentifierType();
+
         for (PaperRecordRequest request : requests) {
             SimpleObject result = SimpleObject.fromObject(request, ui, "requestId", "patient", "identifier", "requestLocation");
 
             // manually add the date and patient identifier
             result.put("dateCreated", timeAndDateFormat.format(request.getDateCreated()));
             result.put("dateCreatedSortable", request.getDateCreated()) ;
-            result.put("patientIdentifier", ui.format(request.getPatient().getPatientIdentifier(emrProperties.getPrimaryIdentifierType()).getIdentifier()));
+            result.put("status", request.getStatus().toString());
+            result.put("patientIdentifier", ui.format(request.getPatient().getPatientIdentifier(primaryIdentifierType).getIdentifier()));
 
             // add the last sent and last sent date to any pending pull requests
-            if (request.getStatus().equals(PaperRecordRequest.Status.ASSIGNED_TO_PULL)
-                    || (request.getStatus().equals(PaperRecordRequest.Status.OPEN) && StringUtils.isNotBlank(request.getIdentifier()))) {
+            if (isPendingPullRequest(request)) {
 
-                PaperRecordRequest lastSentRequest = paperRecordService.getMostRecentSentPaperRecordRequestByIdentifier(request.getIdentifier());
+                PaperRecordRequest lastSentRequest = lastSentRequests.get(request.getIdentifier());
 
                 if (lastSentRequest != null) {
                     result.put("locationLastSent", ui.format(lastSentRequest.getRequestLocation()));
@@ -324,6 +408,18 @@ public class ArchivesRoomFragmentController {
     }
 
 
+    private int getPageSize(Integer pageSize) {
+        if (pageSize == null || pageSize <= 0) {
+            return DEFAULT_PAGE_SIZE;
+        }
+        return Math.min(pageSize, MAX_PAGE_SIZE);
+    }
+
+    private boolean isPendingPullRequest(PaperRecordRequest request) {
+        return request.getStatus().equals(PaperRecordRequest.Status.ASSIGNED_TO_PULL)
+                || (request.getStatus().equals(PaperRecordRequest.Status.OPEN) && StringUtils.isNotBlank(request.getIdentifier()));
+    }
+
     private List<SimpleObject> convertPaperRecordMergeRequestsToSimpleObjects(List<PaperRecordMergeRequest> requests, EmrProperties emrProperties, UiUtils ui) {
         List<SimpleObject> results = new ArrayList<SimpleObject>();
 
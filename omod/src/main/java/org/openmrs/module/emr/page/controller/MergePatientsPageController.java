@@ -17,6 +17,7 @@ package org.openmrs.module.emr.page.controller;
 import org.openmrs.Patient;
 import org.openmrs.module.emr.EmrConstants;
 import org.openmrs.module.emr.adt.AdtService;
+import org.openmrs.module.emr.adt.MergePatientsJob;
 import org.openmrs.module.emr.patient.PatientDomainWrapper;
 import org.openmrs.ui.framework.SimpleObject;
 import org.openmrs.ui.framework.UiUtils;
@@ -34,11 +35,32 @@ public class MergePatientsPageController {
     public String get(@RequestParam(required = false, value = "patient1") Patient patient1,
                     @RequestParam(required = false, value = "patient2") Patient patient2,
                     @RequestParam(value = "isUnknownPatient", defaultValue = "false") boolean isUnknownPatient,
+                    @RequestParam(required = false, value = "jobId") Integer jobId,
                     @InjectBeans PatientDomainWrapper wrapper1,
                     @InjectBeans PatientDomainWrapper wrapper2,
+                    @SpringBean("adtService") AdtService adtService,
+                    UiUtils ui,
                     HttpServletRequest request,
                     PageModel pageModel) {
 
+        if (jobId != null) {
+            MergePatientsJob job = adtService.getMergePatientsJob(jobId);
+
+            if (job == null) {
+                request.getSession().setAttribute(EmrConstants.SESSION_ATTRIBUTE_ERROR_MESSAGE, "emr.mergePatients.error.noSuchJob");
+                return "redirect:" + ui.pageLink("emr", "mergePatients");
+            }
+
+            if (job.getStatus() == MergePatientsJob.Status.COMPLETED) {
+                request.getSession().setAttribute(EmrConstants.SESSION_ATTRIBUTE_INFO_MESSAGE, "emr.mergePatients.success");
+                request.getSession().setAttribute(EmrConstants.SESSION_ATTRIBUTE_TOAST_MESSAGE, "true");
+                return "redirect:" + ui.pageLink("emr", "patient", SimpleObject.create("patientId", job.getPreferred().getId()));
+            }
+
+            pageModel.addAttribute("job", job);
+            return "mergePatients-inProgress";
+        }
+
         pageModel.addAttribute("patient1", null);
         pageModel.addAttribute("patient2", null);
         pageModel.addAttribute("isUnknownPatient", isUnknownPatient);
@@ -100,11 +122,10 @@ public class MergePatientsPageController {
             return "redirect:" + ui.pageLink("emr","mergePatients", params);
         }
 
-        adtService.mergePatients(preferred, notPreferred);
+        // patients with large histories can take a long time to merge, so we do it in the background, and show its progress
+        MergePatientsJob job = adtService.queueMergePatients(preferred, notPreferred);
 
-        request.getSession().setAttribute(EmrConstants.SESSION_ATTRIBUTE_INFO_MESSAGE, "emr.mergePatients.success");
-        request.getSession().setAttribute(EmrConstants.SESSION_ATTRIBUTE_TOAST_MESSAGE, "true");
-        return "redirect:" + ui.pageLink("emr", "patient", SimpleObject.create("patientId", preferred.getId()));
+        return "redirect:" + ui.pageLink("emr", "mergePatients", SimpleObject.create("jobId", job.getId()));
     }
 
 }
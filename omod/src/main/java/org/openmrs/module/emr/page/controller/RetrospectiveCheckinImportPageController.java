@@ -0,0 +1,74 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emr.page.controller;
+
+import org.apache.commons.lang.StringUtils;
+import org.openmrs.module.emr.EmrConstants;
+import org.openmrs.module.emr.adt.AdtService;
+import org.openmrs.module.emr.adt.RetrospectiveCheckinCsvReader;
+import org.openmrs.module.emr.adt.RetrospectiveCheckinImportResult;
+import org.openmrs.ui.framework.annotation.SpringBean;
+import org.openmrs.ui.framework.page.PageModel;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+
+/**
+ * Uploads a CSV file of retrospective check-ins (ie, paper check-in sheets that were kept during a network outage),
+ * so that they can be entered all at once rather than one retrospective check-in form at a time
+ */
+public class RetrospectiveCheckinImportPageController {
+
+    public void get(PageModel model) {
+        model.addAttribute("columns", RetrospectiveCheckinCsvReader.COLUMNS);
+        model.addAttribute("result", null);
+    }
+
+    public String post(PageModel model,
+                       HttpServletRequest request,
+                       @SpringBean("adtService") AdtService adtService,
+                       @RequestParam(value = "csv", required = false) String csv) throws IOException {
+
+        if (request instanceof MultipartHttpServletRequest) {
+            MultipartFile file = ((MultipartHttpServletRequest) request).getFile("file");
+            if (file != null && !file.isEmpty()) {
+                csv = new String(file.getBytes(), "UTF-8");
+            }
+        }
+
+        model.addAttribute("columns", RetrospectiveCheckinCsvReader.COLUMNS);
+
+        if (StringUtils.isBlank(csv)) {
+            request.getSession().setAttribute(EmrConstants.SESSION_ATTRIBUTE_ERROR_MESSAGE, "emr.retrospectiveCheckin.import.noFile");
+            model.addAttribute("result", null);
+            return null;
+        }
+
+        RetrospectiveCheckinImportResult result = adtService.importRetrospectiveCheckins(csv);
+        if (result.hasErrors()) {
+            request.getSession().setAttribute(EmrConstants.SESSION_ATTRIBUTE_ERROR_MESSAGE, "emr.retrospectiveCheckin.import.failed");
+            model.addAttribute("result", result);
+            return null;
+        }
+
+        request.getSession().setAttribute(EmrConstants.SESSION_ATTRIBUTE_TOAST_MESSAGE, "true");
+        request.getSession().setAttribute(EmrConstants.SESSION_ATTRIBUTE_INFO_MESSAGE, "emr.retrospectiveCheckin.import.success");
+        return "redirect:/emr/systemAdministration.page";
+    }
+
+}
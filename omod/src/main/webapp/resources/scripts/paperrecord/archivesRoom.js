@@ -22,14 +22,19 @@ jq(document).ready( function() {
     ko.applyBindings(mergeRequestsViewModel, document.getElementById('mergeRequests'));
 
 
-    // load the tables
-    refreshAllQueues();
+    // load the tables (the first call to the change feed triggers a full load of the request queues)
+    mergeRequestsViewModel.load();
+    pollForPaperRecordRequestChanges();
 
-    // set up auto-refresh of tables every 2 minutes
+    // set up auto-refresh of the merge requests every 2 minutes (request queues are kept up to date via the change feed)
     setInterval(function() {
-        refreshAllQueues();
+        mergeRequestsViewModel.load();
     }, 120000)
 
+    // labels are printed in the background after records are assigned, so check regularly for any that failed to print
+    checkForFailedLabelPrintJobs();
+    setInterval(checkForFailedLabelPrintJobs, 15000);
+
     // handle entering identifiers to mark records as pulled
     jq('.mark-as-pulled').submit(function (e) {
 
@@ -167,3 +172,54 @@ jq(document).ready( function() {
     })
 
 });
+
+var lastFailedLabelPrintJobCheck = null;
+
+function checkForFailedLabelPrintJobs() {
+
+    var params = {};
+    if (lastFailedLabelPrintJobCheck != null) {
+        params.since = lastFailedLabelPrintJobCheck;
+    }
+
+    jQuery.getJSON(emr.fragmentActionLink("emr", "paperrecord/archivesRoom", "getFailedLabelPrintJobs", params))
+        .success(function(data) {
+            if (data.failed > 0) {
+                emr.errorMessage(data.message);
+            }
+            lastFailedLabelPrintJobCheck = data.now;
+        });
+}
+
+var lastPaperRecordRequestSequence = null;
+
+// long-polls the paper record request change feed; the server holds each call until something changes (or a timeout
+// expires) and returns only the requests that have changed, so we only reload the full queues if the server tells us
+// it can't account for everything that has changed since we last asked. The sequence we carry on from is the one from
+// before the reload started, so any request that changes while the queues are being reloaded (even between two pages
+// of a queue) comes back through the feed, and is applied once the reload has finished.
+function pollForPaperRecordRequestChanges() {
+
+    var params = {};
+    if (lastPaperRecordRequestSequence != null) {
+        params.since = lastPaperRecordRequestSequence;
+        params.wait = true;
+    }
+
+    jQuery.getJSON(emr.fragmentActionLink("emr", "paperrecord/archivesRoom", "getPaperRecordRequestChanges", params))
+        .success(function(data) {
+            if (data.complete) {
+                receivePaperRecordRequestChanges(data.requests);
+            }
+            else {
+                refreshRequestQueues();
+            }
+            lastPaperRecordRequestSequence = data.sequence;
+            pollForPaperRecordRequestChanges();
+        })
+        .error(function(xhr) {
+            // back off for a bit before trying again, and reload everything when we do
+            lastPaperRecordRequestSequence = null;
+            setTimeout(pollForPaperRecordRequestChanges, 30000);
+        });
+}
@@ -7,6 +7,9 @@ var mergeRequestsViewModel;
 
 var cancelPaperRecordRequestDialog = null;
 
+// how many requests we fetch at a time when loading a queue
+var QUEUE_PAGE_SIZE = 100;
+
 function RecordRequestModel(requestId, patientName, patientId, dossierNumber, sendToLocation, timeRequested, timeRequestedSortable, dateLastSent, locationLastSent) {
     var model = {};
     model.requestId = requestId;
@@ -38,6 +41,46 @@ function MergeRequestsModel(mergeRequestId, preferredName, preferredIdentifier,
 }
 
 
+// loads all the requests in a queue, a page at a time (each page picks up after the last request of the previous one),
+// and then passes them all to the callback at once; done (if given) is called once we have finished, whether or not the
+// requests could be loaded
+function loadRequestsPageByPage(action, callback, done) {
+
+    var requests = [];
+
+    var loadPage = function(after) {
+
+        var params = { pageSize: QUEUE_PAGE_SIZE };
+        if (after) {
+            params.after = after;
+        }
+
+        jQuery.getJSON(emr.fragmentActionLink("emr", "paperrecord/archivesRoom", action, params))
+            .success(function(data) {
+
+                jQuery.merge(requests, data);
+
+                if (data.length == QUEUE_PAGE_SIZE) {
+                    loadPage(data[data.length - 1].requestId);
+                }
+                else {
+                    callback(requests);
+                    if (done) {
+                        done();
+                    }
+                }
+            })
+            .error(function(xhr) {
+                emr.handleError(xhr);
+                if (done) {
+                    done();
+                }
+            });
+    };
+
+    loadPage(null);
+}
+
 function PullRequestsViewModel(recordsToPull) {
     var api = {};
     api.recordsToPull = ko.observableArray(recordsToPull);
@@ -91,27 +134,23 @@ function PullRequestsViewModel(recordsToPull) {
         openCancelPaperRecordRequestDialog(request.requestId);
     }
 
-    api.load = function() {
+    api.load = function(done) {
 
         // reload via ajax
-        jQuery.getJSON(emr.fragmentActionLink("emr", "paperrecord/archivesRoom", "getOpenRecordsToPull"))
-            .success(function(data) {
-
-                // remove any existing entries
-                api.recordsToPull.removeAll();
+        loadRequestsPageByPage("getOpenRecordsToPull", function(data) {
 
-                // create the new list
-                jQuery.each(data, function(index, request) {
-                    api.recordsToPull.push(RecordRequestModel(request.requestId, request.patient,
-                        request.patientIdentifier, request.identifier, request.requestLocation, request.dateCreated,
-                        request.dateCreatedSortable, request.dateLastSent, request.locationLastSent));
-                });
+            // remove any existing entries
+            api.recordsToPull.removeAll();
 
-            })
-            .error(function(xhr) {
-                emr.handleError(xhr);
+            // create the new list
+            jQuery.each(data, function(index, request) {
+                api.recordsToPull.push(RecordRequestModel(request.requestId, request.patient,
+                    request.patientIdentifier, request.identifier, request.requestLocation, request.dateCreated,
+                    request.dateCreatedSortable, request.dateLastSent, request.locationLastSent));
             });
 
+        }, done);
+
     }
 
     return api;
@@ -157,27 +196,23 @@ function CreateRequestsViewModel(recordsToCreate) {
         openCancelPaperRecordRequestDialog(request.requestId);
     }
 
-    api.load = function() {
+    api.load = function(done) {
 
         // reload via ajax
-        jQuery.getJSON(emr.fragmentActionLink("emr", "paperrecord/archivesRoom", "getOpenRecordsToCreate"))
-            .success(function(data) {
+        loadRequestsPageByPage("getOpenRecordsToCreate", function(data) {
 
-                // remove any existing entries
-                api.recordsToCreate.removeAll();
+            // remove any existing entries
+            api.recordsToCreate.removeAll();
 
-                // create the new list
-                jQuery.each(data, function(index, request) {
-                    api.recordsToCreate.push(RecordRequestModel(request.requestId, request.patient,
-                        request.patientIdentifier, request.identifier, request.requestLocation, request.dateCreated,
-                        request.dateCreatedSortable));
-                });
-
-            })
-            .error(function(xhr) {
-                emr.handleError(xhr);
+            // create the new list
+            jQuery.each(data, function(index, request) {
+                api.recordsToCreate.push(RecordRequestModel(request.requestId, request.patient,
+                    request.patientIdentifier, request.identifier, request.requestLocation, request.dateCreated,
+                    request.dateCreatedSortable));
             });
 
+        }, done);
+
     }
 
     return api;
@@ -191,27 +226,23 @@ function AssignedPullRequestsViewModel(assignedRecordsToPull) {
         openCancelPaperRecordRequestDialog(request.requestId);
     }
 
-    api.load = function() {
+    api.load = function(done) {
 
         // reload via ajax
-        jQuery.getJSON(emr.fragmentActionLink("emr", "paperrecord/archivesRoom", "getAssignedRecordsToPull"))
-            .success(function(data) {
+        loadRequestsPageByPage("getAssignedRecordsToPull", function(data) {
 
-                // remove any existing entries
-                api.assignedRecordsToPull.removeAll();
+            // remove any existing entries
+            api.assignedRecordsToPull.removeAll();
 
-                // create the new list
-                jQuery.each(data, function(index, request) {
-                    api.assignedRecordsToPull.push(RecordRequestModel(request.requestId, request.patient,
-                        request.patientIdentifier, request.identifier, request.requestLocation, request.dateCreated,
-                        request.dateCreatedSortable, request.dateLastSent, request.locationLastSent));
-                });
-
-            })
-            .error(function(xhr) {
-                emr.handleError(xhr);
+            // create the new list
+            jQuery.each(data, function(index, request) {
+                api.assignedRecordsToPull.push(RecordRequestModel(request.requestId, request.patient,
+                    request.patientIdentifier, request.identifier, request.requestLocation, request.dateCreated,
+                    request.dateCreatedSortable, request.dateLastSent, request.locationLastSent));
             });
 
+        }, done);
+
     }
 
     api.printLabel = function (request) {
@@ -240,27 +271,23 @@ function AssignedCreateRequestsViewModel(assignedRecordsToCreate) {
         openCancelPaperRecordRequestDialog(request.requestId);
     }
 
-    api.load = function() {
+    api.load = function(done) {
 
         // reload via ajax
-        jQuery.getJSON(emr.fragmentActionLink("emr", "paperrecord/archivesRoom", "getAssignedRecordsToCreate"))
-            .success(function(data) {
+        loadRequestsPageByPage("getAssignedRecordsToCreate", function(data) {
 
-                // remove any existing entries
-                api.assignedRecordsToCreate.removeAll();
+            // remove any existing entries
+            api.assignedRecordsToCreate.removeAll();
 
-                // create the new list
-                jQuery.each(data, function(index, request) {
-                    api.assignedRecordsToCreate.push(RecordRequestModel(request.requestId, request.patient,
-                        request.patientIdentifier, request.identifier, request.requestLocation, request.dateCreated,
-                        request.dateCreatedSortable));
-                });
-
-            })
-            .error(function(xhr) {
-                emr.handleError(xhr);
+            // create the new list
+            jQuery.each(data, function(index, request) {
+                api.assignedRecordsToCreate.push(RecordRequestModel(request.requestId, request.patient,
+                    request.patientIdentifier, request.identifier, request.requestLocation, request.dateCreated,
+                    request.dateCreatedSortable));
             });
 
+        }, done);
+
     }
 
     api.printLabel = function (request) {
@@ -320,13 +347,87 @@ function MergeRequestsViewModel(requestsToMerge){
 }
 
 function refreshAllQueues() {
-    pullRequestsViewModel.load();
-    createRequestsViewModel.load()
-    assignedCreateRequestsViewModel.load();
-    assignedPullRequestsViewModel.load();
+    refreshRequestQueues();
     mergeRequestsViewModel.load();
 }
 
+// while the request queues are being reloaded, changes that come in through the change feed are held back, and only
+// applied once all the queues have been reloaded: the reloaded queues may have been fetched before those changes were
+// made, and would otherwise replace them
+var requestQueueReloadsInProgress = 0;
+var heldPaperRecordRequestChanges = [];
+
+function refreshRequestQueues() {
+    var viewModels = [ pullRequestsViewModel, createRequestsViewModel, assignedCreateRequestsViewModel,
+        assignedPullRequestsViewModel ];
+
+    requestQueueReloadsInProgress += viewModels.length;
+
+    jQuery.each(viewModels, function(index, viewModel) {
+        viewModel.load(requestQueueReloaded);
+    });
+}
+
+function requestQueueReloaded() {
+    requestQueueReloadsInProgress--;
+    if (requestQueueReloadsInProgress == 0) {
+        var held = heldPaperRecordRequestChanges;
+        heldPaperRecordRequestChanges = [];
+        applyPaperRecordRequestChanges(held);
+    }
+}
+
+// handles the requests returned by the change feed, holding them back if the queues are being reloaded
+function receivePaperRecordRequestChanges(requests) {
+    if (requestQueueReloadsInProgress > 0) {
+        jQuery.merge(heldPaperRecordRequestChanges, requests);
+    }
+    else {
+        applyPaperRecordRequestChanges(requests);
+    }
+}
+
+// applies the requests returned by the change feed: each changed request is removed from whatever queue it is
+// currently in, and then added (in order of time requested) to the queue that matches its current status, if any
+function applyPaperRecordRequestChanges(requests) {
+
+    var allQueues = [ pullRequestsViewModel.recordsToPull, createRequestsViewModel.recordsToCreate,
+        assignedPullRequestsViewModel.assignedRecordsToPull, assignedCreateRequestsViewModel.assignedRecordsToCreate ];
+
+    jQuery.each(requests, function(index, request) {
+
+        jQuery.each(allQueues, function(index, queue) {
+            queue.remove(function(item) {
+                return item.requestId == request.requestId;
+            });
+        });
+
+        var queue = null;
+
+        if (request.status == 'OPEN') {
+            queue = request.identifier ? pullRequestsViewModel.recordsToPull : createRequestsViewModel.recordsToCreate;
+        }
+        else if (request.status == 'ASSIGNED_TO_PULL') {
+            queue = assignedPullRequestsViewModel.assignedRecordsToPull;
+        }
+        else if (request.status == 'ASSIGNED_TO_CREATE') {
+            queue = assignedCreateRequestsViewModel.assignedRecordsToCreate;
+        }
+
+        if (queue) {
+            var model = RecordRequestModel(request.requestId, request.patient,
+                request.patientIdentifier, request.identifier, request.requestLocation, request.dateCreated,
+                request.dateCreatedSortable, request.dateLastSent, request.locationLastSent);
+
+            var position = 0;
+            while (position < queue().length && queue()[position].timeRequestedSortable <= model.timeRequestedSortable) {
+                position++;
+            }
+            queue.splice(position, 0, model);
+        }
+    });
+}
+
 function openCancelPaperRecordRequestDialog(requestId) {
 
     cancelPaperRecordRequestDialog = emr.setupConfirmationDialog({
@@ -15,13 +15,8 @@ package org.openmrs.module.emr.fragment.controller;
 
 import org.apache.commons.beanutils.PropertyUtils;
 import org.junit.Test;
-import org.openmrs.Location;
-import org.openmrs.Patient;
-import org.openmrs.PatientIdentifier;
-import org.openmrs.PatientIdentifierType;
-import org.openmrs.PersonName;
-import org.openmrs.module.emr.EmrProperties;
 import org.openmrs.module.emr.TestUiUtils;
+import org.openmrs.module.emr.patient.PatientSearchResult;
 import org.openmrs.ui.framework.SimpleObject;
 
 import java.text.SimpleDateFormat;
@@ -31,32 +26,21 @@ import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
-import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.when;
 
 public class FindPatientFragmentControllerTest {
 
     @Test
     public void testSimplify() throws Exception {
-        PersonName name = new PersonName();
-        name.setGivenName("Barack");
-        name.setFamilyName("Obama");
-
-        PatientIdentifierType pit = new PatientIdentifierType();
-        pit.setName("US President Number");
-
-        Patient patient = new Patient();
-        patient.setPatientId(44);
-        patient.addName(name);
-        patient.setGender("M");
-        patient.setBirthdate(new SimpleDateFormat("yyyy-MM-dd").parse("1961-08-04"));
-        patient.addIdentifier(new PatientIdentifier("44", pit, new Location()));
-
-        EmrProperties emrProperties = mock(EmrProperties.class);
-        when(emrProperties.getPrimaryIdentifierType()).thenReturn(pit);
+        PatientSearchResult result = new PatientSearchResult(44);
+        result.setGivenName("Barack");
+        result.setFamilyName("Obama");
+        result.setGender("M");
+        result.setBirthdate(new SimpleDateFormat("yyyy-MM-dd").parse("1961-08-04"));
+        result.setBirthdateEstimated(false);
+        result.addPrimaryIdentifier("44");
 
         TestUiUtils ui = new TestUiUtils();
-        SimpleObject o = new FindPatientFragmentController().simplify(ui, emrProperties, patient);
+        SimpleObject o = new FindPatientFragmentController().simplify(ui, result);
 
         assertEquals("Barack", PropertyUtils.getProperty(o, "preferredName.givenName"));
         assertNull(PropertyUtils.getProperty(o, "preferredName.middleName"));
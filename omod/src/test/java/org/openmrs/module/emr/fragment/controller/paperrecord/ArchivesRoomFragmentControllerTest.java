@@ -28,6 +28,7 @@ import org.openmrs.module.emr.EmrContext;
 import org.openmrs.module.emr.EmrProperties;
 import org.openmrs.module.emr.TestUiUtils;
 import org.openmrs.module.emr.paperrecord.PaperRecordRequest;
+import org.openmrs.module.emr.paperrecord.PaperRecordRequestChanges;
 import org.openmrs.module.emr.paperrecord.PaperRecordService;
 import org.openmrs.ui.framework.SimpleObject;
 import org.openmrs.ui.framework.UiUtils;
@@ -36,9 +37,11 @@ import org.openmrs.ui.framework.fragment.action.FragmentActionResult;
 import org.openmrs.ui.framework.fragment.action.SuccessResult;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 
 import static org.hamcrest.CoreMatchers.instanceOf;
@@ -48,8 +51,10 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -195,11 +200,12 @@ public class ArchivesRoomFragmentControllerTest {
 
         List<PaperRecordRequest> requests = createSamplePullPaperRecordRequestList();
 
-        when(paperRecordService.getOpenPaperRecordRequestsToPull()).thenReturn(requests);
-        when(paperRecordService.getMostRecentSentPaperRecordRequestByIdentifier("123")).thenReturn(createSampleSentRequest());
+        when(paperRecordService.getOpenPaperRecordRequestsToPull(null, 100)).thenReturn(requests);
+        when(paperRecordService.getMostRecentSentPaperRecordRequestsByIdentifiers(new HashSet<String>(Arrays.asList("123", "ABC"))))
+                .thenReturn(Collections.singletonMap("123", createSampleSentRequest()));
         when(emrProperties.getPrimaryIdentifierType()).thenReturn(patientIdentifierType);
 
-        List<SimpleObject> results = controller.getOpenRecordsToPull(paperRecordService, emrProperties, ui);
+        List<SimpleObject> results = controller.getOpenRecordsToPull(null, null, paperRecordService, emrProperties, ui);
 
         assertProperPullResultsList(results);
     }
@@ -209,10 +215,10 @@ public class ArchivesRoomFragmentControllerTest {
 
         List<PaperRecordRequest> requests = createSampleCreatePaperRecordRequestList();
 
-        when(paperRecordService.getOpenPaperRecordRequestsToCreate()).thenReturn(requests);
+        when(paperRecordService.getOpenPaperRecordRequestsToCreate(null, 100)).thenReturn(requests);
         when(emrProperties.getPrimaryIdentifierType()).thenReturn(patientIdentifierType);
 
-        List<SimpleObject> results = controller.getOpenRecordsToCreate(paperRecordService, emrProperties, ui);
+        List<SimpleObject> results = controller.getOpenRecordsToCreate(null, null, paperRecordService, emrProperties, ui);
 
         assertProperCreateResultsList(results);
     }
@@ -222,11 +228,12 @@ public class ArchivesRoomFragmentControllerTest {
 
         List<PaperRecordRequest> requests = createSamplePullPaperRecordRequestList();
 
-        when(paperRecordService.getAssignedPaperRecordRequestsToPull()).thenReturn(requests);
-        when(paperRecordService.getMostRecentSentPaperRecordRequestByIdentifier("123")).thenReturn(createSampleSentRequest());
+        when(paperRecordService.getAssignedPaperRecordRequestsToPull(null, 100)).thenReturn(requests);
+        when(paperRecordService.getMostRecentSentPaperRecordRequestsByIdentifiers(new HashSet<String>(Arrays.asList("123", "ABC"))))
+                .thenReturn(Collections.singletonMap("123", createSampleSentRequest()));
         when(emrProperties.getPrimaryIdentifierType()).thenReturn(patientIdentifierType);
 
-        List<SimpleObject> results = controller.getAssignedRecordsToPull(paperRecordService, emrProperties, ui);
+        List<SimpleObject> results = controller.getAssignedRecordsToPull(null, null, paperRecordService, emrProperties, ui);
 
         assertProperPullResultsList(results);
     }
@@ -236,14 +243,70 @@ public class ArchivesRoomFragmentControllerTest {
 
         List<PaperRecordRequest> requests = createSampleCreatePaperRecordRequestList();
 
-        when(paperRecordService.getAssignedPaperRecordRequestsToCreate()).thenReturn(requests);
+        when(paperRecordService.getAssignedPaperRecordRequestsToCreate(null, 100)).thenReturn(requests);
         when(emrProperties.getPrimaryIdentifierType()).thenReturn(patientIdentifierType);
 
-        List<SimpleObject> results = controller.getAssignedRecordsToCreate(paperRecordService, emrProperties, ui);
+        List<SimpleObject> results = controller.getAssignedRecordsToCreate(null, null, paperRecordService, emrProperties, ui);
 
         assertProperCreateResultsList(results);
     }
 
+    @Test
+    public void testControllerShouldReturnPageOfRequestsAfterSpecifiedRequest() throws Exception {
+
+        PaperRecordRequest after = new PaperRecordRequest();
+        after.setId(1);
+
+        List<PaperRecordRequest> requests = createSampleCreatePaperRecordRequestList();
+
+        when(paperRecordService.getOpenPaperRecordRequestsToCreate(after, 2)).thenReturn(requests);
+        when(emrProperties.getPrimaryIdentifierType()).thenReturn(patientIdentifierType);
+
+        List<SimpleObject> results = controller.getOpenRecordsToCreate(after, 2, paperRecordService, emrProperties, ui);
+
+        assertProperCreateResultsList(results);
+    }
+
+    @Test
+    public void testControllerShouldLimitPageSize() throws Exception {
+
+        controller.getOpenRecordsToCreate(null, 100000, paperRecordService, emrProperties, ui);
+
+        verify(paperRecordService).getOpenPaperRecordRequestsToCreate(null, 500);
+    }
+
+    @Test
+    public void testControllerShouldReturnChangedRequests() throws Exception {
+
+        List<PaperRecordRequest> requests = createSampleCreatePaperRecordRequestList();
+
+        PaperRecordRequestChanges changes = new PaperRecordRequestChanges(12L);
+        changes.setComplete(true);
+        changes.setRequests(requests);
+
+        when(paperRecordService.getPaperRecordRequestChangesSince(10L)).thenReturn(changes);
+        when(emrProperties.getPrimaryIdentifierType()).thenReturn(patientIdentifierType);
+
+        SimpleObject result = controller.getPaperRecordRequestChanges(10L, true, paperRecordService, emrProperties, ui);
+
+        verify(paperRecordService).waitForPaperRecordRequestChanges(eq(10L), anyLong());
+        assertThat((Long) result.get("sequence"), is(12L));
+        assertThat((Boolean) result.get("complete"), is(true));
+        assertProperCreateResultsList((List<SimpleObject>) result.get("requests"));
+        assertThat((String) ((List<SimpleObject>) result.get("requests")).get(1).get("status"), is("ASSIGNED_TO_CREATE"));
+    }
+
+    @Test
+    public void testControllerShouldNotWaitForChangesOnFirstCall() throws Exception {
+
+        when(paperRecordService.getPaperRecordRequestChangesSince(null)).thenReturn(new PaperRecordRequestChanges(12L));
+
+        SimpleObject result = controller.getPaperRecordRequestChanges(null, null, paperRecordService, emrProperties, ui);
+
+        verify(paperRecordService, never()).waitForPaperRecordRequestChanges(anyLong(), anyLong());
+        assertThat((Boolean) result.get("complete"), is(false));
+    }
+
     @Test
     public void testControllerShouldAssignRequests() throws Exception {
 